@@ -63,4 +63,21 @@ public class InstantCoder extends AtomicCoder<Instant> {
 
   @Override
   public void verifyDeterministic() { }
+
+  /**
+   * Returns true since registerByteSizeObserver() runs in constant time.
+   */
+  @Override
+  public boolean isRegisterByteSizeObserverCheap(Instant value, Context context) {
+    return true;
+  }
+
+  @Override
+  protected long getEncodedElementByteSize(Instant value, Context context)
+      throws Exception {
+    if (value == null) {
+      throw new CoderException("cannot encode a null Instant");
+    }
+    return 8;
+  }
 }
@@ -151,11 +151,24 @@ public abstract class IterableLikeCoder<T, IT extends Iterable<T>>
 
   /**
    * Returns whether iterable can use lazy counting, since that
-   * requires minimal extra computation.
+   * requires minimal extra computation, or is a collection whose
+   * elements are all cheap to observe.
    */
   @Override
   public boolean isRegisterByteSizeObserverCheap(IT iterable, Context context) {
-    return iterable instanceof ElementByteSizeObservableIterable;
+    if (iterable instanceof ElementByteSizeObservableIterable) {
+      return true;
+    }
+    if (!(iterable instanceof Collection)) {
+      return false;
+    }
+    Context nestedContext = context.nested();
+    for (T elem : iterable) {
+      if (!elementCoder.isRegisterByteSizeObserverCheap(elem, nestedContext)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
@@ -21,8 +21,9 @@ import static com.google.cloud.dataflow.sdk.util.Structs.addList;
 import com.google.cloud.dataflow.sdk.util.CloudObject;
 import com.google.cloud.dataflow.sdk.util.PropertyNames;
 import com.google.cloud.dataflow.sdk.util.common.ElementByteSizeObserver;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -105,9 +106,8 @@ public abstract class StandardCoder<T> implements Coder<T> {
   }
 
   /**
-   * StandardCoder requires elements to be fully encoded and copied
-   * into a byte stream to determine the byte size of the element,
-   * which is considered expensive.
+   * StandardCoder requires elements to be fully encoded to determine
+   * the byte size of the element, which is considered expensive.
    */
   @Override
   public boolean isRegisterByteSizeObserverCheap(T value, Context context) {
@@ -117,14 +117,17 @@ public abstract class StandardCoder<T> implements Coder<T> {
   /**
    * Returns the size in bytes of the encoded value using this
    * coder. Derived classes override this method if byte size can be
-   * computed with less computation or copying.
+   * computed with less computation.
+   *
+   * <p> The value is encoded into a stream that only counts the bytes
+   * written to it, without buffering them.
    */
   protected long getEncodedElementByteSize(T value, Context context)
       throws Exception {
     try {
-      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      CountingOutputStream os = new CountingOutputStream(ByteStreams.nullOutputStream());
       encode(value, os, context);
-      return os.size();
+      return os.getCount();
     } catch (Exception exn) {
       throw new IllegalArgumentException(
           "Unable to encode element '" + value + "' with coder '" + this + "'.", exn);
@@ -16,7 +16,9 @@
 
 package com.google.cloud.dataflow.sdk.coders;
 
+import com.google.cloud.dataflow.sdk.util.ExposedByteArrayInputStream;
 import com.google.cloud.dataflow.sdk.util.VarInt;
+import com.google.common.base.Utf8;
 import com.google.common.io.ByteStreams;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
@@ -89,6 +91,15 @@ public class StringUtf8Coder extends AtomicCoder<String> {
   public String decode(InputStream inStream, Context context)
       throws IOException {
     if (context.isWholeStream) {
+      if (inStream instanceof ExposedByteArrayInputStream) {
+        // Decode the remaining bytes in place, without copying them first.
+        ExposedByteArrayInputStream exposed = (ExposedByteArrayInputStream) inStream;
+        int length = exposed.available();
+        String value =
+            new String(exposed.getBuffer(), exposed.getPosition(), length, Singletons.UTF8);
+        exposed.skip(length);
+        return value;
+      }
       ByteArrayOutputStream outStream = new ByteArrayOutputStream();
       ByteStreams.copy(inStream, outStream);
       // ByteArrayOutputStream.toString provides no Charset overloads.
@@ -113,17 +124,33 @@ public class StringUtf8Coder extends AtomicCoder<String> {
   @Override
   public void verifyDeterministic() { }
 
+  /**
+   * Returns true since registerByteSizeObserver() computes the length of
+   * the encoding without encoding the string.
+   */
+  @Override
+  public boolean isRegisterByteSizeObserverCheap(String value, Context context) {
+    return true;
+  }
+
+  @Override
   protected long getEncodedElementByteSize(String value, Context context)
       throws Exception {
     if (value == null) {
       throw new CoderException("cannot encode a null String");
     }
-    if (context.isWholeStream) {
+    int length = utf8Length(value);
+    return context.isWholeStream ? length : VarInt.getLength(length) + length;
+  }
+
+  // Returns the length of the UTF-8 encoding of a string, without encoding it.
+  private static int utf8Length(String value) {
+    try {
+      return Utf8.encodedLength(value);
+    } catch (IllegalArgumentException e) {
+      // The string has unpaired surrogates, which are encoded as
+      // replacement characters.
       return value.getBytes(Singletons.UTF8).length;
-    } else {
-      DataOutputStream stream = new DataOutputStream(new ByteArrayOutputStream());
-      writeString(value, stream);
-      return stream.size();
     }
   }
 }
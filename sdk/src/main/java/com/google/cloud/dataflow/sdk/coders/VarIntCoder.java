@@ -90,6 +90,6 @@ public class VarIntCoder extends AtomicCoder<Integer> {
     if (value == null) {
       throw new CoderException("cannot encode a null Integer");
     }
-    return VarInt.getLength(value.longValue());
+    return VarInt.getLength(value.intValue());
   }
 }
@@ -14,13 +14,21 @@
 
 package com.google.cloud.dataflow.sdk.io;
 
+import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.SUM;
+
 import com.google.api.client.util.Preconditions;
 import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.options.DataflowPipelineDebugOptions;
 import com.google.cloud.dataflow.sdk.options.PipelineOptions;
+import com.google.cloud.dataflow.sdk.util.CounterReportingChannel;
 import com.google.cloud.dataflow.sdk.util.ExecutionContext;
+import com.google.cloud.dataflow.sdk.util.FileMetadata;
 import com.google.cloud.dataflow.sdk.util.IOChannelFactory;
 import com.google.cloud.dataflow.sdk.util.IOChannelUtils;
+import com.google.cloud.dataflow.sdk.util.common.Counter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,11 +36,20 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 /**
  * A common base class for all file-based {@link Source}s. Extend this class to implement your own
@@ -56,6 +73,14 @@ import java.util.NoSuchElementException;
 public abstract class FileBasedSource<T> extends ByteOffsetBasedSource<T> {
   private static final long serialVersionUID = 0;
   private static final Logger LOG = LoggerFactory.getLogger(FileBasedSource.class);
+  // The maximum number of threads used to split the files of a file pattern.
+  private static final int MAX_SPLITTING_THREADS = 32;
+
+  /**
+   * The name of the counter of the time a file pattern reader spends waiting for the files read
+   * ahead to be opened, prefixed by the counter prefix of the {@link ExecutionContext}.
+   */
+  public static final String READ_AHEAD_BLOCKED_MSECS_COUNTER = "FileReadAheadBlocked-msecs";
 
   private final String fileOrPatternSpec;
   private final Mode mode;
@@ -163,12 +188,12 @@ public abstract class FileBasedSource<T> extends ByteOffsetBasedSource<T> {
 
     IOChannelFactory factory = IOChannelUtils.getFactory(fileOrPatternSpec);
     if (mode == Mode.FILEPATTERN) {
-      // TODO Implement a more efficient parallel/batch size estimation mechanism for file patterns.
+      // The sizes are taken from the listing that expands the pattern, rather than looked up
+      // separately for every file.
       long startTime = System.currentTimeMillis();
       long totalSize = 0;
-      Collection<String> inputs = factory.match(fileOrPatternSpec);
-      for (String input : inputs) {
-        totalSize += factory.getSizeBytes(input);
+      for (FileMetadata input : IOChannelUtils.matchWithMetadata(factory, fileOrPatternSpec)) {
+        totalSize += input.getSizeBytes();
       }
       LOG.debug("Size estimation of file pattern " + fileOrPatternSpec + " took "
           + (System.currentTimeMillis() - startTime) + " ms");
@@ -190,10 +215,12 @@ public abstract class FileBasedSource<T> extends ByteOffsetBasedSource<T> {
 
     if (mode == Mode.FILEPATTERN) {
       long startTime = System.currentTimeMillis();
+      IOChannelFactory factory = IOChannelUtils.getFactory(fileOrPatternSpec);
+      List<FileMetadata> files = IOChannelUtils.matchWithMetadata(factory, fileOrPatternSpec);
       List<FileBasedSource<T>> splitResults = new ArrayList<>();
-      for (String file : expandFilePattern()) {
-        splitResults.addAll(createForSubrangeOfFile(file, 0, Long.MAX_VALUE).splitIntoShards(
-            desiredShardSizeBytes, options));
+      for (List<FileBasedSource<T>> fileSplits :
+          splitFiles(files, desiredShardSizeBytes, options)) {
+        splitResults.addAll(fileSplits);
       }
       LOG.debug("Splitting the source based on file pattern " + fileOrPatternSpec + " took "
           + (System.currentTimeMillis() - startTime) + " ms");
@@ -204,12 +231,7 @@ public abstract class FileBasedSource<T> extends ByteOffsetBasedSource<T> {
       // that file.
       IOChannelFactory factory = IOChannelUtils.getFactory(fileOrPatternSpec);
       if (factory.isReadSeekEfficient(fileOrPatternSpec)) {
-        List<FileBasedSource<T>> splitResults = new ArrayList<>();
-        for (ByteOffsetBasedSource<T> split :
-            super.splitIntoShards(desiredShardSizeBytes, options)) {
-          splitResults.add((FileBasedSource<T>) split);
-        }
-        return splitResults;
+        return splitIntoSubranges(desiredShardSizeBytes, options);
       } else {
         LOG.debug("The source for file " + fileOrPatternSpec
             + " is not split into sub-range based sources since the file is not seekable");
@@ -223,20 +245,55 @@ public abstract class FileBasedSource<T> extends ByteOffsetBasedSource<T> {
       ExecutionContext executionContext) throws IOException {
     if (mode == Mode.FILEPATTERN) {
       long startTime = System.currentTimeMillis();
+      int readAheadCount = options == null
+          ? 0 : options.as(DataflowPipelineDebugOptions.class).getFileReadAheadCount();
+      if (readAheadCount > 0) {
+        IOChannelFactory factory = IOChannelUtils.getFactory(fileOrPatternSpec);
+        List<FileMetadata> files = IOChannelUtils.matchWithMetadata(factory, fileOrPatternSpec);
+        List<FileBasedReader<T>> fileReaders = new ArrayList<>();
+        long[] fileSizes = new long[files.size()];
+        for (FileMetadata file : files) {
+          fileSizes[fileReaders.size()] = file.getSizeBytes();
+          fileReaders.add(withExecutionContext(createForSubrangeOfFile(file.getSpec(), 0,
+              Long.MAX_VALUE).createSingleFileReader(options, coder, executionContext),
+              executionContext));
+        }
+        LOG.debug("Creating a reader for file pattern " + fileOrPatternSpec + " took "
+            + (System.currentTimeMillis() - startTime) + " ms");
+        Counter<Long> blockedMsecs = null;
+        if (executionContext != null && executionContext.getAddCounterMutator() != null) {
+          blockedMsecs = executionContext.getAddCounterMutator().addCounter(Counter.longs(
+              executionContext.getCounterPrefix() + READ_AHEAD_BLOCKED_MSECS_COUNTER, SUM));
+        }
+        return new ReadAheadFilePatternReader(fileReaders, fileSizes, readAheadCount,
+            options.as(DataflowPipelineDebugOptions.class).getFileReadAheadBudgetBytes(),
+            blockedMsecs);
+      }
       Collection<String> files = expandFilePattern();
       List<FileBasedReader<T>> fileReaders = new ArrayList<>();
       for (String fileName : files) {
-        fileReaders.add(createForSubrangeOfFile(fileName, 0, Long.MAX_VALUE).createSingleFileReader(
-            options, coder, executionContext));
+        fileReaders.add(withExecutionContext(createForSubrangeOfFile(fileName, 0, Long.MAX_VALUE)
+            .createSingleFileReader(options, coder, executionContext), executionContext));
       }
       LOG.debug("Creating a reader for file pattern " + fileOrPatternSpec + " took "
           + (System.currentTimeMillis() - startTime) + " ms");
       return new FilePatternReader(fileReaders.iterator());
     } else {
-      return createSingleFileReader(options, coder, executionContext);
+      return withExecutionContext(
+          createSingleFileReader(options, coder, executionContext), executionContext);
     }
   }
 
+  /**
+   * Makes the given reader report the IO of the channel it opens to the counters of the given
+   * context, if the channel supports it.
+   */
+  private static <T> FileBasedReader<T> withExecutionContext(
+      FileBasedReader<T> reader, @Nullable ExecutionContext executionContext) {
+    reader.executionContext = executionContext;
+    return reader;
+  }
+
   @Override
   public final long getMaxEndOffset(PipelineOptions options) throws Exception {
     if (mode == Mode.FILEPATTERN) {
@@ -250,6 +307,76 @@ public abstract class FileBasedSource<T> extends ByteOffsetBasedSource<T> {
     }
   }
 
+  /**
+   * Splits each of the given files, and returns the splits of every file in the order of the
+   * files.
+   *
+   * <p>The size and the seekability of each file are taken from its metadata, so splitting a file
+   * does not access it. The files are split by a bounded number of threads, since creating the
+   * sources of a file may still be expensive for some subclasses.
+   */
+  private List<List<FileBasedSource<T>>> splitFiles(List<FileMetadata> files,
+      final long desiredShardSizeBytes, final PipelineOptions options) throws Exception {
+    if (files.size() <= 1) {
+      List<List<FileBasedSource<T>>> splits = new ArrayList<>();
+      for (FileMetadata file : files) {
+        splits.add(splitFile(file, desiredShardSizeBytes, options));
+      }
+      return splits;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(MAX_SPLITTING_THREADS, files.size()),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("FileBasedSource-split-%d")
+            .build());
+    try {
+      List<Future<List<FileBasedSource<T>>>> futures = new ArrayList<>();
+      for (final FileMetadata file : files) {
+        futures.add(executor.submit(new Callable<List<FileBasedSource<T>>>() {
+          @Override
+          public List<FileBasedSource<T>> call() throws Exception {
+            return splitFile(file, desiredShardSizeBytes, options);
+          }
+        }));
+      }
+      List<List<FileBasedSource<T>>> splits = new ArrayList<>();
+      for (Future<List<FileBasedSource<T>>> future : futures) {
+        try {
+          splits.add(future.get());
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause(), Exception.class);
+          throw e;
+        }
+      }
+      return splits;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private List<FileBasedSource<T>> splitFile(FileMetadata file, long desiredShardSizeBytes,
+      PipelineOptions options) throws Exception {
+    if (file.isReadSeekEfficient()) {
+      // Bounding the source by the listed size gives the same splits as the full file, without
+      // looking up the size again.
+      return createForSubrangeOfFile(file.getSpec(), 0, file.getSizeBytes())
+          .splitIntoSubranges(desiredShardSizeBytes, options);
+    } else {
+      LOG.debug("The source for file " + file.getSpec()
+          + " is not split into sub-range based sources since the file is not seekable");
+      return ImmutableList.of(createForSubrangeOfFile(file.getSpec(), 0, Long.MAX_VALUE));
+    }
+  }
+
+  private List<FileBasedSource<T>> splitIntoSubranges(long desiredShardSizeBytes,
+      PipelineOptions options) throws Exception {
+    List<FileBasedSource<T>> splitResults = new ArrayList<>();
+    for (ByteOffsetBasedSource<T> split : super.splitIntoShards(desiredShardSizeBytes, options)) {
+      splitResults.add((FileBasedSource<T>) split);
+    }
+    return splitResults;
+  }
+
   private Collection<String> expandFilePattern() throws IOException {
     if (mode != Mode.FILEPATTERN) {
       throw new IllegalArgumentException("Not a file pattern");
@@ -332,6 +459,7 @@ public abstract class FileBasedSource<T> extends ByteOffsetBasedSource<T> {
                                                 // reached.
     private boolean startCalled = false;
     private FileBasedSource<T> source = null;
+    @Nullable private ExecutionContext executionContext = null;
 
     /**
      * Subclasses should not perform IO operations at the constructor. All IO operations should be
@@ -353,6 +481,11 @@ public abstract class FileBasedSource<T> extends ByteOffsetBasedSource<T> {
       Preconditions.checkState(!startCalled, "start() should only be called once");
       IOChannelFactory factory = IOChannelUtils.getFactory(source.getFileOrPatternSpec());
       this.channel = factory.open(source.getFileOrPatternSpec());
+      if (channel instanceof CounterReportingChannel && executionContext != null
+          && executionContext.getAddCounterMutator() != null) {
+        ((CounterReportingChannel) channel).reportCountersTo(
+            executionContext.getCounterPrefix(), executionContext.getAddCounterMutator());
+      }
 
       if (channel instanceof SeekableByteChannel) {
         SeekableByteChannel seekChannel = (SeekableByteChannel) channel;
@@ -512,4 +645,149 @@ public abstract class FileBasedSource<T> extends ByteOffsetBasedSource<T> {
       }
     }
   }
+
+  /**
+   * An internal Reader implementation that concatenates a sequence of FileBasedReaders, and starts
+   * the next readers on background threads while the current reader is read.
+   *
+   * <p>At most {@code readAheadCount} readers are started ahead of the current reader, and only
+   * while the total size of their files is within {@code readAheadBudgetBytes}; a reader buffers at
+   * most the whole of its file. The next reader is always started once the current reader is
+   * exhausted.
+   */
+  private class ReadAheadFilePatternReader implements Reader<T> {
+    final List<FileBasedReader<T>> fileReaders;
+    final long[] fileSizes;
+    final int readAheadCount;
+    final long readAheadBudgetBytes;
+    final ExecutorService executor;
+    // The results of start() of the readers started ahead, in order, beginning with the reader at
+    // index nextReader.
+    final ArrayDeque<Future<Boolean>> startedReaders = new ArrayDeque<>();
+    // The index of the next reader to be read, and of the next reader to be started.
+    int nextReader = 0;
+    int nextStartedReader = 0;
+    // The total size of the files of the readers in startedReaders.
+    long startedBytes = 0;
+    FileBasedReader<T> currentReader = null;
+    // The time spent waiting for readers started ahead, and the number of such waits.
+    long blockedNanos = 0;
+    int blockedCount = 0;
+    // The counter the time spent waiting is reported to, if any, and the time reported so far.
+    @Nullable final Counter<Long> blockedMsecs;
+    long reportedBlockedMsecs = 0;
+
+    public ReadAheadFilePatternReader(List<FileBasedReader<T>> fileReaders, long[] fileSizes,
+        int readAheadCount, long readAheadBudgetBytes, @Nullable Counter<Long> blockedMsecs) {
+      this.fileReaders = fileReaders;
+      this.fileSizes = fileSizes;
+      this.readAheadCount = readAheadCount;
+      this.readAheadBudgetBytes = readAheadBudgetBytes;
+      this.blockedMsecs = blockedMsecs;
+      this.executor = Executors.newFixedThreadPool(readAheadCount,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("FileBasedSource-read-ahead-%d")
+              .build());
+    }
+
+    @Override
+    public boolean start() throws IOException {
+      return startNextNonemptyReader();
+    }
+
+    @Override
+    public boolean advance() throws IOException {
+      Preconditions.checkState(currentReader != null, "Call start() before advance()");
+      if (currentReader.advance()) {
+        return true;
+      }
+      return startNextNonemptyReader();
+    }
+
+    private boolean startNextNonemptyReader() throws IOException {
+      while (nextReader < fileReaders.size()) {
+        startReadersAhead();
+        currentReader = fileReaders.get(nextReader);
+        startedBytes -= fileSizes[nextReader];
+        nextReader++;
+        if (awaitStarted(startedReaders.removeFirst())) {
+          startReadersAhead();
+          return true;
+        }
+        currentReader.close();
+      }
+      return false;
+    }
+
+    private void startReadersAhead() {
+      while (nextStartedReader < fileReaders.size()
+          && startedReaders.size() < readAheadCount
+          && (startedReaders.isEmpty()
+              || startedBytes + fileSizes[nextStartedReader] <= readAheadBudgetBytes)) {
+        final FileBasedReader<T> reader = fileReaders.get(nextStartedReader);
+        startedReaders.addLast(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            return reader.start();
+          }
+        }));
+        startedBytes += fileSizes[nextStartedReader];
+        nextStartedReader++;
+      }
+    }
+
+    private boolean awaitStarted(Future<Boolean> started) throws IOException {
+      boolean blocked = !started.isDone();
+      long startNanos = System.nanoTime();
+      try {
+        return started.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+        throw Throwables.propagate(e.getCause());
+      } finally {
+        if (blocked) {
+          blockedCount++;
+          blockedNanos += System.nanoTime() - startNanos;
+          if (blockedMsecs != null) {
+            long totalBlockedMsecs = TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+            blockedMsecs.addValue(totalBlockedMsecs - reportedBlockedMsecs);
+            reportedBlockedMsecs = totalBlockedMsecs;
+          }
+        }
+      }
+    }
+
+    @Override
+    public T getCurrent() throws NoSuchElementException {
+      return currentReader.getCurrent();
+    }
+
+    @Override
+    public void close() throws IOException {
+      LOG.debug("Read " + nextReader + " files of file pattern " + fileOrPatternSpec
+          + ", waited " + blockedCount + " times for files to be opened, for a total of "
+          + TimeUnit.NANOSECONDS.toMillis(blockedNanos) + " ms");
+      executor.shutdown();
+      // Close all readers that may have not yet been closed, once any start() in progress is done.
+      if (currentReader != null) {
+        currentReader.close();
+      }
+      for (Future<Boolean> started : startedReaders) {
+        try {
+          started.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          // The reader is closed below.
+        }
+      }
+      startedReaders.clear();
+      for (int i = nextReader; i < fileReaders.size(); i++) {
+        fileReaders.get(i).close();
+      }
+      nextReader = fileReaders.size();
+    }
+  }
 }
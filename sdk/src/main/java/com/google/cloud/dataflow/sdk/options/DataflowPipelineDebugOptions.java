@@ -57,6 +57,188 @@ public interface DataflowPipelineDebugOptions extends PipelineOptions {
   List<String> getExperiments();
   void setExperiments(List<String> value);
 
+  /**
+   * The names (or system names) of the partial group-by-key steps that should
+   * buffer their keys and values in encoded form in large byte arrays, rather
+   * than as objects in a hash map.
+   *
+   * <p> This lets many more distinct keys fit into the grouping table before
+   * it is flushed, and reduces garbage collection pressure, at the cost of
+   * encoding and decoding every key and value.
+   */
+  @Description("Names of the partial group-by-key steps that should use "
+      + "a byte array grouping table.")
+  List<String> getByteArrayGroupingTableSteps();
+  void setByteArrayGroupingTableSteps(List<String> value);
+
+  /**
+   * The names (or system names) of the partial group-by-key steps whose
+   * grouping tables should adapt their size to the observed combine ratio.
+   *
+   * <p> The table grows while keys repeat often, shrinks while they don't,
+   * and is bypassed for a while when grouping doesn't reduce the number of
+   * elements at all.
+   */
+  @Description("Names of the partial group-by-key steps that should use "
+      + "an adaptively sized grouping table.")
+  List<String> getAdaptiveGroupingTableSteps();
+  void setAdaptiveGroupingTableSteps(List<String> value);
+
+  /**
+   * Policies for choosing the keys a full partial group-by-key table
+   * outputs to make room for new ones.  Mirrors the worker's
+   * {@code PartialGroupByKeyOperation.EvictionPolicy}.
+   */
+  public enum GroupingTableEvictionPolicy {
+    /**
+     * Evicts keys in hash table order.
+     */
+    ARBITRARY,
+
+    /**
+     * Evicts the keys that were least recently updated, keeping recently
+     * active keys resident.
+     */
+    LEAST_RECENTLY_UPDATED,
+
+    /**
+     * Evicts the keys with the fewest values, as judged against a sample
+     * of the table, keeping frequently occurring keys resident.  The key
+     * being added is never evicted while other keys remain.
+     */
+    LEAST_FREQUENTLY_UPDATED
+  }
+
+  /**
+   * The policy used to choose which keys a full partial group-by-key table
+   * outputs to make room for new keys.
+   *
+   * <p> Policies other than {@code ARBITRARY} keep recently or frequently
+   * seen keys resident, so that values of hot keys that reappear shortly
+   * are still grouped together before the shuffle.  Byte array grouping
+   * tables always output all of their keys at once.
+   */
+  @Description("The policy used to choose which keys a full partial "
+      + "group-by-key table outputs.")
+  @Default.Enum("ARBITRARY")
+  GroupingTableEvictionPolicy getGroupingTableEvictionPolicy();
+  void setGroupingTableEvictionPolicy(GroupingTableEvictionPolicy value);
+
+  /**
+   * The fraction of the maximum heap size that a batch worker may use to
+   * cache materialized side inputs, such as the maps built for
+   * {@code View.asMap()}, across work items, or 0 to disable the cache.
+   */
+  @Description("The fraction of the heap that the worker may use to cache "
+      + "materialized side inputs.")
+  @Default.Double(0.25)
+  double getWorkerSideInputCacheRatio();
+  void setWorkerSideInputCacheRatio(double value);
+
+  /**
+   * Whether the worker should decode the lines of text files directly from
+   * its read buffer, instead of copying every line out of the buffer first.
+   */
+  @Description("Whether the worker should decode text lines in place from its read buffer.")
+  @Default.Boolean(false)
+  boolean getWorkerTextLineSlicing();
+  void setWorkerTextLineSlicing(boolean value);
+
+  /**
+   * The number of files of a file pattern that a
+   * {@link com.google.cloud.dataflow.sdk.io.FileBasedSource} reader opens and
+   * starts reading in the background, ahead of the file being read, or 0 to
+   * open the files one after another.
+   */
+  @Description("The number of files of a file pattern to open ahead of the "
+      + "file being read.")
+  @Default.Integer(0)
+  int getFileReadAheadCount();
+  void setFileReadAheadCount(int value);
+
+  /**
+   * The largest total size of the files that a
+   * {@link com.google.cloud.dataflow.sdk.io.FileBasedSource} reader has
+   * opened ahead of the file being read.
+   *
+   * <p> A file opened ahead buffers at most its whole size, so this bounds
+   * the memory used by reading ahead.  The next file is always opened once
+   * the previous file has been read, however large it is.
+   */
+  @Description("The largest total size in bytes of the files opened ahead of "
+      + "the file being read.")
+  @Default.Long(64L << 20)
+  long getFileReadAheadBudgetBytes();
+  void setFileReadAheadBudgetBytes(long value);
+
+  /**
+   * Whether the streaming worker should pipeline its requests to Windmill.
+   *
+   * <p> When enabled, the next batch of work is fetched while the current
+   * batch is being dispatched, and results are committed as soon as enough
+   * of them are pending or the oldest of them has waited for
+   * {@link #getWindmillCommitDeadlineMillis()}, with several commits in
+   * flight at once.
+   */
+  @Description("Whether the streaming worker should overlap fetching work "
+      + "and committing results.")
+  @Default.Boolean(false)
+  boolean getWindmillPipelining();
+  void setWindmillPipelining(boolean value);
+
+  /**
+   * The maximum number of work items the streaming worker requests from
+   * Windmill at a time.
+   */
+  @Description("The maximum number of work items fetched from Windmill at a time.")
+  @Default.Integer(100)
+  int getWindmillGetWorkMaxItems();
+  void setWindmillGetWorkMaxItems(int value);
+
+  /**
+   * The longest time a pipelining streaming worker holds back a finished
+   * work item's results in order to batch them with others.
+   */
+  @Description("The longest time in milliseconds that results are held "
+      + "back to batch commits, when pipelining.")
+  @Default.Integer(10)
+  int getWindmillCommitDeadlineMillis();
+  void setWindmillCommitDeadlineMillis(int value);
+
+  /**
+   * Whether the streaming worker should combine the state reads of
+   * concurrently processed work items into batched requests, and prefetch
+   * the state that grouping steps read for every work item as soon as the
+   * work item is dispatched.
+   */
+  @Description("Whether the streaming worker should batch and prefetch state reads.")
+  @Default.Boolean(false)
+  boolean getWindmillStateFetchBatching();
+  void setWindmillStateFetchBatching(boolean value);
+
+  /**
+   * How long a batching streaming worker waits for more state reads to
+   * arrive before sending a batch.
+   */
+  @Description("How long in microseconds to wait for more state reads before "
+      + "sending a batch, when batching.")
+  @Default.Integer(200)
+  int getWindmillStateFetchLingerMicros();
+  void setWindmillStateFetchLingerMicros(int value);
+
+  /**
+   * The fraction of the maximum heap size that the streaming worker may
+   * fill with received work items, pending commits and cached state.
+   *
+   * <p> The worker fetches fewer work items as its estimate of this memory
+   * approaches the budget, and stops fetching work once it is exceeded.
+   */
+  @Description("The fraction of the heap that the streaming worker may use "
+      + "for accepted work.")
+  @Default.Double(0.5)
+  double getStreamingWorkerMemoryBudgetRatio();
+  void setStreamingWorkerMemoryBudgetRatio(double value);
+
   /**
    * The API endpoint to use when communicating with the Dataflow service.
    */
@@ -25,4 +25,71 @@ public interface DirectPipelineOptions extends
     ApplicationNameOptions, BigQueryOptions, GcsOptions, GcpOptions,
     PipelineOptions, StreamingOptions {
 
+  /**
+   * The number of threads the {@link DirectPipeline} evaluates bundles of
+   * {@link com.google.cloud.dataflow.sdk.transforms.ParDo} input on.
+   *
+   * <p> With 1, each transform is evaluated as a single bundle on the
+   * calling thread.  With more, the input of each {@code ParDo} is split
+   * into bundles that are evaluated concurrently, each by its own
+   * deserialized copy of the {@code DoFn}.  With 0, one thread per
+   * available processor is used.
+   */
+  @Description("The number of threads to evaluate bundles on in the "
+      + "DirectPipelineRunner, 1 to evaluate transforms on the calling "
+      + "thread, or 0 to use one thread per available processor.")
+  @Default.Integer(1)
+  int getDirectParallelism();
+  void setDirectParallelism(int value);
+
+  /**
+   * Whether the {@link DirectPipeline} fuses chains of element-wise
+   * transforms, such as {@link com.google.cloud.dataflow.sdk.transforms.ParDo}
+   * and {@link com.google.cloud.dataflow.sdk.transforms.Flatten}.
+   *
+   * <p> When fusing, elements are pushed through such chains one at a
+   * time, and only the PCollections consumed by other transforms, such as
+   * a {@code GroupByKey} or a side input view, or by no transform at all,
+   * are materialized.  Fused transforms are evaluated on the calling
+   * thread.
+   */
+  @Description("Whether the DirectPipelineRunner fuses chains of element-wise "
+      + "transforms, rather than materializing every PCollection.")
+  @Default.Boolean(false)
+  boolean isDirectFusion();
+  void setDirectFusion(boolean value);
+
+  /**
+   * The number of bytes of encoded key-value pairs each
+   * {@link com.google.cloud.dataflow.sdk.transforms.GroupByKey} in the
+   * {@link DirectPipeline} buffers in memory.
+   *
+   * <p> Beyond this, the buffered pairs are sorted by key and spilled to
+   * temporary local files, which are merged when grouping, and the grouped
+   * values are read back from disk as they are iterated over.
+   */
+  @Description("The number of bytes of encoded key-value pairs each GroupByKey "
+      + "in the DirectPipelineRunner buffers in memory before spilling them "
+      + "to local disk.")
+  @Default.Long(64L << 20)
+  long getDirectGroupByKeyMemoryBytes();
+  void setDirectGroupByKeyMemoryBytes(long value);
+
+  /**
+   * Whether the {@link DirectPipeline} lifts the combining of each
+   * {@link com.google.cloud.dataflow.sdk.transforms.Combine.PerKey} above
+   * its {@code GroupByKey}.
+   *
+   * <p> When lifting, the values of each key are added to accumulators as
+   * they arrive, rather than all grouped before being combined, so that
+   * combining takes memory proportional to the number of distinct keys.
+   * Only applies to globally windowed input, and to transforms applied
+   * after this option is set.
+   */
+  @Description("Whether the DirectPipelineRunner combines the values of each "
+      + "key of a Combine.perKey as they arrive, rather than grouping them "
+      + "all first.")
+  @Default.Boolean(false)
+  boolean isDirectCombinerLifting();
+  void setDirectCombinerLifting(boolean value);
 }
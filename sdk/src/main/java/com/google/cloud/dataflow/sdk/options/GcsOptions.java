@@ -39,6 +39,61 @@ public interface GcsOptions extends
   GcsUtil getGcsUtil();
   void setGcsUtil(GcsUtil value);
 
+  /**
+   * The number of blocks of a GCS object that a reader fetches concurrently
+   * with ranged reads, at and ahead of its read position, or 0 to read
+   * objects through a single sequential stream.
+   */
+  @Description("The number of blocks of a GCS object to fetch concurrently "
+      + "ahead of the read position, or 0 to read objects sequentially.")
+  @Default.Integer(0)
+  int getGcsReadPrefetchBlockCount();
+  void setGcsReadPrefetchBlockCount(int value);
+
+  /**
+   * The largest number of ranged reads in flight at a time across all GCS
+   * readers, when prefetching.  Blocks are fetched on a pool of at most
+   * this many threads, rather than on {@link #getExecutorService}, and the
+   * fetches of further blocks wait for a thread.
+   */
+  @Description("The largest number of blocks of GCS objects fetched "
+      + "concurrently across all readers, when prefetching.")
+  @Default.Integer(32)
+  int getGcsReadPrefetchThreads();
+  void setGcsReadPrefetchThreads(int value);
+
+  /**
+   * The size of the blocks of a GCS object that a reader fetches with
+   * ranged reads, when prefetching.
+   */
+  @Description("The size in bytes of the blocks of a GCS object fetched "
+      + "ahead of the read position.")
+  @Default.Integer(8 << 20)
+  int getGcsReadPrefetchBlockSizeBytes();
+  void setGcsReadPrefetchBlockSizeBytes(int value);
+
+  /**
+   * The size of the parts that a GCS writer uploads concurrently as
+   * temporary objects, and composes into the written object on close, or 0
+   * to write objects through a single resumable upload.
+   */
+  @Description("The size in bytes of the parts of a GCS object uploaded "
+      + "concurrently, or 0 to write objects through a single upload.")
+  @Default.Integer(0)
+  int getGcsCompositeUploadPartSizeBytes();
+  void setGcsCompositeUploadPartSizeBytes(int value);
+
+  /**
+   * The largest total size of the parts that a GCS writer holds in memory
+   * while they are written and uploaded, when uploading parts concurrently.
+   * This bounds the number of parts uploaded concurrently by each writer.
+   */
+  @Description("The largest total size in bytes of the parts of a GCS object "
+      + "held in memory by a writer, when uploading parts concurrently.")
+  @Default.Long(256L << 20)
+  long getGcsCompositeUploadBufferBytes();
+  void setGcsCompositeUploadBufferBytes(long value);
+
   ////////////////////////////////////////////////////////////////////////////
   // Allows the user to provide an alternative ExecutorService if their
   // environment does not support the default implementation.
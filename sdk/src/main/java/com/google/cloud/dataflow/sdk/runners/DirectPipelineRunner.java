@@ -20,6 +20,9 @@ import com.google.cloud.dataflow.sdk.Pipeline;
 import com.google.cloud.dataflow.sdk.Pipeline.PipelineVisitor;
 import com.google.cloud.dataflow.sdk.PipelineResult;
 import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.Coder.NonDeterministicException;
+import com.google.cloud.dataflow.sdk.coders.CoderException;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
 import com.google.cloud.dataflow.sdk.coders.ListCoder;
 import com.google.cloud.dataflow.sdk.options.DirectPipelineOptions;
 import com.google.cloud.dataflow.sdk.options.PipelineOptions;
@@ -31,6 +34,11 @@ import com.google.cloud.dataflow.sdk.transforms.DoFn;
 import com.google.cloud.dataflow.sdk.transforms.PTransform;
 import com.google.cloud.dataflow.sdk.transforms.ParDo;
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.GlobalWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.InvalidWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.NonMergingWindowFn;
+import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
 import com.google.cloud.dataflow.sdk.util.IOChannelUtils;
 import com.google.cloud.dataflow.sdk.util.SerializableUtils;
 import com.google.cloud.dataflow.sdk.util.TestCredential;
@@ -46,6 +54,7 @@ import com.google.cloud.dataflow.sdk.values.POutput;
 import com.google.cloud.dataflow.sdk.values.PValue;
 import com.google.cloud.dataflow.sdk.values.TypedPValue;
 import com.google.common.base.Function;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 
 import org.joda.time.Instant;
@@ -53,13 +62,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Executes the operations in the pipeline directly, in this process, without
@@ -203,11 +221,32 @@ public class DirectPipelineRunner
     return this;
   }
 
+  /**
+   * Retains the value of the given {@link PCollection} for inspection
+   * through {@link EvaluationResults} even when its producer is fused
+   * with its consumers.
+   *
+   * <p> With {@link DirectPipelineOptions#isDirectFusion fusion}, only
+   * the values of PCollections that are consumed by transforms other than
+   * fused ones, or by no transform at all, are otherwise retained.
+   *
+   * <p> This method modifies the {@code DirectPipelineRunner} instance and
+   * returns itself.
+   */
+  public DirectPipelineRunner withMaterializedPCollection(PCollection<?> pc) {
+    this.materializedPCollections.add(pc);
+    return this;
+  }
+
   @Override
   @SuppressWarnings("unchecked")
   public <Output extends POutput, Input extends PInput> Output apply(
       PTransform<Input, Output> transform, Input input) {
-    if (transform instanceof Combine.GroupedValues) {
+    if (transform instanceof Combine.PerKey
+        && options.isDirectCombinerLifting()
+        && ((PCollection<?>) input).getWindowFn().isCompatible(new GlobalWindows())) {
+      return (Output) applyLiftedCombine((Combine.PerKey) transform, (PCollection) input);
+    } else if (transform instanceof Combine.GroupedValues) {
       return (Output) applyTestCombine((Combine.GroupedValues) transform, (PCollection) input);
     } else {
       return super.apply(transform, input);
@@ -320,6 +359,243 @@ public class DirectPipelineRunner
     }
   }
 
+  private <K, VI, VO> PCollection<KV<K, VO>> applyLiftedCombine(
+      Combine.PerKey<K, VI, VO> transform,
+      PCollection<KV<K, VI>> input) {
+    return input.apply(new LiftedCombinePerKey<K, VI, Object, VO>(
+        (KeyedCombineFn<? super K, ? super VI, Object, VO>) transform.getFn(),
+        testSerializability));
+  }
+
+  /**
+   * The primitive that a {@link Combine.PerKey} over globally windowed
+   * input is replaced with when {@link DirectPipelineOptions#isDirectCombinerLifting
+   * lifting combiners}.
+   *
+   * <p> Rather than grouping all of a key's values before combining them,
+   * each bundle of input adds its values to an accumulator per key as they
+   * arrive, and the accumulators of all bundles are merged at the end, the
+   * way the service lifts the ADD phase of the combine above the shuffle.
+   * Memory use is thus proportional to the number of distinct keys per
+   * bundle rather than to the size of the input.
+   *
+   * <p> When testing serializability, the accumulators are encoded and
+   * decoded with the accumulator {@code Coder} before and after merging,
+   * like {@link TestCombineDoFn} does.
+   */
+  // @VisibleForTesting
+  @SuppressWarnings("serial")
+  public static class LiftedCombinePerKey<K, VI, VA, VO>
+      extends PTransform<PCollection<KV<K, VI>>, PCollection<KV<K, VO>>> {
+    private final transient KeyedCombineFn<? super K, ? super VI, VA, VO> fn;
+    private final boolean testSerializability;
+
+    public LiftedCombinePerKey(
+        KeyedCombineFn<? super K, ? super VI, VA, VO> fn,
+        boolean testSerializability) {
+      this.fn = fn;
+      this.testSerializability = testSerializability;
+    }
+
+    @Override
+    public PCollection<KV<K, VO>> apply(PCollection<KV<K, VI>> input) {
+      // Like the GroupByKey of the Combine.PerKey it replaces.
+      WindowFn windowFn = getInput().getWindowFn();
+      if (!(windowFn instanceof NonMergingWindowFn)) {
+        windowFn = new InvalidWindows(
+            "WindowFn has already been consumed by previous GroupByKey",
+            windowFn);
+      }
+      return PCollection.<KV<K, VO>>createPrimitiveOutputInternal(windowFn);
+    }
+
+    @Override
+    public void finishSpecifying() {
+      try {
+        getInputKvCoder().getKeyCoder().verifyDeterministic();
+      } catch (NonDeterministicException e) {
+        throw new IllegalStateException(
+            "the keyCoder of a GroupByKey must be deterministic", e);
+      }
+      super.finishSpecifying();
+    }
+
+    private KvCoder<K, VI> getInputKvCoder() {
+      Coder<KV<K, VI>> inputCoder = getInput().getCoder();
+      if (!(inputCoder instanceof KvCoder)) {
+        throw new IllegalStateException(
+            "GroupByKey requires its input to use KvCoder");
+      }
+      return (KvCoder<K, VI>) inputCoder;
+    }
+
+    @Override
+    protected Coder<KV<K, VO>> getDefaultOutputCoder() {
+      KvCoder<K, VI> kvCoder = getInputKvCoder();
+      Coder<VO> outputValueCoder = ((KeyedCombineFn<K, VI, VA, VO>) fn)
+          .getDefaultOutputCoder(
+              getCoderRegistry(), kvCoder.getKeyCoder(), kvCoder.getValueCoder());
+      return KvCoder.of(kvCoder.getKeyCoder(), outputValueCoder);
+    }
+
+    private Coder<VA> getAccumulatorCoder() {
+      KvCoder<K, VI> kvCoder = getInputKvCoder();
+      return ((KeyedCombineFn<K, VI, VA, VO>) fn).getAccumulatorCoder(
+          getCoderRegistry(), kvCoder.getKeyCoder(), kvCoder.getValueCoder());
+    }
+
+    @Override
+    protected String getKindString() {
+      return "Combine.PerKey";
+    }
+
+    /**
+     * Returns a new table of accumulators, keyed by the encoded keys of
+     * their values.
+     */
+    private Map<ByteBuffer, KV<K, VA>> newTable() {
+      return new LinkedHashMap<>();
+    }
+
+    /**
+     * Adds the value of the given element to the accumulator of its key,
+     * using the given copy of the {@code KeyedCombineFn}.
+     */
+    private void addInput(KeyedCombineFn<? super K, ? super VI, VA, VO> bundleFn,
+        Map<ByteBuffer, KV<K, VA>> table, KV<K, VI> element) {
+      K key = element.getKey();
+      ByteBuffer encodedKey;
+      try {
+        encodedKey = ByteBuffer.wrap(
+            CoderUtils.encodeToByteArray(getInputKvCoder().getKeyCoder(), key));
+      } catch (CoderException exn) {
+        throw new IllegalArgumentException(
+            "unable to encode key " + key + " of input to " + this +
+            " using " + getInputKvCoder().getKeyCoder(),
+            exn);
+      }
+      KV<K, VA> accumulator = table.get(encodedKey);
+      if (accumulator == null) {
+        accumulator = KV.of(key, bundleFn.createAccumulator(key));
+        table.put(encodedKey, accumulator);
+      }
+      bundleFn.addInput(key, accumulator.getValue(), element.getValue());
+    }
+
+    /**
+     * Merges the accumulators of each key across the given tables, in
+     * order, and returns the output of each key.
+     */
+    private List<ValueWithMetadata<KV<K, VO>>> extractOutputs(
+        List<Map<ByteBuffer, KV<K, VA>>> tables) {
+      Coder<VA> accumCoder = testSerializability ? getAccumulatorCoder() : null;
+      Map<ByteBuffer, List<VA>> accumulators = new LinkedHashMap<>();
+      Map<ByteBuffer, K> keys = new HashMap<>();
+      for (Map<ByteBuffer, KV<K, VA>> table : tables) {
+        for (Map.Entry<ByteBuffer, KV<K, VA>> entry : table.entrySet()) {
+          List<VA> keyAccumulators = accumulators.get(entry.getKey());
+          if (keyAccumulators == null) {
+            keyAccumulators = new ArrayList<>();
+            accumulators.put(entry.getKey(), keyAccumulators);
+            keys.put(entry.getKey(), entry.getValue().getKey());
+          }
+          keyAccumulators.add(entry.getValue().getValue());
+        }
+      }
+
+      List<ValueWithMetadata<KV<K, VO>>> outputs = new ArrayList<>();
+      for (Map.Entry<ByteBuffer, List<VA>> entry : accumulators.entrySet()) {
+        K key = keys.get(entry.getKey());
+        List<VA> keyAccumulators = entry.getValue();
+        if (testSerializability) {
+          keyAccumulators = SerializableUtils.ensureSerializableByCoder(
+              ListCoder.of(accumCoder), keyAccumulators,
+              "After addInputs of KeyedCombineFn " + fn.toString());
+        }
+        VA merged = fn.mergeAccumulators(key, keyAccumulators);
+        if (testSerializability) {
+          merged = SerializableUtils.ensureSerializableByCoder(
+              accumCoder, merged,
+              "After mergeAccumulators of KeyedCombineFn " + fn.toString());
+        }
+        outputs.add(ValueWithMetadata
+            .of(WindowedValue.valueInEmptyWindows(KV.of(key, fn.extractOutput(key, merged))))
+            .withKey(key));
+      }
+      return outputs;
+    }
+
+    private void evaluate(EvaluationContext context) {
+      List<Map<ByteBuffer, KV<K, VA>>> tables = context.evaluateBundles(
+          context.getPCollectionValuesWithMetadata(getInput()),
+          false /* partitionByKey */,
+          new BundleEvaluator<KV<K, VI>, Map<ByteBuffer, KV<K, VA>>>() {
+            @Override
+            public Map<ByteBuffer, KV<K, VA>> evaluate(
+                List<ValueWithMetadata<KV<K, VI>>> bundle,
+                CounterSet.AddCounterMutator addCounterMutator) {
+              // Each bundle uses its own copy of the KeyedCombineFn, since
+              // bundles may be evaluated concurrently.
+              KeyedCombineFn<? super K, ? super VI, VA, VO> bundleFn =
+                  SerializableUtils.ensureSerializable(fn);
+              Map<ByteBuffer, KV<K, VA>> table = newTable();
+              for (ValueWithMetadata<KV<K, VI>> elem : bundle) {
+                addInput(bundleFn, table, elem.getValue());
+              }
+              return table;
+            }
+          });
+      context.setPCollectionValuesWithMetadata(getOutput(), extractOutputs(tables));
+    }
+
+    private ElementProcessor<KV<K, VI>> createProcessor(final FusedOutputs outputs) {
+      final ElementReceiver<KV<K, VO>> receiver = outputs.getReceiver(getOutput());
+      return new ElementProcessor<KV<K, VI>>() {
+        private Map<ByteBuffer, KV<K, VA>> table;
+
+        @Override
+        public void start() {
+          table = newTable();
+        }
+
+        @Override
+        public void process(ValueWithMetadata<KV<K, VI>> element) {
+          addInput(fn, table, element.getValue());
+        }
+
+        @Override
+        public void finish() {
+          for (ValueWithMetadata<KV<K, VO>> output
+                   : extractOutputs(Collections.singletonList(table))) {
+            receiver.process(output);
+          }
+          table = null;
+        }
+      };
+    }
+
+    static {
+      registerDefaultTransformEvaluator(
+          LiftedCombinePerKey.class,
+          new FusibleTransformEvaluator<LiftedCombinePerKey>() {
+            @Override
+            public void evaluate(
+                LiftedCombinePerKey transform,
+                EvaluationContext context) {
+              transform.evaluate(context);
+            }
+
+            @Override
+            public ElementProcessor<?> createProcessor(
+                LiftedCombinePerKey transform,
+                EvaluationContext context,
+                FusedOutputs outputs) {
+              return transform.createProcessor(outputs);
+            }
+          });
+    }
+  }
+
   @Override
   public EvaluationResults run(Pipeline pipeline) {
     LOG.info("Executing pipeline using the DirectPipelineRunner.");
@@ -345,6 +621,64 @@ public class DirectPipelineRunner
                          EvaluationContext context);
   }
 
+  /**
+   * An evaluator of a PTransform that processes its input one element at
+   * a time.  When {@link DirectPipelineOptions#isDirectFusion fusing}, the
+   * runner pushes elements through chains of such transforms without
+   * materializing the PCollections between them.
+   */
+  public interface FusibleTransformEvaluator<PT extends PTransform>
+      extends TransformEvaluator<PT> {
+    /**
+     * Returns a processor of the elements of the transform's inputs, which
+     * outputs the elements of each of the transform's output PCollections
+     * to the receiver {@code outputs} returns for it.
+     */
+    public ElementProcessor<?> createProcessor(PT transform,
+                                               EvaluationContext context,
+                                               FusedOutputs outputs);
+  }
+
+  /**
+   * A receiver of the elements of a PCollection, one at a time.
+   */
+  public interface ElementReceiver<T> {
+    public void process(ValueWithMetadata<T> element);
+  }
+
+  /**
+   * A receiver of the elements of a fused transform's inputs, which is
+   * started before it receives any element and finished after it has
+   * received all of them.
+   */
+  public interface ElementProcessor<T> extends ElementReceiver<T> {
+    public void start();
+
+    public void finish();
+  }
+
+  /**
+   * The receivers of the output PCollections of a fused transform.
+   */
+  public interface FusedOutputs {
+    public <T> ElementReceiver<T> getReceiver(PCollection<T> pc);
+  }
+
+  /**
+   * An evaluator of one bundle of the elements of a PCollection.
+   *
+   * @see EvaluationContext#evaluateBundles
+   */
+  public interface BundleEvaluator<T, R> {
+    /**
+     * Evaluates the given bundle, adding any counters through the given
+     * mutator rather than that of the {@link EvaluationContext}, and
+     * returns the result.
+     */
+    public R evaluate(List<ValueWithMetadata<T>> bundle,
+                      CounterSet.AddCounterMutator addCounterMutator);
+  }
+
   /**
    * The interface provided to registered callbacks for interacting
    * with the {@code DirectPipelineRunner}, including reading and writing the
@@ -488,6 +822,15 @@ public class DirectPipelineRunner
     <T> void setPCollectionValuesWithMetadata(
         PCollection<T> pc, List<ValueWithMetadata<T>> elements);
 
+    /**
+     * Like {@link #setPCollectionValuesWithMetadata}, but for elements which
+     * were just decoded with the PCollection's {@link Coder}, and so are not
+     * checked to be encodable again.
+     * Throws an exception if the PCollection's value has already been set.
+     */
+    <T> void setDecodedPCollectionValuesWithMetadata(
+        PCollection<T> pc, List<ValueWithMetadata<T>> elements);
+
     /**
      * Sets the value of the given PCollection, where each element also has a timestamp
      * and collection of windows.
@@ -535,10 +878,11 @@ public class DirectPipelineRunner
                                      boolean inPlaceAllowed);
 
     /**
-     * If the evaluation context is testing serializability, ensures
-     * that the argument function is serializable and deserializable
-     * by encoding it and then decoding it, and returning the result.
-     * Otherwise returns the argument unchanged.
+     * If the evaluation context is testing serializability, or evaluating
+     * bundles in parallel, ensures that the argument function is
+     * serializable and deserializable by encoding it and then decoding
+     * it, and returning the result.  Otherwise returns the argument
+     * unchanged.
      */
     <Fn extends Serializable> Fn ensureSerializable(Fn fn);
 
@@ -571,6 +915,26 @@ public class DirectPipelineRunner
      * Gets the step name for this transform.
      */
     public String getStepName(PTransform<?, ?> transform);
+
+    /**
+     * Evaluates the given elements with the given {@link BundleEvaluator}
+     * and returns the results, one per bundle, in bundle order.
+     *
+     * <p> Unless the {@link DirectPipelineOptions#getDirectParallelism
+     * directParallelism} option is 1, the elements are split into bundles
+     * that are evaluated concurrently, and the counters each bundle adds
+     * are merged into those of this context once all bundles are done.
+     * Otherwise all the elements are evaluated as one bundle on the
+     * calling thread.
+     *
+     * <p> If partitionByKey, elements whose values are {@link KV}s with
+     * equal keys are put in the same bundle, so that per-key state is
+     * kept within one bundle.  Otherwise bundles are ranges of the
+     * elements, so concatenating the results preserves their order.
+     */
+    <T, R> List<R> evaluateBundles(List<ValueWithMetadata<T>> elements,
+                                   boolean partitionByKey,
+                                   BundleEvaluator<T, R> evaluator);
   }
 
 
@@ -586,10 +950,46 @@ public class DirectPipelineRunner
     // functions, transforms, and coders are deterministic.)
     Random rand = new Random(0);
 
+    // The pool that bundles are evaluated on, or null if each transform
+    // is evaluated as a single bundle on the calling thread.
+    private ForkJoinPool bundleExecutor;
+
+    // When fusing, the primitive transforms that consume each PValue, once
+    // per time it is an input.
+    private final Map<PValue, List<TransformTreeNode>> consumers = new HashMap<>();
+
+    // When fusing, the fusible transforms visited since the last fused
+    // stage was evaluated, in topological order, and their outputs.
+    private final List<TransformTreeNode> pendingStage = new ArrayList<>();
+    private final Set<PValue> pendingOutputs = new HashSet<>();
+
+    // The outputs of evaluated fused stages that were not materialized.
+    private final Set<PValue> unmaterializedValues = new HashSet<>();
+
     public Evaluator() {}
 
     public void run(Pipeline pipeline) {
-      pipeline.traverseTopologically(this);
+      int parallelism = options.getDirectParallelism();
+      if (parallelism < 0) {
+        throw new IllegalArgumentException(
+            "directParallelism must be non-negative, but was " + parallelism);
+      } else if (parallelism == 0) {
+        parallelism = Runtime.getRuntime().availableProcessors();
+      }
+      if (parallelism > 1) {
+        bundleExecutor = new ForkJoinPool(parallelism);
+      }
+      try {
+        if (options.isDirectFusion()) {
+          recordConsumers(pipeline);
+        }
+        pipeline.traverseTopologically(this);
+        evaluatePendingStage();
+      } finally {
+        if (bundleExecutor != null) {
+          bundleExecutor.shutdownNow();
+        }
+      }
     }
 
     @Override
@@ -615,10 +1015,155 @@ public class DirectPipelineRunner
         throw new IllegalStateException(
             "no evaluator registered for " + transform);
       }
+      if (options.isDirectFusion() && evaluator instanceof FusibleTransformEvaluator) {
+        LOG.debug("Fusing {}", transform);
+        // Name the step in the same order as when evaluating it now.
+        getStepName(transform);
+        pendingStage.add(node);
+        pendingOutputs.addAll(node.getExpandedOutputs());
+        return;
+      }
       LOG.debug("Evaluating {}", transform);
       evaluator.evaluate(transform, this);
     }
 
+    /**
+     * Records the consumers of each PValue, which determine the outputs of
+     * fused stages that need to be materialized.
+     */
+    private void recordConsumers(Pipeline pipeline) {
+      pipeline.traverseTopologically(new PipelineVisitor() {
+        @Override
+        public void enterCompositeTransform(TransformTreeNode node) {}
+
+        @Override
+        public void leaveCompositeTransform(TransformTreeNode node) {}
+
+        @Override
+        public void visitTransform(TransformTreeNode node) {
+          for (PValue input : node.getInput().expand()) {
+            List<TransformTreeNode> inputConsumers = consumers.get(input);
+            if (inputConsumers == null) {
+              inputConsumers = new ArrayList<>();
+              consumers.put(input, inputConsumers);
+            }
+            inputConsumers.add(node);
+          }
+        }
+
+        @Override
+        public void visitValue(PValue value, TransformTreeNode producer) {}
+      });
+    }
+
+    /**
+     * Evaluates the pending fused stage, pushing the elements of its inputs
+     * through its transforms one at a time.
+     *
+     * <p> Only the outputs that are consumed outside of the stage, by no
+     * transform, or that were explicitly requested, are materialized.
+     */
+    private void evaluatePendingStage() {
+      if (pendingStage.isEmpty()) {
+        return;
+      }
+      List<TransformTreeNode> stage = new ArrayList<>(pendingStage);
+      Set<PValue> stageOutputs = new HashSet<>(pendingOutputs);
+      pendingStage.clear();
+      pendingOutputs.clear();
+      LOG.debug("Evaluating fused stage {}", stage);
+
+      // Processors are created from consumers to producers, so that the
+      // processors a transform outputs to already exist.
+      Set<TransformTreeNode> stageNodes = new HashSet<>(stage);
+      Map<TransformTreeNode, ElementProcessor> processors = new HashMap<>();
+      Map<PValue, List<ValueWithMetadata>> materialized = new LinkedHashMap<>();
+      for (TransformTreeNode node : Lists.reverse(stage)) {
+        final Map<PValue, ElementReceiver> receivers = new HashMap<>();
+        for (PValue output : node.getExpandedOutputs()) {
+          List<ElementReceiver> outputReceivers = new ArrayList<>();
+          List<TransformTreeNode> outputConsumers = consumers.get(output);
+          boolean materialize = outputConsumers == null
+              || materializedPCollections.contains(output);
+          if (outputConsumers != null) {
+            for (TransformTreeNode consumer : outputConsumers) {
+              if (stageNodes.contains(consumer)) {
+                outputReceivers.add(processors.get(consumer));
+              } else {
+                materialize = true;
+              }
+            }
+          }
+          if (materialize) {
+            final List<ValueWithMetadata> elements = new ArrayList<>();
+            materialized.put(output, elements);
+            outputReceivers.add(new ElementReceiver() {
+              @Override
+              public void process(ValueWithMetadata element) {
+                elements.add(element);
+              }
+            });
+          } else {
+            unmaterializedValues.add(output);
+          }
+          receivers.put(output, fanOut((PCollection) output, outputReceivers));
+        }
+        FusibleTransformEvaluator evaluator =
+            (FusibleTransformEvaluator) getTransformEvaluator(node.getTransform().getClass());
+        processors.put(node, evaluator.createProcessor(node.getTransform(), this,
+            new FusedOutputs() {
+              @Override
+              public <T> ElementReceiver<T> getReceiver(PCollection<T> pc) {
+                return receivers.get(pc);
+              }
+            }));
+      }
+
+      for (TransformTreeNode node : Lists.reverse(stage)) {
+        processors.get(node).start();
+      }
+      for (TransformTreeNode node : stage) {
+        ElementProcessor processor = processors.get(node);
+        for (PValue input : node.getInput().expand()) {
+          if (!stageOutputs.contains(input)) {
+            for (ValueWithMetadata<Object> element
+                : getPCollectionValuesWithMetadata((PCollection<Object>) input)) {
+              processor.process(element);
+            }
+          }
+        }
+      }
+      for (TransformTreeNode node : stage) {
+        processors.get(node).finish();
+      }
+
+      for (Map.Entry<PValue, List<ValueWithMetadata>> entry : materialized.entrySet()) {
+        LOG.debug("Setting {} = {}", entry.getKey(), entry.getValue());
+        setPValue(entry.getKey(), entry.getValue());
+      }
+    }
+
+    /**
+     * Returns a receiver of the elements of the given PCollection that
+     * passes each of them to all of the given receivers, after ensuring
+     * it is encodable.
+     */
+    private <T> ElementReceiver<T> fanOut(
+        final PCollection<T> pc, final List<ElementReceiver> receivers) {
+      ensureCoderSerializable(pc.getCoder());
+      return new ElementReceiver<T>() {
+        @Override
+        public void process(ValueWithMetadata<T> element) {
+          if (testEncodability) {
+            element = element.withValue(ensureElementEncodable(pc, element.getValue()));
+          }
+          for (ElementReceiver receiver : receivers) {
+            receiver.process(element);
+          }
+        }
+      };
+    }
+
     @Override
     public void visitValue(PValue value, TransformTreeNode producer) {
       LOG.debug("Checking evaluation of {}", value);
@@ -627,8 +1172,9 @@ public class DirectPipelineRunner
             "internal error: expecting a PValue " +
             "to have a producingTransform");
       }
-      if (!producer.isCompositeNode()) {
-        // Verify that primitive transform outputs are already computed.
+      if (!producer.isCompositeNode() && !pendingOutputs.contains(value)) {
+        // Verify that primitive transform outputs are already computed,
+        // unless they are the outputs of transforms yet to be fused.
         getPValue(value);
       }
     }
@@ -651,7 +1197,16 @@ public class DirectPipelineRunner
      * Throws an exception if the PValue's value hasn't already been set.
      */
     Object getPValue(PValue pvalue) {
+      if (pendingOutputs.contains(pvalue)) {
+        evaluatePendingStage();
+      }
       if (!store.containsKey(pvalue)) {
+        if (unmaterializedValues.contains(pvalue)) {
+          throw new IllegalStateException(
+              "the value of " + pvalue + " was not materialized, since its "
+              + "producer was fused with its consumers; use "
+              + "DirectPipelineRunner#withMaterializedPCollection to retain it");
+        }
         throw new IllegalStateException(
             "internal error: getting the value of " + pvalue +
             " before it has been computed");
@@ -701,6 +1256,13 @@ public class DirectPipelineRunner
       setPValue(pc, ensurePCollectionEncodable(pc, elements));
     }
 
+    @Override
+    public <T> void setDecodedPCollectionValuesWithMetadata(
+        PCollection<T> pc, List<ValueWithMetadata<T>> elements) {
+      LOG.debug("Setting {} = {}", pc, elements);
+      setPValue(pc, elements);
+    }
+
     @Override
     public <R, T, WT> void setPCollectionView(
         PCollectionView<T, WT> view,
@@ -804,7 +1366,7 @@ public class DirectPipelineRunner
 
     @Override
     public <Fn extends Serializable> Fn ensureSerializable(Fn fn) {
-      if (!testSerializability) {
+      if (!testSerializability && bundleExecutor == null) {
         return fn;
       }
       return SerializableUtils.ensureSerializable(fn);
@@ -843,6 +1405,77 @@ public class DirectPipelineRunner
       return stepName;
     }
 
+    @Override
+    public <T, R> List<R> evaluateBundles(List<ValueWithMetadata<T>> elements,
+                                          boolean partitionByKey,
+                                          final BundleEvaluator<T, R> evaluator) {
+      if (bundleExecutor == null) {
+        return Collections.singletonList(
+            evaluator.evaluate(elements, getAddCounterMutator()));
+      }
+
+      // A few bundles per thread, so that bundles of uneven cost even out.
+      int numBundles = Math.max(1, Math.min(
+          elements.size(), BUNDLES_PER_THREAD * bundleExecutor.getParallelism()));
+      List<List<ValueWithMetadata<T>>> bundles = partitionByKey
+          ? partitionByKey(elements, numBundles)
+          : partitionByRange(elements, numBundles);
+
+      List<Callable<R>> tasks = new ArrayList<>(bundles.size());
+      final List<CounterSet> bundleCounters = new ArrayList<>(bundles.size());
+      for (final List<ValueWithMetadata<T>> bundle : bundles) {
+        final CounterSet bundleCounterSet = new CounterSet();
+        bundleCounters.add(bundleCounterSet);
+        tasks.add(new Callable<R>() {
+          @Override
+          public R call() {
+            return evaluator.evaluate(bundle, bundleCounterSet.getAddCounterMutator());
+          }
+        });
+      }
+
+      List<R> results = new ArrayList<>(bundles.size());
+      try {
+        for (Future<R> future : bundleExecutor.invokeAll(tasks)) {
+          results.add(future.get());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+      for (CounterSet bundleCounterSet : bundleCounters) {
+        counters.merge(bundleCounterSet);
+      }
+      return results;
+    }
+
+    private <T> List<List<ValueWithMetadata<T>>> partitionByRange(
+        List<ValueWithMetadata<T>> elements, int numBundles) {
+      List<List<ValueWithMetadata<T>>> bundles = new ArrayList<>(numBundles);
+      for (int i = 0; i < numBundles; i++) {
+        bundles.add(elements.subList(
+            (int) ((long) elements.size() * i / numBundles),
+            (int) ((long) elements.size() * (i + 1) / numBundles)));
+      }
+      return bundles;
+    }
+
+    private <T> List<List<ValueWithMetadata<T>>> partitionByKey(
+        List<ValueWithMetadata<T>> elements, int numBundles) {
+      List<List<ValueWithMetadata<T>>> bundles = new ArrayList<>(numBundles);
+      for (int i = 0; i < numBundles; i++) {
+        bundles.add(new ArrayList<ValueWithMetadata<T>>());
+      }
+      for (ValueWithMetadata<T> element : elements) {
+        Object key = element.getValue() instanceof KV
+            ? ((KV) element.getValue()).getKey() : null;
+        bundles.get((Objects.hashCode(key) & Integer.MAX_VALUE) % numBundles).add(element);
+      }
+      return bundles;
+    }
+
     /**
      * Returns the CounterSet generated during evaluation, which includes
      * user-defined Aggregators and may include system-defined counters.
@@ -855,10 +1488,17 @@ public class DirectPipelineRunner
 
   /////////////////////////////////////////////////////////////////////////////
 
+  /**
+   * The number of bundles per thread that the input of a transform is
+   * split into when evaluating bundles in parallel.
+   */
+  private static final int BUNDLES_PER_THREAD = 4;
+
   private final DirectPipelineOptions options;
   private boolean testSerializability = true;
   private boolean testEncodability = true;
   private boolean testUnorderedness = true;
+  private final Set<PValue> materializedPCollections = new HashSet<>();
 
   /** Returns a new DirectPipelineRunner. */
   private DirectPipelineRunner(DirectPipelineOptions options) {
@@ -32,6 +32,7 @@ import com.google.cloud.dataflow.sdk.util.BatchModeExecutionContext;
 import com.google.cloud.dataflow.sdk.util.CloudCounterUtils;
 import com.google.cloud.dataflow.sdk.util.CloudMetricUtils;
 import com.google.cloud.dataflow.sdk.util.ExecutionContext;
+import com.google.cloud.dataflow.sdk.util.SideInputCache;
 import com.google.cloud.dataflow.sdk.util.UserCodeException;
 import com.google.cloud.dataflow.sdk.util.common.Counter;
 import com.google.cloud.dataflow.sdk.util.common.CounterSet;
@@ -74,9 +75,19 @@ public class DataflowWorker {
    */
   private final DataflowWorkerHarnessOptions options;
 
+  /**
+   * Materialized side inputs shared by all work items, or null if side
+   * inputs are not cached.
+   */
+  @Nullable private final SideInputCache sideInputCache;
+
   public DataflowWorker(WorkUnitClient workUnitClient, DataflowWorkerHarnessOptions options) {
     this.workUnitClient = workUnitClient;
     this.options = options;
+    this.sideInputCache = options.getWorkerSideInputCacheRatio() > 0
+        ? new SideInputCache(
+            (long) (Runtime.getRuntime().maxMemory() * options.getWorkerSideInputCacheRatio()))
+        : null;
   }
 
   /**
@@ -107,7 +118,7 @@ public class DataflowWorker {
       // Populate PipelineOptions with data from work unit.
       options.setProject(workItem.getProjectId());
 
-      ExecutionContext executionContext = new BatchModeExecutionContext();
+      ExecutionContext executionContext = new BatchModeExecutionContext(sideInputCache);
 
       if (workItem.getMapTask() != null) {
         worker = MapTaskExecutorFactory.create(options, workItem.getMapTask(), executionContext);
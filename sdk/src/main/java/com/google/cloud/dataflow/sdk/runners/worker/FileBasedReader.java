@@ -24,7 +24,6 @@ import static com.google.cloud.dataflow.sdk.runners.worker.SourceTranslationUtil
 import com.google.api.services.dataflow.model.ApproximateProgress;
 import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.io.TextIO;
-import com.google.cloud.dataflow.sdk.util.CoderUtils;
 import com.google.cloud.dataflow.sdk.util.IOChannelFactory;
 import com.google.cloud.dataflow.sdk.util.IOChannelUtils;
 import com.google.cloud.dataflow.sdk.util.common.worker.ProgressTracker;
@@ -34,7 +33,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -126,7 +124,7 @@ public abstract class FileBasedReader<T> extends Reader<T> {
     protected final Long startOffset;
     protected Long endOffset;
     protected final ProgressTracker<Integer> tracker;
-    protected ByteArrayOutputStream nextElement;
+    protected boolean hasNextElement;
     protected boolean nextElementComputed = false;
     protected long offset;
     protected FileBasedReader.DecompressingStreamFactory compressionStreamFactory;
@@ -151,30 +149,33 @@ public abstract class FileBasedReader<T> extends Reader<T> {
     }
 
     /**
-     * Reads the next element.
+     * Reads the next element, which is decoded by {@link #decodeElement}.
      *
-     * @return a {@code ByteArrayOutputStream} containing the contents
-     *     of the element, or {@code null} if the end of the stream
-     *     has been reached.
+     * @return false if the end of the stream has been reached
      * @throws IOException if an I/O error occurs
      */
-    protected abstract ByteArrayOutputStream readElement() throws IOException;
+    protected abstract boolean readElement() throws IOException;
+
+    /**
+     * Decodes the element read by the last call to {@link #readElement}.
+     */
+    protected abstract T decodeElement() throws IOException;
 
     @Override
     public boolean hasNext() throws IOException {
       computeNextElement();
-      return nextElement != null;
+      return hasNextElement;
     }
 
     @Override
     public T next() throws IOException {
       advance();
-      return CoderUtils.decodeFromByteArray(coder, nextElement.toByteArray());
+      return decodeElement();
     }
 
     void advance() throws IOException {
       computeNextElement();
-      if (nextElement == null) {
+      if (!hasNextElement) {
         throw new NoSuchElementException();
       }
       nextElementComputed = false;
@@ -249,9 +250,9 @@ public abstract class FileBasedReader<T> extends Reader<T> {
       }
 
       if (endOffset == null || offset < endOffset) {
-        nextElement = readElement();
+        hasNextElement = readElement();
       } else {
-        nextElement = null;
+        hasNextElement = false;
       }
       nextElementComputed = true;
     }
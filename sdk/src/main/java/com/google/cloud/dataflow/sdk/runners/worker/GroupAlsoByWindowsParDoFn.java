@@ -37,6 +37,7 @@ import com.google.cloud.dataflow.sdk.util.PropertyNames;
 import com.google.cloud.dataflow.sdk.util.SerializableUtils;
 import com.google.cloud.dataflow.sdk.util.Serializer;
 import com.google.cloud.dataflow.sdk.util.StreamingGroupAlsoByWindowsDoFn;
+import com.google.cloud.dataflow.sdk.util.StreamingModeExecutionContext;
 import com.google.cloud.dataflow.sdk.util.WindowedValue.WindowedValueCoder;
 import com.google.cloud.dataflow.sdk.util.common.CounterSet;
 import com.google.cloud.dataflow.sdk.util.common.worker.StateSampler;
@@ -110,6 +111,11 @@ class GroupAlsoByWindowsParDoFn extends NormalParDoFn {
 
     DoFnInfoFactory fnFactory;
     if (isStreamingPipeline) {
+      if (executionContext instanceof StreamingModeExecutionContext) {
+        ((StreamingModeExecutionContext) executionContext).addStatePrefetchSpec(
+            stepName,
+            StreamingGroupAlsoByWindowsDoFn.getStatePrefetchSpec(windowFn, combineFn != null));
+      }
       fnFactory = new DoFnInfoFactory() {
         @Override
         public DoFnInfo createDoFnInfo() {
@@ -27,6 +27,8 @@ import com.google.api.services.dataflow.model.ReadInstruction;
 import com.google.api.services.dataflow.model.WriteInstruction;
 import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.options.DataflowPipelineDebugOptions;
+import com.google.cloud.dataflow.sdk.options.DataflowPipelineDebugOptions.GroupingTableEvictionPolicy;
 import com.google.cloud.dataflow.sdk.options.PipelineOptions;
 import com.google.cloud.dataflow.sdk.util.CloudObject;
 import com.google.cloud.dataflow.sdk.util.CoderUtils;
@@ -37,6 +39,8 @@ import com.google.cloud.dataflow.sdk.util.WindowedValue.WindowedValueCoder;
 import com.google.cloud.dataflow.sdk.util.common.CounterSet;
 import com.google.cloud.dataflow.sdk.util.common.ElementByteSizeObservable;
 import com.google.cloud.dataflow.sdk.util.common.ElementByteSizeObserver;
+import com.google.cloud.dataflow.sdk.util.common.worker.AdaptiveGroupingTable;
+import com.google.cloud.dataflow.sdk.util.common.worker.ByteArrayGroupingTable;
 import com.google.cloud.dataflow.sdk.util.common.worker.FlattenOperation;
 import com.google.cloud.dataflow.sdk.util.common.worker.MapTaskExecutor;
 import com.google.cloud.dataflow.sdk.util.common.worker.Operation;
@@ -44,7 +48,11 @@ import com.google.cloud.dataflow.sdk.util.common.worker.OutputReceiver;
 import com.google.cloud.dataflow.sdk.util.common.worker.ParDoFn;
 import com.google.cloud.dataflow.sdk.util.common.worker.ParDoOperation;
 import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.BufferingGroupingTable;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.EvictionPolicy;
 import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.GroupingKeyCreator;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.GroupingTable;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.SamplingSizeEstimator;
 import com.google.cloud.dataflow.sdk.util.common.worker.ReadOperation;
 import com.google.cloud.dataflow.sdk.util.common.worker.Reader;
 import com.google.cloud.dataflow.sdk.util.common.worker.ReceivingOperation;
@@ -52,11 +60,16 @@ import com.google.cloud.dataflow.sdk.util.common.worker.Sink;
 import com.google.cloud.dataflow.sdk.util.common.worker.StateSampler;
 import com.google.cloud.dataflow.sdk.util.common.worker.WriteOperation;
 import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 
 import org.joda.time.Instant;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Observable;
 
 import javax.annotation.Nullable;
 
@@ -75,6 +88,7 @@ public class MapTaskExecutorFactory {
     StateSampler stateSampler = new StateSampler(counterPrefix, counters.getAddCounterMutator());
     // Open-ended state.
     stateSampler.setState("other");
+    context.setCounters(counterPrefix, counters.getAddCounterMutator());
 
     // Instantiate operations for each instruction in the graph.
     for (ParallelInstruction instruction : mapTask.getInstructions()) {
@@ -188,11 +202,38 @@ public class MapTaskExecutorFactory {
     OutputReceiver[] receivers =
         createOutputReceivers(instruction, counterPrefix, addCounterMutator, stateSampler, 1);
 
+    DataflowPipelineDebugOptions debugOptions = options.as(DataflowPipelineDebugOptions.class);
+    long maxGroupingTableBytes = PartialGroupByKeyOperation.DEFAULT_MAX_GROUPING_TABLE_BYTES;
+    GroupingTable groupingTable;
+    if (isStepSelected(debugOptions.getByteArrayGroupingTableSteps(), instruction)) {
+      Coder<?> windowedKeyCoder = ((WindowedValueCoder<?>) windowedCoder).withValueCoder(keyCoder);
+      groupingTable = new ByteArrayGroupingTable.Buffering(
+          maxGroupingTableBytes,
+          new EncodingGroupingKeyCreator(windowedKeyCoder), PairInfo.create(),
+          new CoderElementCodec(windowedKeyCoder), new CoderElementCodec(valueCoder));
+    } else {
+      BufferingGroupingTable bufferingTable = new BufferingGroupingTable(
+          maxGroupingTableBytes,
+          new WindowingCoderGroupingKeyCreator(keyCoder), PairInfo.create(),
+          new SamplingSizeEstimator(
+              new CoderSizeEstimator(WindowedValue.getValueOnlyCoder(keyCoder)),
+              0.001/*sizeEstimatorSampleRate*/, 1.0),
+          new SamplingSizeEstimator(
+              new CoderSizeEstimator(valueCoder), 0.001/*sizeEstimatorSampleRate*/, 1.0),
+          toEvictionPolicy(debugOptions.getGroupingTableEvictionPolicy()));
+      bufferingTable.addEvictionCounters(
+          counterPrefix, instruction.getSystemName(), addCounterMutator);
+      groupingTable = bufferingTable;
+    }
+    if (isStepSelected(debugOptions.getAdaptiveGroupingTableSteps(), instruction)) {
+      groupingTable = new AdaptiveGroupingTable(groupingTable,
+          maxGroupingTableBytes, maxGroupingTableBytes / 16, maxGroupingTableBytes,
+          AdaptiveGroupingTable.DEFAULT_BYPASS_ELEMENTS,
+          counterPrefix, instruction.getSystemName(), addCounterMutator);
+    }
+
     PartialGroupByKeyOperation operation =
-        new PartialGroupByKeyOperation(instruction.getSystemName(),
-            new WindowingCoderGroupingKeyCreator(keyCoder),
-            new CoderSizeEstimator(WindowedValue.getValueOnlyCoder(keyCoder)),
-            new CoderSizeEstimator(valueCoder), 0.001/*sizeEstimatorSampleRate*/, PairInfo.create(),
+        new PartialGroupByKeyOperation(instruction.getSystemName(), groupingTable,
             receivers, counterPrefix, addCounterMutator, stateSampler);
 
     attachInput(operation, pgbk.getInput(), priorOperations);
@@ -200,6 +241,32 @@ public class MapTaskExecutorFactory {
     return operation;
   }
 
+  /**
+   * Returns the grouping table eviction policy for the given pipeline option.
+   */
+  private static EvictionPolicy toEvictionPolicy(GroupingTableEvictionPolicy policy) {
+    switch (policy) {
+      case ARBITRARY:
+        return EvictionPolicy.ARBITRARY;
+      case LEAST_RECENTLY_UPDATED:
+        return EvictionPolicy.LEAST_RECENTLY_UPDATED;
+      case LEAST_FREQUENTLY_UPDATED:
+        return EvictionPolicy.LEAST_FREQUENTLY_UPDATED;
+      default:
+        throw new IllegalArgumentException("unknown grouping table eviction policy " + policy);
+    }
+  }
+
+  /**
+   * Returns whether the given instruction is selected, by name or system name,
+   * in the given list of steps.
+   */
+  private static boolean isStepSelected(
+      @Nullable List<String> steps, ParallelInstruction instruction) {
+    return steps != null
+        && (steps.contains(instruction.getSystemName()) || steps.contains(instruction.getName()));
+  }
+
   /**
    * Implements PGBKOp.PairInfo via KVs.
    */
@@ -260,6 +327,52 @@ public class MapTaskExecutorFactory {
     }
   }
 
+  /**
+   * Implements PGBKOp.GroupingKeyCreator via Coder, producing the
+   * StructuralByteArray grouping keys required by ByteArrayGroupingTable.
+   * The given coder must be a WindowedValueCoder for the keys.
+   */
+  public static class EncodingGroupingKeyCreator implements GroupingKeyCreator {
+
+    private static final Instant ignored = new Instant(0);
+
+    private final Coder coder;
+
+    public EncodingGroupingKeyCreator(Coder coder) {
+      this.coder = coder;
+    }
+
+    @Override
+    public Object createGroupingKey(Object key) throws Exception {
+      WindowedValue<?> windowedKey = (WindowedValue<?>) key;
+      // Ignore timestamp for grouping purposes.
+      return new PartialGroupByKeyOperation.StructuralByteArray(
+          CoderUtils.encodeToByteArray(coder,
+              WindowedValue.of(windowedKey.getValue(), ignored, windowedKey.getWindows())));
+    }
+  }
+
+  /**
+   * Implements PGBKOp.ElementCodec via Coder.
+   */
+  public static class CoderElementCodec implements PartialGroupByKeyOperation.ElementCodec {
+    final Coder coder;
+
+    public CoderElementCodec(Coder coder) {
+      this.coder = coder;
+    }
+
+    @Override
+    public void encode(Object element, OutputStream outStream) throws Exception {
+      coder.encode(element, outStream, Coder.Context.OUTER);
+    }
+
+    @Override
+    public Object decode(InputStream inStream) throws Exception {
+      return coder.decode(inStream, Coder.Context.OUTER);
+    }
+  }
+
   /**
    * Implements PGBKOp.SizeEstimator via Coder.
    */
@@ -270,9 +383,39 @@ public class MapTaskExecutorFactory {
       this.coder = coder;
     }
 
+    /**
+     * Returns the size of the encoded value, as computed by the coder's
+     * byte size observer, which coders of common types implement without
+     * encoding the value.  Values whose size would only be observed lazily
+     * are encoded into a stream that counts the bytes written to it.
+     */
     @Override
     public long estimateSize(Object value) throws Exception {
-      return CoderUtils.encodeToByteArray(coder, value).length;
+      SizeObserver observer = new SizeObserver();
+      coder.registerByteSizeObserver(value, observer, Coder.Context.OUTER);
+      if (!observer.getIsLazy()) {
+        return observer.size;
+      }
+      CountingOutputStream os = new CountingOutputStream(ByteStreams.nullOutputStream());
+      coder.encode(value, os, Coder.Context.OUTER);
+      return os.getCount();
+    }
+  }
+
+  /**
+   * An {@link ElementByteSizeObserver} of a single element, which keeps the
+   * observed size for its owner to read instead of adding it to a counter.
+   */
+  private static class SizeObserver extends ElementByteSizeObserver {
+    long size = 0;
+
+    SizeObserver() {
+      super(null);
+    }
+
+    @Override
+    public void update(Observable obs, Object obj) {
+      size += ((Number) obj).longValue();
     }
   }
 
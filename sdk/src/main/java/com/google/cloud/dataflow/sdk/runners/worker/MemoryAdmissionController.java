@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.runners.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides how much new work the streaming worker may accept, based on an
+ * estimate of the memory held by the work it has already accepted.
+ *
+ * <p> The estimate adds up the serialized size of work items that have been
+ * received but not yet processed (scaled by {@link #WORK_ITEM_EXPANSION} for
+ * their decoded form), the size of commit requests waiting to be sent, and
+ * the size of cached state.  Before each GetWork request, the worker asks
+ * for the number of items it may fetch: that number shrinks as the estimate
+ * approaches the memory budget, and the worker blocks until memory is
+ * released once the budget is used up.
+ */
+public class MemoryAdmissionController {
+  private static final Logger LOG = LoggerFactory.getLogger(MemoryAdmissionController.class);
+
+  /**
+   * The assumed ratio between the memory used by a work item while it is
+   * processed and its serialized size.
+   */
+  public static final int WORK_ITEM_EXPANSION = 3;
+
+  // Weight of each new work item in the moving average of work item sizes.
+  private static final double SIZE_AVERAGE_WEIGHT = 0.1;
+
+  // How long to block at most before rechecking, in case cached state was
+  // released without notification.
+  private static final long RECHECK_MILLIS = 100;
+
+  private final long budgetBytes;
+  private final AtomicLong inFlightWorkBytes = new AtomicLong();
+  private final AtomicLong pendingCommitBytes = new AtomicLong();
+  private final AtomicLong cachedStateBytes = new AtomicLong();
+  private final AtomicLong throttledRequests = new AtomicLong();
+  private final AtomicLong blockedMillis = new AtomicLong();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+
+  private volatile double averageWorkItemBytes = 0;
+  private volatile int lastMaxItems = 0;
+  private long lastBlockedLog = 0;
+
+  /**
+   * Creates a MemoryAdmissionController that admits work while the
+   * estimated memory in use is below {@code budgetBytes}.
+   */
+  public MemoryAdmissionController(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  /**
+   * Blocks until the estimated memory in use is below the budget, and
+   * returns how many work items, at most {@code maxItems}, can be fetched
+   * without exceeding it.
+   */
+  public int awaitCapacity(int maxItems) throws InterruptedException {
+    long available = budgetBytes - getUsedBytes();
+    if (available <= 0) {
+      long startMillis = System.currentTimeMillis();
+      lock.lock();
+      try {
+        while ((available = budgetBytes - getUsedBytes()) <= 0) {
+          long now = System.currentTimeMillis();
+          if (lastBlockedLog < now - 60 * 1000) {
+            lastBlockedLog = now;
+            LOG.warn("In pushback, not accepting new work. Using {}MB of {}MB budget "
+                + "({}MB in-flight work, {}MB pending commits, {}MB cached state)",
+                getUsedBytes() >> 20, budgetBytes >> 20,
+                (inFlightWorkBytes.get() * WORK_ITEM_EXPANSION) >> 20,
+                pendingCommitBytes.get() >> 20, cachedStateBytes.get() >> 20);
+          }
+          released.await(RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+      } finally {
+        lock.unlock();
+      }
+      blockedMillis.addAndGet(System.currentTimeMillis() - startMillis);
+    }
+
+    int items = maxItems;
+    double itemBytes = averageWorkItemBytes;
+    if (itemBytes > 0 && available / itemBytes < maxItems) {
+      items = Math.max(1, (int) (available / itemBytes));
+      throttledRequests.incrementAndGet();
+    }
+    lastMaxItems = items;
+    return items;
+  }
+
+  /**
+   * Records that a work item of the given serialized size was received.
+   */
+  public void workReceived(long serializedBytes) {
+    inFlightWorkBytes.addAndGet(serializedBytes);
+    double itemBytes = averageWorkItemBytes;
+    long expandedBytes = serializedBytes * WORK_ITEM_EXPANSION;
+    averageWorkItemBytes = itemBytes == 0
+        ? expandedBytes
+        : itemBytes + SIZE_AVERAGE_WEIGHT * (expandedBytes - itemBytes);
+  }
+
+  /**
+   * Records that a work item of the given serialized size is no longer
+   * being processed.
+   */
+  public void workDone(long serializedBytes) {
+    inFlightWorkBytes.addAndGet(-serializedBytes);
+    signalReleased();
+  }
+
+  /**
+   * Adds {@code delta} to the size of the pending commit requests, and
+   * returns the previous size.
+   */
+  public long addPendingCommitBytes(long delta) {
+    long previous = pendingCommitBytes.getAndAdd(delta);
+    if (delta < 0) {
+      signalReleased();
+    }
+    return previous;
+  }
+
+  /**
+   * Sets the size of the worker's cached state.
+   */
+  public void setCachedStateBytes(long bytes) {
+    if (cachedStateBytes.getAndSet(bytes) > bytes) {
+      signalReleased();
+    }
+  }
+
+  /**
+   * Returns the estimated memory used by accepted work.
+   */
+  public long getUsedBytes() {
+    return inFlightWorkBytes.get() * WORK_ITEM_EXPANSION
+        + pendingCommitBytes.get() + cachedStateBytes.get();
+  }
+
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  public long getInFlightWorkBytes() {
+    return inFlightWorkBytes.get();
+  }
+
+  public long getPendingCommitBytes() {
+    return pendingCommitBytes.get();
+  }
+
+  public long getCachedStateBytes() {
+    return cachedStateBytes.get();
+  }
+
+  /**
+   * Returns the number of work items most recently admitted.
+   */
+  public int getLastMaxItems() {
+    return lastMaxItems;
+  }
+
+  /**
+   * Returns the number of times fewer work items than requested were
+   * admitted.
+   */
+  public long getThrottledRequests() {
+    return throttledRequests.get();
+  }
+
+  /**
+   * Returns the total time spent blocked waiting for memory.
+   */
+  public long getBlockedMillis() {
+    return blockedMillis.get();
+  }
+
+  private void signalReleased() {
+    if (lock.tryLock()) {
+      try {
+        released.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -23,6 +23,7 @@ import com.google.api.services.dataflow.model.Source;
 import com.google.cloud.dataflow.sdk.options.PipelineOptions;
 import com.google.cloud.dataflow.sdk.util.ExecutionContext;
 import com.google.cloud.dataflow.sdk.util.PropertyNames;
+import com.google.cloud.dataflow.sdk.util.SideInputCache;
 import com.google.cloud.dataflow.sdk.util.common.worker.Reader;
 
 import java.util.ArrayList;
@@ -46,9 +47,37 @@ public class SideInputUtils {
       ExecutionContext executionContext) throws Exception {
     Iterable<Object> elements =
         readSideInputSources(options, sideInputInfo.getSources(), executionContext);
+    SideInputCache cache = executionContext.getSideInputCache();
+    if (cache != null && isCollection(sideInputInfo.getKind())) {
+      // Sources are compared by value, so the same side input read by other
+      // work items shares its cached values.
+      elements = cache.contents(new ArrayList<>(sideInputInfo.getSources()),
+          estimatedSizeBytes(sideInputInfo.getSources()), elements,
+          executionContext.getCounterPrefix());
+    }
     return readSideInputValue(sideInputInfo.getKind(), elements);
   }
 
+  static boolean isCollection(Map<String, Object> sideInputKind) throws Exception {
+    return COLLECTION_KIND.equals(getString(sideInputKind, PropertyNames.OBJECT_TYPE_NAME));
+  }
+
+  /**
+   * Returns the total estimated size of the given sources, or 0 if the
+   * size of any of them is unknown.
+   */
+  static long estimatedSizeBytes(List<Source> sideInputSources) {
+    long total = 0;
+    for (Source sideInputSource : sideInputSources) {
+      if (sideInputSource.getMetadata() == null
+          || sideInputSource.getMetadata().getEstimatedSizeBytes() == null) {
+        return 0;
+      }
+      total += sideInputSource.getMetadata().getEstimatedSizeBytes();
+    }
+    return total;
+  }
+
   static Iterable<Object> readSideInputSources(PipelineOptions options,
       List<Source> sideInputSources, ExecutionContext executionContext) throws Exception {
     int numSideInputSources = sideInputSources.size();
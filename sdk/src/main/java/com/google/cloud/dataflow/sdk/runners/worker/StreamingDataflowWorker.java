@@ -24,6 +24,7 @@ import com.google.cloud.dataflow.sdk.runners.worker.logging.DataflowWorkerLoggin
 import com.google.cloud.dataflow.sdk.runners.worker.logging.DataflowWorkerLoggingInitializer;
 import com.google.cloud.dataflow.sdk.runners.worker.windmill.Windmill;
 import com.google.cloud.dataflow.sdk.runners.worker.windmill.WindmillServerStub;
+import com.google.cloud.dataflow.sdk.util.BatchingStateFetcher;
 import com.google.cloud.dataflow.sdk.util.BoundedQueueExecutor;
 import com.google.cloud.dataflow.sdk.util.CloudCounterUtils;
 import com.google.cloud.dataflow.sdk.util.StateFetcher;
@@ -46,16 +47,26 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -70,9 +81,10 @@ public class StreamingDataflowWorker {
   static final int MAX_THREAD_POOL_QUEUE_SIZE = 100;
   static final long MAX_COMMIT_BYTES = 32 << 20;
   static final int DEFAULT_STATUS_PORT = 8081;
-  // Memory threshold over which no new work will be processed.
-  // Set to a value >= 1 to disable pushback.
-  static final double PUSHBACK_THRESHOLD_RATIO = 0.9;
+  // The maximum number of commit requests in flight at a time, when pipelining.
+  static final int MAX_OUTSTANDING_COMMITS = 4;
+  // The longest backoff between empty GetWork responses, when pipelining.
+  static final int MAX_PIPELINED_GET_WORK_BACKOFF_MILLIS = 10;
   static final String WINDMILL_SERVER_CLASS_NAME =
       "com.google.cloud.dataflow.sdk.runners.worker.windmill.WindmillServer";
 
@@ -132,19 +144,35 @@ public class StreamingDataflowWorker {
   }
 
   private ConcurrentMap<String, MapTask> instructionMap;
-  private ConcurrentMap<String, ConcurrentLinkedQueue<Windmill.WorkItemCommitRequest>> outputMap;
+  private ConcurrentMap<String, ConcurrentLinkedQueue<PendingCommit>> outputMap;
   private ConcurrentMap<String, ConcurrentLinkedQueue<WorkerAndContext>> mapTaskExecutors;
   private ThreadFactory threadFactory;
   private BoundedQueueExecutor executor;
   private WindmillServerStub windmillServer;
   private Thread dispatchThread;
   private Thread commitThread;
+  private Thread fetchThread;
   private AtomicBoolean running;
   private StateFetcher stateFetcher;
+  @Nullable private BatchingStateFetcher batchingStateFetcher;
   private DataflowWorkerHarnessOptions options;
   private long clientId;
   private Server statusServer;
   private AtomicReference<Throwable> lastException;
+  private MemoryAdmissionController admissionController;
+
+  // Pipelining state.
+  private final boolean pipelining;
+  private final int getWorkMaxItems;
+  private final long commitDeadlineNanos;
+  private final BlockingQueue<FetchedWork> fetchedWork = new ArrayBlockingQueue<>(1);
+  private final Semaphore outstandingCommits = new Semaphore(MAX_OUTSTANDING_COMMITS);
+  private ExecutorService commitExecutor;
+
+  private final LatencyHistogram getWorkLatency = new LatencyHistogram("GetWork");
+  private final LatencyHistogram queueLatency = new LatencyHistogram("Queued");
+  private final LatencyHistogram commitLatency = new LatencyHistogram("CommitWork");
+  private final LatencyHistogram endToEndLatency = new LatencyHistogram("End to end");
 
   public StreamingDataflowWorker(
       List<MapTask> mapTasks, WindmillServerStub server, DataflowWorkerHarnessOptions options) {
@@ -168,9 +196,21 @@ public class StreamingDataflowWorker {
         MAX_THREAD_POOL_QUEUE_SIZE, threadFactory);
     this.windmillServer = server;
     this.running = new AtomicBoolean();
-    this.stateFetcher = new StateFetcher(server);
+    if (options.getWindmillStateFetchBatching()) {
+      this.batchingStateFetcher = new BatchingStateFetcher(
+          server, options.getWindmillStateFetchLingerMicros());
+      this.stateFetcher = batchingStateFetcher;
+    } else {
+      this.stateFetcher = new StateFetcher(server);
+    }
     this.clientId = new Random().nextLong();
     this.lastException = new AtomicReference<>();
+    this.admissionController = new MemoryAdmissionController(
+        (long) (Runtime.getRuntime().maxMemory() * options.getStreamingWorkerMemoryBudgetRatio()));
+    this.pipelining = options.getWindmillPipelining();
+    this.getWorkMaxItems = options.getWindmillGetWorkMaxItems();
+    this.commitDeadlineNanos =
+        TimeUnit.MILLISECONDS.toNanos(options.getWindmillCommitDeadlineMillis());
 
     DataflowWorkerLoggingFormatter.setJobId(options.getJobId());
     DataflowWorkerLoggingFormatter.setWorkerId(options.getWorkerId());
@@ -178,6 +218,18 @@ public class StreamingDataflowWorker {
 
   public void start() {
     running.set(true);
+    if (pipelining) {
+      fetchThread = threadFactory.newThread(new Runnable() {
+          @Override
+          public void run() {
+            fetchLoop();
+          }
+        });
+      fetchThread.setName("FetchThread");
+      fetchThread.start();
+      commitExecutor = Executors.newFixedThreadPool(MAX_OUTSTANDING_COMMITS, threadFactory);
+    }
+
     dispatchThread = threadFactory.newThread(new Runnable() {
         @Override
         public void run() {
@@ -191,7 +243,11 @@ public class StreamingDataflowWorker {
     commitThread = threadFactory.newThread(new Runnable() {
         @Override
         public void run() {
-          commitLoop();
+          if (pipelining) {
+            pipelinedCommitLoop();
+          } else {
+            commitLoop();
+          }
         }
       });
     commitThread.setPriority(Thread.MAX_PRIORITY);
@@ -205,6 +261,9 @@ public class StreamingDataflowWorker {
         statusServer.stop();
       }
       running.set(false);
+      if (fetchThread != null) {
+        fetchThread.join();
+      }
       dispatchThread.join();
       executor.shutdown();
       if (!executor.awaitTermination(5, TimeUnit.MINUTES)) {
@@ -217,6 +276,13 @@ public class StreamingDataflowWorker {
         }
       }
       commitThread.join();
+      if (batchingStateFetcher != null) {
+        batchingStateFetcher.close();
+      }
+      if (commitExecutor != null) {
+        commitExecutor.shutdown();
+        commitExecutor.awaitTermination(5, TimeUnit.MINUTES);
+      }
     } catch (Exception e) {
       LOG.warn("Exception while shutting down: ", e);
     }
@@ -238,7 +304,7 @@ public class StreamingDataflowWorker {
     String computation = mapTask.getSystemName();
     if (!instructionMap.containsKey(computation)) {
       LOG.info("Adding config for {}: {}", computation, mapTask);
-      outputMap.put(computation, new ConcurrentLinkedQueue<Windmill.WorkItemCommitRequest>());
+      outputMap.put(computation, new ConcurrentLinkedQueue<PendingCommit>());
       instructionMap.put(computation, mapTask);
       mapTaskExecutors.put(
           computation,
@@ -256,47 +322,26 @@ public class StreamingDataflowWorker {
 
   private void dispatchLoop() {
     LOG.info("Dispatch starting");
-    Runtime rt = Runtime.getRuntime();
-    long lastPushbackLog = 0;
     while (running.get()) {
-
-      // If free memory is less than a percentage of total memory, block
-      // until current work drains and memory is released.
-      // Also force a GC to try to get under the memory threshold if possible.
-      long currentMemorySize = rt.totalMemory();
-      long memoryUsed = currentMemorySize - rt.freeMemory();
-      long maxMemory = rt.maxMemory();
-
-      while (memoryUsed > maxMemory * PUSHBACK_THRESHOLD_RATIO) {
-        if (lastPushbackLog < (lastPushbackLog = System.currentTimeMillis()) - 60 * 1000) {
-          LOG.warn(
-              "In pushback, not accepting new work. Using {}MB / {}MB ({}MB currently used by JVM)",
-              memoryUsed >> 20, maxMemory >> 20, currentMemorySize >> 20);
-          System.gc();
-        }
-        sleep(10);
+      FetchedWork work = pipelining ? takeFetchedWork() : fetchWork();
+      if (work == null) {
+        continue;
       }
-
-      int backoff = 1;
-      Windmill.GetWorkResponse workResponse;
-      do {
-        workResponse = getWork();
-        if (workResponse.getWorkCount() > 0) {
-          break;
-        }
-        sleep(backoff);
-        backoff = Math.min(1000, backoff * 2);
-      } while (running.get());
-      for (final Windmill.ComputationWorkItems computationWork : workResponse.getWorkList()) {
-        for (final Windmill.WorkItem work : computationWork.getWorkList()) {
+      for (final Windmill.ComputationWorkItems computationWork :
+               work.response.getWorkList()) {
+        for (final Windmill.WorkItem workItem : computationWork.getWorkList()) {
           final String computation = computationWork.getComputationId();
+          final long receivedNanos = work.receivedNanos;
           if (!instructionMap.containsKey(computation)) {
             getConfig(computation);
           }
+          if (batchingStateFetcher != null) {
+            batchingStateFetcher.prefetch(computation, workItem);
+          }
           executor.execute(new Runnable() {
               @Override
               public void run() {
-                process(computation, work);
+                process(computation, workItem, receivedNanos);
               }
             });
         }
@@ -305,14 +350,83 @@ public class StreamingDataflowWorker {
     LOG.info("Dispatch done");
   }
 
+  /**
+   * Fetches batches of work ahead of the dispatch thread, so that the next
+   * batch is already on its way while the current one is being dispatched.
+   */
+  private void fetchLoop() {
+    LOG.info("Fetch starting");
+    try {
+      while (running.get()) {
+        FetchedWork work = fetchWork();
+        if (work == null) {
+          continue;
+        }
+        while (!fetchedWork.offer(work, 100, TimeUnit.MILLISECONDS)) {
+          if (!running.get()) {
+            return;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      // NOLINT
+    } finally {
+      LOG.info("Fetch done");
+    }
+  }
+
+  private FetchedWork takeFetchedWork() {
+    try {
+      return fetchedWork.poll(100, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Fetches the next non-empty batch of work, backing off while there is
+   * none.  Each request asks for only as many work items as the memory
+   * admission controller allows, blocking while it allows none.  Returns
+   * null if the worker is stopped before any work arrives.
+   */
+  private FetchedWork fetchWork() {
+    int maxBackoff = pipelining ? MAX_PIPELINED_GET_WORK_BACKOFF_MILLIS : 1000;
+    int backoff = 1;
+    do {
+      int maxItems;
+      try {
+        maxItems = admissionController.awaitCapacity(getWorkMaxItems);
+      } catch (InterruptedException e) {
+        return null;
+      }
+      long startNanos = System.nanoTime();
+      Windmill.GetWorkResponse workResponse = getWork(maxItems);
+      long receivedNanos = System.nanoTime();
+      getWorkLatency.record(receivedNanos - startNanos);
+      if (workResponse.getWorkCount() > 0) {
+        for (Windmill.ComputationWorkItems computationWork : workResponse.getWorkList()) {
+          for (Windmill.WorkItem work : computationWork.getWorkList()) {
+            admissionController.workReceived(work.getSerializedSize());
+          }
+        }
+        return new FetchedWork(workResponse, receivedNanos);
+      }
+      sleep(backoff);
+      backoff = Math.min(maxBackoff, backoff * 2);
+    } while (running.get());
+    return null;
+  }
+
   private void process(
-      final String computation, final Windmill.WorkItem work) {
+      final String computation, final Windmill.WorkItem work, final long receivedNanos) {
     LOG.debug("Starting processing for {}:\n{}", computation, work);
+    queueLatency.record(System.nanoTime() - receivedNanos);
 
     MapTask mapTask = instructionMap.get(computation);
     if (mapTask == null) {
       LOG.info("Received work for unknown computation: {}. Known computations are {}",
           computation, instructionMap.keySet());
+      admissionController.workDone(work.getSerializedSize());
       return;
     }
 
@@ -323,6 +437,7 @@ public class StreamingDataflowWorker {
 
     StreamingModeExecutionContext context = null;
     MapTaskExecutor worker = null;
+    boolean retrying = false;
 
     try {
       DataflowWorkerLoggingFormatter.setWorkId(
@@ -352,9 +467,22 @@ public class StreamingDataflowWorker {
       context = null;
 
       Windmill.WorkItemCommitRequest output = outputBuilder.build();
-      outputMap.get(computation).add(output);
+      // Count the bytes before enqueueing, so that the commit thread never
+      // subtracts them first.
+      long previousPendingBytes =
+          admissionController.addPendingCommitBytes(output.getSerializedSize());
+      outputMap.get(computation).add(new PendingCommit(output, receivedNanos));
+      if (previousPendingBytes == 0 && pipelining) {
+        // Start the commit deadline for the first pending commit.
+        LockSupport.unpark(commitThread);
+      }
       LOG.debug("Processing done for work token: {}", work.getWorkToken());
     } catch (Throwable t) {
+      if (batchingStateFetcher != null) {
+        // A retry reads its state again, rather than reuse a prefetch that
+        // may have failed.
+        batchingStateFetcher.discardPrefetch(computation, work);
+      }
       if (worker != null) {
         try {
           worker.close();
@@ -378,10 +506,11 @@ public class StreamingDataflowWorker {
         if (reportFailure(computation, work, t)) {
           // Try again, after some delay and at the end of the queue to avoid a tight loop.
           sleep(10000);
+          retrying = true;
           executor.forceExecute(new Runnable() {
               @Override
               public void run() {
-                process(computation, work);
+                process(computation, work, receivedNanos);
               }
             });
         } else {
@@ -391,54 +520,130 @@ public class StreamingDataflowWorker {
         }
       }
     } finally {
+      if (!retrying) {
+        admissionController.workDone(work.getSerializedSize());
+        if (batchingStateFetcher != null) {
+          batchingStateFetcher.discardPrefetch(computation, work);
+        }
+      }
       DataflowWorkerLoggingFormatter.setWorkId(null);
     }
   }
 
   private void commitLoop() {
     while (running.get()) {
-      Windmill.CommitWorkRequest.Builder commitRequestBuilder =
-          Windmill.CommitWorkRequest.newBuilder();
-      long remainingCommitBytes = MAX_COMMIT_BYTES;
-      for (Map.Entry<String, ConcurrentLinkedQueue<Windmill.WorkItemCommitRequest>> entry :
-               outputMap.entrySet()) {
-        Windmill.ComputationCommitWorkRequest.Builder computationRequestBuilder =
-            Windmill.ComputationCommitWorkRequest.newBuilder();
-        ConcurrentLinkedQueue<Windmill.WorkItemCommitRequest> queue = entry.getValue();
-        while (remainingCommitBytes > 0) {
-          Windmill.WorkItemCommitRequest request = queue.poll();
-          if (request == null) {
-            break;
+      CommitBatch batch = buildCommitBatch();
+      if (batch.request != null) {
+        LOG.debug("Commit: {}", batch.request);
+        commitWork(batch);
+      }
+      if (!batch.full) {
+        sleep(100);
+      }
+    }
+  }
+
+  /**
+   * Commits pending results as soon as a full batch of them is pending, or
+   * the oldest of them has waited for the commit deadline, while up to
+   * {@link #MAX_OUTSTANDING_COMMITS} earlier commits are still in flight.
+   */
+  private void pipelinedCommitLoop() {
+    long deadlineNanos = 0;
+    while (running.get()) {
+      long pendingBytes = admissionController.getPendingCommitBytes();
+      long now = System.nanoTime();
+      if (pendingBytes == 0) {
+        deadlineNanos = 0;
+        LockSupport.parkNanos(commitDeadlineNanos);
+        continue;
+      }
+      if (deadlineNanos == 0) {
+        deadlineNanos = now + commitDeadlineNanos;
+      }
+      if (pendingBytes < MAX_COMMIT_BYTES && now - deadlineNanos < 0) {
+        LockSupport.parkNanos(deadlineNanos - now);
+        continue;
+      }
+
+      // Results keep accumulating while waiting for a commit slot, so that
+      // they are sent in the next batch.
+      outstandingCommits.acquireUninterruptibly();
+      final CommitBatch batch = buildCommitBatch();
+      deadlineNanos = 0;
+      if (batch.request == null) {
+        outstandingCommits.release();
+        continue;
+      }
+      LOG.debug("Commit: {}", batch.request);
+      commitExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              commitWork(batch);
+            } catch (RuntimeException e) {
+              // The executor would otherwise drop the failure silently.
+              LOG.error("Commit failed: ", e);
+              lastException.set(e);
+            } finally {
+              outstandingCommits.release();
+            }
           }
-          remainingCommitBytes -= request.getSerializedSize();
-          computationRequestBuilder.addRequests(request);
-        }
-        if (computationRequestBuilder.getRequestsCount() > 0) {
-          computationRequestBuilder.setComputationId(entry.getKey());
-          commitRequestBuilder.addRequests(computationRequestBuilder);
+        });
+    }
+  }
+
+  /**
+   * Removes up to {@link #MAX_COMMIT_BYTES} of pending results from the
+   * commit queues.
+   */
+  private CommitBatch buildCommitBatch() {
+    Windmill.CommitWorkRequest.Builder commitRequestBuilder =
+        Windmill.CommitWorkRequest.newBuilder();
+    List<Long> receivedNanos = new ArrayList<>();
+    long remainingCommitBytes = MAX_COMMIT_BYTES;
+    for (Map.Entry<String, ConcurrentLinkedQueue<PendingCommit>> entry : outputMap.entrySet()) {
+      Windmill.ComputationCommitWorkRequest.Builder computationRequestBuilder =
+          Windmill.ComputationCommitWorkRequest.newBuilder();
+      ConcurrentLinkedQueue<PendingCommit> queue = entry.getValue();
+      while (remainingCommitBytes > 0) {
+        PendingCommit commit = queue.poll();
+        if (commit == null) {
+          break;
         }
+        long size = commit.request.getSerializedSize();
+        admissionController.addPendingCommitBytes(-size);
+        remainingCommitBytes -= size;
+        computationRequestBuilder.addRequests(commit.request);
+        receivedNanos.add(commit.receivedNanos);
       }
-      if (commitRequestBuilder.getRequestsCount() > 0) {
-        Windmill.CommitWorkRequest commitRequest = commitRequestBuilder.build();
-        LOG.debug("Commit: {}", commitRequest);
-        commitWork(commitRequest);
-      }
-      if (remainingCommitBytes > 0) {
-        sleep(100);
+      if (computationRequestBuilder.getRequestsCount() > 0) {
+        computationRequestBuilder.setComputationId(entry.getKey());
+        commitRequestBuilder.addRequests(computationRequestBuilder);
       }
     }
+    return new CommitBatch(
+        commitRequestBuilder.getRequestsCount() > 0 ? commitRequestBuilder.build() : null,
+        receivedNanos,
+        remainingCommitBytes <= 0);
   }
 
-  private Windmill.GetWorkResponse getWork() {
+  private Windmill.GetWorkResponse getWork(int maxItems) {
     return windmillServer.getWork(
         Windmill.GetWorkRequest.newBuilder()
         .setClientId(clientId)
-        .setMaxItems(100)
+        .setMaxItems(maxItems)
         .build());
   }
 
-  private void commitWork(Windmill.CommitWorkRequest request) {
-    windmillServer.commitWork(request);
+  private void commitWork(CommitBatch batch) {
+    long startNanos = System.nanoTime();
+    windmillServer.commitWork(batch.request);
+    long endNanos = System.nanoTime();
+    commitLatency.record(endNanos - startNanos);
+    for (long receivedNanos : batch.receivedNanos) {
+      endToEndLatency.record(endNanos - receivedNanos);
+    }
   }
 
   private void getConfig(String computation) {
@@ -538,6 +743,119 @@ public class StreamingDataflowWorker {
     return !response.getFailed();
   }
 
+  /**
+   * A batch of work returned by Windmill, and the time it was received.
+   */
+  private static class FetchedWork {
+    public final Windmill.GetWorkResponse response;
+    public final long receivedNanos;
+
+    public FetchedWork(Windmill.GetWorkResponse response, long receivedNanos) {
+      this.response = response;
+      this.receivedNanos = receivedNanos;
+    }
+  }
+
+  /**
+   * The results of a work item waiting to be committed, and the time the
+   * work item was received.
+   */
+  private static class PendingCommit {
+    public final Windmill.WorkItemCommitRequest request;
+    public final long receivedNanos;
+
+    public PendingCommit(Windmill.WorkItemCommitRequest request, long receivedNanos) {
+      this.request = request;
+      this.receivedNanos = receivedNanos;
+    }
+  }
+
+  /**
+   * A commit request, and the times its work items were received.
+   */
+  private static class CommitBatch {
+    @Nullable public final Windmill.CommitWorkRequest request;
+    public final List<Long> receivedNanos;
+    // Whether the batch was limited by MAX_COMMIT_BYTES.
+    public final boolean full;
+
+    public CommitBatch(
+        @Nullable Windmill.CommitWorkRequest request, List<Long> receivedNanos, boolean full) {
+      this.request = request;
+      this.receivedNanos = receivedNanos;
+      this.full = full;
+    }
+  }
+
+  /**
+   * A histogram of latencies in exponentially growing buckets of
+   * milliseconds, which may be updated concurrently.
+   */
+  static class LatencyHistogram {
+    // Bucket 0 counts latencies under 1ms, and bucket i > 0 counts
+    // latencies in [2^(i-1), 2^i) ms.  The last bucket is unbounded.
+    static final int NUM_BUCKETS = 20;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+      this.name = name;
+    }
+
+    public void record(long nanos) {
+      long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+      int bucket = millis <= 0
+          ? 0 : Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+      buckets.incrementAndGet(bucket);
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getBucketCount(int bucket) {
+      return buckets.get(bucket);
+    }
+
+    /**
+     * Returns the exclusive upper bound in milliseconds of the given bucket,
+     * or {@code Long.MAX_VALUE} for the last bucket.
+     */
+    public static long getBucketLimitMillis(int bucket) {
+      return bucket == NUM_BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Returns the upper bound in milliseconds of the bucket containing the
+     * given quantile of the recorded latencies.
+     */
+    public long getQuantileLimitMillis(double quantile) {
+      long target = (long) Math.ceil(quantile * count.get());
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= target) {
+          return getBucketLimitMillis(i);
+        }
+      }
+      return getBucketLimitMillis(NUM_BUCKETS - 1);
+    }
+
+    public double getMeanMillis() {
+      long n = count.get();
+      return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+    }
+  }
+
   private static class WorkerAndContext {
     public MapTaskExecutor worker;
     public StreamingModeExecutionContext context;
@@ -575,6 +893,10 @@ public class StreamingDataflowWorker {
 
       printMetrics(responseWriter);
 
+      printAdmission(responseWriter);
+
+      printLatencies(responseWriter);
+
       printResources(responseWriter);
 
       printLastException(responseWriter);
@@ -598,8 +920,7 @@ public class StreamingDataflowWorker {
     response.println("Active Threads: " + executor.getActiveCount() + "<br>");
     response.println("Work Queue Size: " + executor.getQueue().size() + "<br>");
     response.println("Commit Queues: <ul>");
-    for (Map.Entry<String, ConcurrentLinkedQueue<Windmill.WorkItemCommitRequest>> entry
-             : outputMap.entrySet()) {
+    for (Map.Entry<String, ConcurrentLinkedQueue<PendingCommit>> entry : outputMap.entrySet()) {
       response.print("<li>");
       response.print(entry.getKey());
       response.print(": ");
@@ -609,6 +930,55 @@ public class StreamingDataflowWorker {
     response.println("</ul>");
   }
 
+  private void printAdmission(PrintWriter response) {
+    response.println("<h2>Admission Control</h2>");
+    response.println("Memory Budget: " + (admissionController.getBudgetBytes() >> 20) + "MB<br>");
+    response.println("Estimated Memory Used: "
+        + (admissionController.getUsedBytes() >> 20) + "MB<br>");
+    response.println("In-flight Work: "
+        + (admissionController.getInFlightWorkBytes() >> 20) + "MB serialized<br>");
+    response.println("Pending Commits: "
+        + (admissionController.getPendingCommitBytes() >> 20) + "MB<br>");
+    response.println("Cached State: "
+        + (admissionController.getCachedStateBytes() >> 20) + "MB<br>");
+    response.println("Last GetWork Max Items: " + admissionController.getLastMaxItems()
+        + "/" + getWorkMaxItems + "<br>");
+    response.println("Throttled GetWork Requests: "
+        + admissionController.getThrottledRequests() + "<br>");
+    response.println("Time Blocked On Memory: "
+        + admissionController.getBlockedMillis() + "ms<br>");
+  }
+
+  private void printLatencies(PrintWriter response) {
+    response.println("<h2>Latencies</h2>");
+    response.println("Pipelining: " + pipelining + "<br>");
+    response.println("<table border=\"1\">");
+    response.print("<tr><th>Stage</th><th>Count</th><th>Mean</th>"
+        + "<th>50%</th><th>90%</th><th>99%</th>");
+    for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++) {
+      response.print("<th>" + formatLimit(LatencyHistogram.getBucketLimitMillis(i)) + "</th>");
+    }
+    response.println("</tr>");
+    for (LatencyHistogram histogram :
+             Arrays.asList(getWorkLatency, queueLatency, commitLatency, endToEndLatency)) {
+      response.print("<tr><td>" + histogram.getName() + "</td>");
+      response.print("<td>" + histogram.getCount() + "</td>");
+      response.print(String.format("<td>%.1fms</td>", histogram.getMeanMillis()));
+      for (double quantile : new double[] {0.5, 0.9, 0.99}) {
+        response.print("<td>" + formatLimit(histogram.getQuantileLimitMillis(quantile)) + "</td>");
+      }
+      for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++) {
+        response.print("<td>" + histogram.getBucketCount(i) + "</td>");
+      }
+      response.println("</tr>");
+    }
+    response.println("</table>");
+  }
+
+  private static String formatLimit(long limitMillis) {
+    return limitMillis == Long.MAX_VALUE ? "&infin;" : "&lt;" + limitMillis + "ms";
+  }
+
   private void printResources(PrintWriter response) {
     Runtime rt = Runtime.getRuntime();
     response.append("<h2>Resources</h2>\n");
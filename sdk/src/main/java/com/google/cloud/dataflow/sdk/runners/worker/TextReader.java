@@ -17,16 +17,21 @@
 package com.google.cloud.dataflow.sdk.runners.worker;
 
 import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CoderException;
 import com.google.cloud.dataflow.sdk.io.TextIO;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
+import com.google.cloud.dataflow.sdk.util.ExposedByteArrayInputStream;
 import com.google.cloud.dataflow.sdk.util.IOChannelFactory;
 import com.google.cloud.dataflow.sdk.util.common.worker.ProgressTracker;
 import com.google.cloud.dataflow.sdk.util.common.worker.ProgressTrackerGroup;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PushbackInputStream;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 
@@ -35,24 +40,52 @@ import javax.annotation.Nullable;
 /**
  * A source that reads text files.
  *
+ * <p> By default, each line is copied out of the read buffer before it is
+ * decoded.  In line slicing mode, lines are instead decoded in place from
+ * a reusable read buffer, which is only compacted or grown for lines that
+ * cross its end.
+ *
  * @param <T> the type of the elements read from the source
  */
 public class TextReader<T> extends FileBasedReader<T> {
+  // The initial size of the read buffer in line slicing mode.
+  static final int SLICING_BUF_SIZE = 64 * 1024;
+
   final boolean stripTrailingNewlines;
   final TextIO.CompressionType compressionType;
+  final boolean lineSlicing;
 
   public TextReader(String filename, boolean stripTrailingNewlines, @Nullable Long startPosition,
       @Nullable Long endPosition, Coder<T> coder, TextIO.CompressionType compressionType) {
     this(filename, stripTrailingNewlines, startPosition, endPosition, coder, true,
-        compressionType);
+        compressionType, false);
+  }
+
+  /**
+   * Creates a TextReader which, if {@code lineSlicing} is true, decodes each
+   * line directly from its read buffer.
+   */
+  public TextReader(String filename, boolean stripTrailingNewlines, @Nullable Long startPosition,
+      @Nullable Long endPosition, Coder<T> coder, TextIO.CompressionType compressionType,
+      boolean lineSlicing) {
+    this(filename, stripTrailingNewlines, startPosition, endPosition, coder, true,
+        compressionType, lineSlicing);
   }
 
   protected TextReader(String filename, boolean stripTrailingNewlines, @Nullable Long startPosition,
       @Nullable Long endPosition, Coder<T> coder, boolean useDefaultBufferSize,
       TextIO.CompressionType compressionType) {
+    this(filename, stripTrailingNewlines, startPosition, endPosition, coder, useDefaultBufferSize,
+        compressionType, false);
+  }
+
+  protected TextReader(String filename, boolean stripTrailingNewlines, @Nullable Long startPosition,
+      @Nullable Long endPosition, Coder<T> coder, boolean useDefaultBufferSize,
+      TextIO.CompressionType compressionType, boolean lineSlicing) {
     super(filename, startPosition, endPosition, coder, useDefaultBufferSize);
     this.stripTrailingNewlines = stripTrailingNewlines;
     this.compressionType = compressionType;
+    this.lineSlicing = lineSlicing;
   }
 
   @Override
@@ -127,7 +160,12 @@ public class TextReader<T> extends FileBasedReader<T> {
 
   class TextFileIterator extends FileBasedIterator {
     private final boolean stripTrailingNewlines;
-    private ScanState state;
+    // Exactly one of state and scanner is set, depending on whether lines
+    // are copied out of the read buffer or decoded in place.
+    @Nullable private ScanState state;
+    @Nullable private LineScanner scanner;
+    private ByteArrayOutputStream element;
+    private final ExposedByteArrayInputStream slice = new ExposedByteArrayInputStream();
 
     TextFileIterator(CopyableSeekableByteChannel seeker, boolean stripTrailingNewlines,
         long startOffset, @Nullable Long endOffset,
@@ -139,26 +177,36 @@ public class TextReader<T> extends FileBasedReader<T> {
               notifyElementRead(lineLength.longValue());
             }
           }.start(),
-          new ScanState(BUF_SIZE, !stripTrailingNewlines),
+          lineSlicing ? null : new ScanState(BUF_SIZE, !stripTrailingNewlines),
+          lineSlicing
+              ? new LineScanner(useDefaultBufferSize ? SLICING_BUF_SIZE : BUF_SIZE,
+                  !stripTrailingNewlines)
+              : null,
           compressionStreamFactory);
     }
 
     private TextFileIterator(CopyableSeekableByteChannel seeker, boolean stripTrailingNewlines,
         long startOffset, long offset, @Nullable Long endOffset, ProgressTracker<Integer> tracker,
-        ScanState state, FileBasedReader.DecompressingStreamFactory compressionStreamFactory)
-            throws IOException {
+        @Nullable ScanState state, @Nullable LineScanner scanner,
+        FileBasedReader.DecompressingStreamFactory compressionStreamFactory) throws IOException {
       super(seeker, startOffset, offset, endOffset, tracker, compressionStreamFactory);
 
       this.stripTrailingNewlines = stripTrailingNewlines;
       this.state = state;
+      this.scanner = scanner;
     }
 
     private TextFileIterator(TextFileIterator it) throws IOException {
       // Correctly adjust the start position of the seeker given
       // that it may hold bytes that have been read and now reside
       // in the read buffer (that is copied during cloning).
-      this(it.seeker.copy(), it.stripTrailingNewlines, it.startOffset + it.state.totalBytesRead,
-          it.offset, it.endOffset, it.tracker.copy(), it.state.copy(), it.compressionStreamFactory);
+      this(it.seeker.copy(), it.stripTrailingNewlines,
+          it.startOffset
+              + (it.state != null ? it.state.totalBytesRead : it.scanner.totalBytesRead),
+          it.offset, it.endOffset, it.tracker.copy(),
+          it.state != null ? it.state.copy() : null,
+          it.scanner != null ? it.scanner.copy() : null,
+          it.compressionStreamFactory);
     }
 
     @Override
@@ -166,6 +214,35 @@ public class TextReader<T> extends FileBasedReader<T> {
       return new TextFileIterator(this);
     }
 
+    @Override
+    protected boolean readElement() throws IOException {
+      if (scanner == null) {
+        element = readLine();
+        return element != null;
+      }
+      int charsConsumed = scanner.nextLine(stream);
+      if (charsConsumed == 0) {
+        return false;
+      }
+      offset += charsConsumed;
+      tracker.saw(charsConsumed);
+      return true;
+    }
+
+    @Override
+    protected T decodeElement() throws IOException {
+      if (scanner == null) {
+        return CoderUtils.decodeFromByteArray(coder, element.toByteArray());
+      }
+      slice.reset(scanner.buf, scanner.lineStart, scanner.lineLength);
+      T value = coder.decode(slice, Coder.Context.OUTER);
+      if (slice.available() != 0) {
+        throw new CoderException(
+            slice.available() + " unexpected extra bytes after decoding " + value);
+      }
+      return value;
+    }
+
     /**
      * Reads a line of text. A line is considered to be terminated by any
      * one of a line feed ({@code '\n'}), a carriage return
@@ -178,8 +255,7 @@ public class TextReader<T> extends FileBasedReader<T> {
      *     been reached.
      * @throws IOException if an I/O error occurs
      */
-    @Override
-    protected ByteArrayOutputStream readElement() throws IOException {
+    private ByteArrayOutputStream readLine() throws IOException {
       ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUF_SIZE);
 
       int charsConsumed = 0;
@@ -363,4 +439,107 @@ public class TextReader<T> extends FileBasedReader<T> {
       return charsConsumed;
     }
   }
+
+  /**
+   * LineScanner finds the lines of a stream in a reusable buffer, using the
+   * same line terminators as {@link TextFileIterator#readLine}, so that each
+   * line can be decoded from the buffer in place.  The unconsumed bytes are
+   * only moved to the front of the buffer when a line crosses its end, and
+   * the buffer only grows for lines longer than it.
+   */
+  private static class LineScanner {
+    private byte[] buf;
+    private int start; // Unconsumed bytes in buf start at this index
+    private int end; // The index of the end of bytes in buf
+    private final boolean keepNewlines;
+    private long totalBytesRead;
+    // The region of buf holding the last line found.
+    private int lineStart;
+    private int lineLength;
+
+    public LineScanner(int size, boolean keepNewlines) {
+      this.buf = new byte[size];
+      this.keepNewlines = keepNewlines;
+    }
+
+    private LineScanner(LineScanner other) {
+      this.buf = new byte[other.buf.length];
+      System.arraycopy(other.buf, other.start, buf, other.start, other.end - other.start);
+      this.start = other.start;
+      this.end = other.end;
+      this.keepNewlines = other.keepNewlines;
+      this.totalBytesRead = 0;
+    }
+
+    public LineScanner copy() {
+      return new LineScanner(this);
+    }
+
+    /**
+     * Finds the next line, and makes {@code lineStart} and {@code lineLength}
+     * refer to it.
+     *
+     * @return the number of bytes consumed, including any line terminator,
+     *     or 0 if the end of the stream has been reached.
+     */
+    public int nextLine(InputStream stream) throws IOException {
+      int scanned = 0; // The number of unconsumed bytes known not to be separators
+      while (true) {
+        for (int i = start + scanned; i < end; ++i) {
+          byte b = buf[i];
+          if (b == '\n' || b == '\r') {
+            int length = i - start;
+            int separatorLength = 1;
+            if (b == '\r') {
+              if (i + 1 == end) {
+                // Read at least one more byte to check for a linefeed.
+                fill(stream);
+                i = start + length;
+              }
+              if (i + 1 < end && buf[i + 1] == '\n') {
+                separatorLength = 2;
+              }
+            }
+            return consume(length, separatorLength);
+          }
+        }
+        scanned = end - start;
+        if (!fill(stream)) {
+          // The last line has no terminator, or the stream is exhausted.
+          return consume(scanned, 0);
+        }
+      }
+    }
+
+    private int consume(int length, int separatorLength) {
+      lineStart = start;
+      lineLength = keepNewlines ? length + separatorLength : length;
+      start += length + separatorLength;
+      return length + separatorLength;
+    }
+
+    /**
+     * Reads more bytes after the unconsumed ones, first moving them to the
+     * front of the buffer, and growing it if they fill it.
+     *
+     * @return false if the end of the stream has been reached
+     */
+    private boolean fill(InputStream stream) throws IOException {
+      if (start > 0) {
+        System.arraycopy(buf, start, buf, 0, end - start);
+        end -= start;
+        start = 0;
+      }
+      if (end == buf.length) {
+        buf = Arrays.copyOf(buf, buf.length * 2);
+      }
+      int bytesRead = stream.read(buf, end, buf.length - end);
+      if (bytesRead == -1) {
+        return false;
+      }
+      totalBytesRead += bytesRead;
+      end += bytesRead;
+      return true;
+    }
+  }
 }
@@ -23,6 +23,7 @@ import static com.google.cloud.dataflow.sdk.util.Structs.getString;
 import com.google.api.services.dataflow.model.Source;
 import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.io.TextIO;
+import com.google.cloud.dataflow.sdk.options.DataflowPipelineDebugOptions;
 import com.google.cloud.dataflow.sdk.options.PipelineOptions;
 import com.google.cloud.dataflow.sdk.util.CloudObject;
 import com.google.cloud.dataflow.sdk.util.ExecutionContext;
@@ -38,7 +39,8 @@ public class TextReaderFactory {
 
   public static <T> TextReader<T> create(PipelineOptions options, CloudObject spec, Coder<T> coder,
       ExecutionContext executionContext) throws Exception {
-    return create(spec, coder);
+    return create(spec, coder, true, options != null
+        && options.as(DataflowPipelineDebugOptions.class).getWorkerTextLineSlicing());
   }
 
   static <T> TextReader<T> create(CloudObject spec, Coder<T> coder) throws Exception {
@@ -52,6 +54,11 @@ public class TextReaderFactory {
 
   static <T> TextReader<T> create(CloudObject spec, Coder<T> coder, boolean useDefaultBufferSize)
       throws Exception {
+    return create(spec, coder, useDefaultBufferSize, false);
+  }
+
+  static <T> TextReader<T> create(CloudObject spec, Coder<T> coder, boolean useDefaultBufferSize,
+      boolean lineSlicing) throws Exception {
     String filenameOrPattern = getString(spec, PropertyNames.FILENAME, null);
     if (filenameOrPattern == null) {
       filenameOrPattern = getString(spec, PropertyNames.FILEPATTERN, null);
@@ -62,6 +69,7 @@ public class TextReaderFactory {
         getLong(spec, PropertyNames.END_OFFSET, null), coder,
         useDefaultBufferSize,
         Enum.valueOf(TextIO.CompressionType.class,
-            getString(spec, PropertyNames.COMPRESSION_TYPE, "AUTO")));
+            getString(spec, PropertyNames.COMPRESSION_TYPE, "AUTO")),
+        lineSlicing);
   }
 }
@@ -0,0 +1,698 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.transforms;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CoderException;
+import com.google.cloud.dataflow.sdk.coders.CoderRegistry;
+import com.google.cloud.dataflow.sdk.coders.CustomCoder;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateUnique.ApproximateUniqueCombineFn;
+import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.util.VarInt;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * {@code PTransform}s for estimating the number of distinct elements
+ * in a {@code PCollection}, or the number of distinct values
+ * associated with each key in a {@code PCollection} of {@code KV}s,
+ * using HyperLogLog++ sketches.
+ *
+ * <p> Unlike {@link ApproximateUnique}, whose accumulators hold a sample
+ * of hashes that grows with the desired accuracy, the accumulators of
+ * these transforms are bounded by {@code 2^precision} six-bit registers,
+ * and hold much less than that while few distinct elements have been
+ * seen.  That makes them preferable when estimating the number of
+ * distinct values of many keys.
+ */
+public class ApproximateDistinct {
+
+  /**
+   * The smallest supported precision.
+   */
+  static final int MIN_PRECISION = 4;
+
+  /**
+   * The largest supported precision.
+   */
+  static final int MAX_PRECISION = 18;
+
+  /**
+   * Returns a {@code PTransform} that takes a {@code PCollection<T>}
+   * and returns a {@code PCollection<Long>} containing a single value
+   * that is an estimate of the number of distinct elements in the
+   * input {@code PCollection}.
+   *
+   * <p> The {@code precision} parameter controls the estimation error
+   * and the size of the sketches.  The error is about
+   * {@code 1.04 / sqrt(2^precision)}, so for
+   * {@code ApproximateDistinct.globally(14)} the estimation error is
+   * about 0.8%, and a sketch takes at most 12KB.  While there are only a
+   * few distinct elements, the estimate is much more accurate and the
+   * sketch much smaller.
+   *
+   * <p> See also {@link #globally(double)}.
+   *
+   * <p> Example of use:
+   * <pre> {@code
+   * PCollection<String> pc = ...;
+   * PCollection<Long> approxNumDistinct =
+   *     pc.apply(ApproximateDistinct.<String>globally(14));
+   * } </pre>
+   *
+   * @param <T> the type of the elements in the input {@code PCollection}
+   * @param precision the base 2 logarithm of the number of registers
+   *        of the sketch; should be in the range {@code [4, 18]}
+   * @throws IllegalArgumentException if the {@code precision}
+   *         argument is out of range
+   */
+  public static <T> Globally<T> globally(int precision) {
+    return new Globally<>(precision);
+  }
+
+  /**
+   * Like {@link #globally(int)}, but specifies the desired maximum
+   * estimation error instead of the precision.
+   *
+   * @param <T> the type of the elements in the input {@code PCollection}
+   * @param maximumEstimationError the maximum estimation error, which
+   *        should be in the range {@code [0.01, 0.5]}
+   * @throws IllegalArgumentException if the
+   *         {@code maximumEstimationError} argument is out of range
+   */
+  public static <T> Globally<T> globally(double maximumEstimationError) {
+    return new Globally<>(precisionFromEstimationError(maximumEstimationError));
+  }
+
+  /**
+   * Returns a {@code PTransform} that takes a
+   * {@code PCollection<KV<K, V>>} and returns a
+   * {@code PCollection<KV<K, Long>>} that contains an output element
+   * mapping each distinct key in the input {@code PCollection} to an
+   * estimate of the number of distinct values associated with that
+   * key in the input {@code PCollection}.
+   *
+   * <p> See {@link #globally(int)} for an explanation of the
+   * {@code precision} parameter.  A separate sketch is computed
+   * for each distinct key of the input.
+   *
+   * <p> See also {@link #perKey(double)}.
+   *
+   * <p> Example of use:
+   * <pre> {@code
+   * PCollection<KV<Integer, String>> pc = ...;
+   * PCollection<KV<Integer, Long>> approxNumDistinctPerKey =
+   *     pc.apply(ApproximateDistinct.<Integer, String>perKey(14));
+   * } </pre>
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <V> the type of the values in the input {@code PCollection}
+   * @param precision the base 2 logarithm of the number of registers
+   *        of each sketch; should be in the range {@code [4, 18]}
+   * @throws IllegalArgumentException if the {@code precision}
+   *         argument is out of range
+   */
+  public static <K, V> PerKey<K, V> perKey(int precision) {
+    return new PerKey<>(precision);
+  }
+
+  /**
+   * Like {@link #perKey(int)}, but specifies the desired maximum
+   * estimation error instead of the precision.
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <V> the type of the values in the input {@code PCollection}
+   * @param maximumEstimationError the maximum estimation error, which
+   *        should be in the range {@code [0.01, 0.5]}
+   * @throws IllegalArgumentException if the
+   *         {@code maximumEstimationError} argument is out of range
+   */
+  public static <K, V> PerKey<K, V> perKey(double maximumEstimationError) {
+    return new PerKey<>(precisionFromEstimationError(maximumEstimationError));
+  }
+
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * {@code PTransform} for estimating the number of distinct elements
+   * in a {@code PCollection}.
+   *
+   * @param <T> the type of the elements in the input {@code PCollection}
+   */
+  @SuppressWarnings("serial")
+  static class Globally<T> extends PTransform<PCollection<T>, PCollection<Long>> {
+
+    private final int precision;
+
+    /**
+     * @see ApproximateDistinct#globally(int)
+     */
+    public Globally(int precision) {
+      this.precision = checkPrecision(precision);
+    }
+
+    @Override
+    public PCollection<Long> apply(PCollection<T> input) {
+      Coder<T> coder = input.getCoder();
+      return input.apply(
+          Combine.globally(
+              new HyperLogLogCombineFn<>(precision, coder)));
+    }
+
+    @Override
+    protected String getKindString() {
+      return "ApproximateDistinct.Globally";
+    }
+  }
+
+  /**
+   * {@code PTransform} for estimating the number of distinct values
+   * associated with each key in a {@code PCollection} of {@code KV}s.
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <V> the type of the values in the input {@code PCollection}
+   */
+  @SuppressWarnings("serial")
+  static class PerKey<K, V>
+      extends PTransform<PCollection<KV<K, V>>, PCollection<KV<K, Long>>> {
+
+    private final int precision;
+
+    /**
+     * @see ApproximateDistinct#perKey(int)
+     */
+    public PerKey(int precision) {
+      this.precision = checkPrecision(precision);
+    }
+
+    @Override
+    public PCollection<KV<K, Long>> apply(PCollection<KV<K, V>> input) {
+      Coder<KV<K, V>> inputCoder = input.getCoder();
+      if (!(inputCoder instanceof KvCoder)) {
+        throw new IllegalStateException(
+            "ApproximateDistinct.PerKey requires its input to use KvCoder");
+      }
+      @SuppressWarnings("unchecked")
+      final Coder<V> coder = ((KvCoder<K, V>) inputCoder).getValueCoder();
+
+      return input.apply(
+          Combine.perKey(new HyperLogLogCombineFn<>(
+              precision, coder).<K>asKeyedFn()));
+    }
+
+    @Override
+    protected String getKindString() {
+      return "ApproximateDistinct.PerKey";
+    }
+  }
+
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * {@code CombineFn} that computes an estimate of the number of
+   * distinct values that were combined, using a HyperLogLog++ sketch.
+   *
+   * <p> Each input element is encoded and hashed to 64 bits.  The first
+   * {@code precision} bits of the hash select one of
+   * {@code 2^precision} registers, which keeps the largest number of
+   * leading zeros, plus one, seen in the remaining bits of the hashes
+   * selecting it.
+   *
+   * <p> While few distinct elements have been seen, the sketch is
+   * sparse: it only keeps the non-zero registers of a much more precise
+   * sketch, with {@code 2^25} registers, and estimates the number of
+   * distinct elements from the number of those.  Once the sparse
+   * registers would take more space than the packed dense registers, the
+   * sketch converts itself to the dense representation, which is
+   * estimated with Ertl's improved raw estimator, "New cardinality
+   * estimation algorithms for HyperLogLog sketches" (2017), which needs
+   * no empirical bias correction.
+   *
+   * <p> Used to implement
+   * {@link #globally(int) ApproximateDistinct.globally(...)} and
+   * {@link #perKey(int) ApproximateDistinct.perKey(...)}.
+   *
+   * @param <T> the type of the values being combined
+   */
+  @SuppressWarnings("serial")
+  public static class HyperLogLogCombineFn<T> extends
+      CombineFn<T, HyperLogLogCombineFn.Sketch, Long> {
+
+    /**
+     * The precision of the registers of sparse sketches.
+     */
+    static final int SPARSE_PRECISION = 25;
+
+    /**
+     * The number of bits of a sparse register value.  A sparse register
+     * is encoded as its index, shifted left by this many bits, or'ed
+     * with its value.
+     */
+    private static final int SPARSE_VALUE_BITS = 6;
+
+    /**
+     * A HyperLogLog++ sketch of a set of hashes.
+     */
+    public static class Sketch {
+      private static final int INITIAL_PENDING_CAPACITY = 8;
+
+      private final int precision;
+
+      // The registers, or null while the sketch is sparse.
+      private byte[] registers;
+
+      // The non-zero sparse registers, sorted by index, with distinct indices.
+      private int[] sparse;
+      private int sparseSize = 0;
+
+      // Sparse registers added since they were last merged into sparse.
+      private int[] pending;
+      private int pendingSize = 0;
+
+      /**
+       * Creates an empty sketch with {@code 2^precision} registers.
+       */
+      public Sketch(int precision) {
+        this.precision = checkPrecision(precision);
+        this.sparse = new int[0];
+        this.pending = new int[INITIAL_PENDING_CAPACITY];
+      }
+
+      private Sketch(int precision, int[] sparse, byte[] registers) {
+        this.precision = precision;
+        this.sparse = sparse;
+        this.sparseSize = sparse == null ? 0 : sparse.length;
+        this.pending = sparse == null ? null : new int[INITIAL_PENDING_CAPACITY];
+        this.registers = registers;
+      }
+
+      /**
+       * Adds a 64-bit hash to the sketch.
+       */
+      public void add(long hash) {
+        if (registers != null) {
+          int index = (int) (hash >>> (64 - precision));
+          byte value = registerValue(hash << precision, 64 - precision);
+          if (value > registers[index]) {
+            registers[index] = value;
+          }
+        } else {
+          int index = (int) (hash >>> (64 - SPARSE_PRECISION));
+          byte value = registerValue(hash << SPARSE_PRECISION, 64 - SPARSE_PRECISION);
+          addSparse(index << SPARSE_VALUE_BITS | value);
+        }
+      }
+
+      /**
+       * Adds all hashes added to the given sketch, which must have the same
+       * precision, to this sketch.
+       */
+      public void merge(Sketch other) {
+        if (other.precision != precision) {
+          throw new IllegalArgumentException("Cannot merge a sketch of precision "
+              + other.precision + " into a sketch of precision " + precision);
+        }
+        // Flushing may convert the other sketch to the dense representation.
+        other.flushPending();
+        if (other.registers != null) {
+          toDense();
+          for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+              registers[i] = other.registers[i];
+            }
+          }
+        } else {
+          for (int i = 0; i < other.sparseSize; i++) {
+            if (registers != null) {
+              setFromSparse(other.sparse[i]);
+            } else {
+              addSparse(other.sparse[i]);
+            }
+          }
+        }
+      }
+
+      /**
+       * Returns the estimated number of distinct hashes added to the sketch.
+       */
+      public long estimate() {
+        // Flushing may convert the sketch to the dense representation.
+        flushPending();
+        if (registers == null) {
+          // Linear counting, which is very accurate for as few distinct
+          // hashes as there are non-zero sparse registers.
+          double sparseRegisters = 1 << SPARSE_PRECISION;
+          return Math.round(sparseRegisters
+              * Math.log(sparseRegisters / (sparseRegisters - sparseSize)));
+        }
+
+        int maxValue = 64 - precision + 1;
+        int[] counts = new int[maxValue + 1];
+        for (byte value : registers) {
+          counts[value]++;
+        }
+        double m = registers.length;
+        double z = m * tau(1 - counts[maxValue] / m);
+        for (int k = maxValue - 1; k >= 1; k--) {
+          z = 0.5 * (z + counts[k]);
+        }
+        z += m * sigma(counts[0] / m);
+        return Math.round(m * m / (2 * Math.log(2) * z));
+      }
+
+      /**
+       * Returns whether the sketch is still sparse.
+       */
+      boolean isSparse() {
+        return registers == null;
+      }
+
+      /**
+       * Returns the number of leading zeros of the given bits, of which
+       * only the leading {@code bitCount} are used, plus one.
+       */
+      private static byte registerValue(long bits, int bitCount) {
+        return (byte) (Math.min(Long.numberOfLeadingZeros(bits), bitCount) + 1);
+      }
+
+      private void addSparse(int entry) {
+        if (pendingSize == pending.length) {
+          if (pending.length < maxPendingSize()) {
+            pending = Arrays.copyOf(pending, 2 * pending.length);
+          } else {
+            flushPending();
+            if (registers != null) {
+              setFromSparse(entry);
+              return;
+            }
+          }
+        }
+        pending[pendingSize++] = entry;
+      }
+
+      /**
+       * The largest number of pending sparse registers, which bounds their
+       * memory to a small fraction of that of the dense registers.
+       */
+      private int maxPendingSize() {
+        return Math.max(INITIAL_PENDING_CAPACITY, (1 << precision) / 16);
+      }
+
+      /**
+       * Merges the pending sparse registers into the sorted sparse registers,
+       * and converts the sketch to the dense representation if the sparse
+       * registers have become larger than the packed dense registers.
+       */
+      private void flushPending() {
+        if (pendingSize == 0) {
+          return;
+        }
+        // Sorting by entry sorts by index, then value.
+        Arrays.sort(pending, 0, pendingSize);
+        int[] merged = new int[sparseSize + pendingSize];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < sparseSize || j < pendingSize) {
+          int entry;
+          if (j == pendingSize || (i < sparseSize && sparse[i] <= pending[j])) {
+            entry = sparse[i++];
+          } else {
+            entry = pending[j++];
+          }
+          // Of several entries for an index, the last has the largest value.
+          if (size > 0
+              && merged[size - 1] >>> SPARSE_VALUE_BITS == entry >>> SPARSE_VALUE_BITS) {
+            merged[size - 1] = entry;
+          } else {
+            merged[size++] = entry;
+          }
+        }
+        sparse = merged;
+        sparseSize = size;
+        pendingSize = 0;
+        // A sparse register takes four bytes in memory, and up to about as
+        // many encoded, while a dense register is encoded in six bits.
+        if (16 * sparseSize > 3 << precision) {
+          toDense();
+        }
+      }
+
+      private void toDense() {
+        if (registers != null) {
+          return;
+        }
+        flushPending();
+        registers = new byte[1 << precision];
+        for (int i = 0; i < sparseSize; i++) {
+          setFromSparse(sparse[i]);
+        }
+        sparse = null;
+        sparseSize = 0;
+        pending = null;
+      }
+
+      /**
+       * Sets the dense register covering the given sparse register to at
+       * least the value the sparse register's hashes would have given it.
+       */
+      private void setFromSparse(int entry) {
+        int sparseIndex = entry >>> SPARSE_VALUE_BITS;
+        int extraBits = SPARSE_PRECISION - precision;
+        int index = sparseIndex >>> extraBits;
+        // The bits of the sparse index that aren't part of the dense index
+        // are the leading bits counted by the dense register.
+        int extraIndexBits = sparseIndex & ((1 << extraBits) - 1);
+        byte value;
+        if (extraIndexBits != 0) {
+          value = (byte) (Integer.numberOfLeadingZeros(extraIndexBits) - (32 - extraBits) + 1);
+        } else {
+          value = (byte) (extraBits + (entry & ((1 << SPARSE_VALUE_BITS) - 1)));
+        }
+        if (value > registers[index]) {
+          registers[index] = value;
+        }
+      }
+
+      private static double sigma(double x) {
+        if (x == 1) {
+          return Double.POSITIVE_INFINITY;
+        }
+        double y = 1;
+        double z = x;
+        double previous;
+        do {
+          x *= x;
+          previous = z;
+          z += x * y;
+          y += y;
+        } while (z != previous);
+        return z;
+      }
+
+      private static double tau(double x) {
+        if (x == 0 || x == 1) {
+          return 0;
+        }
+        double y = 1;
+        double z = 1 - x;
+        double previous;
+        do {
+          x = Math.sqrt(x);
+          previous = z;
+          y *= 0.5;
+          z -= (1 - x) * (1 - x) * y;
+        } while (z != previous);
+        return z / 3;
+      }
+    }
+
+    /**
+     * A {@link Coder} for {@link Sketch} accumulators.
+     *
+     * <p> Sparse sketches are written as the number of sparse registers
+     * followed by the variable-length deltas between them, and dense
+     * sketches as their registers packed into six bits each.
+     */
+    private static class SketchCoder extends CustomCoder<Sketch> {
+      private static final long serialVersionUID = 0;
+
+      private static final int SPARSE = 0;
+      private static final int DENSE = 1;
+
+      private final int precision;
+
+      public SketchCoder(int precision) {
+        this.precision = precision;
+      }
+
+      @Override
+      public void encode(Sketch value, OutputStream outStream, Context context)
+          throws CoderException, IOException {
+        value.flushPending();
+        if (value.isSparse()) {
+          outStream.write(SPARSE);
+          VarInt.encode(value.sparseSize, outStream);
+          int previous = 0;
+          for (int i = 0; i < value.sparseSize; i++) {
+            VarInt.encode(value.sparse[i] - previous, outStream);
+            previous = value.sparse[i];
+          }
+        } else {
+          outStream.write(DENSE);
+          byte[] registers = value.registers;
+          byte[] packed = new byte[registers.length / 4 * 3];
+          for (int i = 0, j = 0; i < registers.length; i += 4, j += 3) {
+            int bits = registers[i] | registers[i + 1] << 6
+                | registers[i + 2] << 12 | registers[i + 3] << 18;
+            packed[j] = (byte) bits;
+            packed[j + 1] = (byte) (bits >>> 8);
+            packed[j + 2] = (byte) (bits >>> 16);
+          }
+          outStream.write(packed);
+        }
+      }
+
+      @Override
+      public Sketch decode(InputStream inStream, Context context)
+          throws CoderException, IOException {
+        int representation = inStream.read();
+        if (representation == SPARSE) {
+          int[] sparse = new int[VarInt.decodeInt(inStream)];
+          int previous = 0;
+          for (int i = 0; i < sparse.length; i++) {
+            sparse[i] = previous + VarInt.decodeInt(inStream);
+            previous = sparse[i];
+          }
+          return new Sketch(precision, sparse, null);
+        } else if (representation == DENSE) {
+          byte[] packed = new byte[(1 << precision) / 4 * 3];
+          readFully(inStream, packed);
+          byte[] registers = new byte[1 << precision];
+          for (int i = 0, j = 0; i < registers.length; i += 4, j += 3) {
+            int bits = (packed[j] & 0xff) | (packed[j + 1] & 0xff) << 8
+                | (packed[j + 2] & 0xff) << 16;
+            registers[i] = (byte) (bits & 0x3f);
+            registers[i + 1] = (byte) (bits >>> 6 & 0x3f);
+            registers[i + 2] = (byte) (bits >>> 12 & 0x3f);
+            registers[i + 3] = (byte) (bits >>> 18 & 0x3f);
+          }
+          return new Sketch(precision, null, registers);
+        } else {
+          throw new CoderException("Unknown sketch representation " + representation);
+        }
+      }
+
+      private static void readFully(InputStream inStream, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+          int read = inStream.read(bytes, offset, bytes.length - offset);
+          if (read < 0) {
+            throw new EOFException("Truncated sketch");
+          }
+          offset += read;
+        }
+      }
+    }
+
+    private final int precision;
+    private final Coder<T> coder;
+
+    public HyperLogLogCombineFn(int precision, Coder<T> coder) {
+      this.precision = checkPrecision(precision);
+      this.coder = coder;
+    }
+
+    @Override
+    public Sketch createAccumulator() {
+      return new Sketch(precision);
+    }
+
+    @Override
+    public void addInput(Sketch sketch, T input) {
+      try {
+        sketch.add(ApproximateUniqueCombineFn.hash(input, coder));
+      } catch (Throwable e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public Sketch mergeAccumulators(Iterable<Sketch> sketches) {
+      Iterator<Sketch> iterator = sketches.iterator();
+      Sketch sketch = iterator.next();
+      while (iterator.hasNext()) {
+        sketch.merge(iterator.next());
+      }
+      return sketch;
+    }
+
+    @Override
+    public Long extractOutput(Sketch sketch) {
+      return sketch.estimate();
+    }
+
+    @Override
+    public Coder<Sketch> getAccumulatorCoder(CoderRegistry registry,
+        Coder<T> inputCoder) {
+      return new SketchCoder(precision);
+    }
+  }
+
+  /**
+   * Computes the precision based on the desired estimation error.
+   *
+   * @param estimationError should be bounded by [0.01, 0.5]
+   * @return the smallest precision whose estimation error is at most
+   *         the desired estimation error
+   */
+  static int precisionFromEstimationError(double estimationError) {
+    if (estimationError < 0.01 || estimationError > 0.5) {
+      throw new IllegalArgumentException(
+          "ApproximateDistinct needs an "
+          + "estimation error between 1% (0.01) and 50% (0.5).");
+    }
+    int precision = MIN_PRECISION;
+    while (1.04 / Math.sqrt(1 << precision) > estimationError) {
+      precision++;
+    }
+    return precision;
+  }
+
+  private static int checkPrecision(int precision) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException(
+          "ApproximateDistinct needs a precision between " + MIN_PRECISION
+          + " and " + MAX_PRECISION + ".  The estimation error is about "
+          + "1.04 / sqrt(2^precision).");
+    }
+    return precision;
+  }
+}
@@ -20,20 +20,24 @@ import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.coders.Coder.Context;
 import com.google.cloud.dataflow.sdk.coders.CoderException;
 import com.google.cloud.dataflow.sdk.coders.CoderRegistry;
+import com.google.cloud.dataflow.sdk.coders.CustomCoder;
 import com.google.cloud.dataflow.sdk.coders.KvCoder;
-import com.google.cloud.dataflow.sdk.coders.SerializableCoder;
 import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.util.VarInt;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
 
 /**
  * {@code PTransform}s for estimating the number of distinct elements
@@ -295,10 +299,20 @@ public class ApproximateUnique {
 
     /**
      * A heap utility class to efficiently track the largest added elements.
+     *
+     * <p> The values are kept in a binary min-heap of primitive longs,
+     * together with an open-addressing hash set of the same values, so that
+     * adding a value that is already tracked doesn't search the heap.  Both
+     * grow as values are added, up to {@code sampleSize} values.
      */
     public static class LargestUnique implements Serializable {
-      private PriorityQueue<Long> heap = new PriorityQueue<>();
+      private static final long serialVersionUID = 0;
+      private static final int INITIAL_CAPACITY = 16;
+
       private final long sampleSize;
+      private long[] heap;
+      private int size = 0;
+      private final LongHashSet members = new LongHashSet();
 
       /**
        * Creates a heap to track the largest {@code sampleSize} elements.
@@ -307,24 +321,47 @@ public class ApproximateUnique {
        */
       public LargestUnique(long sampleSize) {
         this.sampleSize = sampleSize;
+        this.heap = new long[(int) Math.min(sampleSize, INITIAL_CAPACITY)];
+      }
+
+      /**
+       * Creates a heap to track the largest {@code sampleSize} elements,
+       * initially holding the given distinct values, which must be sorted
+       * smallest to largest and at most {@code sampleSize} many.
+       */
+      LargestUnique(long sampleSize, long[] sortedValues) {
+        this.sampleSize = sampleSize;
+        // An ascending array already satisfies the heap property.
+        this.heap = sortedValues;
+        this.size = sortedValues.length;
+        for (long value : sortedValues) {
+          members.add(value);
+        }
       }
 
       /**
        * Adds a value to the heap, returning whether the value is (large enough
        * to be) in the heap.
        */
-      public boolean add(Long value) {
-        if (heap.contains(value)) {
-          return true;
-        } else if (heap.size() < sampleSize) {
-          heap.add(value);
+      public boolean add(long value) {
+        if (size >= sampleSize && (size == 0 || value < heap[0])) {
+          return false;
+        } else if (!members.add(value)) {
           return true;
-        } else if (value > heap.element()) {
-          heap.remove();
-          heap.add(value);
+        } else if (size < sampleSize) {
+          if (size == heap.length) {
+            heap = Arrays.copyOf(heap,
+                (int) Math.min(sampleSize, Math.max(INITIAL_CAPACITY, 2L * heap.length)));
+          }
+          heap[size] = value;
+          siftUp(size);
+          size++;
           return true;
         } else {
-          return false;
+          members.remove(heap[0]);
+          heap[0] = value;
+          siftDown(0);
+          return true;
         }
       }
 
@@ -332,16 +369,234 @@ public class ApproximateUnique {
        * Returns the values in the heap, ordered largest to smallest.
        */
       public List<Long> extractOrderedList() {
-        // The only way to extract the order from the heap is element-by-element
-        // from smallest to largest.
-        Long[] array = new Long[heap.size()];
-        for (int i = heap.size() - 1; i >= 0; i--) {
-          array[i] = heap.remove();
+        long[] values = sortedValues();
+        List<Long> list = new ArrayList<>(values.length);
+        for (int i = values.length - 1; i >= 0; i--) {
+          list.add(values[i]);
+        }
+        return list;
+      }
+
+      /**
+       * Returns the number of values in the heap.
+       */
+      int size() {
+        return size;
+      }
+
+      /**
+       * Returns the smallest value in the heap, which must not be empty.
+       */
+      long smallest() {
+        return heap[0];
+      }
+
+      /**
+       * Returns the values in the heap, ordered smallest to largest.
+       */
+      long[] sortedValues() {
+        long[] values = Arrays.copyOf(heap, size);
+        Arrays.sort(values);
+        return values;
+      }
+
+      /**
+       * Adds all values of the given heap to this heap.
+       */
+      void addAll(LargestUnique other) {
+        for (int i = 0; i < other.size; i++) {
+          add(other.heap[i]);
+        }
+      }
+
+      private void siftUp(int index) {
+        long value = heap[index];
+        while (index > 0) {
+          int parent = (index - 1) >>> 1;
+          if (heap[parent] <= value) {
+            break;
+          }
+          heap[index] = heap[parent];
+          index = parent;
+        }
+        heap[index] = value;
+      }
+
+      private void siftDown(int index) {
+        long value = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+          int child = 2 * index + 1;
+          if (child + 1 < size && heap[child + 1] < heap[child]) {
+            child++;
+          }
+          if (value <= heap[child]) {
+            break;
+          }
+          heap[index] = heap[child];
+          index = child;
         }
-        return Arrays.asList(array);
+        heap[index] = value;
       }
     }
 
+    /**
+     * An open-addressing hash set of primitive longs with linear probing.
+     *
+     * <p> Zero marks an empty slot, so whether the set contains zero is
+     * tracked separately.  Removed values are filled in by shifting back the
+     * values that follow them in their probe sequence, rather than with
+     * tombstones, so lookups stay short however often values are replaced.
+     */
+    private static class LongHashSet implements Serializable {
+      private static final long serialVersionUID = 0;
+      private static final int INITIAL_CAPACITY = 32;
+
+      private long[] slots = new long[INITIAL_CAPACITY];
+      private int size = 0;
+      private boolean containsZero = false;
+
+      /**
+       * Adds the given value, returning whether it wasn't already in the set.
+       */
+      boolean add(long value) {
+        if (value == 0) {
+          boolean added = !containsZero;
+          containsZero = true;
+          return added;
+        }
+        // Keep the load factor at most 1/2.
+        if (2 * (size + 1) > slots.length) {
+          resize(2 * slots.length);
+        }
+        int mask = slots.length - 1;
+        int index = slot(value, mask);
+        while (slots[index] != 0) {
+          if (slots[index] == value) {
+            return false;
+          }
+          index = (index + 1) & mask;
+        }
+        slots[index] = value;
+        size++;
+        return true;
+      }
+
+      /**
+       * Removes the given value, returning whether it was in the set.
+       */
+      boolean remove(long value) {
+        if (value == 0) {
+          boolean removed = containsZero;
+          containsZero = false;
+          return removed;
+        }
+        int mask = slots.length - 1;
+        int hole = slot(value, mask);
+        while (slots[hole] != value) {
+          if (slots[hole] == 0) {
+            return false;
+          }
+          hole = (hole + 1) & mask;
+        }
+        for (int index = (hole + 1) & mask; slots[index] != 0; index = (index + 1) & mask) {
+          // A value can move back into the hole if the hole lies between its
+          // home slot and its current slot.
+          int home = slot(slots[index], mask);
+          if (((index - home) & mask) >= ((index - hole) & mask)) {
+            slots[hole] = slots[index];
+            hole = index;
+          }
+        }
+        slots[hole] = 0;
+        size--;
+        return true;
+      }
+
+      private void resize(int capacity) {
+        long[] oldSlots = slots;
+        slots = new long[capacity];
+        int mask = capacity - 1;
+        for (long value : oldSlots) {
+          if (value != 0) {
+            int index = slot(value, mask);
+            while (slots[index] != 0) {
+              index = (index + 1) & mask;
+            }
+            slots[index] = value;
+          }
+        }
+      }
+
+      private static int slot(long value, int mask) {
+        long hash = value * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+      }
+    }
+
+    /**
+     * A {@link Coder} for {@link LargestUnique} accumulators, which writes
+     * their values smallest to largest as variable-length deltas.
+     *
+     * <p> The values of a full heap are the largest hashes seen, so the
+     * differences between consecutive values are much smaller than the
+     * values themselves.
+     */
+    private static class LargestUniqueCoder extends CustomCoder<LargestUnique> {
+      private static final long serialVersionUID = 0;
+
+      private final long sampleSize;
+
+      public LargestUniqueCoder(long sampleSize) {
+        this.sampleSize = sampleSize;
+      }
+
+      @Override
+      public void encode(LargestUnique value, OutputStream outStream, Context context)
+          throws CoderException, IOException {
+        long[] values = value.sortedValues();
+        VarInt.encode(values.length, outStream);
+        long previous = 0;
+        for (long hash : values) {
+          // Wraps around for the first value if it is negative, which decoding
+          // undoes.
+          VarInt.encode(hash - previous, outStream);
+          previous = hash;
+        }
+      }
+
+      @Override
+      public LargestUnique decode(InputStream inStream, Context context)
+          throws CoderException, IOException {
+        long[] values = new long[VarInt.decodeInt(inStream)];
+        long previous = 0;
+        for (int i = 0; i < values.length; i++) {
+          values[i] = previous + VarInt.decodeLong(inStream);
+          previous = values[i];
+        }
+        return new LargestUnique(sampleSize, values);
+      }
+
+      @Override
+      @Deprecated
+      public boolean isDeterministic() {
+        return true;
+      }
+    }
+
+    /**
+     * A buffer for encoding the elements to hash, reused by each thread.
+     */
+    private static final ThreadLocal<HashBuffer> HASH_BUFFER =
+        new ThreadLocal<HashBuffer>() {
+          @Override
+          protected HashBuffer initialValue() {
+            return new HashBuffer();
+          }
+        };
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
     private final long sampleSize;
     private final Coder<T> coder;
 
@@ -369,23 +624,17 @@ public class ApproximateUnique {
       Iterator<LargestUnique> iterator = heaps.iterator();
       LargestUnique heap = iterator.next();
       while (iterator.hasNext()) {
-        List<Long> largestHashes = iterator.next().extractOrderedList();
-        for (long hash : largestHashes) {
-          if (!heap.add(hash)) {
-            break; // The remainder of this list is all smaller.
-          }
-        }
+        heap.addAll(iterator.next());
       }
       return heap;
     }
 
     @Override
     public Long extractOutput(LargestUnique heap) {
-      List<Long> largestHashes = heap.extractOrderedList();
-      if (largestHashes.size() < sampleSize) {
-        return (long) largestHashes.size();
+      if (heap.size() < sampleSize) {
+        return (long) heap.size();
       } else {
-        long smallestSampleHash = largestHashes.get(largestHashes.size() - 1);
+        long smallestSampleHash = heap.smallest();
         double sampleSpaceSize = Long.MAX_VALUE - (double) smallestSampleHash;
         // This formula takes into account the possibility of hash collisions,
         // which become more likely than not for 2^32 distinct elements.
@@ -403,17 +652,41 @@ public class ApproximateUnique {
     @Override
     public Coder<LargestUnique> getAccumulatorCoder(CoderRegistry registry,
         Coder<T> inputCoder) {
-      return SerializableCoder.of(LargestUnique.class);
+      return new LargestUniqueCoder(sampleSize);
     }
 
     /**
      * Encodes the given element using the given coder and hashes the encoding.
+     *
+     * <p> The element is encoded into a buffer owned by the calling thread,
+     * so that hashing doesn't allocate a new buffer for every element.
      */
     static <T> long hash(T element, Coder<T> coder)
         throws CoderException, IOException {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      coder.encode(element, baos, Context.OUTER);
-      return Hashing.murmur3_128().hashBytes(baos.toByteArray()).asLong();
+      HashBuffer buffer = HASH_BUFFER.get();
+      buffer.reset();
+      coder.encode(element, buffer, Context.OUTER);
+      long hash = HASH_FUNCTION.hashBytes(buffer.buffer(), 0, buffer.size()).asLong();
+      buffer.release();
+      return hash;
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} that exposes its internal buffer, and
+     * doesn't hold on to the buffer grown by an unusually large element.
+     */
+    private static class HashBuffer extends ByteArrayOutputStream {
+      private static final int MAX_RETAINED_BYTES = 1 << 20;
+
+      byte[] buffer() {
+        return buf;
+      }
+
+      void release() {
+        if (buf.length > MAX_RETAINED_BYTES) {
+          buf = new byte[32];
+        }
+      }
     }
   }
 
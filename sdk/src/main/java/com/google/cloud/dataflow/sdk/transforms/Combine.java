@@ -29,6 +29,8 @@ import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
 import com.google.cloud.dataflow.sdk.coders.VoidCoder;
 import com.google.cloud.dataflow.sdk.transforms.Combine.AccumulatingCombineFn;
 import com.google.cloud.dataflow.sdk.transforms.windowing.GlobalWindows;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
+import com.google.cloud.dataflow.sdk.util.HeavyHitters;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 import com.google.cloud.dataflow.sdk.values.PCollectionList;
@@ -36,6 +38,7 @@ import com.google.cloud.dataflow.sdk.values.PCollectionTuple;
 import com.google.cloud.dataflow.sdk.values.PCollectionView;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
 import com.google.cloud.dataflow.sdk.values.TupleTagList;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
@@ -44,10 +47,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * {@code PTransform}s for combining {@code PCollection} elements
@@ -1263,11 +1270,43 @@ public class Combine {
      * Like {@link #withHotKeys(SerializableFunction)}, but returning the given
      * constant value for every key.
      */
-    public PerKeyWithHotKeys<K, VI, VO> withHotKeys(final int hotKeySpread) {
-      return withHotKeys(
-          new SerializableFunction<K, Integer>(){
-            @Override public Integer apply(K unused) { return hotKeySpread; }
-          });
+    public PerKeyWithHotKeys<K, VI, VO> withHotKeys(int hotKeySpread) {
+      return withHotKeys(constantSpread(hotKeySpread));
+    }
+
+    private static <K> SerializableFunction<K, Integer> constantSpread(
+        final int hotKeySpread) {
+      return new SerializableFunction<K, Integer>(){
+        @Override public Integer apply(K unused) { return hotKeySpread; }
+      };
+    }
+
+    /**
+     * Like {@link #withHotKeys(int)}, but only spreading the keys that are
+     * detected to be hot while the input is processed, rather than every
+     * key.
+     *
+     * <p> A key is detected to be hot once it makes up more than
+     * {@code hotKeyFraction} of the input seen so far, as estimated by a
+     * {@link HeavyHitters} sketch of key frequencies, and stays hot until
+     * the sketch no longer reports it as making up more than that fraction.
+     * The number of keys detected to be hot and the number of
+     * values spread are reported by the {@code hotKeys} and
+     * {@code hotKeyValues} aggregators.
+     *
+     * @param hotKeyFraction the fraction of the input, in (0, 1), beyond
+     * which a key is hot
+     * @param hotKeySpread the number of intermediate nodes, greater than 1,
+     * among which each hot key is spread
+     */
+    public PerKeyWithHotKeys<K, VI, VO> withHotKeyDetection(
+        double hotKeyFraction, int hotKeySpread) {
+      Preconditions.checkArgument(hotKeyFraction > 0 && hotKeyFraction < 1,
+          "hotKeyFraction must be in (0, 1), but was %s", hotKeyFraction);
+      Preconditions.checkArgument(hotKeySpread > 1,
+          "hotKeySpread must be greater than 1, but was %s", hotKeySpread);
+      return new PerKeyWithHotKeys<K, VI, VO>(
+          fn, PerKey.<K>constantSpread(hotKeySpread), hotKeyFraction).withName(name);
     }
 
     @Override
@@ -1304,12 +1343,23 @@ public class Combine {
 
     private final transient KeyedCombineFn<? super K, ? super VI, ?, VO> fn;
     private final SerializableFunction<? super K, Integer> hotKeySpread;
+    // If positive, only the keys detected to make up more than this
+    // fraction of the input are hot.  Otherwise, every key is.
+    private final double hotKeyFraction;
 
     private PerKeyWithHotKeys(
         KeyedCombineFn<? super K, ? super VI, ?, VO> fn,
         SerializableFunction<? super K, Integer> hotKeySpread) {
+      this(fn, hotKeySpread, 0);
+    }
+
+    private PerKeyWithHotKeys(
+        KeyedCombineFn<? super K, ? super VI, ?, VO> fn,
+        SerializableFunction<? super K, Integer> hotKeySpread,
+        double hotKeyFraction) {
       this.fn = fn;
       this.hotKeySpread = hotKeySpread;
+      this.hotKeyFraction = hotKeyFraction;
     }
 
     @Override
@@ -1397,22 +1447,28 @@ public class Combine {
       // augmenting the hot keys with a nonce.
       final TupleTag<KV<KV<K, Integer>, VI>> hot = new TupleTag<>();
       final TupleTag<KV<K, VI>> cold = new TupleTag<>();
+      DoFn<KV<K, VI>, KV<K, VI>> splitFn;
+      if (hotKeyFraction > 0) {
+        splitFn = new DetectHotKeysFn<K, VI>(
+            hot, inputCoder.getKeyCoder(), hotKeyFraction, hotKeySpread);
+      } else {
+        splitFn = new DoFn<KV<K, VI>, KV<K, VI>>(){
+          int counter = 0;
+          @Override
+          public void processElement(ProcessContext c) {
+            KV<K, VI> kv = c.element();
+            int spread = hotKeySpread.apply(kv.getKey());
+            if (spread <= 1) {
+              c.output(kv);
+            } else {
+              int nonce = counter++ % spread;
+              c.sideOutput(hot, KV.of(KV.of(kv.getKey(), nonce), kv.getValue()));
+            }
+          }
+        };
+      }
       PCollectionTuple split = input.apply(
-          ParDo.of(new DoFn<KV<K, VI>, KV<K, VI>>(){
-                     int counter = 0;
-                     @Override
-                     public void processElement(ProcessContext c) {
-                       KV<K, VI> kv = c.element();
-                       int spread = hotKeySpread.apply(kv.getKey());
-                       if (spread <= 1) {
-                         c.output(kv);
-                       } else {
-                         int nonce = counter++ % spread;
-                         c.sideOutput(hot, KV.of(KV.of(kv.getKey(), nonce), kv.getValue()));
-                       }
-                     }
-                   })
-               .withOutputTags(cold, TupleTagList.of(hot)));
+          ParDo.of(splitFn).withOutputTags(cold, TupleTagList.of(hot)));
 
       // Combine the hot and cold keys separately.
       PCollection<KV<K, VO>> combinedHot = split
@@ -1444,6 +1500,101 @@ public class Combine {
     }
   }
 
+  /**
+   * Splits the hot keys of its input from the cold ones, like the split of
+   * {@link PerKeyWithHotKeys}, but only treating a key as hot once it makes
+   * up more than a given fraction of the elements seen so far, as counted
+   * in a {@link HeavyHitters} sketch of the encoded keys.  The values of
+   * each hot key are spread round-robin among its nonces.
+   *
+   * <p> Keys that the sketch no longer reports as hot are forgotten when
+   * another key becomes hot and at the end of each bundle, so that at most
+   * about {@code 1 / hotKeyFraction} keys are tracked at a time.
+   */
+  // @VisibleForTesting
+  @SuppressWarnings("serial")
+  static class DetectHotKeysFn<K, VI> extends DoFn<KV<K, VI>, KV<K, VI>> {
+    // Keys are not hot until they have been seen this many times, so that
+    // the first keys seen are not all hot.
+    private static final long MIN_HOT_KEY_COUNT = 100;
+
+    private final TupleTag<KV<KV<K, Integer>, VI>> hot;
+    private final Coder<K> keyCoder;
+    private final double hotKeyFraction;
+    private final SerializableFunction<? super K, Integer> hotKeySpread;
+
+    private transient HeavyHitters<ByteBuffer> keyFrequencies;
+    // The next nonce of each key detected to be hot.
+    private transient Map<ByteBuffer, Integer> hotKeyNonces;
+    private transient Aggregator<Long> hotKeys;
+    private transient Aggregator<Long> hotKeyValues;
+
+    DetectHotKeysFn(TupleTag<KV<KV<K, Integer>, VI>> hot, Coder<K> keyCoder,
+        double hotKeyFraction, SerializableFunction<? super K, Integer> hotKeySpread) {
+      this.hot = hot;
+      this.keyCoder = keyCoder;
+      this.hotKeyFraction = hotKeyFraction;
+      this.hotKeySpread = hotKeySpread;
+    }
+
+    @Override
+    public void startBundle(Context c) {
+      // Key frequencies are kept across bundles.
+      if (keyFrequencies == null) {
+        keyFrequencies = HeavyHitters.forFraction(hotKeyFraction);
+        hotKeyNonces = new HashMap<>();
+      }
+      hotKeys = c.createAggregator("hotKeys", new Sum.SumLongFn());
+      hotKeyValues = c.createAggregator("hotKeyValues", new Sum.SumLongFn());
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws CoderException {
+      KV<K, VI> kv = c.element();
+      ByteBuffer key = ByteBuffer.wrap(CoderUtils.encodeToByteArray(keyCoder, kv.getKey()));
+      keyFrequencies.add(key);
+
+      Integer nonce = hotKeyNonces.get(key);
+      if (nonce == null) {
+        long count = keyFrequencies.getGuaranteedCount(key);
+        if (count < MIN_HOT_KEY_COUNT
+            || count <= hotKeyFraction * keyFrequencies.getTotal()) {
+          c.output(kv);
+          return;
+        }
+        forgetColdKeys();
+        hotKeys.addValue(1L);
+        nonce = 0;
+      }
+
+      int spread = hotKeySpread.apply(kv.getKey());
+      if (spread <= 1) {
+        // Still tracked, so that the key is not detected again.
+        hotKeyNonces.put(key, nonce);
+        c.output(kv);
+      } else {
+        hotKeyNonces.put(key, (nonce + 1) % spread);
+        hotKeyValues.addValue(1L);
+        c.sideOutput(hot, KV.of(KV.of(kv.getKey(), nonce % spread), kv.getValue()));
+      }
+    }
+
+    @Override
+    public void finishBundle(Context c) {
+      forgetColdKeys();
+    }
+
+    /**
+     * Drops the nonces of the keys which are no longer hot.
+     */
+    private void forgetColdKeys() {
+      if (!hotKeyNonces.isEmpty()) {
+        hotKeyNonces.keySet().retainAll(
+            new HashSet<>(keyFrequencies.getHeavyHitters(hotKeyFraction)));
+      }
+    }
+  }
+
 
   /////////////////////////////////////////////////////////////////////////////
 
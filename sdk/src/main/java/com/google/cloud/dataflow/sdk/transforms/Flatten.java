@@ -183,13 +183,21 @@ public class Flatten {
   static {
     DirectPipelineRunner.registerDefaultTransformEvaluator(
         FlattenPCollectionList.class,
-        new DirectPipelineRunner.TransformEvaluator<FlattenPCollectionList>() {
+        new DirectPipelineRunner.FusibleTransformEvaluator<FlattenPCollectionList>() {
           @Override
           public void evaluate(
               FlattenPCollectionList transform,
               DirectPipelineRunner.EvaluationContext context) {
             evaluateHelper(transform, context);
           }
+
+          @Override
+          public DirectPipelineRunner.ElementProcessor<?> createProcessor(
+              FlattenPCollectionList transform,
+              DirectPipelineRunner.EvaluationContext context,
+              DirectPipelineRunner.FusedOutputs outputs) {
+            return createProcessorHelper(transform, outputs);
+          }
         });
   }
 
@@ -205,4 +213,23 @@ public class Flatten {
 
     context.setPCollectionValuesWithMetadata(transform.getOutput(), outputElems);
   }
+
+  private static <T> DirectPipelineRunner.ElementProcessor<T> createProcessorHelper(
+      FlattenPCollectionList<T> transform,
+      DirectPipelineRunner.FusedOutputs outputs) {
+    final DirectPipelineRunner.ElementReceiver<T> receiver =
+        outputs.getReceiver(transform.getOutput());
+    return new DirectPipelineRunner.ElementProcessor<T>() {
+      @Override
+      public void start() {}
+
+      @Override
+      public void process(DirectPipelineRunner.ValueWithMetadata<T> elem) {
+        receiver.process(elem);
+      }
+
+      @Override
+      public void finish() {}
+    };
+  }
 }
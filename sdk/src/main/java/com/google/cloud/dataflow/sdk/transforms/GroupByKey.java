@@ -16,7 +16,7 @@
 
 package com.google.cloud.dataflow.sdk.transforms;
 
-import static com.google.cloud.dataflow.sdk.util.CoderUtils.encodeToByteArray;
+import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.SUM;
 
 import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.coders.Coder.NonDeterministicException;
@@ -29,21 +29,21 @@ import com.google.cloud.dataflow.sdk.transforms.windowing.GlobalWindows;
 import com.google.cloud.dataflow.sdk.transforms.windowing.InvalidWindows;
 import com.google.cloud.dataflow.sdk.transforms.windowing.NonMergingWindowFn;
 import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
+import com.google.cloud.dataflow.sdk.util.ExternalGrouper;
 import com.google.cloud.dataflow.sdk.util.GroupAlsoByWindowsDoFn;
 import com.google.cloud.dataflow.sdk.util.ReifyTimestampAndWindowsDoFn;
 import com.google.cloud.dataflow.sdk.util.WindowedValue;
 import com.google.cloud.dataflow.sdk.util.WindowedValue.FullWindowedValueCoder;
 import com.google.cloud.dataflow.sdk.util.WindowedValue.WindowedValueCoder;
+import com.google.cloud.dataflow.sdk.util.common.Counter;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * {@code GroupByKey<K, V>} takes a {@code PCollection<KV<K, V>>},
@@ -395,48 +395,61 @@ public class GroupByKey<K, V>
     List<ValueWithMetadata<KV<K, V>>> inputElems =
         context.getPCollectionValuesWithMetadata(input);
 
-    Coder<K> keyCoder = transform.getKeyCoder();
-
-    Map<GroupingKey<K>, List<V>> groupingMap = new HashMap<>();
-
-    for (ValueWithMetadata<KV<K, V>> elem : inputElems) {
-      K key = elem.getValue().getKey();
-      V value = elem.getValue().getValue();
-      byte[] encodedKey;
-      try {
-        encodedKey = encodeToByteArray(keyCoder, key);
-      } catch (CoderException exn) {
-        // TODO: Put in better element printing:
-        // truncate if too long.
-        throw new IllegalArgumentException(
-            "unable to encode key " + key + " of input to " + transform +
-            " using " + keyCoder,
-            exn);
+    KvCoder<K, V> inputCoder = transform.getInputKvCoder();
+
+    ExternalGrouper<K, V> grouper = new ExternalGrouper<>(
+        inputCoder.getKeyCoder(), inputCoder.getValueCoder(),
+        context.getPipelineOptions().getDirectGroupByKeyMemoryBytes());
+    List<KV<K, Iterable<V>>> groups;
+    try {
+      for (ValueWithMetadata<KV<K, V>> elem : inputElems) {
+        try {
+          grouper.add(elem.getValue().getKey(), elem.getValue().getValue());
+        } catch (CoderException exn) {
+          // TODO: Put in better element printing:
+          // truncate if too long.
+          throw new IllegalArgumentException(
+              "unable to encode " + elem.getValue() + " of input to " + transform +
+              " using " + inputCoder,
+              exn);
+        }
       }
-      GroupingKey<K> groupingKey = new GroupingKey<>(key, encodedKey);
-      List<V> values = groupingMap.get(groupingKey);
-      if (values == null) {
-        values = new ArrayList<V>();
-        groupingMap.put(groupingKey, values);
-      }
-      values.add(value);
+      groups = grouper.group();
+    } catch (IOException exn) {
+      throw new RuntimeException("unable to spill the input of " + transform + " to disk", exn);
     }
 
+    String stepName = context.getStepName(transform);
+    context.getAddCounterMutator().addCounter(
+        Counter.longs(stepName + "-GroupByKeySpilledRuns", SUM))
+        .addValue((long) grouper.getSpilledRuns());
+    context.getAddCounterMutator().addCounter(
+        Counter.longs(stepName + "-GroupByKeySpilledBytes", SUM))
+        .addValue(grouper.getSpilledBytes());
+
     List<ValueWithMetadata<KV<K, Iterable<V>>>> outputElems =
         new ArrayList<>();
-    for (Map.Entry<GroupingKey<K>, List<V>> entry : groupingMap.entrySet()) {
-      GroupingKey<K> groupingKey = entry.getKey();
-      K key = groupingKey.getKey();
-      List<V> values = entry.getValue();
-      values = context.randomizeIfUnordered(
-          transform.sortsValues(), values, true /* inPlaceAllowed */);
+    for (KV<K, Iterable<V>> group : groups) {
+      K key = group.getKey();
+      Iterable<V> values = group.getValue();
+      if (values instanceof List) {
+        values = context.randomizeIfUnordered(
+            transform.sortsValues(), (List<V>) values, true /* inPlaceAllowed */);
+      }
       outputElems.add(ValueWithMetadata
                       .of(WindowedValue.valueInEmptyWindows(KV.<K, Iterable<V>>of(key, values)))
                       .withKey(key));
     }
 
-    context.setPCollectionValuesWithMetadata(transform.getOutput(),
-                                             outputElems);
+    if (grouper.getSpilledRuns() == 0) {
+      context.setPCollectionValuesWithMetadata(transform.getOutput(),
+                                               outputElems);
+    } else {
+      // The spilled values were encoded and decoded already, and checking
+      // them again would read every group into memory.
+      context.setDecodedPCollectionValuesWithMetadata(transform.getOutput(),
+                                                      outputElems);
+    }
   }
 
   public PCollection<KV<K, Iterable<V>>> applyHelper(
@@ -492,29 +505,4 @@ public class GroupByKey<K, V>
           .apply(new GroupAlsoByWindow<K, V>(windowFn));
     }
   }
-
-  private static class GroupingKey<K> {
-    private K key;
-    private byte[] encodedKey;
-
-    public GroupingKey(K key, byte[] encodedKey) {
-      this.key = key;
-      this.encodedKey = encodedKey;
-    }
-
-    public K getKey() { return key; }
-
-    @Override
-    public boolean equals(Object o) {
-      if (o instanceof GroupingKey) {
-        GroupingKey<?> that = (GroupingKey<?>) o;
-        return Arrays.equals(this.encodedKey, that.encodedKey);
-      } else {
-        return false;
-      }
-    }
-
-    @Override
-    public int hashCode() { return Arrays.hashCode(encodedKey); }
-  }
 }
@@ -18,11 +18,14 @@ package com.google.cloud.dataflow.sdk.transforms;
 
 import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.runners.DirectPipelineRunner;
+import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
+import com.google.cloud.dataflow.sdk.util.BatchModeExecutionContext;
 import com.google.cloud.dataflow.sdk.util.DirectModeExecutionContext;
 import com.google.cloud.dataflow.sdk.util.DoFnRunner;
 import com.google.cloud.dataflow.sdk.util.PTuple;
 import com.google.cloud.dataflow.sdk.util.StringUtils;
 import com.google.cloud.dataflow.sdk.util.WindowedValue;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 import com.google.cloud.dataflow.sdk.values.PCollectionTuple;
@@ -33,6 +36,7 @@ import com.google.common.collect.ImmutableList;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -943,13 +947,21 @@ public class ParDo {
   static {
     DirectPipelineRunner.registerDefaultTransformEvaluator(
         Bound.class,
-        new DirectPipelineRunner.TransformEvaluator<Bound>() {
+        new DirectPipelineRunner.FusibleTransformEvaluator<Bound>() {
           @Override
           public void evaluate(
               Bound transform,
               DirectPipelineRunner.EvaluationContext context) {
             evaluateSingleHelper(transform, context);
           }
+
+          @Override
+          public DirectPipelineRunner.ElementProcessor<?> createProcessor(
+              Bound transform,
+              DirectPipelineRunner.EvaluationContext context,
+              DirectPipelineRunner.FusedOutputs outputs) {
+            return createSingleProcessorHelper(transform, context, outputs);
+          }
         });
   }
 
@@ -958,17 +970,31 @@ public class ParDo {
       DirectPipelineRunner.EvaluationContext context) {
     TupleTag<O> mainOutputTag = new TupleTag<>("out");
 
-    DirectModeExecutionContext executionContext = new DirectModeExecutionContext();
-
-    DoFnRunner<I, O, List> fnRunner =
+    List<DirectModeExecutionContext> executionContexts =
         evaluateHelper(transform.fn, context.getStepName(transform),
             transform.getInput(), transform.sideInputs,
             mainOutputTag, new ArrayList<TupleTag<?>>(),
-            context, executionContext);
+            context);
 
-    context.setPCollectionValuesWithMetadata(
-        transform.getOutput(),
-        executionContext.getOutput(mainOutputTag));
+    List<DirectPipelineRunner.ValueWithMetadata<O>> output = new ArrayList<>();
+    for (DirectModeExecutionContext executionContext : executionContexts) {
+      output.addAll(executionContext.getOutput(mainOutputTag));
+    }
+    context.setPCollectionValuesWithMetadata(transform.getOutput(), output);
+  }
+
+  private static <I, O> DirectPipelineRunner.ElementProcessor<I> createSingleProcessorHelper(
+      Bound<I, O> transform,
+      DirectPipelineRunner.EvaluationContext context,
+      DirectPipelineRunner.FusedOutputs outputs) {
+    TupleTag<O> mainOutputTag = new TupleTag<>("out");
+    Map<TupleTag<?>, DirectPipelineRunner.ElementReceiver<?>> receivers = new HashMap<>();
+    receivers.put(mainOutputTag, outputs.getReceiver(transform.getOutput()));
+
+    return createProcessorHelper(transform.fn, context.getStepName(transform),
+        transform.getInput(), transform.sideInputs,
+        mainOutputTag, new ArrayList<TupleTag<?>>(),
+        receivers, context);
   }
 
   /////////////////////////////////////////////////////////////////////////////
@@ -976,13 +1002,21 @@ public class ParDo {
   static {
     DirectPipelineRunner.registerDefaultTransformEvaluator(
         BoundMulti.class,
-        new DirectPipelineRunner.TransformEvaluator<BoundMulti>() {
+        new DirectPipelineRunner.FusibleTransformEvaluator<BoundMulti>() {
           @Override
           public void evaluate(
               BoundMulti transform,
               DirectPipelineRunner.EvaluationContext context) {
             evaluateMultiHelper(transform, context);
           }
+
+          @Override
+          public DirectPipelineRunner.ElementProcessor<?> createProcessor(
+              BoundMulti transform,
+              DirectPipelineRunner.EvaluationContext context,
+              DirectPipelineRunner.FusedOutputs outputs) {
+            return createMultiProcessorHelper(transform, context, outputs);
+          }
         });
   }
 
@@ -990,13 +1024,11 @@ public class ParDo {
       BoundMulti<I, O> transform,
       DirectPipelineRunner.EvaluationContext context) {
 
-    DirectModeExecutionContext executionContext = new DirectModeExecutionContext();
-
-    DoFnRunner<I, O, List> fnRunner =
+    List<DirectModeExecutionContext> executionContexts =
         evaluateHelper(transform.fn, context.getStepName(transform),
                        transform.getInput(), transform.sideInputs,
                        transform.mainOutputTag, transform.sideOutputTags.getAll(),
-                       context, executionContext);
+                       context);
 
     for (Map.Entry<TupleTag<?>, PCollection<?>> entry
         : transform.getOutput().getAll().entrySet()) {
@@ -1004,63 +1036,186 @@ public class ParDo {
       @SuppressWarnings("unchecked")
       PCollection<Object> pc = (PCollection<Object>) entry.getValue();
 
-      context.setPCollectionValuesWithMetadata(
-          pc,
-          (tag == transform.mainOutputTag
-              ? executionContext.getOutput(tag)
-              : executionContext.getSideOutput(tag)));
+      List<DirectPipelineRunner.ValueWithMetadata<Object>> output = new ArrayList<>();
+      for (DirectModeExecutionContext executionContext : executionContexts) {
+        output.addAll(tag == transform.mainOutputTag
+            ? executionContext.getOutput(tag)
+            : executionContext.getSideOutput(tag));
+      }
+      context.setPCollectionValuesWithMetadata(pc, output);
     }
   }
 
-  private static <I, O> DoFnRunner<I, O, List> evaluateHelper(
-      DoFn<I, O> doFn,
-      String name,
+  private static <I, O> DirectPipelineRunner.ElementProcessor<I> createMultiProcessorHelper(
+      BoundMulti<I, O> transform,
+      DirectPipelineRunner.EvaluationContext context,
+      DirectPipelineRunner.FusedOutputs outputs) {
+    Map<TupleTag<?>, DirectPipelineRunner.ElementReceiver<?>> receivers = new HashMap<>();
+    for (Map.Entry<TupleTag<?>, PCollection<?>> entry
+        : transform.getOutput().getAll().entrySet()) {
+      receivers.put(entry.getKey(), outputs.getReceiver(entry.getValue()));
+    }
+
+    return createProcessorHelper(transform.fn, context.getStepName(transform),
+        transform.getInput(), transform.sideInputs,
+        transform.mainOutputTag, transform.sideOutputTags.getAll(),
+        receivers, context);
+  }
+
+  /**
+   * Evaluates the DoFn over the input, one bundle at a time or several
+   * concurrently, and returns the execution context of each bundle, which
+   * holds its outputs, in bundle order.
+   */
+  private static <I, O> List<DirectModeExecutionContext> evaluateHelper(
+      final DoFn<I, O> doFn,
+      final String name,
+      PCollection<? extends I> input,
+      List<PCollectionView<?, ?>> sideInputs,
+      final TupleTag<O> mainOutputTag,
+      final List<TupleTag<?>> sideOutputTags,
+      final DirectPipelineRunner.EvaluationContext context) {
+    final PTuple sideInputValues = getSideInputValues(sideInputs, context);
+    final WindowFn<?, ?> windowFn = input.getWindowFn();
+
+    // Elements with the same key must be evaluated in the same bundle
+    // for their keyed state to be shared.
+    boolean partitionByKey = doFn instanceof DoFn.RequiresKeyedState;
+
+    return context.evaluateBundles(
+        (List) context.getPCollectionValuesWithMetadata(input),
+        partitionByKey,
+        new DirectPipelineRunner.BundleEvaluator<I, DirectModeExecutionContext>() {
+          @Override
+          public DirectModeExecutionContext evaluate(
+              List<DirectPipelineRunner.ValueWithMetadata<I>> bundle,
+              CounterSet.AddCounterMutator addCounterMutator) {
+            DirectModeExecutionContext executionContext = new DirectModeExecutionContext();
+            DoFn<I, O> fn = context.ensureSerializable(doFn);
+
+            DoFnRunner<I, O, List> fnRunner =
+                DoFnRunner.createWithListOutputs(
+                    context.getPipelineOptions(),
+                    fn,
+                    sideInputValues,
+                    mainOutputTag,
+                    sideOutputTags,
+                    executionContext.getStepContext(name),
+                    addCounterMutator,
+                    windowFn);
+
+            fnRunner.startBundle();
+
+            for (DirectPipelineRunner.ValueWithMetadata<I> elem : bundle) {
+              setKey(doFn, name, elem, executionContext);
+              fnRunner.processElement(elem.getWindowedValue());
+            }
+
+            fnRunner.finishBundle();
+
+            return executionContext;
+          }
+        });
+  }
+
+  /**
+   * Creates a processor that evaluates the DoFn over the input pushed to
+   * it one element at a time, as a single bundle, and pushes its outputs
+   * to the receivers of their tags.
+   */
+  private static <I, O> DirectPipelineRunner.ElementProcessor<I> createProcessorHelper(
+      final DoFn<I, O> doFn,
+      final String name,
       PCollection<? extends I> input,
       List<PCollectionView<?, ?>> sideInputs,
       TupleTag<O> mainOutputTag,
       List<TupleTag<?>> sideOutputTags,
-      DirectPipelineRunner.EvaluationContext context,
-      DirectModeExecutionContext executionContext) {
-    // TODO: Run multiple shards?
-    DoFn<I, O> fn = context.ensureSerializable(doFn);
-
-    PTuple sideInputValues = PTuple.empty();
-    for (PCollectionView<?, ?> view : sideInputs) {
-      sideInputValues = sideInputValues.and(
-          view.getTagInternal(),
-          context.getPCollectionView(view));
-    }
+      final Map<TupleTag<?>, DirectPipelineRunner.ElementReceiver<?>> receivers,
+      DirectPipelineRunner.EvaluationContext context) {
+    final BatchModeExecutionContext executionContext = new BatchModeExecutionContext();
 
-    DoFnRunner<I, O, List> fnRunner =
-        DoFnRunner.createWithListOutputs(
+    final DoFnRunner<I, O, DirectPipelineRunner.ElementReceiver> fnRunner =
+        DoFnRunner.create(
             context.getPipelineOptions(),
-            fn,
-            sideInputValues,
+            context.ensureSerializable(doFn),
+            getSideInputValues(sideInputs, context),
+            new DoFnRunner.OutputManager<DirectPipelineRunner.ElementReceiver>() {
+              @Override
+              public DirectPipelineRunner.ElementReceiver initialize(TupleTag<?> tag) {
+                DirectPipelineRunner.ElementReceiver receiver = receivers.get(tag);
+                // Outputs to undeclared side output tags are dropped.
+                return receiver != null ? receiver : DISCARDING_RECEIVER;
+              }
+
+              @Override
+              public void output(
+                  DirectPipelineRunner.ElementReceiver receiver, WindowedValue<?> output) {
+                receiver.process(DirectPipelineRunner.ValueWithMetadata.of(output)
+                    .withKey(executionContext.getKey()));
+              }
+            },
             mainOutputTag,
             sideOutputTags,
             executionContext.getStepContext(name),
             context.getAddCounterMutator(),
             input.getWindowFn());
 
-    fnRunner.startBundle();
-
-    for (DirectPipelineRunner.ValueWithMetadata<? extends I> elem
-             : context.getPCollectionValuesWithMetadata(input)) {
-      if (doFn instanceof DoFn.RequiresKeyedState) {
-        // If the DoFn needs keyed state, set the implicit keys to the keys in the input elements.
-        if (!(elem.getValue() instanceof KV)) {
-          throw new IllegalStateException(
-              name + " marked as 'RequiresKeyedState' but input elements were not of type KV.");
-        }
-        executionContext.setKey(((KV) elem.getValue()).getKey());
-      } else {
-        executionContext.setKey(elem.getKey());
+    return new DirectPipelineRunner.ElementProcessor<I>() {
+      @Override
+      public void start() {
+        fnRunner.startBundle();
       }
-      fnRunner.processElement((WindowedValue<I>) elem.getWindowedValue());
-    }
 
-    fnRunner.finishBundle();
+      @Override
+      public void process(DirectPipelineRunner.ValueWithMetadata<I> elem) {
+        setKey(doFn, name, elem, executionContext);
+        fnRunner.processElement(elem.getWindowedValue());
+      }
+
+      @Override
+      public void finish() {
+        fnRunner.finishBundle();
+      }
+    };
+  }
+
+  private static final DirectPipelineRunner.ElementReceiver<Object> DISCARDING_RECEIVER =
+      new DirectPipelineRunner.ElementReceiver<Object>() {
+        @Override
+        public void process(DirectPipelineRunner.ValueWithMetadata<Object> element) {}
+      };
 
-    return fnRunner;
+  private static PTuple getSideInputValues(
+      List<PCollectionView<?, ?>> sideInputs,
+      DirectPipelineRunner.EvaluationContext context) {
+    PTuple sideInputValues = PTuple.empty();
+    for (PCollectionView<?, ?> view : sideInputs) {
+      sideInputValues = sideInputValues.and(
+          view.getTagInternal(),
+          context.getPCollectionView(view));
+    }
+    return sideInputValues;
+  }
+
+  /**
+   * Sets the key of the work the DoFn processes to the implicit key of
+   * the element, or to the key of the element itself if the DoFn needs
+   * keyed state.
+   */
+  private static void setKey(
+      DoFn<?, ?> doFn,
+      String name,
+      DirectPipelineRunner.ValueWithMetadata<?> elem,
+      BatchModeExecutionContext executionContext) {
+    if (doFn instanceof DoFn.RequiresKeyedState) {
+      // If the DoFn needs keyed state, set the implicit keys to the keys in the input elements.
+      if (!(elem.getValue() instanceof KV)) {
+        throw new IllegalStateException(
+            name + " marked as 'RequiresKeyedState' but input elements were not of type KV.");
+      }
+      executionContext.setKey(((KV) elem.getValue()).getKey());
+    } else {
+      executionContext.setKey(elem.getKey());
+    }
   }
 }
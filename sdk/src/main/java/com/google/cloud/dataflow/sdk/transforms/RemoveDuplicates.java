@@ -16,9 +16,22 @@
 
 package com.google.cloud.dataflow.sdk.transforms;
 
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CoderException;
+import com.google.cloud.dataflow.sdk.coders.CoderRegistry;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.VoidCoder;
+import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * {@code RemoveDuplicates<T>} takes a {@code PCollection<T>} and
  * returns a {@code PCollection<T>} that has all the elements of the
@@ -42,6 +55,10 @@ import com.google.cloud.dataflow.sdk.values.PCollection;
  *
  * <p> Does not preserve any order the input PCollection might have had.
  *
+ * <p> Duplicates are also removed within each bundle before the elements
+ * are shuffled, and elements are shuffled without values, so that highly
+ * duplicated inputs shrink before they are grouped.
+ *
  * <p> Example of use:
  * <pre> {@code
  * PCollection<String> words = ...;
@@ -67,24 +84,144 @@ public class RemoveDuplicates<T> extends PTransform<PCollection<T>,
 
   private RemoveDuplicates() { }
 
+  /**
+   * The largest total size of the encoded elements that the pre-shuffle
+   * step remembers within a bundle.  Once exceeded, it forgets them all
+   * and starts over, so that bundles with many distinct elements don't
+   * use unbounded memory.
+   */
+  static final long MAX_BUNDLE_ENCODED_BYTES = 8L << 20;
+
+  /**
+   * The estimated memory used to remember an element, besides its encoding.
+   */
+  private static final long BYTES_PER_REMEMBERED_ELEMENT = 64;
+
   @Override
   public PCollection<T> apply(PCollection<T> in) {
+    Coder<T> coder = in.getCoder();
     return
         in
         .apply(ParDo.named("CreateIndex")
-            .of(new DoFn<T, KV<T, Void>>() {
-              @Override
-              public void processElement(ProcessContext c) {
-                c.output(KV.of(c.element(), (Void) null));
-              }
-            }))
-        .apply(Combine.<T, Void>perKey(
-            new SerializableFunction<Iterable<Void>, Void>() {
-              @Override
-              public Void apply(Iterable<Void> iter) {
-                return null; // ignore input
-              }
-            }))
+            .of(new RemoveDuplicatesWithinBundleFn<>(coder)))
+        .setCoder(KvCoder.of(coder, VoidCoder.of()))
+        .apply(Combine.<T, Void, Void>perKey(new DiscardValuesFn()))
         .apply(Keys.<T>create());
   }
+
+  /**
+   * A {@code DoFn} that outputs each element as a key with no value,
+   * skipping the elements that it has already output in the same windows
+   * within the current bundle.
+   *
+   * <p> Like the rest of {@code RemoveDuplicates}, it compares elements by
+   * their encodings.  The skipped elements are counted by the
+   * {@code duplicatesRemovedBeforeShuffle} aggregator.
+   */
+  static class RemoveDuplicatesWithinBundleFn<T> extends DoFn<T, KV<T, Void>> {
+    private final Coder<T> coder;
+
+    private transient Set<ElementInWindows> seen;
+    private transient long seenBytes;
+    private transient Aggregator<Long> duplicatesRemoved;
+
+    RemoveDuplicatesWithinBundleFn(Coder<T> coder) {
+      this.coder = coder;
+    }
+
+    @Override
+    public void startBundle(Context c) {
+      seen = new HashSet<>();
+      seenBytes = 0;
+      duplicatesRemoved =
+          c.createAggregator("duplicatesRemovedBeforeShuffle", new Sum.SumLongFn());
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws CoderException {
+      byte[] encoded = CoderUtils.encodeToByteArray(coder, c.element());
+      if (!seen.add(new ElementInWindows(encoded, c.windows()))) {
+        duplicatesRemoved.addValue(1L);
+        return;
+      }
+      seenBytes += encoded.length + BYTES_PER_REMEMBERED_ELEMENT;
+      if (seenBytes > MAX_BUNDLE_ENCODED_BYTES) {
+        seen.clear();
+        seenBytes = 0;
+      }
+      c.output(KV.of(c.element(), (Void) null));
+    }
+
+    @Override
+    public void finishBundle(Context c) {
+      seen = null;
+    }
+  }
+
+  /**
+   * An encoded element, together with the windows it is in.
+   */
+  private static class ElementInWindows {
+    private final byte[] encoded;
+    private final Collection<? extends BoundedWindow> windows;
+    private final int hashCode;
+
+    ElementInWindows(byte[] encoded, Collection<? extends BoundedWindow> windows) {
+      this.encoded = encoded;
+      this.windows = windows;
+      this.hashCode = 31 * Arrays.hashCode(encoded) + windows.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof ElementInWindows)) {
+        return false;
+      }
+      ElementInWindows that = (ElementInWindows) other;
+      return hashCode == that.hashCode
+          && Arrays.equals(encoded, that.encoded)
+          && windows.equals(that.windows);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  /**
+   * A {@code CombineFn} that discards its input, so that combining the
+   * keys of each group only keeps the key, without accumulating anything.
+   */
+  static class DiscardValuesFn extends CombineFn<Void, Void, Void> {
+    @Override
+    public Void createAccumulator() {
+      return null;
+    }
+
+    @Override
+    public void addInput(Void accumulator, Void input) {
+      // Nothing to accumulate.
+    }
+
+    @Override
+    public Void mergeAccumulators(Iterable<Void> accumulators) {
+      return null;
+    }
+
+    @Override
+    public Void extractOutput(Void accumulator) {
+      return null;
+    }
+
+    @Override
+    public Coder<Void> getAccumulatorCoder(CoderRegistry registry, Coder<Void> inputCoder) {
+      return VoidCoder.of();
+    }
+
+    @Override
+    public Coder<Void> getDefaultOutputCoder(CoderRegistry registry, Coder<Void> inputCoder) {
+      return VoidCoder.of();
+    }
+  }
 }
@@ -17,8 +17,12 @@
 package com.google.cloud.dataflow.sdk.transforms;
 
 import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.Coder.NonDeterministicException;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
 import com.google.cloud.dataflow.sdk.runners.DirectPipelineRunner;
 import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.util.IndexedKvFile;
 import com.google.cloud.dataflow.sdk.util.WindowedValue;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
@@ -29,7 +33,9 @@ import com.google.common.base.Function;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -136,7 +142,29 @@ public class View {
       extends PTransform<PCollection<KV<K, V>>, PCollectionView<Map<K, Iterable<V>>, ?>> {
     private static final long serialVersionUID = 0;
 
-    private AsMultimap() { }
+    private final boolean indexed;
+
+    private AsMultimap() {
+      this(false);
+    }
+
+    private AsMultimap(boolean indexed) {
+      this.indexed = indexed;
+    }
+
+    /**
+     * Returns a PTransform creating a view whose map is backed by an
+     * indexed file of encoded entries rather than held in memory.
+     *
+     * <p> Looking up a key in the map reads and decodes only the entries of
+     * that key, so the side input does not need to fit into memory.
+     * Iterating over the map reads all of its entries into memory.
+     * Requires the input to use a {@code KvCoder} with a deterministic
+     * key {@code Coder}.
+     */
+    public AsMultimap<K, V> indexed() {
+      return new AsMultimap<K, V>(true);
+    }
 
     /**
      * Returns a PTransform creating a view as a {@code Map<K, V>} rather than a
@@ -144,7 +172,7 @@ public class View {
      * one value per key.
      */
     public AsSingletonMap<K, V, V> withSingletonValues() {
-      return new AsSingletonMap<K, V, V>(null);
+      return new AsSingletonMap<K, V, V>(null, indexed);
     }
 
     /**
@@ -153,11 +181,17 @@ public class View {
      * values associated with each key.
      */
     public <VO> AsSingletonMap<K, V, VO> withCombiner(CombineFn<V, ?, VO> combineFn) {
-      return new AsSingletonMap<K, V, VO>(combineFn);
+      return new AsSingletonMap<K, V, VO>(combineFn, indexed);
     }
 
     @Override
     public PCollectionView<Map<K, Iterable<V>>, ?> apply(PCollection<KV<K, V>> input) {
+      if (indexed) {
+        return input.apply(
+          new CreatePCollectionView<KV<K, V>, Map<K, Iterable<V>>, Object>(
+            new IndexedMultimapPCollectionView<K, V>(
+                input.getPipeline(), getIndexedKvCoder(input))));
+      }
       return input.apply(
         new CreatePCollectionView<KV<K, V>, Map<K, Iterable<V>>, Object>(
           new MultimapPCollectionView<K, V>(input.getPipeline())));
@@ -176,9 +210,22 @@ public class View {
     private static final long serialVersionUID = 0;
 
     private CombineFn<VI, ?, VO> combineFn;
+    private final boolean indexed;
 
-    private AsSingletonMap(CombineFn<VI, ?, VO> combineFn) {
+    private AsSingletonMap(CombineFn<VI, ?, VO> combineFn, boolean indexed) {
       this.combineFn = combineFn;
+      this.indexed = indexed;
+    }
+
+    /**
+     * Returns a PTransform creating a view whose map is backed by an
+     * indexed file of encoded entries rather than held in memory.
+     *
+     * <p> See {@link AsMultimap#indexed}.  Duplicate values for a key are
+     * only detected when the key is looked up.
+     */
+    public AsSingletonMap<K, VI, VO> indexed() {
+      return new AsSingletonMap<K, VI, VO>(combineFn, true);
     }
 
     @Override
@@ -189,6 +236,12 @@ public class View {
         combineFn == null
         ? (PCollection) input
         : input.apply(Combine.perKey(combineFn.<K>asKeyedFn()));
+      if (indexed) {
+        return combined.apply(
+          new CreatePCollectionView<KV<K, VO>, Map<K, VO>, Object>(
+            new IndexedMapPCollectionView<K, VO>(
+                input.getPipeline(), getIndexedKvCoder(combined))));
+      }
       return combined.apply(
         new CreatePCollectionView<KV<K, VO>, Map<K, VO>, Object>(
           new MapPCollectionView<K, VO>(input.getPipeline())));
@@ -305,8 +358,9 @@ public class View {
         KV<K, V> kv = (KV<K, V>) elem.getValue();
         multimap.put(kv.getKey(), kv.getValue());
       }
-      // Don't want to promise in-memory or cheap Collection.size().
-      return (Map) multimap.asMap();
+      // Don't want to promise in-memory or cheap Collection.size().  The map
+      // may be shared by concurrent DoFn instances, so it can't be modified.
+      return (Map) Multimaps.unmodifiableMultimap(multimap).asMap();
     }
   }
 
@@ -332,6 +386,81 @@ public class View {
     }
   }
 
+  /**
+   * Returns the {@code KvCoder} of the input of an indexed map view.
+   */
+  @SuppressWarnings("unchecked")
+  private static <K, V> KvCoder<K, V> getIndexedKvCoder(PCollection<KV<K, V>> input) {
+    Coder<KV<K, V>> inputCoder = input.getCoder();
+    if (!(inputCoder instanceof KvCoder)) {
+      throw new IllegalStateException(
+          "An indexed map view requires its input to use KvCoder");
+    }
+    KvCoder<K, V> kvCoder = (KvCoder<K, V>) inputCoder;
+    try {
+      kvCoder.getKeyCoder().verifyDeterministic();
+    } catch (NonDeterministicException e) {
+      throw new IllegalStateException(
+          "the keyCoder of an indexed map view must be deterministic", e);
+    }
+    return kvCoder;
+  }
+
+  /**
+   * Writes the contents of an indexed map view to a temporary indexed file.
+   */
+  private static <K, V> IndexedKvFile<K, V> writeIndexedFile(
+      Iterable<WindowedValue<?>> contents, KvCoder<K, V> kvCoder) {
+    Iterable<KV<K, V>> entries = Iterables.transform(contents,
+        new Function<WindowedValue<?>, KV<K, V>>() {
+          @SuppressWarnings("unchecked")
+          @Override
+          public KV<K, V> apply(WindowedValue<?> input) {
+            return (KV<K, V>) input.getValue();
+          }
+        });
+    try {
+      return IndexedKvFile.writeTemporary(
+          entries, kvCoder.getKeyCoder(), kvCoder.getValueCoder());
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to write indexed side input", e);
+    }
+  }
+
+  private static class IndexedMultimapPCollectionView<K, V>
+      extends PCollectionViewBase<Map<K, Iterable<V>>, Object> {
+    private static final long serialVersionUID = 0;
+
+    private final KvCoder<K, V> kvCoder;
+
+    public IndexedMultimapPCollectionView(Pipeline pipeline, KvCoder<K, V> kvCoder) {
+      setPipelineInternal(pipeline);
+      this.kvCoder = kvCoder;
+    }
+
+    @Override
+    public Map<K, Iterable<V>> fromIterableInternal(Iterable<WindowedValue<?>> contents) {
+      return writeIndexedFile(contents, kvCoder).asMultimap();
+    }
+  }
+
+  private static class IndexedMapPCollectionView<K, V>
+      extends PCollectionViewBase<Map<K, V>, Object> {
+    private static final long serialVersionUID = 0;
+
+    private final KvCoder<K, V> kvCoder;
+
+    public IndexedMapPCollectionView(Pipeline pipeline, KvCoder<K, V> kvCoder) {
+      setPipelineInternal(pipeline);
+      this.kvCoder = kvCoder;
+    }
+
+    @Override
+    public Map<K, V> fromIterableInternal(Iterable<WindowedValue<?>> contents) {
+      return writeIndexedFile(contents, kvCoder).asMap();
+    }
+  }
+
   private abstract static class PCollectionViewBase<T, WT>
       extends PValueBase
       implements PCollectionView<T, WT> {
@@ -25,6 +25,7 @@ import com.google.cloud.dataflow.sdk.coders.IterableCoder;
 import com.google.cloud.dataflow.sdk.coders.MapCoder;
 import com.google.cloud.dataflow.sdk.coders.StandardCoder;
 import com.google.cloud.dataflow.sdk.util.CloudObject;
+import com.google.cloud.dataflow.sdk.util.FileChannelInputStream;
 import com.google.cloud.dataflow.sdk.util.PropertyNames;
 import com.google.cloud.dataflow.sdk.util.common.Reiterator;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
@@ -37,13 +38,28 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
 
 /**
  * A row result of a CoGroupByKey.  This is a tuple of Iterables produced for
@@ -59,7 +75,7 @@ public class CoGbkResult {
 
   private final CoGbkResultSchema schema;
 
-  private static final int DEFAULT_IN_MEMORY_ELEMENT_COUNT = 10_000;
+  static final int DEFAULT_IN_MEMORY_ELEMENT_COUNT = 10_000;
 
   private static final Logger LOG = LoggerFactory.getLogger(CoGbkResult.class);
 
@@ -77,11 +93,28 @@ public class CoGbkResult {
     this(schema, taggedValues, DEFAULT_IN_MEMORY_ELEMENT_COUNT);
   }
 
-  @SuppressWarnings("unchecked")
   public CoGbkResult(
       CoGbkResultSchema schema,
       Iterable<RawUnionValue> taggedValues,
       int inMemoryElementCount) {
+    this(schema, taggedValues, inMemoryElementCount, null);
+  }
+
+  /**
+   * Creates a CoGbkResult which, if {@code spillCoder} is not null, writes
+   * the values beyond the first {@code inMemoryElementCount} to a temporary
+   * file per tag, encoded with the coder of the tag in {@code spillCoder},
+   * instead of re-iterating all of them for every tag.
+   */
+  @SuppressWarnings("unchecked")
+  CoGbkResult(
+      CoGbkResultSchema schema,
+      Iterable<RawUnionValue> taggedValues,
+      int inMemoryElementCount,
+      @Nullable UnionCoder spillCoder) {
+    // Results are created once per key, which reclaims the files of earlier
+    // results even when no other tail is spilled.
+    SpilledTail.cleanUpUnreachable();
     this.schema = schema;
     valueMap = new ArrayList<>();
     for (int unionTag = 0; unionTag < schema.size(); unionTag++) {
@@ -109,7 +142,26 @@ public class CoGbkResult {
       valueList.add(value.getValue());
     }
 
-    if (taggedIter.hasNext()) {
+    if (taggedIter.hasNext() && spillCoder != null) {
+      // There were more elements than we can afford to keep in memory, so
+      // the remaining items are demultiplexed into a file per tag the first
+      // time any tag is read, and appended to the lists computed earlier.
+      LOG.info("CoGbkResult has more than " + inMemoryElementCount + " elements, "
+               + "spilling the remaining elements to disk.");
+      final SpilledTail spilledTail = new SpilledTail(schema.size(), spillCoder, taggedIter);
+      for (int unionTag = 0; unionTag < schema.size(); unionTag++) {
+        final int unionTag0 = unionTag;
+        final Iterable<?> head = valueMap.get(unionTag);
+        valueMap.set(
+            unionTag,
+            new Iterable() {
+              @Override
+              public Iterator iterator() {
+                return Iterators.concat(head.iterator(), spilledTail.iterator(unionTag0));
+              }
+            });
+      }
+    } else if (taggedIter.hasNext()) {
       // If we get here, there were more elements than we can afford to
       // keep in memory, so we copy the re-iterable of remaining items
       // and append filtered views to each of the sorted lists computed earlier.
@@ -383,6 +435,197 @@ public class CoGbkResult {
     return value;
   }
 
+  /**
+   * The values of a CoGbkResult beyond those kept in memory, written to a
+   * temporary file per tag so that the values of each tag can be read
+   * sequentially, without reading the values of the other tags.
+   *
+   * <p> Each file is read through a single channel, which stays open while
+   * the CoGbkResult is reachable, so the file is deleted as soon as it has
+   * been written, where the file system allows that.  The channels are
+   * closed, and the remaining files deleted, once the SpilledTail becomes
+   * unreachable, the next time a CoGbkResult is created or a spilled tail
+   * is read.
+   */
+  private static class SpilledTail {
+    // The files of every spilled tail that has not been cleaned up, which
+    // keeps their references alive until they are enqueued.
+    private static final Set<SpilledFiles> SPILLED =
+        Collections.newSetFromMap(new ConcurrentHashMap<SpilledFiles, Boolean>());
+
+    // The queue of references to spilled tails which have been collected by
+    // the garbage collector.  This queue should only be used with references
+    // of class SpilledFiles.
+    private static final ReferenceQueue<SpilledTail> UNREACHABLE = new ReferenceQueue<>();
+
+    private final UnionCoder unionCoder;
+    private final File[] files;
+    private final FileChannel[] channels;
+    private final int[] counts;
+    // The values still to be spilled, or null once they have been.
+    private Iterator<RawUnionValue> tail;
+
+    private SpilledTail(int numTags, UnionCoder unionCoder, Iterator<RawUnionValue> tail) {
+      this.unionCoder = unionCoder;
+      this.files = new File[numTags];
+      this.channels = new FileChannel[numTags];
+      this.counts = new int[numTags];
+      this.tail = tail;
+    }
+
+    /**
+     * Returns an iterator over the spilled values of the given tag, spilling
+     * the tail first if it has not been spilled yet.
+     */
+    private synchronized <V> Iterator<V> iterator(int unionTag) {
+      cleanUpUnreachable();
+      try {
+        if (tail != null) {
+          spill();
+        }
+        if (counts[unionTag] == 0) {
+          return Collections.emptyIterator();
+        }
+        @SuppressWarnings("unchecked")
+        Coder<V> coder = (Coder<V>) unionCoder.getComponents().get(unionTag);
+        return new SpilledValueIterator<>(coder, counts[unionTag],
+            new BufferedInputStream(new FileChannelInputStream(channels[unionTag], 0)));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void spill() throws IOException {
+      SpilledFiles spilledFiles = new SpilledFiles(this, files, channels);
+      OutputStream[] outputs = new OutputStream[files.length];
+      try {
+        while (tail.hasNext()) {
+          RawUnionValue value = tail.next();
+          int unionTag = value.getUnionTag();
+          if (files.length <= unionTag) {
+            throw new IllegalStateException("union tag " + unionTag +
+                " has no corresponding tuple tag in the result schema");
+          }
+          if (outputs[unionTag] == null) {
+            files[unionTag] = File.createTempFile("cogbk-", ".tag" + unionTag);
+            channels[unionTag] = FileChannel.open(files[unionTag].toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Not closed, since that would close the channel.
+            outputs[unionTag] = new BufferedOutputStream(
+                Channels.newOutputStream(channels[unionTag]));
+          }
+          ((Coder<Object>) unionCoder.getComponents().get(unionTag))
+              .encode(value.getValue(), outputs[unionTag], Coder.Context.NESTED);
+          counts[unionTag]++;
+        }
+        for (OutputStream output : outputs) {
+          if (output != null) {
+            output.flush();
+          }
+        }
+        tail = null;
+      } catch (IOException | RuntimeException e) {
+        spilledFiles.cleanUp();
+        throw e;
+      }
+      spilledFiles.delete();
+    }
+
+    /**
+     * Cleans up the files of the spilled tails which have been collected by
+     * the garbage collector.
+     */
+    private static void cleanUpUnreachable() {
+      for (Reference<?> reference = UNREACHABLE.poll();
+           reference != null;
+           reference = UNREACHABLE.poll()) {
+        ((SpilledFiles) reference).cleanUp();
+      }
+    }
+  }
+
+  /**
+   * The files and channels of a {@link SpilledTail}, which are closed and
+   * deleted once it becomes unreachable.
+   */
+  private static class SpilledFiles extends PhantomReference<SpilledTail> {
+    private final File[] files;
+    private final FileChannel[] channels;
+
+    private SpilledFiles(SpilledTail tail, File[] files, FileChannel[] channels) {
+      super(tail, SpilledTail.UNREACHABLE);
+      this.files = files;
+      this.channels = channels;
+      SpilledTail.SPILLED.add(this);
+    }
+
+    private void delete() {
+      for (File file : files) {
+        if (file != null && !file.delete() && file.exists()) {
+          LOG.debug("Failed to delete open spilled CoGbkResult file {}", file);
+        }
+      }
+    }
+
+    private void cleanUp() {
+      SpilledTail.SPILLED.remove(this);
+      for (FileChannel channel : channels) {
+        if (channel != null) {
+          try {
+            channel.close();
+          } catch (IOException e) {
+            LOG.warn("Failed to close spilled CoGbkResult file", e);
+          }
+        }
+      }
+      for (File file : files) {
+        if (file != null && !file.delete() && file.exists()) {
+          LOG.warn("Failed to delete spilled CoGbkResult file {}", file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Decodes a given number of values from a spilled file.
+   */
+  private static class SpilledValueIterator<V> implements Iterator<V> {
+    private final Coder<V> coder;
+    private final InputStream input;
+    private int remaining;
+
+    private SpilledValueIterator(Coder<V> coder, int count, InputStream input) {
+      this.coder = coder;
+      this.remaining = count;
+      this.input = input;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    @Override
+    public V next() {
+      if (remaining == 0) {
+        throw new NoSuchElementException();
+      }
+      try {
+        V value = coder.decode(input, Coder.Context.NESTED);
+        remaining--;
+        return value;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   /**
    * Lazily filters and recasts an {@code Iterator<RawUnionValue>} into an
    * {@code Iterator<V>}, where V is the type of the raw union value's contents.
@@ -32,6 +32,8 @@ import com.google.cloud.dataflow.sdk.values.PCollectionList;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * A transform that performs a CoGroupByKey on a tuple of tables.  A
  * CoGroupByKey groups results from all tables by like keys into CoGbkResults,
@@ -79,10 +81,31 @@ public class CoGroupByKey<K> extends
    * {@code PCollection}s
    */
   public static <K> CoGroupByKey<K> create() {
-    return new CoGroupByKey<>();
+    return new CoGroupByKey<>(false);
+  }
+
+  /**
+   * Returns a {@code CoGroupByKey<K>} {@code PTransform} like this one, but
+   * whose {@link CoGbkResult}s write the values of keys with too many values
+   * to keep in memory to a temporary local file per input table.
+   *
+   * <p> By default, the values beyond those kept in memory are read again
+   * from the grouped input for every table that is accessed, which makes
+   * accessing all tables of a key with many values take time proportional
+   * to the number of tables times the number of values.  With spilling,
+   * these values are read once and demultiplexed by table, so that each
+   * table's values are read sequentially from its own file, at the cost of
+   * encoding them once more and of local disk space.
+   */
+  public CoGroupByKey<K> withSpilling() {
+    return new CoGroupByKey<>(true);
   }
 
-  private CoGroupByKey() { }
+  private final boolean spill;
+
+  private CoGroupByKey(boolean spill) {
+    this.spill = spill;
+  }
 
   @Override
   public PCollection<KV<K, CoGbkResult>> apply(
@@ -126,7 +149,7 @@ public class CoGroupByKey<K> extends
 
     CoGbkResultSchema tupleTags = input.getCoGbkResultSchema();
     PCollection<KV<K, CoGbkResult>> result = groupedTable.apply(
-        ParDo.of(new ConstructCoGbkResultFn<K>(tupleTags))
+        ParDo.of(new ConstructCoGbkResultFn<K>(tupleTags, spill ? unionCoder : null))
           .named("ConstructCoGbkResultFn"));
     result.setCoder(KvCoder.of(keyCoder,
         CoGbkResultCoder.of(tupleTags, unionCoder)));
@@ -195,15 +218,18 @@ public class CoGroupByKey<K> extends
                  KV<K, CoGbkResult>> {
 
     private final CoGbkResultSchema schema;
+    @Nullable private final UnionCoder spillCoder;
 
-    public ConstructCoGbkResultFn(CoGbkResultSchema schema) {
+    public ConstructCoGbkResultFn(CoGbkResultSchema schema, @Nullable UnionCoder spillCoder) {
       this.schema = schema;
+      this.spillCoder = spillCoder;
     }
 
     @Override
     public void processElement(ProcessContext c) {
       KV<K, Iterable<RawUnionValue>> e = c.element();
-      c.output(KV.of(e.getKey(), new CoGbkResult(schema, e.getValue())));
+      c.output(KV.of(e.getKey(), new CoGbkResult(
+          schema, e.getValue(), CoGbkResult.DEFAULT_IN_MEMORY_ELEMENT_COUNT, spillCoder)));
     }
   }
 }
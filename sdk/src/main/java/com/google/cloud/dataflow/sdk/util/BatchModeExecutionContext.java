@@ -26,12 +26,27 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 /**
  * {@link ExecutionContext} for use in batch mode.
  */
 public class BatchModeExecutionContext extends ExecutionContext {
   private Object key;
   private Map<Object, Map<String, Instant>> timers = new HashMap<>();
+  @Nullable private final SideInputCache sideInputCache;
+
+  public BatchModeExecutionContext() {
+    this(null);
+  }
+
+  /**
+   * Creates a BatchModeExecutionContext that shares materialized side inputs
+   * through the given worker-wide cache.
+   */
+  public BatchModeExecutionContext(@Nullable SideInputCache sideInputCache) {
+    this.sideInputCache = sideInputCache;
+  }
 
   /**
    * Create a new {@link ExecutionContext.StepContext}.
@@ -57,6 +72,12 @@ public class BatchModeExecutionContext extends ExecutionContext {
     return key;
   }
 
+  @Override
+  @Nullable
+  public SideInputCache getSideInputCache() {
+    return sideInputCache;
+  }
+
   @Override
   public void setTimer(String timer, Instant timestamp) {
     Map<String, Instant> keyTimers = timers.get(getKey());
@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import com.google.cloud.dataflow.sdk.runners.worker.StreamingDataflowWorker;
+import com.google.cloud.dataflow.sdk.runners.worker.windmill.Windmill;
+import com.google.cloud.dataflow.sdk.runners.worker.windmill.WindmillServerStub;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link StateFetcher} that combines the state reads of concurrently
+ * processed work items into batched Windmill GetData requests.
+ *
+ * <p> Each read is queued.  A batching thread waits until reads are queued,
+ * lets further reads accumulate for a short linger time, and then sends all
+ * queued reads, across keys and computations, as one request.  Up to
+ * {@link #MAX_OUTSTANDING_BATCHES} requests are in flight at a time, and
+ * reads keep accumulating for the next batch meanwhile.
+ *
+ * <p> Steps may also describe the state they read for every work item with
+ * a {@link PrefetchSpec}.  That state is then requested as soon as a work
+ * item is dispatched by {@link #prefetch}, so it is usually available by the
+ * time processing needs it.
+ */
+public class BatchingStateFetcher extends StateFetcher {
+  private static final Logger LOG = LoggerFactory.getLogger(BatchingStateFetcher.class);
+
+  /**
+   * The maximum number of GetData requests in flight at a time.
+   */
+  public static final int MAX_OUTSTANDING_BATCHES = 4;
+
+  /**
+   * The maximum number of keys read by a single GetData request.
+   */
+  public static final int MAX_BATCH_KEYS = 500;
+
+  /**
+   * Describes the state a step reads for every work item.
+   */
+  public static class PrefetchSpec {
+    private final List<String> valueTagIds;
+    @Nullable private final String timerTagIdPrefix;
+    private final boolean timerTagsAreLists;
+
+    private PrefetchSpec(
+        List<String> valueTagIds, @Nullable String timerTagIdPrefix, boolean timerTagsAreLists) {
+      this.valueTagIds = valueTagIds;
+      this.timerTagIdPrefix = timerTagIdPrefix;
+      this.timerTagsAreLists = timerTagsAreLists;
+    }
+
+    /**
+     * Returns a PrefetchSpec for a step that reads the values of the given
+     * tags.
+     */
+    public static PrefetchSpec of(List<String> valueTagIds) {
+      return new PrefetchSpec(valueTagIds, null, false);
+    }
+
+    /**
+     * Returns a PrefetchSpec that also reads, for each timer of the work
+     * item, the value tagged with the timer's tag appended to the given
+     * prefix.
+     */
+    public PrefetchSpec withTimerValues(String tagIdPrefix) {
+      return new PrefetchSpec(valueTagIds, tagIdPrefix, false);
+    }
+
+    /**
+     * Returns a PrefetchSpec that also reads, for each timer of the work
+     * item, the list tagged with the timer's tag appended to the given
+     * prefix.
+     */
+    public PrefetchSpec withTimerLists(String tagIdPrefix) {
+      return new PrefetchSpec(valueTagIds, tagIdPrefix, true);
+    }
+  }
+
+  private final long lingerNanos;
+  private final Semaphore outstandingBatches = new Semaphore(MAX_OUTSTANDING_BATCHES);
+  private final ExecutorService sendExecutor;
+  private final Thread batchingThread;
+  private volatile boolean running = true;
+
+  // Reads waiting to be sent, guarded by itself.
+  private final List<PendingRead> pendingReads = new ArrayList<>();
+
+  // Prefetch specs by computation and state prefix.
+  private final ConcurrentMap<String, ConcurrentMap<String, PrefetchSpec>> prefetchSpecs =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<WorkId, Prefetch> prefetches = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a BatchingStateFetcher that waits {@code lingerMicros} after the
+   * first read of a batch is queued before sending it.
+   */
+  public BatchingStateFetcher(WindmillServerStub server, long lingerMicros) {
+    super(server);
+    this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+    ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r);
+          t.setDaemon(true);
+          return t;
+        }
+      };
+    this.sendExecutor = Executors.newFixedThreadPool(MAX_OUTSTANDING_BATCHES, threadFactory);
+    this.batchingThread = threadFactory.newThread(new Runnable() {
+        @Override
+        public void run() {
+          batchLoop();
+        }
+      });
+    batchingThread.setName("StateFetchBatchingThread");
+    batchingThread.start();
+  }
+
+  /**
+   * Stops batching reads.  Reads that are still queued, or queued later,
+   * fail.
+   */
+  public void close() {
+    synchronized (pendingReads) {
+      running = false;
+      pendingReads.notifyAll();
+    }
+    try {
+      batchingThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sendExecutor.shutdown();
+    failClosed(takePendingReads(Integer.MAX_VALUE));
+  }
+
+  /**
+   * Registers the state read by a step of the given computation for every
+   * work item, with its tags prefixed by {@code statePrefix}.
+   */
+  public void addPrefetchSpec(String computation, String statePrefix, PrefetchSpec spec) {
+    ConcurrentMap<String, PrefetchSpec> specs = prefetchSpecs.get(computation);
+    if (specs == null) {
+      prefetchSpecs.putIfAbsent(computation, new ConcurrentHashMap<String, PrefetchSpec>());
+      specs = prefetchSpecs.get(computation);
+    }
+    specs.put(statePrefix, spec);
+  }
+
+  /**
+   * Starts reading the state registered for the given work item's
+   * computation, without waiting for it.
+   */
+  public void prefetch(String computation, Windmill.WorkItem work) {
+    Map<String, PrefetchSpec> specs = prefetchSpecs.get(computation);
+    if (specs == null) {
+      return;
+    }
+    Windmill.KeyedGetDataRequest.Builder request = Windmill.KeyedGetDataRequest.newBuilder()
+        .setKey(work.getKey())
+        .setWorkToken(work.getWorkToken());
+    Set<ByteString> valueTags = new HashSet<>();
+    Set<ByteString> listTags = new HashSet<>();
+    for (Map.Entry<String, PrefetchSpec> entry : specs.entrySet()) {
+      String statePrefix = entry.getKey();
+      PrefetchSpec spec = entry.getValue();
+      for (String tagId : spec.valueTagIds) {
+        valueTags.add(ByteString.copyFromUtf8(statePrefix + tagId));
+      }
+      if (spec.timerTagIdPrefix != null && work.hasTimers()) {
+        ByteString tagPrefix = ByteString.copyFromUtf8(statePrefix + spec.timerTagIdPrefix);
+        for (Windmill.Timer timer : work.getTimers().getTimersList()) {
+          (spec.timerTagsAreLists ? listTags : valueTags).add(tagPrefix.concat(timer.getTag()));
+        }
+      }
+    }
+    if (valueTags.isEmpty() && listTags.isEmpty()) {
+      return;
+    }
+    for (ByteString tag : valueTags) {
+      request.addValuesToFetch(Windmill.TagValue.newBuilder().setTag(tag));
+    }
+    for (ByteString tag : listTags) {
+      request.addListsToFetch(
+          Windmill.TagList.newBuilder().setTag(tag).setEndTimestamp(Long.MAX_VALUE));
+    }
+    prefetches.put(
+        new WorkId(computation, work.getKey(), work.getWorkToken()),
+        new Prefetch(valueTags, listTags, enqueue(computation, request.build())));
+  }
+
+  /**
+   * Discards the state prefetched for the given work item, once it is no
+   * longer being processed.
+   */
+  public void discardPrefetch(String computation, Windmill.WorkItem work) {
+    prefetches.remove(new WorkId(computation, work.getKey(), work.getWorkToken()));
+  }
+
+  @Override
+  protected Windmill.KeyedGetDataResponse getKeyedData(
+      String computation, Windmill.KeyedGetDataRequest request) throws IOException {
+    Future<Windmill.KeyedGetDataResponse> response = null;
+    WorkId workId = new WorkId(computation, request.getKey(), request.getWorkToken());
+    Prefetch prefetch = prefetches.get(workId);
+    if (prefetch != null && prefetch.covers(request)) {
+      response = prefetch.response;
+    } else {
+      response = enqueue(computation, request);
+    }
+
+    Windmill.KeyedGetDataResponse keyResponse;
+    try {
+      keyResponse = response.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while fetching state", e);
+    } catch (ExecutionException e) {
+      if (prefetch != null && response == prefetch.response) {
+        // Read the state again, rather than fail the same way, when the
+        // work item is retried.
+        prefetches.remove(workId, prefetch);
+      }
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+    if (keyResponse.getFailed()) {
+      throw new StreamingDataflowWorker.KeyTokenInvalidException(
+          request.getKey().toStringUtf8());
+    }
+    return keyResponse;
+  }
+
+  private SettableFuture<Windmill.KeyedGetDataResponse> enqueue(
+      String computation, Windmill.KeyedGetDataRequest request) {
+    SettableFuture<Windmill.KeyedGetDataResponse> response = SettableFuture.create();
+    synchronized (pendingReads) {
+      if (!running) {
+        response.setException(new IOException("State fetcher is closed"));
+        return response;
+      }
+      pendingReads.add(new PendingRead(computation, request, response));
+      if (pendingReads.size() == 1) {
+        pendingReads.notifyAll();
+      }
+    }
+    return response;
+  }
+
+  private static void failClosed(List<PendingRead> reads) {
+    for (PendingRead read : reads) {
+      read.response.setException(new IOException("State fetcher is closed"));
+    }
+  }
+
+  private List<PendingRead> takePendingReads(int maxReads) {
+    synchronized (pendingReads) {
+      int count = Math.min(maxReads, pendingReads.size());
+      List<PendingRead> reads = new ArrayList<>(pendingReads.subList(0, count));
+      pendingReads.subList(0, count).clear();
+      return reads;
+    }
+  }
+
+  private void batchLoop() {
+    try {
+      while (running) {
+        synchronized (pendingReads) {
+          while (running && pendingReads.isEmpty()) {
+            pendingReads.wait();
+          }
+        }
+        if (!running) {
+          return;
+        }
+        if (lingerNanos > 0) {
+          TimeUnit.NANOSECONDS.sleep(lingerNanos);
+        }
+        // Reads keep accumulating while waiting for a free slot.
+        outstandingBatches.acquire();
+        final List<PendingRead> reads = takePendingReads(MAX_BATCH_KEYS);
+        if (reads.isEmpty()) {
+          outstandingBatches.release();
+          continue;
+        }
+        sendExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                sendBatch(reads);
+              } finally {
+                outstandingBatches.release();
+              }
+            }
+          });
+      }
+    } catch (InterruptedException e) {
+      // NOLINT
+    }
+  }
+
+  /**
+   * Sends the given reads as a single GetData request, merging reads of the
+   * same key, and completes each with the response for its key.
+   */
+  private void sendBatch(List<PendingRead> reads) {
+    // Merged requests by computation and key.
+    Map<String, Map<ByteString, Windmill.KeyedGetDataRequest.Builder>> requests =
+        new HashMap<>();
+    List<PendingRead> deferred = new ArrayList<>();
+    List<PendingRead> sent = new ArrayList<>();
+    for (PendingRead read : reads) {
+      Map<ByteString, Windmill.KeyedGetDataRequest.Builder> keyRequests =
+          requests.get(read.computation);
+      if (keyRequests == null) {
+        keyRequests = new HashMap<>();
+        requests.put(read.computation, keyRequests);
+      }
+      Windmill.KeyedGetDataRequest.Builder keyRequest = keyRequests.get(read.request.getKey());
+      if (keyRequest == null) {
+        keyRequests.put(read.request.getKey(), read.request.toBuilder());
+      } else if (keyRequest.getWorkToken() == read.request.getWorkToken()) {
+        keyRequest.addAllValuesToFetch(read.request.getValuesToFetchList());
+        keyRequest.addAllListsToFetch(read.request.getListsToFetchList());
+      } else {
+        // A key can only be read for a single work token per request.
+        deferred.add(read);
+        continue;
+      }
+      sent.add(read);
+    }
+    if (!deferred.isEmpty()) {
+      synchronized (pendingReads) {
+        if (running) {
+          pendingReads.addAll(0, deferred);
+          pendingReads.notifyAll();
+        } else {
+          failClosed(deferred);
+        }
+      }
+    }
+
+    Windmill.GetDataRequest.Builder request = Windmill.GetDataRequest.newBuilder();
+    for (Map.Entry<String, Map<ByteString, Windmill.KeyedGetDataRequest.Builder>> entry :
+             requests.entrySet()) {
+      Windmill.ComputationGetDataRequest.Builder computationRequest =
+          Windmill.ComputationGetDataRequest.newBuilder().setComputationId(entry.getKey());
+      for (Windmill.KeyedGetDataRequest.Builder keyRequest : entry.getValue().values()) {
+        computationRequest.addRequests(keyRequest);
+      }
+      request.addRequests(computationRequest);
+    }
+
+    Windmill.GetDataResponse response;
+    try {
+      response = server.getData(request.build());
+    } catch (RuntimeException e) {
+      LOG.warn("Batched state fetch failed: ", e);
+      for (PendingRead read : sent) {
+        read.response.setException(e);
+      }
+      return;
+    }
+
+    Map<String, Map<ByteString, Windmill.KeyedGetDataResponse>> responses = new HashMap<>();
+    for (Windmill.ComputationGetDataResponse computationResponse : response.getDataList()) {
+      Map<ByteString, Windmill.KeyedGetDataResponse> keyResponses = new HashMap<>();
+      for (Windmill.KeyedGetDataResponse keyResponse : computationResponse.getDataList()) {
+        keyResponses.put(keyResponse.getKey(), keyResponse);
+      }
+      responses.put(computationResponse.getComputationId(), keyResponses);
+    }
+    for (PendingRead read : sent) {
+      Map<ByteString, Windmill.KeyedGetDataResponse> keyResponses =
+          responses.get(read.computation);
+      Windmill.KeyedGetDataResponse keyResponse =
+          keyResponses == null ? null : keyResponses.get(read.request.getKey());
+      if (keyResponse == null) {
+        read.response.setException(new IOException(
+            "Invalid data response, missing computation " + read.computation
+            + " and key " + read.request.getKey().toStringUtf8()));
+      } else {
+        read.response.set(keyResponse);
+      }
+    }
+  }
+
+  /**
+   * A queued read of state for a single key.
+   */
+  private static class PendingRead {
+    public final String computation;
+    public final Windmill.KeyedGetDataRequest request;
+    public final SettableFuture<Windmill.KeyedGetDataResponse> response;
+
+    public PendingRead(String computation, Windmill.KeyedGetDataRequest request,
+        SettableFuture<Windmill.KeyedGetDataResponse> response) {
+      this.computation = computation;
+      this.request = request;
+      this.response = response;
+    }
+  }
+
+  /**
+   * State prefetched for a work item.
+   */
+  private static class Prefetch {
+    public final Set<ByteString> valueTags;
+    public final Set<ByteString> listTags;
+    public final Future<Windmill.KeyedGetDataResponse> response;
+
+    public Prefetch(Set<ByteString> valueTags, Set<ByteString> listTags,
+        Future<Windmill.KeyedGetDataResponse> response) {
+      this.valueTags = Collections.unmodifiableSet(valueTags);
+      this.listTags = Collections.unmodifiableSet(listTags);
+      this.response = response;
+    }
+
+    /**
+     * Returns whether the prefetched state includes everything read by the
+     * given request.
+     */
+    public boolean covers(Windmill.KeyedGetDataRequest request) {
+      for (Windmill.TagValue value : request.getValuesToFetchList()) {
+        if (!valueTags.contains(value.getTag())) {
+          return false;
+        }
+      }
+      for (Windmill.TagList list : request.getListsToFetchList()) {
+        if (!listTags.contains(list.getTag()) || list.getEndTimestamp() != Long.MAX_VALUE) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Identifies a work item.
+   */
+  private static class WorkId {
+    private final String computation;
+    private final ByteString key;
+    private final long workToken;
+
+    public WorkId(String computation, ByteString key, long workToken) {
+      this.computation = computation;
+      this.key = key;
+      this.workToken = workToken;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof WorkId)) {
+        return false;
+      }
+      WorkId that = (WorkId) o;
+      return computation.equals(that.computation)
+          && key.equals(that.key)
+          && workToken == that.workToken;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(computation, key, workToken);
+    }
+  }
+}
@@ -41,13 +41,15 @@ import java.util.Set;
  */
 class BufferingWindowSet<K, V, W extends BoundedWindow>
     extends AbstractWindowSet<K, V, Iterable<V>, W> {
+  static final String MERGE_TREE_TAG_ID = "mergeTree";
+
   /**
    * Tag for storing the merge tree, the data structure that keeps
    * track of which windows have been merged together.
    */
   private final CodedTupleTag<Map<W, Set<W>>> mergeTreeTag =
       CodedTupleTag.of(
-          "mergeTree",
+          MERGE_TREE_TAG_ID,
           MapCoder.of(
               windowFn.windowCoder(),
               SetCoder.of(windowFn.windowCoder())));
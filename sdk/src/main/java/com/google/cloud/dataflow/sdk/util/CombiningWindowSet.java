@@ -48,8 +48,10 @@ import java.util.Set;
 public class CombiningWindowSet<K, VI, VA, VO, W extends BoundedWindow>
     extends AbstractWindowSet<K, VI, VO, W> {
 
+  static final String WINDOW_LIST_TAG_ID = "liveWindowsList";
+
   private final CodedTupleTag<Iterable<W>> windowListTag =
-      CodedTupleTag.of("liveWindowsList", IterableCoder.of(windowFn.windowCoder()));
+      CodedTupleTag.of(WINDOW_LIST_TAG_ID, IterableCoder.of(windowFn.windowCoder()));
 
   private final KeyedCombineFn<K, VI, VA, VO> combineFn;
   private final Set<W> liveWindows;
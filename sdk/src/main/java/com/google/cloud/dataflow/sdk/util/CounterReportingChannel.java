@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.cloud.dataflow.sdk.util;
+
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
+
+/**
+ * A channel that can report statistics about its own IO, such as the
+ * number of bytes it fetched ahead of the reader, as counters of the work
+ * that uses it.
+ */
+public interface CounterReportingChannel {
+  /**
+   * Adds the counters of this channel, named with the given prefix, and
+   * makes this channel report its subsequent IO to them.  Must be called
+   * before the channel is used.
+   */
+  void reportCountersTo(String counterPrefix, CounterSet.AddCounterMutator addCounterMutator);
+}
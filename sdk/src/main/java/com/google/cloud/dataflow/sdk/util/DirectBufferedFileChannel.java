@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link WritableByteChannel} that collects writes in a direct buffer and
+ * writes the buffer to a {@link FileChannel} when it is full.
+ *
+ * <p> Writing a direct buffer to a {@code FileChannel} does not copy it, so
+ * small writes cost a single copy into the buffer, and the file is written
+ * in large blocks.  Writes of direct buffers at least as large as the
+ * buffer are written to the file without copying.
+ */
+class DirectBufferedFileChannel implements WritableByteChannel {
+  static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer;
+
+  DirectBufferedFileChannel(FileChannel channel) {
+    this(channel, DEFAULT_BUFFER_BYTES);
+  }
+
+  DirectBufferedFileChannel(FileChannel channel, int bufferBytes) {
+    this.channel = channel;
+    this.buffer = ByteBuffer.allocateDirect(bufferBytes);
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (!channel.isOpen()) {
+      throw new ClosedChannelException();
+    }
+    int bytesWritten = src.remaining();
+    if (src.isDirect() && src.remaining() >= buffer.capacity()) {
+      flush();
+      while (src.hasRemaining()) {
+        channel.write(src);
+      }
+      return bytesWritten;
+    }
+    while (src.hasRemaining()) {
+      if (!buffer.hasRemaining()) {
+        flush();
+      }
+      int length = Math.min(src.remaining(), buffer.remaining());
+      ByteBuffer chunk = src.duplicate();
+      chunk.limit(chunk.position() + length);
+      buffer.put(chunk);
+      src.position(src.position() + length);
+    }
+    return bytesWritten;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!channel.isOpen()) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+}
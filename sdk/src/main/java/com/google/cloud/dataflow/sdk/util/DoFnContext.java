@@ -112,8 +112,15 @@ class DoFnContext<I, O, R> extends DoFn<I, O>.Context {
             "did you forget to pass the view in " +
             "ParDo.withSideInputs()?");
       }
-      sideInputCache.put(
-          tag, view.fromIterableInternal((Iterable<WindowedValue<?>>) sideInputs.get(tag)));
+      Object contents = sideInputs.get(tag);
+      if (contents instanceof SideInputCache.Contents) {
+        // Share the value with other bundles and DoFns on this worker.
+        sideInputCache.put(tag,
+            ((SideInputCache.Contents<?>) contents).materialize(view, addCounterMutator));
+      } else {
+        sideInputCache.put(
+            tag, view.fromIterableInternal((Iterable<WindowedValue<?>>) contents));
+      }
     }
     return (T) sideInputCache.get(tag);
   }
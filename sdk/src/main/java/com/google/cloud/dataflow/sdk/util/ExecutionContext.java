@@ -17,6 +17,7 @@
 package com.google.cloud.dataflow.sdk.util;
 
 import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
 import com.google.cloud.dataflow.sdk.values.CodedTupleTag;
 import com.google.cloud.dataflow.sdk.values.CodedTupleTagMap;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
@@ -30,12 +31,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 /**
  * Context about the current execution.  This is guaranteed to exist during processing,
  * but does not necessarily persist between different batches of work.
  */
 public abstract class ExecutionContext {
   private Map<String, StepContext> cachedStepContexts = new HashMap<>();
+  private String counterPrefix = "";
+  @Nullable private CounterSet.AddCounterMutator addCounterMutator;
 
   /**
    * Returns the {@link StepContext} associated with the given step.
@@ -56,6 +61,41 @@ public abstract class ExecutionContext {
     return cachedStepContexts.values();
   }
 
+  /**
+   * Returns the worker-wide cache of materialized side inputs, or null if
+   * side inputs should not be cached.
+   */
+  @Nullable
+  public SideInputCache getSideInputCache() {
+    return null;
+  }
+
+  /**
+   * Sets the counters of the work executed in this context, to which
+   * readers can add counters of their own, named with the given prefix.
+   */
+  public void setCounters(String counterPrefix, CounterSet.AddCounterMutator addCounterMutator) {
+    this.counterPrefix = counterPrefix;
+    this.addCounterMutator = addCounterMutator;
+  }
+
+  /**
+   * Returns the prefix of the names of the counters of the work executed
+   * in this context.
+   */
+  public String getCounterPrefix() {
+    return counterPrefix;
+  }
+
+  /**
+   * Returns the mutator of the counters of the work executed in this
+   * context, or null if the work has no counters.
+   */
+  @Nullable
+  public CounterSet.AddCounterMutator getAddCounterMutator() {
+    return addCounterMutator;
+  }
+
   /**
    * Implementations should override this to create the specific type
    * of {@link StepContext} they neeed.
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * A {@link ByteArrayInputStream} over a region of a byte array, which can
+ * be pointed at a different region without allocating a new stream, and
+ * which lets coders read the remaining bytes in place instead of copying
+ * them.
+ */
+public class ExposedByteArrayInputStream extends ByteArrayInputStream {
+  private static final byte[] EMPTY = new byte[0];
+
+  public ExposedByteArrayInputStream() {
+    super(EMPTY);
+  }
+
+  public ExposedByteArrayInputStream(byte[] buf, int offset, int length) {
+    super(buf, offset, length);
+  }
+
+  /**
+   * Makes this stream read the given region of the given array, and returns
+   * this stream.
+   */
+  public ExposedByteArrayInputStream reset(byte[] buf, int offset, int length) {
+    this.buf = buf;
+    this.pos = offset;
+    this.count = Math.min(offset + length, buf.length);
+    this.mark = offset;
+    return this;
+  }
+
+  /**
+   * Returns the array this stream reads from.  The remaining bytes of the
+   * stream are at indices {@link #getPosition} (inclusive) to
+   * {@code getPosition() + available()} (exclusive); the array must not be
+   * modified.
+   */
+  public byte[] getBuffer() {
+    return buf;
+  }
+
+  /**
+   * Returns the index in {@link #getBuffer} of the next byte to be read.
+   */
+  public int getPosition() {
+    return pos;
+  }
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.UnsignedBytes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Groups key-value pairs by key in bounded memory.
+ *
+ * <p> Pairs are encoded with the key and value {@link Coder}s and buffered
+ * until their encoded size exceeds the memory budget.  The buffer is then
+ * sorted by encoded key and spilled as a run to a temporary local file.
+ * Grouping k-way merges the runs into a single file holding the values of
+ * each key together, and returns the groups with {@link Iterable}s that
+ * lazily read their values from that file, so that memory use is bounded
+ * by the budget and the number of distinct keys.
+ *
+ * <p> If nothing was spilled, the groups are formed in memory instead.
+ *
+ * <p> Keys are compared in encoded form, so the key {@code Coder} must be
+ * deterministic.  Groups are ordered by encoded key, and the values of a
+ * group are in the order they were added.
+ *
+ * <p> The grouper owns its temporary files.  Spilled groups refer to their
+ * grouper, and the files are deleted once the grouper and all of its
+ * groups have become unreachable, or when {@link #close} is called, after
+ * which spilled groups can no longer be iterated over.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class ExternalGrouper<K, V> implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(ExternalGrouper.class);
+
+  // The estimated memory used by a buffered pair besides its encodings: the
+  // pair itself, the headers of its two arrays and the reference to it.
+  private static final long PAIR_OVERHEAD_BYTES = 64;
+
+  private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+  // The maximum number of runs merged at once.
+  private static final int MAX_MERGE_FAN_IN = 64;
+
+  private static final Comparator<byte[]> KEY_COMPARATOR =
+      UnsignedBytes.lexicographicalComparator();
+
+  private final Coder<K> keyCoder;
+  private final Coder<V> valueCoder;
+  private final long memoryBytes;
+
+  private List<EncodedPair> buffer = new ArrayList<>();
+  private long bufferBytes;
+  private int spilledRuns;
+  private long spilledBytes;
+
+  // The temporary files of this grouper, once it has spilled, or null once
+  // it is closed.
+  @Nullable private TemporaryFiles files;
+
+  /**
+   * Creates a grouper that buffers at most about {@code memoryBytes} of
+   * encoded pairs in memory.
+   */
+  public ExternalGrouper(Coder<K> keyCoder, Coder<V> valueCoder, long memoryBytes) {
+    Preconditions.checkArgument(memoryBytes > 0,
+        "memoryBytes must be positive, but was %s", memoryBytes);
+    this.keyCoder = keyCoder;
+    this.valueCoder = valueCoder;
+    this.memoryBytes = memoryBytes;
+    // Groupers are created once per grouping, which reclaims the files of
+    // earlier groupers.
+    TemporaryFiles.cleanUpUnreachable();
+  }
+
+  /**
+   * Adds a key-value pair, spilling the buffered pairs to disk if they
+   * exceed the memory budget.
+   *
+   * @throws IOException if the key or the value cannot be encoded, in
+   * which case it is a {@link com.google.cloud.dataflow.sdk.coders.CoderException},
+   * or if spilling fails
+   */
+  public void add(K key, V value) throws IOException {
+    EncodedPair pair = new EncodedPair(
+        CoderUtils.encodeToByteArray(keyCoder, key),
+        CoderUtils.encodeToByteArray(valueCoder, value));
+    buffer.add(pair);
+    bufferBytes += pair.key.length + pair.value.length + PAIR_OVERHEAD_BYTES;
+    if (bufferBytes > memoryBytes) {
+      spill();
+    }
+  }
+
+  /**
+   * Returns the number of runs spilled to disk so far.
+   */
+  public int getSpilledRuns() {
+    return spilledRuns;
+  }
+
+  /**
+   * Returns the number of bytes spilled to disk so far.
+   */
+  public long getSpilledBytes() {
+    return spilledBytes;
+  }
+
+  /**
+   * Returns the groups of all added pairs, ordered by encoded key.  No more
+   * pairs may be added afterwards.
+   *
+   * <p> If any pairs were spilled, the values of each group are read from
+   * a temporary file each time they are iterated over, for as long as they
+   * are reachable, unless this grouper is closed.  Otherwise they are a
+   * {@link List}.
+   */
+  public List<KV<K, Iterable<V>>> group() throws IOException {
+    Preconditions.checkState(buffer != null, "group() was already called");
+    List<KV<K, Iterable<V>>> groups;
+    if (spilledRuns == 0) {
+      groups = groupInMemory();
+    } else {
+      Preconditions.checkState(files != null, "the grouper was closed");
+      if (!buffer.isEmpty()) {
+        spill();
+      }
+      groups = mergeRuns();
+    }
+    buffer = null;
+    return groups;
+  }
+
+  private void sortBuffer() {
+    // A stable sort, which keeps the values of each key in the order they
+    // were added.
+    Collections.sort(buffer, new Comparator<EncodedPair>() {
+      @Override
+      public int compare(EncodedPair a, EncodedPair b) {
+        return KEY_COMPARATOR.compare(a.key, b.key);
+      }
+    });
+  }
+
+  private List<KV<K, Iterable<V>>> groupInMemory() throws IOException {
+    sortBuffer();
+    List<KV<K, Iterable<V>>> groups = new ArrayList<>();
+    List<V> values = null;
+    byte[] groupKey = null;
+    for (EncodedPair pair : buffer) {
+      if (groupKey == null || !Arrays.equals(groupKey, pair.key)) {
+        groupKey = pair.key;
+        values = new ArrayList<>();
+        groups.add(KV.<K, Iterable<V>>of(
+            CoderUtils.decodeFromByteArray(keyCoder, groupKey), values));
+      }
+      values.add(CoderUtils.decodeFromByteArray(valueCoder, pair.value));
+    }
+    return groups;
+  }
+
+  /**
+   * Sorts the buffered pairs and writes them to a new run file.
+   */
+  private void spill() throws IOException {
+    Preconditions.checkState(spilledRuns == 0 || files != null, "the grouper was closed");
+    if (files == null) {
+      files = new TemporaryFiles(this);
+    }
+    sortBuffer();
+    File file = File.createTempFile("group-by-key-", ".run");
+    try (OutputStream output =
+        new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE)) {
+      for (EncodedPair pair : buffer) {
+        VarInt.encode(pair.key.length, output);
+        output.write(pair.key);
+        VarInt.encode(pair.value.length, output);
+        output.write(pair.value);
+      }
+    } catch (IOException | RuntimeException e) {
+      // Do not leave a partial run behind.
+      delete(file);
+      throw e;
+    }
+    files.runs.add(file);
+    spilledRuns++;
+    spilledBytes += file.length();
+    buffer.clear();
+    bufferBytes = 0;
+  }
+
+  /**
+   * Merges the runs into a single file holding the values of each key
+   * together, and returns the groups of that file.
+   */
+  private List<KV<K, Iterable<V>>> mergeRuns() throws IOException {
+    List<File> runs = files.runs;
+    // Merge consecutive runs in passes of a bounded number of runs, which
+    // bounds the number of open files, until a single pass is left.
+    // The runs are replaced by the runs they are merged into, so that
+    // close() deletes whichever are left if a merge fails.
+    while (runs.size() > MAX_MERGE_FAN_IN) {
+      List<File> inputs = new ArrayList<>(runs);
+      runs.clear();
+      for (int i = 0; i < inputs.size(); i += MAX_MERGE_FAN_IN) {
+        List<File> pass = inputs.subList(i, Math.min(i + MAX_MERGE_FAN_IN, inputs.size()));
+        try {
+          File run = File.createTempFile("group-by-key-", ".run");
+          runs.add(run);
+          try (OutputStream output =
+              new BufferedOutputStream(new FileOutputStream(run), FILE_BUFFER_SIZE)) {
+            merge(pass, output, null);
+          }
+        } catch (IOException | RuntimeException e) {
+          runs.addAll(inputs.subList(i, inputs.size()));
+          throw e;
+        }
+      }
+    }
+
+    files.groupedFile = File.createTempFile("group-by-key-", ".groups");
+    files.groupedChannel = FileChannel.open(files.groupedFile.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    List<KV<K, Iterable<V>>> groups = new ArrayList<>();
+    // The channel stays open for the groups to read from.
+    OutputStream output = new BufferedOutputStream(
+        Channels.newOutputStream(files.groupedChannel), FILE_BUFFER_SIZE);
+    List<File> inputs = new ArrayList<>(runs);
+    runs.clear();
+    merge(inputs, output, groups);
+    output.flush();
+    // The groups read the file through the open channel, so it can be
+    // deleted right away, where the file system allows that.
+    if (!files.groupedFile.delete()) {
+      LOG.debug("Failed to delete open grouped file {}", files.groupedFile);
+    }
+    return groups;
+  }
+
+  /**
+   * Merges the given runs, deleting them afterwards.  If {@code groups} is
+   * null, the output is another run.  Otherwise, the output is the grouped
+   * file, holding the values of each key together, and a group reading
+   * them from it is added to {@code groups} for each key.
+   */
+  private void merge(List<File> inputs, OutputStream output,
+      @Nullable List<KV<K, Iterable<V>>> groups) throws IOException {
+    PriorityQueue<RunReader> readers = new PriorityQueue<>(inputs.size());
+    try {
+      for (int i = 0; i < inputs.size(); i++) {
+        RunReader reader = new RunReader(inputs.get(i), i);
+        if (reader.advance()) {
+          readers.add(reader);
+        } else {
+          reader.close();
+        }
+      }
+
+      long offset = 0;
+      while (!readers.isEmpty()) {
+        byte[] groupKey = readers.peek().key;
+        long groupOffset = offset;
+        int count = 0;
+        // Readers with equal keys are polled in run order, and each run
+        // holds the values of a key in the order they were added.
+        while (!readers.isEmpty() && Arrays.equals(groupKey, readers.peek().key)) {
+          RunReader reader = readers.poll();
+          if (groups == null) {
+            VarInt.encode(groupKey.length, output);
+            output.write(groupKey);
+          }
+          VarInt.encode(reader.value.length, output);
+          output.write(reader.value);
+          offset += VarInt.getLength(reader.value.length) + reader.value.length;
+          count++;
+          if (reader.advance()) {
+            readers.add(reader);
+          } else {
+            reader.close();
+          }
+        }
+        if (groups != null) {
+          groups.add(KV.<K, Iterable<V>>of(
+              CoderUtils.decodeFromByteArray(keyCoder, groupKey),
+              new FileBackedValues(groupOffset, offset - groupOffset, count)));
+        }
+      }
+    } finally {
+      for (RunReader reader : readers) {
+        reader.close();
+      }
+      for (File input : inputs) {
+        delete(input);
+      }
+    }
+  }
+
+  /**
+   * Deletes the temporary files of this grouper, including the grouped
+   * file that spilled groups read their values from, without waiting for
+   * them to become unreachable.  Does nothing if already closed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (files != null) {
+      TemporaryFiles closed = files;
+      files = null;
+      closed.cleanUp();
+    }
+  }
+
+  private static void delete(File file) {
+    if (!file.delete() && file.exists()) {
+      LOG.warn("Failed to delete temporary file {}", file);
+    }
+  }
+
+  /**
+   * The temporary files of an {@link ExternalGrouper}, which are deleted,
+   * and the channel to its grouped file closed, once the grouper becomes
+   * unreachable.
+   */
+  private static class TemporaryFiles extends PhantomReference<ExternalGrouper<?, ?>> {
+    // The files of every grouper that has not been cleaned up, which keeps
+    // their references alive until they are enqueued.
+    private static final Set<TemporaryFiles> LIVE =
+        Collections.newSetFromMap(new ConcurrentHashMap<TemporaryFiles, Boolean>());
+
+    // The queue of references to groupers which have been collected by the
+    // garbage collector.  This queue should only be used with references of
+    // class TemporaryFiles.
+    private static final ReferenceQueue<ExternalGrouper<?, ?>> UNREACHABLE =
+        new ReferenceQueue<>();
+
+    // The runs not yet merged.
+    final List<File> runs = new ArrayList<>();
+
+    // The file holding the values of each key together, once spilled pairs
+    // were grouped, and the channel all the groups read their values through.
+    @Nullable File groupedFile;
+    @Nullable FileChannel groupedChannel;
+
+    TemporaryFiles(ExternalGrouper<?, ?> grouper) {
+      super(grouper, UNREACHABLE);
+      LIVE.add(this);
+    }
+
+    void cleanUp() throws IOException {
+      LIVE.remove(this);
+      for (File run : runs) {
+        delete(run);
+      }
+      runs.clear();
+      try {
+        if (groupedChannel != null) {
+          groupedChannel.close();
+        }
+      } finally {
+        if (groupedFile != null) {
+          delete(groupedFile);
+        }
+      }
+    }
+
+    /**
+     * Cleans up the files of the groupers which have been collected by the
+     * garbage collector.
+     */
+    static void cleanUpUnreachable() {
+      for (Reference<?> reference = UNREACHABLE.poll();
+           reference != null;
+           reference = UNREACHABLE.poll()) {
+        try {
+          ((TemporaryFiles) reference).cleanUp();
+        } catch (IOException e) {
+          LOG.warn("Failed to close a spilled group-by-key file", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * An encoded key-value pair.
+   */
+  private static class EncodedPair {
+    final byte[] key;
+    final byte[] value;
+
+    EncodedPair(byte[] key, byte[] value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * A reader of the pairs of a run, ordered by their current key and then
+   * by the order of their runs.
+   */
+  private static class RunReader implements Comparable<RunReader> {
+    private final DataInputStream input;
+    private final int index;
+    byte[] key;
+    byte[] value;
+
+    RunReader(File file, int index) throws IOException {
+      this.input = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), FILE_BUFFER_SIZE));
+      this.index = index;
+    }
+
+    /**
+     * Reads the next pair, returning false at the end of the run.
+     */
+    boolean advance() throws IOException {
+      int keyLength;
+      try {
+        keyLength = VarInt.decodeInt(input);
+      } catch (EOFException e) {
+        return false;
+      }
+      key = new byte[keyLength];
+      input.readFully(key);
+      value = new byte[VarInt.decodeInt(input)];
+      input.readFully(value);
+      return true;
+    }
+
+    void close() throws IOException {
+      input.close();
+    }
+
+    @Override
+    public int compareTo(RunReader that) {
+      int result = KEY_COMPARATOR.compare(this.key, that.key);
+      return result != 0 ? result : Integer.compare(this.index, that.index);
+    }
+  }
+
+  /**
+   * The values of a group, read from the grouped file each time they are
+   * iterated over.  Iterators read through the grouper's shared channel
+   * at their own positions, so they hold no resources of their own and
+   * may be abandoned early.  Both refer to the grouper, which keeps its
+   * files from being deleted while they are reachable.
+   */
+  private class FileBackedValues implements Iterable<V> {
+    private final long offset;
+    private final long length;
+    private final int count;
+
+    FileBackedValues(long offset, long length, int count) {
+      this.offset = offset;
+      this.length = length;
+      this.count = count;
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+      Preconditions.checkState(files != null,
+          "the values of a spilled group cannot be read after the grouper is closed");
+      final DataInputStream input = new DataInputStream(new BufferedInputStream(
+          new FileChannelInputStream(files.groupedChannel, offset),
+          (int) Math.max(1, Math.min(length, FILE_BUFFER_SIZE))));
+
+      return new Iterator<V>() {
+        private int remaining = count;
+
+        @Override
+        public boolean hasNext() {
+          return remaining > 0;
+        }
+
+        @Override
+        public V next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          try {
+            byte[] value = new byte[VarInt.decodeInt(input)];
+            input.readFully(value);
+            remaining--;
+            return CoderUtils.decodeFromByteArray(valueCoder, value);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public String toString() {
+      return "[" + count + " values at offset " + offset + "]";
+    }
+  }
+}
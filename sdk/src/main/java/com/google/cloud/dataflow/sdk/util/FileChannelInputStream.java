@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.cloud.dataflow.sdk.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An {@link InputStream} over a {@link FileChannel}, starting at a given
+ * position, which reads through positioned reads.  These leave the
+ * position of the channel alone, so any number of streams can read the
+ * same channel concurrently, and closing a stream does not close the
+ * channel.  Wrap the stream in a {@link java.io.BufferedInputStream} to
+ * read it in larger chunks.
+ */
+public class FileChannelInputStream extends InputStream {
+  private final FileChannel channel;
+  private long position;
+
+  public FileChannelInputStream(FileChannel channel, long position) {
+    this.channel = channel;
+    this.position = position;
+  }
+
+  /**
+   * Returns the position in the channel of the next byte to be read.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+    if (read > 0) {
+      position += read;
+    }
+    return read;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = Math.max(0, Math.min(n, channel.size() - position));
+    position += skipped;
+    return skipped;
+  }
+}
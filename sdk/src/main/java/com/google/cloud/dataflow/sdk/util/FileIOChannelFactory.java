@@ -19,18 +19,18 @@ package com.google.cloud.dataflow.sdk.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.PathMatcher;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -39,13 +39,35 @@ import java.util.regex.Matcher;
 /**
  * Implements IOChannelFactory for local files.
  */
-public class FileIOChannelFactory implements IOChannelFactory {
+public class FileIOChannelFactory implements MetadataMatchingIOChannelFactory {
   private static final Logger LOG = LoggerFactory.getLogger(FileIOChannelFactory.class);
 
+  // The smallest file that is read through memory-mapped windows.
+  static final long MIN_MAPPED_FILE_BYTES = 1 << 20;
+
   // This implementation only allows for wildcards in the file name.
   // The directory portion must exist as-is.
   @Override
   public Collection<String> match(String spec) throws IOException {
+    List<String> result = new LinkedList<>();
+    for (File match : matchFiles(spec)) {
+      result.add(match.getPath());
+    }
+
+    return result;
+  }
+
+  @Override
+  public List<FileMetadata> matchWithMetadata(String spec) throws IOException {
+    List<FileMetadata> result = new ArrayList<>();
+    for (File match : matchFiles(spec)) {
+      result.add(new FileMetadata(match.getPath(), match.length(), true));
+    }
+
+    return result;
+  }
+
+  private File[] matchFiles(String spec) throws IOException {
     File file = new File(spec);
 
     File parent = file.getAbsoluteFile().getParentFile();
@@ -65,34 +87,39 @@ public class FileIOChannelFactory implements IOChannelFactory {
 
     final PathMatcher matcher =
         FileSystems.getDefault().getPathMatcher("glob:" + pathToMatch);
-    File[] files = parent.listFiles(new FileFilter() {
+    return parent.listFiles(new FileFilter() {
       @Override
       public boolean accept(File pathname) {
         return matcher.matches(pathname.toPath());
       }
     });
-
-    List<String> result = new LinkedList<>();
-    for (File match : files) {
-      result.add(match.getPath());
-    }
-
-    return result;
   }
 
+  /**
+   * Opens the given file for reading.  Files of at least
+   * {@link #MIN_MAPPED_FILE_BYTES} are read through memory-mapped windows;
+   * mapping smaller files costs more than reading them.
+   */
   @Override
   public ReadableByteChannel open(String spec) throws IOException {
     LOG.debug("opening file {}", spec);
     FileInputStream inputStream = new FileInputStream(spec);
-    return inputStream.getChannel();
+    FileChannel channel = inputStream.getChannel();
+    if (channel.size() < MIN_MAPPED_FILE_BYTES) {
+      return channel;
+    }
+    return new MappedFileChannel(channel);
   }
 
+  /**
+   * Creates the given file for writing, through a channel that buffers
+   * writes in a direct buffer.
+   */
   @Override
   public WritableByteChannel create(String spec, String mimeType)
       throws IOException {
     LOG.debug("creating file {}", spec);
-    return Channels.newChannel(
-        new BufferedOutputStream(new FileOutputStream(spec)));
+    return new DirectBufferedFileChannel(new FileOutputStream(spec).getChannel());
   }
 
   @Override
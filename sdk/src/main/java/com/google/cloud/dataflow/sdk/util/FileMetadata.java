@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+/**
+ * The specification, size and seekability of a file matched by
+ * {@link IOChannelUtils#matchWithMetadata}.
+ */
+public final class FileMetadata {
+  private final String spec;
+  private final long sizeBytes;
+  private final boolean readSeekEfficient;
+
+  public FileMetadata(String spec, long sizeBytes, boolean readSeekEfficient) {
+    this.spec = spec;
+    this.sizeBytes = sizeBytes;
+    this.readSeekEfficient = readSeekEfficient;
+  }
+
+  /**
+   * Returns the specification of the file, as returned by
+   * {@link IOChannelFactory#match}.
+   */
+  public String getSpec() {
+    return spec;
+  }
+
+  /**
+   * Returns the size of the file, as returned by
+   * {@link IOChannelFactory#getSizeBytes}.
+   */
+  public long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  /**
+   * Returns whether the file can be read efficiently from any offset, as
+   * returned by {@link IOChannelFactory#isReadSeekEfficient}.
+   */
+  public boolean isReadSeekEfficient() {
+    return readSeekEfficient;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof FileMetadata)) {
+      return false;
+    }
+    FileMetadata that = (FileMetadata) other;
+    return spec.equals(that.spec)
+        && sizeBytes == that.sizeBytes
+        && readSeekEfficient == that.readSeekEfficient;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(spec, sizeBytes, readSeekEfficient);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("spec", spec)
+        .add("sizeBytes", sizeBytes)
+        .add("readSeekEfficient", readSeekEfficient)
+        .toString();
+  }
+}
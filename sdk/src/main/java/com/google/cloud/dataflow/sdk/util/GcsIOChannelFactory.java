@@ -16,12 +16,14 @@
 
 package com.google.cloud.dataflow.sdk.util;
 
+import com.google.api.services.storage.model.StorageObject;
 import com.google.cloud.dataflow.sdk.options.GcsOptions;
 import com.google.cloud.dataflow.sdk.util.gcsfs.GcsPath;
 
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -29,7 +31,7 @@ import java.util.List;
 /**
  * Implements IOChannelFactory for GCS.
  */
-public class GcsIOChannelFactory implements IOChannelFactory {
+public class GcsIOChannelFactory implements MetadataMatchingIOChannelFactory {
 
   private final GcsOptions options;
 
@@ -51,6 +53,20 @@ public class GcsIOChannelFactory implements IOChannelFactory {
     return specs;
   }
 
+  @Override
+  public List<FileMetadata> matchWithMetadata(String spec) throws IOException {
+    GcsPath path = GcsPath.fromUri(spec);
+    GcsUtil util = options.getGcsUtil();
+    List<FileMetadata> matched = new ArrayList<>();
+    for (StorageObject object : util.expandToObjects(path)) {
+      // Objects stored with gzip content encoding are decompressed while
+      // they are read, so offsets into them cannot be read directly.
+      matched.add(new FileMetadata(GcsPath.fromObject(object).toString(),
+          object.getSize().longValue(), !"gzip".equals(object.getContentEncoding())));
+    }
+    return matched;
+  }
+
   @Override
   public ReadableByteChannel open(String spec) throws IOException {
     GcsPath path = GcsPath.fromUri(spec);
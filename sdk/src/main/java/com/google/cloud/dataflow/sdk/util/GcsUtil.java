@@ -24,8 +24,11 @@ import com.google.cloud.dataflow.sdk.options.DefaultValueFactory;
 import com.google.cloud.dataflow.sdk.options.GcsOptions;
 import com.google.cloud.dataflow.sdk.options.PipelineOptions;
 import com.google.cloud.dataflow.sdk.util.gcsfs.GcsPath;
+import com.google.cloud.dataflow.sdk.util.gcsio.GoogleCloudStorageCompositeWriteChannel;
 import com.google.cloud.dataflow.sdk.util.gcsio.GoogleCloudStorageReadChannel;
 import com.google.cloud.dataflow.sdk.util.gcsio.GoogleCloudStorageWriteChannel;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,12 +36,18 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 /**
  * Provides operations on GCS.
  */
@@ -60,7 +69,10 @@ public class GcsUtil {
       GcsOptions gcsOptions = options.as(GcsOptions.class);
       LOG.debug("Creating new GcsUtil");
       return new GcsUtil(Transport.newStorageClient(gcsOptions).build(),
-          gcsOptions.getExecutorService());
+          gcsOptions.getExecutorService(), gcsOptions.getGcsReadPrefetchBlockCount(),
+          gcsOptions.getGcsReadPrefetchBlockSizeBytes(), gcsOptions.getGcsReadPrefetchThreads(),
+          gcsOptions.getGcsCompositeUploadPartSizeBytes(),
+          gcsOptions.getGcsCompositeUploadBufferBytes());
     }
   }
 
@@ -91,6 +103,20 @@ public class GcsUtil {
   // Exposed for testing.
   final ExecutorService executorService;
 
+  // The number and the size of the blocks that read channels fetch ahead of their read position,
+  // or 0 blocks to read objects sequentially.
+  private final int readPrefetchBlockCount;
+  private final int readPrefetchBlockSize;
+
+  // The pool that all read channels fetch blocks on, or null if read channels do not prefetch.
+  // Exposed for testing.
+  @Nullable final ThreadPoolExecutor readPrefetchExecutorService;
+
+  // The size of the parts that write channels upload concurrently, or 0 to write objects through
+  // a single upload, and the memory budget of the parts of each channel.
+  private final int compositeUploadPartSize;
+  private final long compositeUploadBufferBytes;
+
   /**
    * Returns true if the given GCS pattern is supported otherwise fails with an
    * exception.
@@ -104,9 +130,42 @@ public class GcsUtil {
     return true;
   }
 
-  private GcsUtil(Storage storageClient, ExecutorService executorService) {
+  private GcsUtil(Storage storageClient, ExecutorService executorService,
+      int readPrefetchBlockCount, int readPrefetchBlockSize, int readPrefetchThreads,
+      int compositeUploadPartSize, long compositeUploadBufferBytes) {
     storage = storageClient;
     this.executorService = executorService;
+    this.readPrefetchBlockCount = readPrefetchBlockCount;
+    this.readPrefetchBlockSize = readPrefetchBlockSize;
+    this.readPrefetchExecutorService =
+        readPrefetchBlockCount > 0 ? newReadPrefetchExecutorService(readPrefetchThreads) : null;
+    this.compositeUploadPartSize = compositeUploadPartSize;
+    this.compositeUploadBufferBytes = compositeUploadBufferBytes;
+  }
+
+  /**
+   * Returns a pool of at most {@code threadCount} threads, which time out when idle, for read
+   * channels to fetch blocks on.
+   *
+   * <p> The pool is shared by all read channels, so its size is independent of the number of
+   * blocks each channel fetches ahead.  Unlike the shared {@link GcsOptions#getExecutorService},
+   * it is bounded, so that many concurrent readers do not start more ranged reads than this at a
+   * time; the fetches of further blocks wait in its queue.  Prefetching never waits on another
+   * fetch, so this cannot deadlock.
+   */
+  private static ThreadPoolExecutor newReadPrefetchExecutorService(int threadCount) {
+    ThreadFactoryBuilder threadFactoryBuilder = new ThreadFactoryBuilder()
+        .setThreadFactory(MoreExecutors.platformThreadFactory())
+        .setNameFormat("GcsUtil-read-prefetch-%d");
+    if (!AppEngineEnvironment.IS_APP_ENGINE) {
+      // AppEngine doesn't allow modification of threads to be daemon threads.
+      threadFactoryBuilder.setDaemon(true);
+    }
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threadCount, threadCount, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), threadFactoryBuilder.build());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 
   // Use this only for testing purposes.
@@ -119,6 +178,18 @@ public class GcsUtil {
    * the result. This function validates the existence of each matched file in GCS.
    */
   public List<GcsPath> expand(GcsPath gcsPattern) throws IOException {
+    List<GcsPath> results = new LinkedList<>();
+    for (StorageObject o : expandToObjects(gcsPattern)) {
+      results.add(GcsPath.fromObject(o));
+    }
+    return results;
+  }
+
+  /**
+   * Expands a pattern like {@link #expand}, and returns the metadata of the
+   * matched objects, as listed by GCS.
+   */
+  public List<StorageObject> expandToObjects(GcsPath gcsPattern) throws IOException {
     Preconditions.checkArgument(isGcsPatternSupported(gcsPattern.getObject()));
     Matcher m = GLOB_PREFIX.matcher(gcsPattern.getObject());
     Pattern p = null;
@@ -142,7 +213,7 @@ public class GcsUtil {
     listObject.setPrefix(prefix);
 
     String pageToken = null;
-    List<GcsPath> results = new LinkedList<>();
+    List<StorageObject> results = new ArrayList<>();
     do {
       if (pageToken != null) {
         listObject.setPageToken(pageToken);
@@ -161,7 +232,7 @@ public class GcsUtil {
         // Skip directories, which end with a slash.
         if (p.matcher(name).matches() && !name.endsWith("/")) {
           LOG.debug("Matched object: {}", name);
-          results.add(GcsPath.fromObject(o));
+          results.add(o);
         }
       }
 
@@ -202,8 +273,13 @@ public class GcsUtil {
    */
   public SeekableByteChannel open(GcsPath path)
       throws IOException {
-    return new GoogleCloudStorageReadChannel(storage, path.getBucket(),
-            path.getObject(), errorExtractor);
+    GoogleCloudStorageReadChannel channel = new GoogleCloudStorageReadChannel(storage,
+        path.getBucket(), path.getObject(), errorExtractor);
+    if (readPrefetchBlockCount > 0) {
+      channel.enablePrefetching(
+          readPrefetchExecutorService, readPrefetchBlockSize, readPrefetchBlockCount);
+    }
+    return channel;
   }
 
   /**
@@ -219,6 +295,11 @@ public class GcsUtil {
    */
   public WritableByteChannel create(GcsPath path,
       String type) throws IOException {
+    if (compositeUploadPartSize > 0) {
+      return new GoogleCloudStorageCompositeWriteChannel(executorService, storage,
+          path.getBucket(), path.getObject(), type, compositeUploadPartSize,
+          compositeUploadBufferBytes);
+    }
     return new GoogleCloudStorageWriteChannel(
         executorService,
         storage,
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks the most frequent items of a stream in bounded memory, using the
+ * Space-Saving algorithm of Metwally, Agrawal and El Abbadi.
+ *
+ * <p> At most {@code capacity} items are counted at a time.  An item that
+ * is not counted replaces the item with the smallest count, taking over
+ * that count as the error of its own.  Every item whose frequency exceeds
+ * {@code 1 / capacity} of the stream is thus always counted, and the count
+ * of each item overestimates its frequency by at most its error, which is
+ * at most {@code getTotal() / capacity}.
+ *
+ * <p> Items are compared with {@link Object#equals}.
+ *
+ * @param <T> the type of the items
+ */
+public class HeavyHitters<T> {
+  private final int capacity;
+  private long total;
+
+  // The counted items, and the items of each count.
+  private final Map<T, Entry> entries = new HashMap<>();
+  private final TreeMap<Long, LinkedHashSet<T>> itemsByCount = new TreeMap<>();
+
+  /**
+   * The count of an item, and the bound on how much it overestimates the
+   * item's frequency.
+   */
+  private static class Entry {
+    long count;
+    long error;
+  }
+
+  /**
+   * Creates a sketch that counts at most {@code capacity} items at a time.
+   */
+  public HeavyHitters(int capacity) {
+    Preconditions.checkArgument(capacity > 0,
+        "capacity must be positive, but was %s", capacity);
+    this.capacity = capacity;
+  }
+
+  /**
+   * Creates a sketch that always counts the items whose frequency exceeds
+   * the given fraction of the stream, with an error of at most a tenth of
+   * that fraction of the stream.
+   */
+  public static <T> HeavyHitters<T> forFraction(double fraction) {
+    Preconditions.checkArgument(fraction > 0 && fraction < 1,
+        "fraction must be in (0, 1), but was %s", fraction);
+    return new HeavyHitters<>((int) Math.ceil(10 / fraction));
+  }
+
+  /**
+   * Adds an occurrence of the given item.
+   */
+  public void add(T item) {
+    total++;
+    Entry entry = entries.get(item);
+    if (entry != null) {
+      removeFromCount(item, entry.count);
+    } else if (entries.size() < capacity) {
+      entry = new Entry();
+      entries.put(item, entry);
+    } else {
+      // Replace the item with the smallest count.
+      Map.Entry<Long, LinkedHashSet<T>> smallest = itemsByCount.firstEntry();
+      Iterator<T> evicted = smallest.getValue().iterator();
+      entry = entries.remove(evicted.next());
+      evicted.remove();
+      if (smallest.getValue().isEmpty()) {
+        itemsByCount.remove(smallest.getKey());
+      }
+      entry.error = entry.count;
+      entries.put(item, entry);
+    }
+    entry.count++;
+    LinkedHashSet<T> items = itemsByCount.get(entry.count);
+    if (items == null) {
+      items = new LinkedHashSet<>();
+      itemsByCount.put(entry.count, items);
+    }
+    items.add(item);
+  }
+
+  private void removeFromCount(T item, long count) {
+    LinkedHashSet<T> items = itemsByCount.get(count);
+    items.remove(item);
+    if (items.isEmpty()) {
+      itemsByCount.remove(count);
+    }
+  }
+
+  /**
+   * Returns the number of occurrences added.
+   */
+  public long getTotal() {
+    return total;
+  }
+
+  /**
+   * Returns an upper bound on the number of occurrences of the given item,
+   * or 0 if the item is not counted.
+   */
+  public long getCount(T item) {
+    Entry entry = entries.get(item);
+    return entry == null ? 0 : entry.count;
+  }
+
+  /**
+   * Returns a lower bound on the number of occurrences of the given item.
+   */
+  public long getGuaranteedCount(T item) {
+    Entry entry = entries.get(item);
+    return entry == null ? 0 : entry.count - entry.error;
+  }
+
+  /**
+   * Returns the items which are guaranteed to make up more than the given
+   * fraction of the stream, from the most to the least frequent.
+   */
+  public List<T> getHeavyHitters(double fraction) {
+    List<T> heavyHitters = new ArrayList<>();
+    for (Map.Entry<Long, LinkedHashSet<T>> items : itemsByCount.descendingMap().entrySet()) {
+      if (items.getKey() <= fraction * total) {
+        // Counts are upper bounds, so no remaining item is heavy.
+        break;
+      }
+      for (T item : items.getValue()) {
+        if (getGuaranteedCount(item) > fraction * total) {
+          heavyHitters.add(item);
+        }
+      }
+    }
+    return heavyHitters;
+  }
+}
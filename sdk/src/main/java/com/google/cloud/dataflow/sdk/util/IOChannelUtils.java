@@ -25,10 +25,12 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.channels.WritableByteChannel;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -176,4 +178,25 @@ public class IOChannelUtils {
 
     throw new IOException("Unable to find handler for " + spec);
   }
+
+  /**
+   * Matches a specification using the given factory, and returns the
+   * metadata of every match.
+   *
+   * <p>The metadata is taken from the listing that matches the specification
+   * if the factory is a {@link MetadataMatchingIOChannelFactory}, and
+   * otherwise looked up separately for every match.
+   */
+  public static List<FileMetadata> matchWithMetadata(IOChannelFactory factory, String spec)
+      throws IOException {
+    if (factory instanceof MetadataMatchingIOChannelFactory) {
+      return ((MetadataMatchingIOChannelFactory) factory).matchWithMetadata(spec);
+    }
+    List<FileMetadata> matched = new ArrayList<>();
+    for (String match : factory.match(spec)) {
+      matched.add(new FileMetadata(
+          match, factory.getSizeBytes(match), factory.isReadSeekEfficient(match)));
+    }
+    return matched;
+  }
 }
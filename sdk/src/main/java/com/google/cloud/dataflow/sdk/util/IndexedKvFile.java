@@ -0,0 +1,539 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CoderException;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local file of encoded key-value pairs with an in-memory hash index,
+ * which supports looking up the values of a key by reading and decoding
+ * only the records of that key.
+ *
+ * <p> The file starts with a header holding the number of records and the
+ * number of distinct keys, as two longs.  Each record holds the varint
+ * length of the encoded key, the encoded key, the varint length of the
+ * encoded value and the encoded value.  The index holds the hash of the
+ * encoded key, the offset and the length of every record, sorted by hash,
+ * which takes 16 bytes per record.  Keys are compared in encoded form, so
+ * the key {@link Coder} must be deterministic.
+ *
+ * <p> All reads go through a single channel, using positioned reads, so
+ * concurrent lookups don't contend on a lock.  The indexed file owns its
+ * file: closing it closes the channel and deletes the file, and an indexed
+ * file that becomes unreachable without being closed is closed the next
+ * time another indexed file is written.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class IndexedKvFile<K, V> implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(IndexedKvFile.class);
+
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+  private static final int HEADER_BYTES = 16;
+
+  // The resources of every indexed file that has not been closed, which
+  // keeps their references alive until they are enqueued.
+  private static final Set<Resources> OPEN =
+      Collections.newSetFromMap(new ConcurrentHashMap<Resources, Boolean>());
+
+  // The queue of references to indexed files which have been collected by
+  // the garbage collector.  This queue should only be used with references
+  // of class Resources.
+  private static final ReferenceQueue<IndexedKvFile<?, ?>> UNREACHABLE =
+      new ReferenceQueue<>();
+
+  private final File file;
+  private final FileChannel channel;
+  private final Resources resources;
+  private final Coder<K> keyCoder;
+  private final Coder<V> valueCoder;
+  private final int[] hashes;
+  private final long[] offsets;
+  private final int[] lengths;
+  private final long keyCount;
+
+  /**
+   * Writes the given key-value pairs to a new temporary file on local disk,
+   * and returns the indexed file.
+   */
+  public static <K, V> IndexedKvFile<K, V> writeTemporary(Iterable<KV<K, V>> entries,
+      Coder<K> keyCoder, Coder<V> valueCoder) throws IOException {
+    File file = File.createTempFile("indexed-kv-", ".dat");
+    file.deleteOnExit();
+    return write(file, entries, keyCoder, valueCoder);
+  }
+
+  /**
+   * Writes the given key-value pairs to the given local file, and returns
+   * the indexed file, which deletes the file when it is closed.
+   */
+  public static <K, V> IndexedKvFile<K, V> write(File file, Iterable<KV<K, V>> entries,
+      Coder<K> keyCoder, Coder<V> valueCoder) throws IOException {
+    closeUnreachable();
+
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      return write(file, channel, entries, keyCoder, valueCoder);
+    } catch (IOException | RuntimeException e) {
+      try {
+        channel.close();
+      } catch (IOException closeException) {
+        LOG.warn("Failed to close {}", file, closeException);
+      }
+      file.delete();
+      throw e;
+    }
+  }
+
+  private static <K, V> IndexedKvFile<K, V> write(File file, FileChannel channel,
+      Iterable<KV<K, V>> entries, Coder<K> keyCoder, Coder<V> valueCoder)
+      throws IOException {
+    // Pairs the hash of each record with its position in the file, so that
+    // sorting them by hash yields the order of the index.
+    long[] hashesAndPositions = new long[16];
+    long[] offsets = new long[16];
+    int[] lengths = new int[16];
+    int count = 0;
+    long offset = HEADER_BYTES;
+    channel.position(HEADER_BYTES);
+    // Not closed, since that would close the channel.
+    OutputStream output = new BufferedOutputStream(Channels.newOutputStream(channel));
+    for (KV<K, V> entry : entries) {
+      byte[] key = CoderUtils.encodeToByteArray(keyCoder, entry.getKey());
+      byte[] value = CoderUtils.encodeToByteArray(valueCoder, entry.getValue());
+      VarInt.encode(key.length, output);
+      output.write(key);
+      VarInt.encode(value.length, output);
+      output.write(value);
+      int length = VarInt.getLength(key.length) + key.length
+          + VarInt.getLength(value.length) + value.length;
+
+      if (count == offsets.length) {
+        hashesAndPositions = Arrays.copyOf(hashesAndPositions, count * 2);
+        offsets = Arrays.copyOf(offsets, count * 2);
+        lengths = Arrays.copyOf(lengths, count * 2);
+      }
+      hashesAndPositions[count] = ((long) hash(key) << 32) | count;
+      offsets[count] = offset;
+      lengths[count] = length;
+      count++;
+      offset += length;
+    }
+    output.flush();
+
+    Arrays.sort(hashesAndPositions, 0, count);
+    int[] sortedHashes = new int[count];
+    long[] sortedOffsets = new long[count];
+    int[] sortedLengths = new int[count];
+    for (int i = 0; i < count; i++) {
+      int position = (int) hashesAndPositions[i];
+      sortedHashes[i] = (int) (hashesAndPositions[i] >> 32);
+      sortedOffsets[i] = offsets[position];
+      sortedLengths[i] = lengths[position];
+    }
+
+    long keyCount = countKeys(file, channel, sortedHashes, sortedOffsets, sortedLengths);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putLong(count).putLong(keyCount).flip();
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
+    return new IndexedKvFile<>(file, channel, keyCoder, valueCoder,
+        sortedHashes, sortedOffsets, sortedLengths, keyCount);
+  }
+
+  /**
+   * Returns the number of distinct keys of the indexed records, comparing
+   * only the keys of records with equal hashes.
+   */
+  private static long countKeys(File file, FileChannel channel,
+      int[] hashes, long[] offsets, int[] lengths) throws IOException {
+    long keyCount = 0;
+    int i = 0;
+    while (i < hashes.length) {
+      int end = i + 1;
+      while (end < hashes.length && hashes[end] == hashes[i]) {
+        end++;
+      }
+      if (end - i == 1) {
+        keyCount++;
+      } else {
+        Set<ByteBuffer> keys = new HashSet<>();
+        for (int j = i; j < end; j++) {
+          DataInputStream record = new DataInputStream(new ByteArrayInputStream(
+              readRecord(file, channel, offsets[j], lengths[j])));
+          byte[] key = new byte[VarInt.decodeInt(record)];
+          record.readFully(key);
+          keys.add(ByteBuffer.wrap(key));
+        }
+        keyCount += keys.size();
+      }
+      i = end;
+    }
+    return keyCount;
+  }
+
+  private IndexedKvFile(File file, FileChannel channel, Coder<K> keyCoder,
+      Coder<V> valueCoder, int[] hashes, long[] offsets, int[] lengths, long keyCount) {
+    this.file = file;
+    this.channel = channel;
+    this.resources = new Resources(this, file, channel);
+    this.keyCoder = keyCoder;
+    this.valueCoder = valueCoder;
+    this.hashes = hashes;
+    this.offsets = offsets;
+    this.lengths = lengths;
+    this.keyCount = keyCount;
+  }
+
+  private static int hash(byte[] encodedKey) {
+    return HASH_FUNCTION.hashBytes(encodedKey).asInt();
+  }
+
+  /**
+   * Returns the values of the given key, in the order they were written.
+   */
+  public List<V> get(K key) throws IOException {
+    byte[] encodedKey = CoderUtils.encodeToByteArray(keyCoder, key);
+    int hash = hash(encodedKey);
+    int i = Arrays.binarySearch(hashes, hash);
+    if (i < 0) {
+      return Collections.emptyList();
+    }
+    while (i > 0 && hashes[i - 1] == hash) {
+      i--;
+    }
+    List<V> values = new ArrayList<>();
+    for (; i < hashes.length && hashes[i] == hash; i++) {
+      DataInputStream record = new DataInputStream(
+          new ByteArrayInputStream(readRecord(file, channel, offsets[i], lengths[i])));
+      byte[] recordKey = new byte[VarInt.decodeInt(record)];
+      record.readFully(recordKey);
+      if (Arrays.equals(encodedKey, recordKey)) {
+        values.add(readValue(record));
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Returns the number of records in the file.
+   */
+  public int size() {
+    return hashes.length;
+  }
+
+  /**
+   * Returns the number of distinct keys in the file.
+   */
+  public long getKeyCount() {
+    return keyCount;
+  }
+
+  /**
+   * Returns the memory used by the index of the file.
+   */
+  public long getIndexBytes() {
+    return 16L * hashes.length;
+  }
+
+  /**
+   * Returns all key-value pairs, read sequentially from the file.
+   */
+  public Iterable<KV<K, V>> entries() {
+    return new Iterable<KV<K, V>>() {
+      @Override
+      public Iterator<KV<K, V>> iterator() {
+        return new EntryIterator(new BufferedInputStream(
+            new FileChannelInputStream(channel, HEADER_BYTES)));
+      }
+    };
+  }
+
+  /**
+   * Returns a map view of the values of each key.  Looking up a key reads
+   * only its records; iterating over the map reads the whole file and
+   * holds all of its entries in memory.
+   */
+  public Map<K, Iterable<V>> asMultimap() {
+    return new IndexedMap<Iterable<V>>() {
+      @Override
+      protected Iterable<V> toMapValue(List<V> values) {
+        return values;
+      }
+    };
+  }
+
+  /**
+   * Returns a map view of the single value of each key.  Looking up a key
+   * with more than one value throws {@link IllegalArgumentException}.
+   */
+  public Map<K, V> asMap() {
+    return new IndexedMap<V>() {
+      @Override
+      protected V toMapValue(List<V> values) {
+        if (values.size() > 1) {
+          throw new IllegalArgumentException("Duplicate values for a key");
+        }
+        return values.get(0);
+      }
+    };
+  }
+
+  /**
+   * Deletes the file, while letting the readers that still hold this
+   * indexed file read it through the open channel, where the file system
+   * allows that.  The channel is closed when this indexed file is closed,
+   * or once it becomes unreachable.
+   */
+  public void delete() {
+    resources.delete();
+  }
+
+  /**
+   * Closes the channel and deletes the file.  Reading the file afterwards
+   * fails.
+   */
+  @Override
+  public void close() {
+    resources.close();
+  }
+
+  /**
+   * Closes the indexed files which have been collected by the garbage
+   * collector without being closed.
+   */
+  private static void closeUnreachable() {
+    for (Reference<?> reference = UNREACHABLE.poll();
+         reference != null;
+         reference = UNREACHABLE.poll()) {
+      ((Resources) reference).close();
+    }
+  }
+
+  private static byte[] readRecord(File file, FileChannel channel, long offset, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new CoderException("Unexpected end of file " + file);
+      }
+    }
+    return buffer.array();
+  }
+
+  private V readValue(DataInputStream record) throws IOException {
+    byte[] value = new byte[VarInt.decodeInt(record)];
+    record.readFully(value);
+    return CoderUtils.decodeFromByteArray(valueCoder, value);
+  }
+
+  private class EntryIterator implements Iterator<KV<K, V>> {
+    private final DataInputStream input;
+    private int remaining = hashes.length;
+
+    private EntryIterator(InputStream input) {
+      this.input = new DataInputStream(input);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    @Override
+    public KV<K, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      try {
+        byte[] key = new byte[VarInt.decodeInt(input)];
+        input.readFully(key);
+        V value = readValue(input);
+        remaining--;
+        return KV.of(CoderUtils.decodeFromByteArray(keyCoder, key), value);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * The channel and the file of an indexed file, which are closed and
+   * deleted once the indexed file becomes unreachable, if not before.
+   */
+  private static class Resources extends PhantomReference<IndexedKvFile<?, ?>> {
+    private final File file;
+    private final FileChannel channel;
+
+    private Resources(IndexedKvFile<?, ?> indexedFile, File file, FileChannel channel) {
+      super(indexedFile, UNREACHABLE);
+      this.file = file;
+      this.channel = channel;
+      OPEN.add(this);
+    }
+
+    private void delete() {
+      if (!file.delete() && file.exists()) {
+        LOG.warn("Failed to delete {}", file);
+      }
+    }
+
+    private void close() {
+      OPEN.remove(this);
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close {}", file, e);
+      }
+      delete();
+    }
+  }
+
+  /**
+   * A read-only map backed by the file.
+   */
+  private abstract class IndexedMap<T> extends AbstractMap<K, T>
+      implements SideInputCache.Sized {
+    private Map<K, T> contents;
+
+    protected abstract T toMapValue(List<V> values);
+
+    @Override
+    public T get(Object key) {
+      List<V> values = lookup(key);
+      return values.isEmpty() ? null : toMapValue(values);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return !lookup(key).isEmpty();
+    }
+
+    @Override
+    public Set<Map.Entry<K, T>> entrySet() {
+      return new AbstractSet<Map.Entry<K, T>>() {
+        @Override
+        public Iterator<Map.Entry<K, T>> iterator() {
+          return Collections.unmodifiableMap(readContents()).entrySet().iterator();
+        }
+
+        @Override
+        public int size() {
+          return IndexedMap.this.size();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(Integer.MAX_VALUE, keyCount);
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return keyCount == 0;
+    }
+
+    @Override
+    public long getSizeBytes() {
+      return getIndexBytes();
+    }
+
+    @Override
+    public void release() {
+      delete();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<V> lookup(Object key) {
+      try {
+        return IndexedKvFile.this.get((K) key);
+      } catch (ClassCastException e) {
+        return Collections.emptyList();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private synchronized Map<K, T> readContents() {
+      if (contents == null) {
+        Map<K, List<V>> grouped = new LinkedHashMap<>();
+        for (KV<K, V> entry : entries()) {
+          List<V> values = grouped.get(entry.getKey());
+          if (values == null) {
+            values = new ArrayList<>();
+            grouped.put(entry.getKey(), values);
+          }
+          values.add(entry.getValue());
+        }
+        Map<K, T> result = new LinkedHashMap<>();
+        for (Map.Entry<K, List<V>> entry : grouped.entrySet()) {
+          result.put(entry.getKey(), toMapValue(entry.getValue()));
+        }
+        contents = result;
+      }
+      return contents;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only {@link SeekableByteChannel} over a file, which reads the file
+ * through memory-mapped windows instead of a system call per read.
+ *
+ * <p> A single {@link MappedByteBuffer} can map at most 2GB, so the file is
+ * mapped one window at a time, and the window is remapped when a read
+ * leaves it.  The size of the file is taken when the channel is created;
+ * bytes appended later are not read.
+ */
+class MappedFileChannel implements SeekableByteChannel {
+  static final long DEFAULT_WINDOW_BYTES = 64L << 20;
+
+  private final FileChannel channel;
+  private final long size;
+  private final long windowBytes;
+  private long position;
+  // The currently mapped region of the file, or null if none is mapped.
+  private MappedByteBuffer window;
+  private long windowStart;
+
+  MappedFileChannel(FileChannel channel) throws IOException {
+    this(channel, DEFAULT_WINDOW_BYTES);
+  }
+
+  MappedFileChannel(FileChannel channel, long windowBytes) throws IOException {
+    Preconditions.checkArgument(windowBytes > 0 && windowBytes <= Integer.MAX_VALUE,
+        "Invalid window size %s", windowBytes);
+    this.channel = channel;
+    this.size = channel.size();
+    this.windowBytes = windowBytes;
+    this.position = channel.position();
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    checkOpen();
+    if (position >= size) {
+      return -1;
+    }
+    if (window == null || position < windowStart
+        || position >= windowStart + window.capacity()) {
+      windowStart = position;
+      window = channel.map(
+          FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowBytes, size - windowStart));
+    }
+    ByteBuffer src = window.duplicate();
+    src.position((int) (position - windowStart));
+    int bytesRead = Math.min(dst.remaining(), src.remaining());
+    src.limit(src.position() + bytesRead);
+    dst.put(src);
+    position += bytesRead;
+    return bytesRead;
+  }
+
+  @Override
+  public long position() throws IOException {
+    checkOpen();
+    return position;
+  }
+
+  @Override
+  public SeekableByteChannel position(long newPosition) throws IOException {
+    checkOpen();
+    Preconditions.checkArgument(newPosition >= 0, "Negative position %s", newPosition);
+    position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+    checkOpen();
+    return size;
+  }
+
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public SeekableByteChannel truncate(long newSize) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The mapping is released once the window is garbage collected.
+    window = null;
+    channel.close();
+  }
+
+  private void checkOpen() throws ClosedChannelException {
+    if (!channel.isOpen()) {
+      throw new ClosedChannelException();
+    }
+  }
+}
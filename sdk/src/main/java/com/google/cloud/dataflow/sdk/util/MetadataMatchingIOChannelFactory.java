@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.cloud.dataflow.sdk.util;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An {@link IOChannelFactory} that can return the metadata of the
+ * resources matching a specification along with the match itself.
+ *
+ * <p>Use {@link IOChannelUtils#matchWithMetadata} to match the
+ * specification of any factory, which looks up the metadata of every match
+ * separately for factories not implementing this interface.
+ */
+public interface MetadataMatchingIOChannelFactory extends IOChannelFactory {
+  /**
+   * Matches a specification like {@link #match}, and returns the metadata
+   * of every match.
+   *
+   * <p>Implementations should take the metadata from the listing used to
+   * match the specification, rather than looking up every match
+   * separately, so that large file patterns can be expanded and sized in a
+   * single pass.
+   */
+  List<FileMetadata> matchWithMetadata(String spec) throws IOException;
+}
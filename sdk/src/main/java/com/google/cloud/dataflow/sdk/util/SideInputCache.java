@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.SUM;
+
+import com.google.cloud.dataflow.sdk.util.common.Counter;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
+import com.google.cloud.dataflow.sdk.values.PCollectionView;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * A worker-wide cache of materialized side inputs, which lets all work
+ * items and {@code DoFn} instances on a worker share the value of a
+ * {@link PCollectionView} instead of reading its contents and building
+ * the value again for every bundle.
+ *
+ * <p> Values are cached by the identity of the sources the side input is
+ * read from and the tag of the view.  Only values that were built by
+ * reading all of their contents are kept; lazy views, such as iterables,
+ * are rebuilt every time, since they hold little memory and read their
+ * contents on demand.  The total size of the cache is bounded by an
+ * estimate of the memory used by the cached values; the least recently
+ * used values are evicted first.
+ */
+public class SideInputCache {
+  public static final String HITS_COUNTER = "SideInputCacheHits";
+  public static final String MISSES_COUNTER = "SideInputCacheMisses";
+  public static final String EVICTIONS_COUNTER = "SideInputCacheEvictions";
+
+  // The assumed minimum memory used by each element of a materialized side
+  // input.
+  static final int ELEMENT_BYTES = 64;
+
+  // The assumed ratio between the memory used by a materialized side input
+  // and the encoded size of its contents.
+  static final int EXPANSION = 3;
+
+  // Values are weighed in kilobytes, so that even large values fit into the
+  // cache's int weights.
+  private static final int WEIGHT_UNIT_BYTES = 1024;
+
+  private final Cache<Key, Value> cache;
+  private final AtomicLong weight = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  // Evictions not yet reported in a counter.
+  private final AtomicLong unreportedEvictions = new AtomicLong();
+
+  /**
+   * Creates a SideInputCache holding values using an estimated total of at
+   * most {@code maxWeightBytes} of memory.
+   */
+  public SideInputCache(long maxWeightBytes) {
+    this.cache = CacheBuilder.newBuilder()
+        // Side inputs are looked up once per bundle, and a single segment
+        // lets one value use the whole budget.
+        .concurrencyLevel(1)
+        .maximumWeight(toWeightUnits(maxWeightBytes))
+        .weigher(new Weigher<Key, Value>() {
+            @Override
+            public int weigh(Key key, Value value) {
+              return (int) Math.min(Integer.MAX_VALUE, toWeightUnits(value.weight));
+            }
+          })
+        .removalListener(new RemovalListener<Key, Value>() {
+            @Override
+            public void onRemoval(RemovalNotification<Key, Value> notification) {
+              weight.addAndGet(-notification.getValue().weight);
+              if (notification.getValue().value instanceof Sized) {
+                ((Sized) notification.getValue().value).release();
+              }
+              if (notification.wasEvicted()) {
+                evictions.incrementAndGet();
+                unreportedEvictions.incrementAndGet();
+              }
+            }
+          })
+        .build();
+  }
+
+  private static long toWeightUnits(long bytes) {
+    return (bytes + WEIGHT_UNIT_BYTES - 1) / WEIGHT_UNIT_BYTES;
+  }
+
+  /**
+   * Returns the contents of a side input read from the sources identified
+   * by {@code sourceKey}, whose materialized values are cached in this
+   * cache.  {@code sourceKey} must implement value equality.
+   *
+   * @param estimatedSizeBytes the estimated encoded size of the contents,
+   * or 0 if unknown
+   * @param counterPrefix the prefix of the names of the counters reporting
+   * the cache hits and misses of the contents
+   */
+  public <T> Contents<T> contents(
+      Object sourceKey, long estimatedSizeBytes, Iterable<T> elements, String counterPrefix) {
+    return new Contents<>(this, sourceKey, estimatedSizeBytes, elements, counterPrefix);
+  }
+
+  /**
+   * Returns the estimated memory used by the cached values.
+   */
+  public long getWeight() {
+    return weight.get();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  private <T> T get(final Contents<?> contents, final PCollectionView<T, ?> view,
+      CounterSet.AddCounterMutator addCounterMutator) {
+    final Key key = new Key(contents.sourceKey, view.getTagInternal().getId());
+    final boolean[] loaded = new boolean[1];
+    Value value;
+    try {
+      value = cache.get(key, new Callable<Value>() {
+          @Override
+          public Value call() {
+            loaded[0] = true;
+            return materialize(contents, view);
+          }
+        });
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+
+    if (loaded[0]) {
+      misses.incrementAndGet();
+      addCounterMutator.addCounter(
+          Counter.longs(contents.counterPrefix + MISSES_COUNTER, SUM)).addValue(1L);
+      if (value.weight == 0) {
+        // Lazy values are not worth keeping.
+        cache.asMap().remove(key, value);
+      }
+    } else {
+      hits.incrementAndGet();
+      addCounterMutator.addCounter(
+          Counter.longs(contents.counterPrefix + HITS_COUNTER, SUM)).addValue(1L);
+    }
+    long evicted = unreportedEvictions.getAndSet(0);
+    if (evicted > 0) {
+      addCounterMutator.addCounter(
+          Counter.longs(contents.counterPrefix + EVICTIONS_COUNTER, SUM)).addValue(evicted);
+    }
+
+    @SuppressWarnings("unchecked")
+    T result = (T) value.value;
+    return result;
+  }
+
+  private <T> Value materialize(Contents<?> contents, PCollectionView<T, ?> view) {
+    CountingIterable<WindowedValue<?>> elements =
+        new CountingIterable<>(contents.<WindowedValue<?>>elements());
+    T result = view.fromIterableInternal(elements);
+    long bytes;
+    if (!elements.exhausted) {
+      bytes = 0;
+    } else if (result instanceof Sized) {
+      bytes = Math.max(1, ((Sized) result).getSizeBytes());
+    } else {
+      bytes = Math.max(1, Math.max(elements.count * ELEMENT_BYTES,
+              contents.estimatedSizeBytes * EXPANSION));
+    }
+    Value value = new Value(result, bytes);
+    weight.addAndGet(value.weight);
+    return value;
+  }
+
+  /**
+   * A materialized side input that knows how much memory it uses, such as
+   * one that keeps most of its data outside of the heap.
+   */
+  public interface Sized {
+    /**
+     * Returns the memory used by this value.
+     */
+    long getSizeBytes();
+
+    /**
+     * Releases the resources this value holds outside of the heap, once it
+     * is removed from the cache.  Readers that still hold the value may
+     * keep using it.
+     */
+    void release();
+  }
+
+  /**
+   * The contents of a side input whose materialized values are cached in a
+   * {@link SideInputCache}.
+   */
+  public static class Contents<T> implements Iterable<T> {
+    private final SideInputCache cache;
+    private final Object sourceKey;
+    private final long estimatedSizeBytes;
+    private final Iterable<T> elements;
+    private final String counterPrefix;
+
+    private Contents(SideInputCache cache, Object sourceKey, long estimatedSizeBytes,
+        Iterable<T> elements, String counterPrefix) {
+      this.cache = cache;
+      this.sourceKey = sourceKey;
+      this.estimatedSizeBytes = estimatedSizeBytes;
+      this.elements = elements;
+      this.counterPrefix = counterPrefix;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return elements.iterator();
+    }
+
+    /**
+     * Returns the value of the given view of these contents, from the cache
+     * if possible, and reports the cache hit or miss in the given counters.
+     */
+    public <V> V materialize(
+        PCollectionView<V, ?> view, CounterSet.AddCounterMutator addCounterMutator) {
+      return cache.get(this, view, addCounterMutator);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <E> Iterable<E> elements() {
+      return (Iterable<E>) elements;
+    }
+  }
+
+  /**
+   * An iterable that counts the elements returned by its iterators, and
+   * whether any of them reached the end.
+   */
+  private static class CountingIterable<T> implements Iterable<T> {
+    private final Iterable<T> elements;
+    private long count;
+    private boolean exhausted;
+
+    private CountingIterable(Iterable<T> elements) {
+      this.elements = elements;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      final Iterator<T> iterator = elements.iterator();
+      return new Iterator<T>() {
+        @Override
+        public boolean hasNext() {
+          boolean hasNext = iterator.hasNext();
+          exhausted |= !hasNext;
+          return hasNext;
+        }
+
+        @Override
+        public T next() {
+          count++;
+          return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  private static class Key {
+    private final Object sourceKey;
+    private final String viewId;
+
+    private Key(Object sourceKey, String viewId) {
+      this.sourceKey = sourceKey;
+      this.viewId = viewId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) other;
+      return sourceKey.equals(that.sourceKey) && viewId.equals(that.viewId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(sourceKey, viewId);
+    }
+  }
+
+  private static class Value {
+    @Nullable private final Object value;
+    // The estimated memory used by the value, in bytes.
+    private final long weight;
+
+    private Value(@Nullable Object value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+}
@@ -22,6 +22,7 @@ import com.google.cloud.dataflow.sdk.runners.worker.StreamingDataflowWorker;
 import com.google.cloud.dataflow.sdk.runners.worker.windmill.Windmill;
 import com.google.cloud.dataflow.sdk.runners.worker.windmill.WindmillServerStub;
 import com.google.cloud.dataflow.sdk.values.CodedTupleTag;
+import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.protobuf.ByteString;
 
 import java.io.IOException;
@@ -34,7 +35,7 @@ import java.util.Map;
  * Class responsible for fetching state from the windmill server.
  */
 public class StateFetcher {
-  private WindmillServerStub server;
+  protected final WindmillServerStub server;
 
   public StateFetcher(WindmillServerStub server) {
     this.server = server;
@@ -44,6 +45,21 @@ public class StateFetcher {
       String computation, ByteString key, long workToken, String prefix,
       List<? extends CodedTupleTag<?>> tags) throws CoderException, IOException {
     Map<CodedTupleTag<?>, Object> resultMap = new HashMap<>();
+    for (Map.Entry<CodedTupleTag<?>, KV<?, ByteString>> entry :
+             fetchEncoded(computation, key, workToken, prefix, tags).entrySet()) {
+      resultMap.put(entry.getKey(), entry.getValue().getKey());
+    }
+    return resultMap;
+  }
+
+  /**
+   * Like {@link #fetch}, but returns the encoded form of each value along
+   * with the decoded value.  The encoded form of absent values is empty.
+   */
+  public Map<CodedTupleTag<?>, KV<?, ByteString>> fetchEncoded(
+      String computation, ByteString key, long workToken, String prefix,
+      List<? extends CodedTupleTag<?>> tags) throws CoderException, IOException {
+    Map<CodedTupleTag<?>, KV<?, ByteString>> resultMap = new HashMap<>();
     if (tags.isEmpty()) {
       return resultMap;
     }
@@ -62,34 +78,17 @@ public class StateFetcher {
       tagMap.put(tagString, tag);
     }
 
-    Windmill.GetDataResponse response = server.getData(
-        Windmill.GetDataRequest.newBuilder()
-        .addRequests(
-            Windmill.ComputationGetDataRequest.newBuilder()
-            .setComputationId(computation)
-            .addRequests(requestBuilder.build())
-            .build())
-        .build());
-
-    if (response.getDataCount() != 1
-        || !response.getData(0).getComputationId().equals(computation)
-        || response.getData(0).getDataCount() != 1
-        || !response.getData(0).getData(0).getKey().equals(key)) {
-      throw new IOException("Invalid data response, expected single computation and key");
-    }
-    Windmill.KeyedGetDataResponse keyResponse = response.getData(0).getData(0);
-    if (keyResponse.getFailed()) {
-      throw new StreamingDataflowWorker.KeyTokenInvalidException(key.toStringUtf8());
-    }
+    Windmill.KeyedGetDataResponse keyResponse = getKeyedData(computation, requestBuilder.build());
 
     for (Windmill.TagValue tv : keyResponse.getValuesList()) {
       CodedTupleTag<?> tag = tagMap.get(tv.getTag());
       if (tag != null) {
         if (tv.getValue().hasData() && !tv.getValue().getData().isEmpty()) {
-          resultMap.put(tag, tag.getCoder().decode(tv.getValue().getData().newInput(),
-                  Coder.Context.OUTER));
+          ByteString data = tv.getValue().getData();
+          resultMap.put(tag, KV.of(tag.getCoder().decode(data.newInput(), Coder.Context.OUTER),
+                  data));
         } else {
-          resultMap.put(tag, null);
+          resultMap.put(tag, KV.of(null, ByteString.EMPTY));
         }
       }
     }
@@ -102,46 +101,65 @@ public class StateFetcher {
       throws IOException {
 
     ByteString tagString = ByteString.copyFromUtf8(prefix + tag.getId());
-    Windmill.GetDataRequest request = Windmill.GetDataRequest.newBuilder()
+    Windmill.KeyedGetDataRequest request = Windmill.KeyedGetDataRequest.newBuilder()
+        .setKey(key)
+        .setWorkToken(workToken)
+        .addListsToFetch(
+            Windmill.TagList.newBuilder()
+            .setTag(tagString)
+            .setEndTimestamp(Long.MAX_VALUE)
+            .build())
+        .build();
+
+    Windmill.KeyedGetDataResponse keyResponse = getKeyedData(computation, request);
+
+    // The response may hold other lists fetched for the same key.
+    Windmill.TagList tagList = null;
+    for (Windmill.TagList list : keyResponse.getListsList()) {
+      if (list.getTag().equals(tagString)) {
+        tagList = list;
+        break;
+      }
+    }
+    if (tagList == null) {
+      throw new IOException("Expected list for tag " + tagString);
+    }
+    List<T> result = new ArrayList<>();
+    for (Windmill.Value value : tagList.getValuesList()) {
+      result.add(tag.getCoder().decode(value.getData().newInput(), Coder.Context.OUTER));
+    }
+
+    return result;
+  }
+
+  /**
+   * Fetches the data requested for a single key of the given computation.
+   *
+   * @throws StreamingDataflowWorker.KeyTokenInvalidException if the work
+   * token of the request is no longer valid
+   */
+  protected Windmill.KeyedGetDataResponse getKeyedData(
+      String computation, Windmill.KeyedGetDataRequest request) throws IOException {
+    Windmill.GetDataResponse response = server.getData(
+        Windmill.GetDataRequest.newBuilder()
         .addRequests(
             Windmill.ComputationGetDataRequest.newBuilder()
             .setComputationId(computation)
-            .addRequests(
-                Windmill.KeyedGetDataRequest.newBuilder()
-                .setKey(key)
-                .setWorkToken(workToken)
-                .addListsToFetch(
-                    Windmill.TagList.newBuilder()
-                    .setTag(tagString)
-                    .setEndTimestamp(Long.MAX_VALUE)
-                    .build())
-                .build())
+            .addRequests(request)
             .build())
-        .build();
-
-    Windmill.GetDataResponse response = server.getData(request);
+        .build());
 
+    ByteString key = request.getKey();
     if (response.getDataCount() != 1
         || !response.getData(0).getComputationId().equals(computation)
         || response.getData(0).getDataCount() != 1
         || !response.getData(0).getData(0).getKey().equals(key)) {
-      throw new IOException("Invalid data response, expected single computation and key\n");
+      throw new IOException("Invalid data response, expected single computation and key");
     }
-
     Windmill.KeyedGetDataResponse keyResponse = response.getData(0).getData(0);
     if (keyResponse.getFailed()) {
       throw new StreamingDataflowWorker.KeyTokenInvalidException(key.toStringUtf8());
     }
-    if (keyResponse.getListsCount() != 1
-        || !keyResponse.getLists(0).getTag().equals(tagString)) {
-      throw new IOException("Expected single list for tag " + tagString);
-    }
-    Windmill.TagList tagList = keyResponse.getLists(0);
-    List<T> result = new ArrayList<>();
-    for (Windmill.Value value : tagList.getValuesList()) {
-      result.add(tag.getCoder().decode(value.getData().newInput(), Coder.Context.OUTER));
-    }
-
-    return result;
+    return keyResponse;
   }
 }
@@ -26,6 +26,8 @@ import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.common.base.Preconditions;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 
 /**
  * DoFn that merges windows and groups elements in those windows.
@@ -64,6 +66,29 @@ public class StreamingGroupAlsoByWindowsDoFn<K, VI, VO, W extends BoundedWindow>
     return new StreamingGroupAlsoByWindowsDoFn<>(windowFn, combineFn, keyCoder, inputValueCoder);
   }
 
+  /**
+   * Describes the state read for every work item by a
+   * StreamingGroupAlsoByWindowsDoFn with the given WindowFn: the set of
+   * active windows, and the buffered values or accumulator of each window
+   * whose timer fires.
+   */
+  public static BatchingStateFetcher.PrefetchSpec getStatePrefetchSpec(
+      WindowFn<?, ?> windowFn, boolean combining) {
+    if (combining) {
+      return BatchingStateFetcher.PrefetchSpec
+          .of(Arrays.asList(CombiningWindowSet.WINDOW_LIST_TAG_ID))
+          .withTimerValues(WindowUtils.BUFFER_TAG_PREFIX);
+    } else if (windowFn instanceof PartitioningWindowFn) {
+      return BatchingStateFetcher.PrefetchSpec
+          .of(Collections.<String>emptyList())
+          .withTimerLists(WindowUtils.BUFFER_TAG_PREFIX);
+    } else {
+      return BatchingStateFetcher.PrefetchSpec
+          .of(Arrays.asList(BufferingWindowSet.MERGE_TREE_TAG_ID))
+          .withTimerLists(WindowUtils.BUFFER_TAG_PREFIX);
+    }
+  }
+
   private AbstractWindowSet<K, VI, VO, W> createWindowSet(
       K key,
       DoFnProcessContext<?, KV<K, VO>> context,
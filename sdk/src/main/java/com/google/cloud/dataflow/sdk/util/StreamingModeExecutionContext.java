@@ -95,6 +95,26 @@ public class StreamingModeExecutionContext extends ExecutionContext {
     }
   }
 
+  /**
+   * Registers the state read by the given step for every work item, so that
+   * it can be prefetched when work items are dispatched, if the state
+   * fetcher supports that.
+   */
+  public void addStatePrefetchSpec(String stepName, BatchingStateFetcher.PrefetchSpec spec) {
+    if (stateFetcher instanceof BatchingStateFetcher) {
+      ((BatchingStateFetcher) stateFetcher).addPrefetchSpec(
+          computation, statePrefix(stepName), spec);
+    }
+  }
+
+  /**
+   * Returns the prefix of the state tags of the given step.
+   */
+  static String statePrefix(String stepName) {
+    // Mangle such that there are no partially overlapping prefixes.
+    return stepName.length() + ":" + stepName;
+  }
+
   public Map<CodedTupleTag<?>, Object> lookupState(
       String prefix, List<? extends CodedTupleTag<?>> tags) throws CoderException, IOException {
     return stateFetcher.fetch(computation, getSerializedKey(), getWorkToken(), prefix, tags);
@@ -107,8 +127,7 @@ public class StreamingModeExecutionContext extends ExecutionContext {
 
     public StepContext(String stepName) {
       super(stepName);
-      // Mangle such that there are no partially overlapping prefixes.
-      this.mangledPrefix = stepName.length() + ":" + stepName;
+      this.mangledPrefix = statePrefix(stepName);
     }
 
     @Override
@@ -105,11 +105,7 @@ public class VarInt {
    * Returns the length of the encoding of the given value (in bytes).
    */
   public static int getLength(long v) {
-    int result = 0;
-    do {
-      result++;
-      v >>>= 7;
-    } while (v != 0);
-    return result;
+    // Each byte holds 7 bits of the value, and at least one byte is used.
+    return (64 - Long.numberOfLeadingZeros(v | 1) + 6) / 7;
   }
 }
@@ -29,7 +29,7 @@ import java.io.IOException;
  * Utility functions related to serializing windows.
  */
 class WindowUtils {
-  private static final String BUFFER_TAG_PREFIX = "buffer:";
+  static final String BUFFER_TAG_PREFIX = "buffer:";
 
   /**
    * Converts the given window to a base64-encoded String using the given coder.
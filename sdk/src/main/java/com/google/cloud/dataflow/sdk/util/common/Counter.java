@@ -224,6 +224,40 @@ public abstract class Counter<T> {
   /** Resets the counter's delta value to have no values accumulated. */
   public abstract void resetDelta();
 
+  /**
+   * Merges the total aggregation of that compatible Counter into this
+   * Counter, as if the values added to that Counter had been added to
+   * this one. Returns this (to allow method chaining).
+   *
+   * @throws IllegalArgumentException if that Counter is not compatible
+   * with this Counter
+   */
+  public synchronized Counter<T> merge(Counter<T> that) {
+    if (!isCompatibleWith(that)) {
+      throw new IllegalArgumentException(
+          "Cannot merge " + that + " into incompatible counter " + this);
+    }
+    switch (kind) {
+      case MEAN:
+        long thatCount = that.getTotalCount();
+        if (thatCount > 0) {
+          // Adding the sum counts one value; account for the others.
+          addValue(that.getTotalAggregate());
+          count += thatCount - 1;
+          deltaCount += thatCount - 1;
+        }
+        break;
+      case SET:
+        for (T value : that.getTotalSetCopy()) {
+          addValue(value);
+        }
+        break;
+      default:
+        addValue(that.getTotalAggregate());
+    }
+    return this;
+  }
+
   /**
    * Returns the counter's name.
    */
@@ -725,5 +759,6 @@ public abstract class Counter<T> {
   synchronized long getTotalCount() { return count; }
   synchronized long getDeltaCount() { return deltaCount; }
   synchronized Set<T> getTotalSet() { return set; }
+  synchronized Set<T> getTotalSetCopy() { return new HashSet<>(set); }
   synchronized Set<T> getDeltaSet() { return deltaSet; }
 }
@@ -99,6 +99,27 @@ public class CounterSet extends AbstractSet<Counter<?>> {
     return add(counter);
   }
 
+  /**
+   * Merges the counters of the given CounterSet into this CounterSet,
+   * adding those that do not exist here yet and merging the values of
+   * those that do.
+   *
+   * @throws IllegalArgumentException if a counter with the same name but
+   * an incompatible kind had already been added
+   */
+  public void merge(CounterSet that) {
+    for (Counter<?> counter : that) {
+      mergeCounter(counter);
+    }
+  }
+
+  private <T> void mergeCounter(Counter<T> counter) {
+    Counter<T> existingCounter = addOrReuseCounter(counter);
+    if (existingCounter != counter) {
+      existingCounter.merge(counter);
+    }
+  }
+
   /**
    * Returns the Counter with the given name in this CounterSet;
    * returns null if no such Counter exists.
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+
+package com.google.cloud.dataflow.sdk.util.common.worker;
+
+import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.MAX;
+import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.MEAN;
+import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.SUM;
+
+import com.google.cloud.dataflow.sdk.util.common.Counter;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.GroupingTable;
+
+/**
+ * A grouping table that adapts the size of an underlying grouping table to
+ * how well grouping is actually working.
+ *
+ * <p> Each time the underlying table outputs entries because it filled up,
+ * the combine ratio since the previous such flush (the number of input
+ * elements divided by the number of output pairs) is observed:
+ * <ul>
+ *   <li> If the ratio is high, keys are repeating and a larger table lets
+ *   even more of them be combined, so the table is grown.
+ *   <li> If the ratio is low, the table is shrunk.
+ *   <li> If the ratio stays close to 1 even at the minimum size, hashing and
+ *   size estimation are pure overhead, so the table is bypassed entirely
+ *   for a while: each element is output immediately as a group of its own.
+ *   Afterwards, grouping is resumed at the minimum size to measure again.
+ * </ul>
+ *
+ * <p> The input, output and bypassed element counts, the observed combine
+ * ratios and the table size are reported as counters.
+ */
+public class AdaptiveGroupingTable implements GroupingTable {
+
+  /**
+   * At or above this combine ratio, the table is grown.
+   */
+  public static final double GROW_RATIO = 2.0;
+
+  /**
+   * Below this combine ratio, the table is shrunk.
+   */
+  public static final double SHRINK_RATIO = 1.25;
+
+  /**
+   * Below this combine ratio at the minimum table size, the table is
+   * bypassed.
+   */
+  public static final double BYPASS_RATIO = 1.05;
+
+  /**
+   * The number of elements passed through while bypassing the table
+   * before grouping is tried again.
+   */
+  public static final long DEFAULT_BYPASS_ELEMENTS = 1_000_000L;
+
+  private final GroupingTable table;
+  private final long minSize;
+  private final long maxSize;
+  private final long bypassElements;
+  private final CountingReceiver countingReceiver = new CountingReceiver();
+
+  private long currentMaxSize;
+  private long bypassRemaining = 0;
+
+  // Counts since the underlying table last had to output entries.
+  private long inputsSinceFlush = 0;
+  private long outputsSinceFlush = 0;
+  private boolean observedFlush = false;
+
+  private final Counter<Long> inputCount;
+  private final Counter<Long> outputCount;
+  private final Counter<Long> bypassedCount;
+  private final Counter<Double> combineRatio;
+  private final Counter<Long> tableMaxBytes;
+
+  /**
+   * Creates an AdaptiveGroupingTable whose size starts at
+   * {@code initialSize} and varies between {@code minSize} and
+   * {@code maxSize}.  Since the table may grow to {@code maxSize}, that is
+   * the memory budget of the table, not a multiple of it.
+   */
+  public AdaptiveGroupingTable(GroupingTable table,
+                               long initialSize,
+                               long minSize,
+                               long maxSize,
+                               long bypassElements,
+                               String counterPrefix,
+                               String operationName,
+                               CounterSet.AddCounterMutator addCounterMutator) {
+    this.table = table;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.bypassElements = bypassElements;
+    this.inputCount = addCounterMutator.addCounter(
+        Counter.longs(counterPrefix + operationName + "-GroupingTableInputElements", SUM));
+    this.outputCount = addCounterMutator.addCounter(
+        Counter.longs(counterPrefix + operationName + "-GroupingTableOutputPairs", SUM));
+    this.bypassedCount = addCounterMutator.addCounter(
+        Counter.longs(counterPrefix + operationName + "-GroupingTableBypassedElements", SUM));
+    this.combineRatio = addCounterMutator.addCounter(
+        Counter.doubles(counterPrefix + operationName + "-GroupingTableCombineRatio", MEAN));
+    this.tableMaxBytes = addCounterMutator.addCounter(
+        Counter.longs(counterPrefix + operationName + "-GroupingTableMaxBytes", MAX));
+    setMaxSize(initialSize);
+  }
+
+  @Override
+  public void put(Object pair, Receiver receiver) throws Exception {
+    if (bypassRemaining > 0) {
+      bypassRemaining--;
+      bypassedCount.addValue(1L);
+      outputUngrouped(pair, receiver);
+      return;
+    }
+
+    inputCount.addValue(1L);
+    countingReceiver.receiver = receiver;
+    inputsSinceFlush++;
+    long outputsBefore = outputsSinceFlush;
+    table.put(pair, countingReceiver);
+    if (outputsSinceFlush > outputsBefore) {
+      adapt();
+    }
+  }
+
+  @Override
+  public void outputUngrouped(Object pair, Receiver receiver) throws Exception {
+    inputCount.addValue(1L);
+    outputCount.addValue(1L);
+    table.outputUngrouped(pair, receiver);
+  }
+
+  @Override
+  public void flush(Receiver receiver) throws Exception {
+    countingReceiver.receiver = receiver;
+    table.flush(countingReceiver);
+    inputsSinceFlush = 0;
+    outputsSinceFlush = 0;
+    observedFlush = false;
+  }
+
+  @Override
+  public void setMaxSize(long maxSize) {
+    currentMaxSize = maxSize;
+    table.setMaxSize(maxSize);
+    tableMaxBytes.addValue(maxSize);
+  }
+
+  @Override
+  public long getSize() {
+    return table.getSize();
+  }
+
+  /**
+   * Returns the current maximum size of the underlying table.
+   */
+  public long getCurrentMaxSize() {
+    return currentMaxSize;
+  }
+
+  /**
+   * Returns whether the underlying table is currently bypassed.
+   */
+  public boolean isBypassed() {
+    return bypassRemaining > 0;
+  }
+
+  /**
+   * Resizes or bypasses the table according to the combine ratio since
+   * the previous time the table filled up.
+   */
+  private void adapt() throws Exception {
+    double ratio = (double) inputsSinceFlush / outputsSinceFlush;
+    inputsSinceFlush = 0;
+    outputsSinceFlush = 0;
+    if (!observedFlush) {
+      // The first time the table fills up, the entries that remain in it
+      // account for most of the inputs, so the ratio isn't meaningful yet.
+      observedFlush = true;
+      return;
+    }
+    combineRatio.addValue(ratio);
+
+    if (ratio >= GROW_RATIO) {
+      setMaxSize(Math.min(maxSize, currentMaxSize * 2));
+    } else if (ratio < BYPASS_RATIO && currentMaxSize <= minSize) {
+      // Output everything that is still buffered, since those elements
+      // would otherwise wait for the end of the bypass.
+      table.flush(countingReceiver);
+      outputsSinceFlush = 0;
+      observedFlush = false;
+      bypassRemaining = bypassElements;
+    } else if (ratio < SHRINK_RATIO) {
+      setMaxSize(Math.max(minSize, currentMaxSize / 2));
+    }
+  }
+
+  /**
+   * Counts the pairs output by the underlying table before forwarding them.
+   */
+  private class CountingReceiver implements Receiver {
+    Receiver receiver;
+
+    @Override
+    public void process(Object outputElem) throws Exception {
+      outputsSinceFlush++;
+      outputCount.addValue(1L);
+      receiver.process(outputElem);
+    }
+  }
+}
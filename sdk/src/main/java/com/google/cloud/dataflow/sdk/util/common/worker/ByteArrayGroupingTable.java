@@ -0,0 +1,610 @@
+/*******************************************************************************
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+
+package com.google.cloud.dataflow.sdk.util.common.worker;
+
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.Combiner;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.ElementCodec;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.GroupingKeyCreator;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.GroupingTable;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.PairInfo;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.StructuralByteArray;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A grouping table that stores its keys and values in encoded form in a
+ * small number of large byte arrays, indexed by an open-addressing hash
+ * table of primitive arrays.
+ *
+ * <p> Compared to the {@code HashMap}-based tables in
+ * {@link PartialGroupByKeyOperation}, this table retains no objects per key
+ * or per value while buffering, and its size is the exact number of bytes
+ * it holds rather than an estimate, so many more distinct keys fit into the
+ * same memory budget.  Each insertion still allocates short-lived objects:
+ * the grouping key created by the {@link GroupingKeyCreator} and whatever
+ * the {@link PairInfo} and the codecs allocate.  The table stores each new
+ * key twice, as its grouping key bytes and as its encoded key, and every
+ * key and value is encoded on insertion and decoded on output.
+ *
+ * <p> The grouping keys produced by the {@link GroupingKeyCreator} must be
+ * {@link StructuralByteArray}s; keys are considered equal if their grouping
+ * key bytes are equal.  Since entries are never removed individually, the
+ * table is flushed entirely whenever it fills up.
+ *
+ * @param <K> the type of the keys
+ * @param <VI> the type of the input values
+ */
+public abstract class ByteArrayGroupingTable<K, VI> implements GroupingTable {
+
+  /**
+   * The default number of bytes in each page of the arena.
+   */
+  public static final int DEFAULT_PAGE_SIZE = 1 << 20;
+
+  // The maximum fraction of index slots that may be in use before the
+  // index is grown.
+  private static final double MAX_INDEX_LOAD = 0.7;
+
+  private static final int INITIAL_INDEX_SLOTS = 1 << 10;
+
+  // Marks the absence of an address in the arena.
+  static final long NO_ADDRESS = -1L;
+
+  private final GroupingKeyCreator<? super K> groupingKeyCreator;
+  private final PairInfo pairInfo;
+  private final ElementCodec<K> keyCodec;
+
+  final Arena arena;
+  final ExposedByteArrayOutputStream scratch = new ExposedByteArrayOutputStream();
+
+  private long maxSize;
+
+  // The open-addressing index.  Each slot holds one plus the number of an
+  // entry, or zero if the slot is empty.
+  private int[] slots = new int[INITIAL_INDEX_SLOTS];
+
+  // Per-entry state, in insertion order.
+  private int numEntries = 0;
+  private int[] hashes = new int[INITIAL_INDEX_SLOTS];
+  private long[] keyAddresses = new long[INITIAL_INDEX_SLOTS];
+  long[] valueAddresses = new long[INITIAL_INDEX_SLOTS];
+  long[] lastValueAddresses = new long[INITIAL_INDEX_SLOTS];
+
+  public ByteArrayGroupingTable(long maxSize,
+                                GroupingKeyCreator<? super K> groupingKeyCreator,
+                                PairInfo pairInfo,
+                                ElementCodec<K> keyCodec,
+                                int pageSize) {
+    this.maxSize = maxSize;
+    this.groupingKeyCreator = groupingKeyCreator;
+    this.pairInfo = pairInfo;
+    this.keyCodec = keyCodec;
+    this.arena = new Arena(pageSize);
+  }
+
+  /**
+   * Stores the first value of a new entry.
+   */
+  abstract void addFirst(int entry, K key, VI value) throws Exception;
+
+  /**
+   * Adds a value to an existing entry.
+   */
+  abstract void add(int entry, K key, VI value) throws Exception;
+
+  /**
+   * Decodes the grouped (or combined) values of the given entry.
+   */
+  abstract Object extract(int entry, K key) throws Exception;
+
+  /**
+   * Returns the grouped (or combined) form of a single value.
+   */
+  abstract Object ungrouped(K key, VI value) throws Exception;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void put(Object pair, Receiver receiver) throws Exception {
+    put((K) pairInfo.getKeyFromInputPair(pair),
+        (VI) pairInfo.getValueFromInputPair(pair),
+        receiver);
+  }
+
+  /**
+   * Adds the key and value to this table, flushing the table to output
+   * if it is full.
+   */
+  public void put(K key, VI value, Receiver receiver) throws Exception {
+    Object groupingKey = groupingKeyCreator.createGroupingKey(key);
+    if (!(groupingKey instanceof StructuralByteArray)) {
+      throw new IllegalArgumentException(
+          "ByteArrayGroupingTable requires StructuralByteArray grouping keys, got "
+          + groupingKey);
+    }
+    byte[] groupingBytes = ((StructuralByteArray) groupingKey).getValue();
+    int hash = hash(groupingBytes);
+    int entry = lookup(groupingBytes, hash);
+    if (entry < 0) {
+      entry = insert(key, groupingBytes, hash);
+      addFirst(entry, key, value);
+    } else {
+      add(entry, key, value);
+    }
+
+    if (getSize() >= maxSize) {
+      flush(receiver);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void outputUngrouped(Object pair, Receiver receiver) throws Exception {
+    K key = (K) pairInfo.getKeyFromInputPair(pair);
+    receiver.process(pairInfo.makeOutputPair(
+        key, ungrouped(key, (VI) pairInfo.getValueFromInputPair(pair))));
+  }
+
+  @Override
+  public void flush(Receiver receiver) throws Exception {
+    for (int entry = 0; entry < numEntries; entry++) {
+      K key = decodeKey(entry);
+      receiver.process(pairInfo.makeOutputPair(key, extract(entry, key)));
+    }
+    clear();
+  }
+
+  @Override
+  public void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the number of bytes used in the arena, plus the size of the
+   * index and the per-entry arrays.
+   */
+  @Override
+  public long getSize() {
+    return arena.getUsedBytes()
+        + 4L * slots.length
+        + (4L + 8L + 8L + 8L) * hashes.length;
+  }
+
+  /**
+   * Returns the number of distinct keys currently in this table.
+   */
+  public int getNumEntries() {
+    return numEntries;
+  }
+
+  /**
+   * Discards all entries, releasing the pages and the index arrays that
+   * were grown beyond their initial size, so that a table that once held a
+   * large bundle does not keep that memory.
+   */
+  private void clear() {
+    if (slots.length > INITIAL_INDEX_SLOTS) {
+      slots = new int[INITIAL_INDEX_SLOTS];
+    } else {
+      Arrays.fill(slots, 0);
+    }
+    if (hashes.length > INITIAL_INDEX_SLOTS) {
+      hashes = new int[INITIAL_INDEX_SLOTS];
+      keyAddresses = new long[INITIAL_INDEX_SLOTS];
+      valueAddresses = new long[INITIAL_INDEX_SLOTS];
+      lastValueAddresses = new long[INITIAL_INDEX_SLOTS];
+    }
+    numEntries = 0;
+    arena.reset();
+  }
+
+  /**
+   * Returns the number of the entry with the given grouping key, or -1 if
+   * there is none.
+   */
+  private int lookup(byte[] groupingBytes, int hash) {
+    int mask = slots.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int entry = slots[slot] - 1;
+      if (entry < 0) {
+        return -1;
+      }
+      if (hashes[entry] == hash && groupingKeyEquals(entry, groupingBytes)) {
+        return entry;
+      }
+    }
+  }
+
+  private int insert(K key, byte[] groupingBytes, int hash) throws Exception {
+    if (numEntries + 1 > MAX_INDEX_LOAD * slots.length) {
+      growIndex();
+    }
+    if (numEntries == hashes.length) {
+      growEntries();
+    }
+    int entry = numEntries++;
+
+    // Key records are laid out as
+    // [grouping key length][grouping key][key length][encoded key].
+    scratch.reset();
+    keyCodec.encode(key, scratch);
+    long address = arena.allocate(4 + groupingBytes.length + 4 + scratch.size());
+    int offset = arena.writeInt(address, groupingBytes.length);
+    offset = arena.writeBytes(address, offset, groupingBytes, 0, groupingBytes.length);
+    offset = arena.writeInt(address, offset, scratch.size());
+    arena.writeBytes(address, offset, scratch.buffer(), 0, scratch.size());
+
+    hashes[entry] = hash;
+    keyAddresses[entry] = address;
+    valueAddresses[entry] = NO_ADDRESS;
+    lastValueAddresses[entry] = NO_ADDRESS;
+
+    int mask = slots.length - 1;
+    int slot = hash & mask;
+    while (slots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = entry + 1;
+    return entry;
+  }
+
+  private boolean groupingKeyEquals(int entry, byte[] groupingBytes) {
+    long address = keyAddresses[entry];
+    byte[] page = arena.page(address);
+    int offset = Arena.offset(address);
+    if (Arena.readInt(page, offset) != groupingBytes.length) {
+      return false;
+    }
+    offset += 4;
+    for (int i = 0; i < groupingBytes.length; i++) {
+      if (page[offset + i] != groupingBytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private K decodeKey(int entry) throws Exception {
+    long address = keyAddresses[entry];
+    byte[] page = arena.page(address);
+    int offset = Arena.offset(address);
+    offset += 4 + Arena.readInt(page, offset);
+    int length = Arena.readInt(page, offset);
+    return keyCodec.decode(new ByteArrayInputStream(page, offset + 4, length));
+  }
+
+  private void growIndex() {
+    int[] newSlots = new int[slots.length * 2];
+    int mask = newSlots.length - 1;
+    for (int entry = 0; entry < numEntries; entry++) {
+      int slot = hashes[entry] & mask;
+      while (newSlots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      newSlots[slot] = entry + 1;
+    }
+    slots = newSlots;
+  }
+
+  private void growEntries() {
+    int newLength = hashes.length * 2;
+    hashes = Arrays.copyOf(hashes, newLength);
+    keyAddresses = Arrays.copyOf(keyAddresses, newLength);
+    valueAddresses = Arrays.copyOf(valueAddresses, newLength);
+    lastValueAddresses = Arrays.copyOf(lastValueAddresses, newLength);
+  }
+
+  /**
+   * Hashes the given bytes, spreading the result so that the low-order bits
+   * used to pick index slots are well distributed.
+   */
+  static int hash(byte[] bytes) {
+    int h = Arrays.hashCode(bytes);
+    // The finalization step of MurmurHash3.
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /**
+   * A ByteArrayOutputStream that allows access to its internal buffer,
+   * so encoded elements can be copied into the arena without an
+   * intermediate array.
+   */
+  static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    byte[] buffer() {
+      return buf;
+    }
+  }
+
+  /**
+   * An append-only region of memory made up of large byte array pages.
+   *
+   * <p> Allocations never span pages: an allocation that doesn't fit in the
+   * remainder of the current page starts a new one, and an allocation larger
+   * than a page gets a page of its own.  An address packs the page number
+   * into its high 32 bits and the offset within the page into its low
+   * 32 bits.  Only the first regular-sized page is retained and reused
+   * after {@link #reset}.
+   */
+  static class Arena {
+    private final int pageSize;
+    private final List<byte[]> pages = new ArrayList<>();
+    private int currentPage = -1;
+    private int position = 0;
+    private long usedBytes = 0;
+
+    Arena(int pageSize) {
+      this.pageSize = pageSize;
+    }
+
+    long getUsedBytes() {
+      return usedBytes;
+    }
+
+    /**
+     * Returns the address of a new region of the given number of bytes.
+     */
+    long allocate(int length) {
+      if (currentPage < 0 || position + length > pages.get(currentPage).length) {
+        nextPage(length);
+      }
+      long address = ((long) currentPage << 32) | position;
+      position += length;
+      usedBytes += length;
+      return address;
+    }
+
+    private void nextPage(int minLength) {
+      currentPage++;
+      position = 0;
+      if (currentPage < pages.size() && pages.get(currentPage).length >= minLength) {
+        return;
+      }
+      byte[] page = new byte[Math.max(pageSize, minLength)];
+      if (currentPage < pages.size()) {
+        pages.set(currentPage, page);
+      } else {
+        pages.add(page);
+      }
+    }
+
+    /**
+     * Discards all allocations, releasing every page but the first
+     * regular-sized one.
+     */
+    void reset() {
+      if (!pages.isEmpty() && pages.get(0).length == pageSize) {
+        pages.subList(1, pages.size()).clear();
+      } else {
+        pages.clear();
+      }
+      currentPage = -1;
+      position = 0;
+      usedBytes = 0;
+    }
+
+    byte[] page(long address) {
+      return pages.get((int) (address >>> 32));
+    }
+
+    static int offset(long address) {
+      return (int) address;
+    }
+
+    int writeInt(long address, int value) {
+      return writeInt(address, offset(address), value);
+    }
+
+    /**
+     * Writes an int at the given offset within the page of the given
+     * address, returning the offset just past it.
+     */
+    int writeInt(long address, int offset, int value) {
+      byte[] page = page(address);
+      page[offset] = (byte) (value >>> 24);
+      page[offset + 1] = (byte) (value >>> 16);
+      page[offset + 2] = (byte) (value >>> 8);
+      page[offset + 3] = (byte) value;
+      return offset + 4;
+    }
+
+    /**
+     * Writes a long at the given offset within the page of the given
+     * address, returning the offset just past it.
+     */
+    int writeLong(long address, int offset, long value) {
+      writeInt(address, offset, (int) (value >>> 32));
+      return writeInt(address, offset + 4, (int) value);
+    }
+
+    /**
+     * Copies bytes to the given offset within the page of the given
+     * address, returning the offset just past them.
+     */
+    int writeBytes(long address, int offset, byte[] bytes, int from, int length) {
+      System.arraycopy(bytes, from, page(address), offset, length);
+      return offset + length;
+    }
+
+    static int readInt(byte[] page, int offset) {
+      return ((page[offset] & 0xff) << 24)
+          | ((page[offset + 1] & 0xff) << 16)
+          | ((page[offset + 2] & 0xff) << 8)
+          | (page[offset + 3] & 0xff);
+    }
+
+    static long readLong(byte[] page, int offset) {
+      return ((long) readInt(page, offset) << 32) | (readInt(page, offset + 4) & 0xffffffffL);
+    }
+  }
+
+  /**
+   * A byte array grouping table that buffers all inserted values.
+   *
+   * <p> The values of each key are kept as a linked list of value records
+   * of the form [address of next record][value length][encoded value].
+   */
+  public static class Buffering<K, V> extends ByteArrayGroupingTable<K, V> {
+    private final ElementCodec<V> valueCodec;
+
+    public Buffering(long maxSize,
+                     GroupingKeyCreator<? super K> groupingKeyCreator,
+                     PairInfo pairInfo,
+                     ElementCodec<K> keyCodec,
+                     ElementCodec<V> valueCodec) {
+      this(maxSize, groupingKeyCreator, pairInfo, keyCodec, valueCodec, DEFAULT_PAGE_SIZE);
+    }
+
+    public Buffering(long maxSize,
+                     GroupingKeyCreator<? super K> groupingKeyCreator,
+                     PairInfo pairInfo,
+                     ElementCodec<K> keyCodec,
+                     ElementCodec<V> valueCodec,
+                     int pageSize) {
+      super(maxSize, groupingKeyCreator, pairInfo, keyCodec, pageSize);
+      this.valueCodec = valueCodec;
+    }
+
+    @Override
+    void addFirst(int entry, K key, V value) throws Exception {
+      add(entry, key, value);
+    }
+
+    @Override
+    void add(int entry, K key, V value) throws Exception {
+      scratch.reset();
+      valueCodec.encode(value, scratch);
+      long address = arena.allocate(8 + 4 + scratch.size());
+      int offset = arena.writeLong(address, Arena.offset(address), NO_ADDRESS);
+      offset = arena.writeInt(address, offset, scratch.size());
+      arena.writeBytes(address, offset, scratch.buffer(), 0, scratch.size());
+
+      long last = lastValueAddresses[entry];
+      if (last == NO_ADDRESS) {
+        valueAddresses[entry] = address;
+      } else {
+        arena.writeLong(last, Arena.offset(last), address);
+      }
+      lastValueAddresses[entry] = address;
+    }
+
+    @Override
+    List<V> ungrouped(K key, V value) {
+      List<V> values = new ArrayList<>(1);
+      values.add(value);
+      return values;
+    }
+
+    @Override
+    List<V> extract(int entry, K key) throws Exception {
+      List<V> values = new ArrayList<>();
+      for (long address = valueAddresses[entry]; address != NO_ADDRESS; ) {
+        byte[] page = arena.page(address);
+        int offset = Arena.offset(address);
+        int length = Arena.readInt(page, offset + 8);
+        values.add(valueCodec.decode(new ByteArrayInputStream(page, offset + 12, length)));
+        address = Arena.readLong(page, offset);
+      }
+      return values;
+    }
+  }
+
+  /**
+   * A byte array grouping table that uses the given combiner to combine
+   * values in place.
+   *
+   * <p> The accumulator of each key is kept in a record of the form
+   * [capacity][accumulator length][encoded accumulator].  An accumulator
+   * that outgrows its record is moved to a new, larger one; the old record
+   * stays allocated until the table is flushed.
+   */
+  public static class Combining<K, VI, VA> extends ByteArrayGroupingTable<K, VI> {
+    private final Combiner<? super K, VI, VA, ?> combiner;
+    private final ElementCodec<VA> accumulatorCodec;
+
+    public Combining(long maxSize,
+                     GroupingKeyCreator<? super K> groupingKeyCreator,
+                     PairInfo pairInfo,
+                     Combiner<? super K, VI, VA, ?> combiner,
+                     ElementCodec<K> keyCodec,
+                     ElementCodec<VA> accumulatorCodec) {
+      this(maxSize, groupingKeyCreator, pairInfo, combiner, keyCodec, accumulatorCodec,
+          DEFAULT_PAGE_SIZE);
+    }
+
+    public Combining(long maxSize,
+                     GroupingKeyCreator<? super K> groupingKeyCreator,
+                     PairInfo pairInfo,
+                     Combiner<? super K, VI, VA, ?> combiner,
+                     ElementCodec<K> keyCodec,
+                     ElementCodec<VA> accumulatorCodec,
+                     int pageSize) {
+      super(maxSize, groupingKeyCreator, pairInfo, keyCodec, pageSize);
+      this.combiner = combiner;
+      this.accumulatorCodec = accumulatorCodec;
+    }
+
+    @Override
+    void addFirst(int entry, K key, VI value) throws Exception {
+      store(entry, combiner.add(key, combiner.createAccumulator(key), value));
+    }
+
+    @Override
+    void add(int entry, K key, VI value) throws Exception {
+      store(entry, combiner.add(key, extract(entry, key), value));
+    }
+
+    private void store(int entry, VA accumulator) throws Exception {
+      scratch.reset();
+      accumulatorCodec.encode(accumulator, scratch);
+      int length = scratch.size();
+
+      long address = valueAddresses[entry];
+      if (address == NO_ADDRESS
+          || Arena.readInt(arena.page(address), Arena.offset(address)) < length) {
+        // Leave some room for the accumulator to grow.
+        int capacity = length + length / 2;
+        address = arena.allocate(4 + 4 + capacity);
+        arena.writeInt(address, capacity);
+        valueAddresses[entry] = address;
+      }
+      int offset = arena.writeInt(address, Arena.offset(address) + 4, length);
+      arena.writeBytes(address, offset, scratch.buffer(), 0, length);
+    }
+
+    @Override
+    VA ungrouped(K key, VI value) {
+      return combiner.add(key, combiner.createAccumulator(key), value);
+    }
+
+    @Override
+    VA extract(int entry, K key) throws Exception {
+      long address = valueAddresses[entry];
+      byte[] page = arena.page(address);
+      int offset = Arena.offset(address);
+      int length = Arena.readInt(page, offset + 4);
+      return accumulatorCodec.decode(new ByteArrayInputStream(page, offset + 8, length));
+    }
+  }
+}
@@ -16,16 +16,25 @@
 
 package com.google.cloud.dataflow.sdk.util.common.worker;
 
+import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.MEAN;
+import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.SUM;
+
+import com.google.cloud.dataflow.sdk.util.common.Counter;
 import com.google.cloud.dataflow.sdk.util.common.CounterSet;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
+import javax.annotation.Nullable;
+
 /**
  * A partial group-by-key operation.
  */
@@ -64,6 +73,74 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
     public VO extract(K key, VA accumulator);
   }
 
+  /**
+   * Provides client-specific operations for encoding elements to, and
+   * decoding elements from, bytes.
+   */
+  public interface ElementCodec<E> {
+    public void encode(E element, OutputStream outStream) throws Exception;
+    public E decode(InputStream inStream) throws Exception;
+  }
+
+  /**
+   * A table that groups (and possibly combines) the values of input pairs
+   * by key, outputting its entries to a receiver when it fills up or when
+   * it is flushed.
+   */
+  public interface GroupingTable {
+    /**
+     * Adds a pair to this table, possibly outputting some entries to the
+     * receiver if the table is full.
+     */
+    public void put(Object pair, Receiver receiver) throws Exception;
+
+    /**
+     * Outputs the given pair to the receiver as a group of its own, without
+     * adding it to this table.
+     */
+    public void outputUngrouped(Object pair, Receiver receiver) throws Exception;
+
+    /**
+     * Outputs all entries in this table to the receiver.
+     */
+    public void flush(Receiver receiver) throws Exception;
+
+    /**
+     * Sets the maximum number of bytes this table may consume before
+     * entries are output.
+     */
+    public void setMaxSize(long maxSize);
+
+    /**
+     * Returns the number of bytes this table currently consumes.
+     */
+    public long getSize();
+  }
+
+  /**
+   * Policies for choosing the keys a full grouping table outputs to make
+   * room for new ones.
+   */
+  public enum EvictionPolicy {
+    /**
+     * Evicts keys in hash table order.
+     */
+    ARBITRARY,
+
+    /**
+     * Evicts the keys that were least recently updated, keeping recently
+     * active keys resident.
+     */
+    LEAST_RECENTLY_UPDATED,
+
+    /**
+     * Evicts the keys with the fewest values, as judged against a sample
+     * of the table, keeping frequently occurring keys resident.  The key
+     * being added is never evicted while other keys remain.
+     */
+    LEAST_FREQUENTLY_UPDATED
+  }
+
   /**
    * A wrapper around a byte[] that uses structural, value-based
    * equality rather than byte[]'s normal object identity.
@@ -100,7 +177,7 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
 
   // By default, how many bytes we allow the grouping table to consume before
   // it has to be flushed.
-  static final long DEFAULT_MAX_GROUPING_TABLE_BYTES = 100_000_000L;
+  public static final long DEFAULT_MAX_GROUPING_TABLE_BYTES = 100_000_000L;
 
   // How many bytes a word in the JVM has.
   static final int BYTES_PER_JVM_WORD = getBytesPerJvmWord();
@@ -121,7 +198,7 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
    */
   static final int PER_KEY_OVERHEAD = 24 * BYTES_PER_JVM_WORD;
 
-  final GroupingTable<Object, Object, Object> groupingTable;
+  final GroupingTable groupingTable;
 
   @SuppressWarnings("unchecked")
   public PartialGroupByKeyOperation(
@@ -133,10 +210,26 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
       String counterPrefix,
       CounterSet.AddCounterMutator addCounterMutator,
       StateSampler stateSampler) {
+    this(operationName,
+        new BufferingGroupingTable(
+            DEFAULT_MAX_GROUPING_TABLE_BYTES, groupingKeyCreator,
+            pairInfo, keySizeEstimator, valueSizeEstimator),
+        receivers, counterPrefix, addCounterMutator, stateSampler);
+  }
+
+  /**
+   * Creates a PartialGroupByKeyOperation that groups its input using the
+   * given table.
+   */
+  public PartialGroupByKeyOperation(
+      String operationName,
+      GroupingTable groupingTable,
+      OutputReceiver[] receivers,
+      String counterPrefix,
+      CounterSet.AddCounterMutator addCounterMutator,
+      StateSampler stateSampler) {
     super(operationName, receivers, counterPrefix, addCounterMutator, stateSampler);
-    groupingTable = new BufferingGroupingTable(
-        DEFAULT_MAX_GROUPING_TABLE_BYTES, groupingKeyCreator,
-        pairInfo, keySizeEstimator, valueSizeEstimator);
+    this.groupingTable = groupingTable;
   }
 
   @SuppressWarnings("unchecked")
@@ -206,7 +299,7 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
    */
   // @VisibleForTesting
   public void setMaxGroupingTableBytes(long maxSize) {
-    groupingTable.maxSize = maxSize;
+    groupingTable.setMaxSize(maxSize);
   }
 
   /**
@@ -214,7 +307,7 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
    */
   // @VisibleForTesting
   public long getGroupingTableBytes() {
-    return groupingTable.size;
+    return groupingTable.getSize();
   }
 
   /**
@@ -231,25 +324,44 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
     }
   }
 
-  private abstract static class GroupingTable<K, VI, VA> {
+  private abstract static class HashMapGroupingTable<K, VI, VA> implements GroupingTable {
 
     // Keep the table relatively full to increase the chance of collisions.
     private static final double TARGET_LOAD = 0.9;
 
+    // The number of entries examined to pick the eviction threshold of the
+    // LEAST_FREQUENTLY_UPDATED policy.
+    private static final int EVICTION_SAMPLE_SIZE = 256;
+
     private long maxSize;
     private final GroupingKeyCreator<? super K> groupingKeyCreator;
     private final PairInfo pairInfo;
+    private final EvictionPolicy evictionPolicy;
+    private final int perKeyOverhead;
 
     private long size = 0;
     private Map<Object, GroupingTableEntry<K, VI, VA>> table;
 
-    public GroupingTable(long maxSize,
-                          GroupingKeyCreator<? super K> groupingKeyCreator,
-                          PairInfo pairInfo) {
+    private Counter<Long> evictedEntries = null;
+    private Counter<Long> valuesPerEvictedEntry = null;
+
+    public HashMapGroupingTable(long maxSize,
+                                GroupingKeyCreator<? super K> groupingKeyCreator,
+                                PairInfo pairInfo,
+                                EvictionPolicy evictionPolicy) {
       this.maxSize = maxSize;
       this.groupingKeyCreator = groupingKeyCreator;
       this.pairInfo = pairInfo;
-      this.table = new HashMap<>();
+      this.evictionPolicy = evictionPolicy;
+      if (evictionPolicy == EvictionPolicy.LEAST_RECENTLY_UPDATED) {
+        // An access-ordered LinkedHashMap iterates from the least recently
+        // updated entry, at the cost of two more words per entry.
+        this.table = new LinkedHashMap<>(16, 0.75f, true);
+        this.perKeyOverhead = PER_KEY_OVERHEAD + 2 * BYTES_PER_JVM_WORD;
+      } else {
+        this.table = new HashMap<>();
+        this.perKeyOverhead = PER_KEY_OVERHEAD;
+      }
     }
 
     interface GroupingTableEntry<K, VI, VA> {
@@ -257,6 +369,20 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
       public VA getValue();
       public void add(VI value) throws Exception;
       public long getSize();
+      public long getNumValues();
+    }
+
+    /**
+     * Reports the number of entries evicted from this table to make room,
+     * and the number of values grouped into each of them, to counters
+     * named after the given operation.
+     */
+    public void addEvictionCounters(String counterPrefix, String operationName,
+        CounterSet.AddCounterMutator addCounterMutator) {
+      evictedEntries = addCounterMutator.addCounter(Counter.longs(
+          counterPrefix + operationName + "-GroupingTableEvictedEntries", SUM));
+      valuesPerEvictedEntry = addCounterMutator.addCounter(Counter.longs(
+          counterPrefix + operationName + "-GroupingTableValuesPerEvictedEntry", MEAN));
     }
 
     public abstract GroupingTableEntry<K, VI, VA> createTableEntry(K key) throws Exception;
@@ -265,6 +391,7 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
      * Adds a pair to this table, possibly flushing some entries to output
      * if the table is full.
      */
+    @Override
     @SuppressWarnings("unchecked")
     public void put(Object pair, Receiver receiver) throws Exception {
       put((K) pairInfo.getKeyFromInputPair(pair),
@@ -282,7 +409,7 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
       if (entry == null) {
         entry = createTableEntry(key);
         table.put(groupingKey, entry);
-        size += PER_KEY_OVERHEAD;
+        size += perKeyOverhead;
       } else {
         size -= entry.getSize();
       }
@@ -290,21 +417,91 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
       size += entry.getSize();
 
       if (size >= maxSize) {
-        long targetSize = (long) (TARGET_LOAD * maxSize);
-        Iterator<GroupingTableEntry<K, VI, VA>> entries =
-            table.values().iterator();
-        while (size >= targetSize) {
-          if (!entries.hasNext()) {
+        evict((long) (TARGET_LOAD * maxSize), entry, receiver);
+      }
+    }
+
+    /**
+     * Outputs and removes entries, chosen according to the eviction policy,
+     * until this table's size is below the target size.
+     */
+    private void evict(long targetSize, GroupingTableEntry<K, VI, VA> updated,
+        Receiver receiver) throws Exception {
+      if (evictionPolicy == EvictionPolicy.LEAST_FREQUENTLY_UPDATED) {
+        // First evict only the entries with few values, then anything.  A
+        // new key has a single value, so the entry just updated is spared
+        // until no other entry is left.
+        evict(targetSize, sampleEvictionThreshold(), updated, receiver);
+        evict(targetSize, Long.MAX_VALUE, updated, receiver);
+      }
+      evict(targetSize, Long.MAX_VALUE, null, receiver);
+    }
+
+    /**
+     * Outputs and removes entries other than the given one with at most the
+     * given number of values, in iteration order, until this table's size
+     * is below the target size.
+     */
+    private void evict(long targetSize, long maxNumValues,
+        @Nullable GroupingTableEntry<K, VI, VA> spared, Receiver receiver) throws Exception {
+      Iterator<GroupingTableEntry<K, VI, VA>> entries = table.values().iterator();
+      while (size >= targetSize) {
+        if (!entries.hasNext()) {
+          if (maxNumValues == Long.MAX_VALUE && spared == null) {
             // Should never happen, but sizes may be estimates...
             size = 0;
-            break;
           }
-          GroupingTableEntry<K, VI, VA> toFlush = entries.next();
-          entries.remove();
-          size -= toFlush.getSize() + PER_KEY_OVERHEAD;
-          output(toFlush, receiver);
+          break;
+        }
+        GroupingTableEntry<K, VI, VA> toFlush = entries.next();
+        if (toFlush == spared || toFlush.getNumValues() > maxNumValues) {
+          continue;
+        }
+        entries.remove();
+        size -= toFlush.getSize() + perKeyOverhead;
+        if (evictedEntries != null) {
+          evictedEntries.addValue(1L);
+          valuesPerEvictedEntry.addValue(toFlush.getNumValues());
+        }
+        output(toFlush, receiver);
+      }
+    }
+
+    /**
+     * Returns a number of values such that roughly the fraction of entries
+     * that has to be evicted has at most that many values, judged against
+     * a sample of the entries.
+     */
+    private long sampleEvictionThreshold() {
+      int sampleSize = Math.min(EVICTION_SAMPLE_SIZE, table.size());
+      if (sampleSize == 0) {
+        return Long.MAX_VALUE;
+      }
+      // Pick evenly spaced entries, since HashMap order is unrelated to
+      // how often keys occur.
+      int stride = table.size() / sampleSize;
+      long[] sample = new long[sampleSize];
+      int sampled = 0;
+      int position = 0;
+      for (GroupingTableEntry<K, VI, VA> entry : table.values()) {
+        if (sampled == sampleSize) {
+          break;
+        }
+        if (position++ % stride == 0) {
+          sample[sampled++] = entry.getNumValues();
         }
       }
+      Arrays.sort(sample, 0, sampled);
+      return sample[(int) ((sampled - 1) * (1 - TARGET_LOAD))];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void outputUngrouped(Object pair, Receiver receiver) throws Exception {
+      GroupingTableEntry<K, VI, VA> entry =
+          createTableEntry((K) pairInfo.getKeyFromInputPair(pair));
+      entry.add((VI) pairInfo.getValueFromInputPair(pair));
+      output(entry, receiver);
     }
 
     /**
@@ -318,6 +515,7 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
     /**
      * Flushes all entries in this table to output.
      */
+    @Override
     public void flush(Receiver output) throws Exception {
       for (GroupingTableEntry<K, VI, VA> entry : table.values()) {
         output(entry, output);
@@ -326,12 +524,22 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
       size = 0;
     }
 
+    @Override
+    public void setMaxSize(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    public long getSize() {
+      return size;
+    }
+
   }
 
   /**
    * A grouping table that simply buffers all inserted values in a list.
    */
-  public static class BufferingGroupingTable<K, V> extends GroupingTable<K, V, List<V>> {
+  public static class BufferingGroupingTable<K, V> extends HashMapGroupingTable<K, V, List<V>> {
 
     public final SizeEstimator<? super K> keySizer;
     public final SizeEstimator<? super V> valueSizer;
@@ -341,7 +549,17 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
                                   PairInfo pairInfo,
                                   SizeEstimator<? super K> keySizer,
                                   SizeEstimator<? super V> valueSizer) {
-      super(maxSize, groupingKeyCreator, pairInfo);
+      this(maxSize, groupingKeyCreator, pairInfo, keySizer, valueSizer,
+          EvictionPolicy.ARBITRARY);
+    }
+
+    public BufferingGroupingTable(long maxSize,
+                                  GroupingKeyCreator<? super K> groupingKeyCreator,
+                                  PairInfo pairInfo,
+                                  SizeEstimator<? super K> keySizer,
+                                  SizeEstimator<? super V> valueSizer,
+                                  EvictionPolicy evictionPolicy) {
+      super(maxSize, groupingKeyCreator, pairInfo, evictionPolicy);
       this.keySizer = keySizer;
       this.valueSizer = valueSizer;
     }
@@ -354,6 +572,7 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
         public K getKey() { return key; }
         public List<V> getValue() { return values; }
         public long getSize() { return size; }
+        public long getNumValues() { return values.size(); }
         public void add(V value) throws Exception {
           values.add(value);
           size += BYTES_PER_JVM_WORD + valueSizer.estimateSize(value);
@@ -365,7 +584,7 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
   /**
    * A grouping table that uses the given combiner to combine values in place.
    */
-  public static class CombiningGroupingTable<K, VI, VA> extends GroupingTable<K, VI, VA> {
+  public static class CombiningGroupingTable<K, VI, VA> extends HashMapGroupingTable<K, VI, VA> {
 
     private final Combiner<? super K, VI, VA, ?> combiner;
     private final SizeEstimator<? super K> keySizer;
@@ -377,7 +596,18 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
                                   Combiner<? super K, VI, VA, ?> combineFn,
                                   SizeEstimator<? super K> keySizer,
                                   SizeEstimator<? super VA> accumulatorSizer) {
-      super(maxSize, groupingKeyCreator, pairInfo);
+      this(maxSize, groupingKeyCreator, pairInfo, combineFn, keySizer, accumulatorSizer,
+          EvictionPolicy.ARBITRARY);
+    }
+
+    public CombiningGroupingTable(long maxSize,
+                                  GroupingKeyCreator<? super K> groupingKeyCreator,
+                                  PairInfo pairInfo,
+                                  Combiner<? super K, VI, VA, ?> combineFn,
+                                  SizeEstimator<? super K> keySizer,
+                                  SizeEstimator<? super VA> accumulatorSizer,
+                                  EvictionPolicy evictionPolicy) {
+      super(maxSize, groupingKeyCreator, pairInfo, evictionPolicy);
       this.combiner =  combineFn;
       this.keySizer = keySizer;
       this.accumulatorSizer = accumulatorSizer;
@@ -389,10 +619,13 @@ public class PartialGroupByKeyOperation extends ReceivingOperation {
         final long keySize = keySizer.estimateSize(key);
         VA accumulator = combiner.createAccumulator(key);
         long accumulatorSize = 0; // never used before a value is added...
+        long numValues = 0;
         public K getKey() { return key; }
         public VA getValue() { return accumulator; }
         public long getSize() { return keySize + accumulatorSize; }
+        public long getNumValues() { return numValues; }
         public void add(VI value) throws Exception {
+          numValues++;
           accumulator = combiner.add(key, accumulator, value);
           accumulatorSize = accumulatorSizer.estimateSize(accumulator);
         }
@@ -0,0 +1,401 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util.gcsio;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.util.Preconditions;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.ComposeRequest;
+import com.google.api.services.storage.model.StorageObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Implements WritableByteChannel to provide write access to GCS, by uploading the written data
+ * as a number of component objects concurrently, and composing them into the object on close.
+ *
+ * <p>The data is cut into parts of a fixed size, and each part is uploaded as a temporary object
+ * as soon as it is full, while the following parts are written. The number of parts held in
+ * memory, being written or uploaded, is bounded by a memory budget; writes block while every part
+ * is in use. Data that fits in a single part is uploaded directly to the object.
+ *
+ * <p>Unlike {@link GoogleCloudStorageWriteChannel}, which streams the data through a single
+ * resumable upload, the throughput of this channel grows with the number of parts uploaded
+ * concurrently. Composed objects have no MD5 hash, only a CRC32C checksum.
+ */
+public class GoogleCloudStorageCompositeWriteChannel implements WritableByteChannel {
+  // Logger.
+  private static final Logger LOG =
+      LoggerFactory.getLogger(GoogleCloudStorageCompositeWriteChannel.class);
+
+  // The maximum number of source objects of a single compose request.
+  static final int MAX_COMPOSE_SOURCES = 32;
+
+  // The prefix of the names of temporary objects. Globs in the bucket's root directory do not
+  // match them, since they are in a subdirectory.
+  static final String TEMPORARY_OBJECT_PREFIX = "dataflow-composite-uploads/";
+
+  private final ExecutorService threadPool;
+  private final Storage gcs;
+  private final String bucketName;
+  private final String objectName;
+  private final String contentType;
+  private final int partSize;
+  private final int maxParts;
+
+  // The prefix of the names of the temporary objects of this upload.
+  private final String temporaryPrefix;
+
+  // The part being written, and the number of bytes written to it, or null if no part is being
+  // written.
+  private byte[] part;
+  private int partLength;
+
+  // Parts that are not in use, and the number of parts allocated.
+  private final BlockingQueue<byte[]> freeParts = new LinkedBlockingQueue<>();
+  private int allocatedParts;
+
+  // The names of the uploaded components, in order, and the uploads of them.
+  private final List<String> components = new ArrayList<>();
+  private final List<Future<?>> uploads = new ArrayList<>();
+
+  // The names of all temporary objects created, to be deleted on close.
+  private final List<String> temporaryObjects = new ArrayList<>();
+
+  // The first failure of an upload, or null.
+  private final AtomicReference<Throwable> uploadFailure = new AtomicReference<>();
+
+  private boolean isOpen = true;
+  private long bytesWritten;
+
+  /**
+   * Constructs an instance of GoogleCloudStorageCompositeWriteChannel.
+   *
+   * @param threadPool thread pool to use for running the uploads
+   * @param gcs storage object instance
+   * @param bucketName name of the bucket to create object in
+   * @param objectName name of the object to create
+   * @param partSize size in bytes of the parts uploaded as component objects
+   * @param bufferBytes largest total size of the parts held in memory; at least two parts are
+   *        always allowed
+   */
+  public GoogleCloudStorageCompositeWriteChannel(
+      ExecutorService threadPool, Storage gcs, String bucketName, String objectName,
+      String contentType, int partSize, long bufferBytes) {
+    Preconditions.checkArgument(partSize > 0, "Part size must be greater than 0.");
+    this.threadPool = threadPool;
+    this.gcs = gcs;
+    this.bucketName = bucketName;
+    this.objectName = objectName;
+    this.contentType = contentType;
+    this.partSize = partSize;
+    this.maxParts = (int) Math.max(2, Math.min(Integer.MAX_VALUE, bufferBytes / partSize));
+    this.temporaryPrefix = TEMPORARY_OBJECT_PREFIX + UUID.randomUUID() + "/";
+  }
+
+  /**
+   * Writes contents of the given buffer to this channel.
+   *
+   * <p>Like {@link GoogleCloudStorageWriteChannel#write}, a successful write does not mean that the
+   * data was uploaded; failed uploads show up as an exception during a subsequent call to write()
+   * or close().
+   */
+  @Override
+  public int write(ByteBuffer buffer) throws IOException {
+    throwIfNotOpen();
+    throwIfUploadFailed();
+
+    int bytesToWrite = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      if (part == null) {
+        part = takePart();
+        partLength = 0;
+      }
+      int length = Math.min(buffer.remaining(), partSize - partLength);
+      buffer.get(part, partLength, length);
+      partLength += length;
+      if (partLength == partSize) {
+        uploadPart();
+      }
+    }
+    bytesWritten += bytesToWrite;
+    return bytesToWrite;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * Closes this channel.
+   *
+   * <p>The method returns only after all data has been uploaded and composed into the object, or
+   * if an upload failed. The temporary objects are deleted in either case.
+   */
+  @Override
+  public void close() throws IOException {
+    throwIfNotOpen();
+    isOpen = false;
+    long startTime = System.currentTimeMillis();
+    try {
+      if (components.isEmpty()) {
+        // All data fits in a single part.
+        insertObject(objectName, part == null ? new byte[0] : part, partLength);
+        return;
+      }
+      if (partLength > 0) {
+        uploadPart();
+      }
+      awaitAll(uploads);
+      composeAll();
+      LOG.debug("Composed {} bytes of {} from {} parts in {} ms after the last write",
+          bytesWritten, getPrintableGCSPath(), components.size(),
+          System.currentTimeMillis() - startTime);
+    } finally {
+      part = null;
+      freeParts.clear();
+      deleteTemporaryObjects();
+    }
+  }
+
+  /**
+   * Returns the names of the temporary objects created by this channel so far.
+   */
+  List<String> getTemporaryObjects() {
+    synchronized (temporaryObjects) {
+      return new ArrayList<>(temporaryObjects);
+    }
+  }
+
+  /**
+   * Uploads the given bytes as the object with the given name.
+   */
+  protected void insertObject(String name, byte[] data, int length) throws IOException {
+    Storage.Objects.Insert insertObject =
+        gcs.objects().insert(bucketName, null, new ByteArrayContent(contentType, data, 0, length));
+    insertObject.setName(name);
+    insertObject.setDisableGZipContent(true);
+    // Parts are small enough to be uploaded in a single request.
+    insertObject.getMediaHttpUploader().setDirectUploadEnabled(true);
+    insertObject.execute();
+  }
+
+  /**
+   * Composes the objects with the given names, in order, into the object with the given name.
+   */
+  protected void composeObjects(List<String> sources, String destination) throws IOException {
+    List<ComposeRequest.SourceObjects> sourceObjects = new ArrayList<>();
+    for (String source : sources) {
+      sourceObjects.add(new ComposeRequest.SourceObjects().setName(source));
+    }
+    ComposeRequest request = new ComposeRequest()
+        .setSourceObjects(sourceObjects)
+        .setDestination(new StorageObject().setContentType(contentType));
+    gcs.objects().compose(bucketName, destination, request).execute();
+  }
+
+  /**
+   * Deletes the object with the given name.
+   */
+  protected void deleteObject(String name) throws IOException {
+    gcs.objects().delete(bucketName, name).execute();
+  }
+
+  /**
+   * Returns a part that is not in use, allocating one if the memory budget allows, or waiting for
+   * an upload to finish otherwise.
+   */
+  private byte[] takePart() throws IOException {
+    byte[] free = freeParts.poll();
+    if (free != null) {
+      return free;
+    }
+    if (allocatedParts < maxParts) {
+      allocatedParts++;
+      return new byte[partSize];
+    }
+    try {
+      free = freeParts.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing to " + getPrintableGCSPath(), e);
+    }
+    // The part may have been freed by a failed upload.
+    throwIfUploadFailed();
+    return free;
+  }
+
+  /**
+   * Starts uploading the part being written as the next component.
+   */
+  private void uploadPart() {
+    final String name = temporaryPrefix + components.size();
+    final byte[] data = part;
+    final int length = partLength;
+    part = null;
+    partLength = 0;
+    components.add(name);
+    synchronized (temporaryObjects) {
+      temporaryObjects.add(name);
+    }
+    uploads.add(threadPool.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        try {
+          insertObject(name, data, length);
+          return null;
+        } catch (IOException | RuntimeException e) {
+          uploadFailure.compareAndSet(null, e);
+          throw e;
+        } finally {
+          freeParts.add(data);
+        }
+      }
+    }));
+  }
+
+  /**
+   * Composes the components into the object, first composing groups of them into temporary
+   * objects if there are more than a single compose request accepts.
+   */
+  private void composeAll() throws IOException {
+    List<String> sources = components;
+    for (int round = 0; sources.size() > MAX_COMPOSE_SOURCES; round++) {
+      List<String> composed = new ArrayList<>();
+      List<Future<?>> composes = new ArrayList<>();
+      for (int i = 0; i < sources.size(); i += MAX_COMPOSE_SOURCES) {
+        final List<String> group =
+            sources.subList(i, Math.min(i + MAX_COMPOSE_SOURCES, sources.size()));
+        final String name = temporaryPrefix + "composed-" + round + "-" + composed.size();
+        composed.add(name);
+        synchronized (temporaryObjects) {
+          temporaryObjects.add(name);
+        }
+        composes.add(threadPool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            composeObjects(group, name);
+            return null;
+          }
+        }));
+      }
+      awaitAll(composes);
+      sources = composed;
+    }
+    composeObjects(sources, objectName);
+  }
+
+  /**
+   * Deletes the temporary objects, once any upload still in progress has finished. Failures are
+   * logged, since the object has been written.
+   */
+  private void deleteTemporaryObjects() {
+    for (Future<?> upload : uploads) {
+      try {
+        upload.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // Reported by close().
+      }
+    }
+    List<Future<?>> deletes = new ArrayList<>();
+    for (final String name : getTemporaryObjects()) {
+      deletes.add(threadPool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          deleteObject(name);
+          return null;
+        }
+      }));
+    }
+    try {
+      awaitAll(deletes);
+    } catch (IOException e) {
+      LOG.warn("Failed to delete the temporary objects of {} under gs://{}/{}",
+          getPrintableGCSPath(), bucketName, temporaryPrefix, e);
+    }
+  }
+
+  /**
+   * Waits for all of the given operations, and throws the failure of the first that failed.
+   */
+  private void awaitAll(List<Future<?>> operations) throws IOException {
+    IOException failure = null;
+    for (Future<?> operation : operations) {
+      try {
+        operation.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while writing to " + getPrintableGCSPath(), e);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = new IOException(
+              String.format("Failed to write to GCS path %s.", getPrintableGCSPath()),
+              e.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Throws if this channel is not currently open.
+   */
+  private void throwIfNotOpen() throws IOException {
+    if (!isOpen()) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  /**
+   * Throws if an upload failed.
+   */
+  private void throwIfUploadFailed() throws IOException {
+    Throwable failure = uploadFailure.get();
+    if (failure != null) {
+      throw new IOException(
+          String.format("Failed to write to GCS path %s.", getPrintableGCSPath()), failure);
+    }
+  }
+
+  /**
+   * Gets the printable GCS path of the current channel.
+   */
+  private String getPrintableGCSPath() {
+    return String.format("gs://%s/%s", bucketName, objectName);
+  }
+}
@@ -16,6 +16,8 @@
 
 package com.google.cloud.dataflow.sdk.util.gcsio;
 
+import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.SUM;
+
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.util.BackOff;
 import com.google.api.client.util.BackOffUtils;
@@ -25,6 +27,10 @@ import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.Sleeper;
 import com.google.api.services.storage.Storage;
 import com.google.cloud.dataflow.sdk.util.ApiErrorExtractor;
+import com.google.cloud.dataflow.sdk.util.CounterReportingChannel;
+import com.google.cloud.dataflow.sdk.util.common.Counter;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
+import com.google.common.io.ByteStreams;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,13 +43,26 @@ import java.nio.channels.Channels;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
 import javax.net.ssl.SSLException;
 
 /**
  * Provides seekable read access to GCS.
  */
-public class GoogleCloudStorageReadChannel implements SeekableByteChannel {
+public class GoogleCloudStorageReadChannel
+    implements SeekableByteChannel, CounterReportingChannel {
   // Logger.
   private static final Logger LOG = LoggerFactory.getLogger(GoogleCloudStorageReadChannel.class);
 
@@ -125,9 +144,63 @@ public class GoogleCloudStorageReadChannel implements SeekableByteChannel {
   // accounting for the randomization of backoff intervals.
   public static final int DEFAULT_BACKOFF_MAX_ELAPSED_TIME_MILLIS = 2 * 60 * 1000;
 
+  /**
+   * The names of the counters of the bytes fetched by ranged reads, of the time spent fetching
+   * them, and of the reopens of read channels, as reported by {@link #reportCountersTo}.
+   */
+  public static final String RANGED_READ_BYTES_COUNTER = "GcsRangedReadBytes";
+  public static final String RANGED_READ_MSECS_COUNTER = "GcsRangedRead-msecs";
+  public static final String REOPENS_COUNTER = "GcsReadReopens";
+
   // ClientRequestHelper to be used instead of calling final methods in client requests.
   private static ClientRequestHelper clientRequestHelper = new ClientRequestHelper();
 
+  // Executor used to fetch blocks of the object at and ahead of the read position, or null if the
+  // object is read through a single sequential stream.
+  private ExecutorService prefetchExecutor;
+
+  // The size of the blocks fetched by ranged reads, and the number of blocks fetched at and ahead
+  // of the read position.
+  private int prefetchBlockSize;
+  private int prefetchBlockCount;
+
+  // The blocks fetched or being fetched, by index. These are the block before the block at the
+  // read position, which is kept for short backward seeks, and the blocks at and ahead of the read
+  // position.
+  private final TreeMap<Long, Future<PrefetchedBlock>> prefetchedBlocks = new TreeMap<>();
+
+  // Whether a stream has been opened, or a block fetched, for a read.
+  private boolean opened;
+
+  // The number of times a stream was opened, or a block was fetched, for a read after the first.
+  private long reopenCount;
+
+  // The number of ranged reads, the number of bytes fetched by them, and their total duration.
+  private final AtomicLong rangedReadCount = new AtomicLong();
+  private final AtomicLong rangedReadBytes = new AtomicLong();
+  private final AtomicLong rangedReadNanos = new AtomicLong();
+
+  // The counters the ranged reads and the reopens of this channel are reported to, if any.
+  @Nullable private Counter<Long> rangedReadBytesCounter;
+  @Nullable private Counter<Long> rangedReadMsecsCounter;
+  @Nullable private Counter<Long> reopenCounter;
+
+  /**
+   * A block of the object fetched by a ranged read.
+   */
+  private static class PrefetchedBlock {
+    final byte[] data;
+    // The size of the object, or -1 if the object is compressed.
+    final long objectSize;
+    final boolean compressed;
+
+    PrefetchedBlock(byte[] data, long objectSize, boolean compressed) {
+      this.data = data;
+      this.objectSize = objectSize;
+      this.compressed = compressed;
+    }
+  }
+
   /**
    * Constructs an instance of GoogleCloudStorageReadChannel.
    *
@@ -225,6 +298,58 @@ public class GoogleCloudStorageReadChannel implements SeekableByteChannel {
     this.maxRetries = maxRetries;
   }
 
+  /**
+   * Makes this channel read the object in blocks of {@code blockSize} bytes, fetching the block at
+   * the read position and up to {@code blockCount - 1} blocks ahead of it concurrently with ranged
+   * reads on the given executor. Must be called before reading from this channel.
+   *
+   * <p>Seeks within the fetched blocks, and to the block before the block at the read position, do
+   * not issue new reads. At most {@code blockCount + 1} blocks are buffered.
+   *
+   * <p>Objects stored with a gzip content encoding cannot be read by ranges, and are read through
+   * a single sequential stream.
+   */
+  public void enablePrefetching(ExecutorService executor, int blockSize, int blockCount) {
+    Preconditions.checkArgument(blockSize > 0, "blockSize must be positive");
+    Preconditions.checkArgument(blockCount > 0, "blockCount must be positive");
+    Preconditions.checkState(!opened, "enablePrefetching must be called before reading");
+    this.prefetchExecutor = executor;
+    this.prefetchBlockSize = blockSize;
+    this.prefetchBlockCount = blockCount;
+  }
+
+  /**
+   * Reports the bytes fetched by ranged reads, the time spent fetching them, and the reopens of
+   * this channel to counters named {@link #RANGED_READ_BYTES_COUNTER},
+   * {@link #RANGED_READ_MSECS_COUNTER} and {@link #REOPENS_COUNTER}, with the given prefix.
+   */
+  @Override
+  public void reportCountersTo(String counterPrefix,
+      CounterSet.AddCounterMutator addCounterMutator) {
+    Preconditions.checkState(!opened, "reportCountersTo must be called before reading");
+    rangedReadBytesCounter = addCounterMutator.addCounter(
+        Counter.longs(counterPrefix + RANGED_READ_BYTES_COUNTER, SUM));
+    rangedReadMsecsCounter = addCounterMutator.addCounter(
+        Counter.longs(counterPrefix + RANGED_READ_MSECS_COUNTER, SUM));
+    reopenCounter = addCounterMutator.addCounter(
+        Counter.longs(counterPrefix + REOPENS_COUNTER, SUM));
+  }
+
+  /**
+   * Returns the number of times this channel opened a new stream, or fetched a block that had not
+   * been prefetched, to read at a new position, not counting the first read.
+   */
+  long getReopenCount() {
+    return reopenCount;
+  }
+
+  /**
+   * Returns the number of bytes fetched by the ranged reads of this channel.
+   */
+  long getRangedReadBytes() {
+    return rangedReadBytes.get();
+  }
+
   /**
    * Reads from this channel and stores read data in the given buffer.
    *
@@ -242,6 +367,10 @@ public class GoogleCloudStorageReadChannel implements SeekableByteChannel {
       return 0;
     }
 
+    if (prefetchExecutor != null) {
+      return readPrefetched(buffer);
+    }
+
     // Perform a lazy seek if not done already.
     performLazySeek();
 
@@ -396,6 +525,16 @@ public class GoogleCloudStorageReadChannel implements SeekableByteChannel {
       throws IOException {
     throwIfNotOpen();
     channelIsOpen = false;
+    if (rangedReadCount.get() > 0) {
+      LOG.debug("Fetched {} bytes of '{}' in {} ranged reads taking {} ms in total, "
+          + "with {} reopens", rangedReadBytes.get(),
+          StorageResourceId.createReadableString(bucketName, objectName), rangedReadCount.get(),
+          TimeUnit.NANOSECONDS.toMillis(rangedReadNanos.get()), reopenCount);
+    }
+    for (Future<PrefetchedBlock> block : prefetchedBlocks.values()) {
+      block.cancel(false);
+    }
+    prefetchedBlocks.clear();
     if (readChannel != null) {
       readChannel.close();
     }
@@ -447,6 +586,16 @@ public class GoogleCloudStorageReadChannel implements SeekableByteChannel {
   public long size()
       throws IOException {
     throwIfNotOpen();
+    if (prefetchExecutor != null && size < 0) {
+      // Fetch the block at the read position, which sets the size of this channel.
+      getPrefetchedBlock(currentPosition / prefetchBlockSize);
+      if (isCompressedStream) {
+        disablePrefetching();
+      }
+    }
+    if (prefetchExecutor != null) {
+      return size;
+    }
     // Perform a lazy seek if not done already so that size of this channel is set correctly.
     performLazySeek();
     return size;
@@ -508,6 +657,10 @@ public class GoogleCloudStorageReadChannel implements SeekableByteChannel {
     if (readChannel != null) {
       readChannel.close();
     }
+    if (opened) {
+      noteReopen();
+    }
+    opened = true;
 
     InputStream objectContentStream = openStreamAndSetSize(currentPosition);
     readChannel = Channels.newChannel(objectContentStream);
@@ -575,6 +728,241 @@ public class GoogleCloudStorageReadChannel implements SeekableByteChannel {
     return response.getContent();
   }
 
+  /**
+   * Reads from the blocks at and after the read position into the given buffer, until the buffer
+   * is full or the end of the object is reached.
+   */
+  private int readPrefetched(ByteBuffer buffer) throws IOException {
+    int totalBytesRead = 0;
+    while (buffer.hasRemaining() && (size < 0 || currentPosition < size)) {
+      long index = currentPosition / prefetchBlockSize;
+      byte[] block = getPrefetchedBlock(index);
+      if (isCompressedStream) {
+        // The first block of a compressed object is the start of its decompressed data, rather
+        // than a range of it.
+        disablePrefetching();
+        return read(buffer);
+      }
+      prefetchAhead(index);
+      if (currentPosition >= size) {
+        break;
+      }
+      int offset = (int) (currentPosition - index * prefetchBlockSize);
+      int length = Math.min(buffer.remaining(), block.length - offset);
+      checkIOPrecondition(length > 0, String.format(
+          "Received a block of %s bytes at position %s of an object of size %s",
+          block.length, index * prefetchBlockSize, size));
+      buffer.put(block, offset, length);
+      currentPosition += length;
+      totalBytesRead += length;
+    }
+    lazySeekPending = false;
+    return totalBytesRead == 0 ? -1 : totalBytesRead;
+  }
+
+  private void noteReopen() {
+    reopenCount++;
+    if (reopenCounter != null) {
+      reopenCounter.addValue(1L);
+    }
+  }
+
+  /**
+   * Returns the data of the block with the given index, fetching it if it has not been fetched.
+   * Sets the size of this channel from the first block fetched.
+   */
+  private byte[] getPrefetchedBlock(long index) throws IOException {
+    Future<PrefetchedBlock> future = prefetchedBlocks.get(index);
+    if (future == null) {
+      if (opened) {
+        noteReopen();
+      }
+      future = fetchBlockAsync(index);
+      prefetchedBlocks.put(index, future);
+    }
+    opened = true;
+    PrefetchedBlock block;
+    try {
+      block = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading "
+          + StorageResourceId.createReadableString(bucketName, objectName), e);
+    } catch (ExecutionException e) {
+      prefetchedBlocks.remove(index);
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    if (size < 0) {
+      size = block.objectSize;
+    }
+    isCompressedStream = block.compressed;
+    return block.data;
+  }
+
+  /**
+   * Fetches the blocks at and ahead of the block with the given index that have not been fetched,
+   * and drops the blocks that are neither ahead of it nor just before it.
+   */
+  private void prefetchAhead(long index) {
+    Iterator<Map.Entry<Long, Future<PrefetchedBlock>>> blocks =
+        prefetchedBlocks.entrySet().iterator();
+    while (blocks.hasNext()) {
+      Map.Entry<Long, Future<PrefetchedBlock>> block = blocks.next();
+      if (block.getKey() < index - 1 || block.getKey() >= index + prefetchBlockCount) {
+        block.getValue().cancel(false);
+        blocks.remove();
+      }
+    }
+    for (long i = index; i < index + prefetchBlockCount && i * prefetchBlockSize < size; i++) {
+      if (!prefetchedBlocks.containsKey(i)) {
+        prefetchedBlocks.put(i, fetchBlockAsync(i));
+      }
+    }
+  }
+
+  /**
+   * Stops reading by ranges, and makes the next read open a sequential stream at the read
+   * position.
+   */
+  private void disablePrefetching() {
+    LOG.debug("Reading '{}' sequentially since it is compressed",
+        StorageResourceId.createReadableString(bucketName, objectName));
+    for (Future<PrefetchedBlock> block : prefetchedBlocks.values()) {
+      block.cancel(false);
+    }
+    prefetchedBlocks.clear();
+    prefetchExecutor = null;
+    size = -1;
+    lazySeekPending = true;
+    // The block read is not counted as an open of the stream.
+    opened = false;
+  }
+
+  private Future<PrefetchedBlock> fetchBlockAsync(long index) {
+    final long start = index * prefetchBlockSize;
+    final int length = size < 0
+        ? prefetchBlockSize : (int) Math.min(prefetchBlockSize, size - start);
+    return prefetchExecutor.submit(new Callable<PrefetchedBlock>() {
+      @Override
+      public PrefetchedBlock call() throws IOException {
+        return fetchBlock(start, length);
+      }
+    });
+  }
+
+  /**
+   * Fetches up to {@code length} bytes of the object at the given position with a ranged read.
+   * Retries reading the response like {@link #read}, but with its own {@link BackOff}, since blocks
+   * are fetched concurrently.
+   */
+  private PrefetchedBlock fetchBlock(long start, int length) throws IOException {
+    BackOff blockBackOff = null;
+    int retriesAttempted = 0;
+    while (true) {
+      long startNanos = System.nanoTime();
+      HttpResponse response = executeRangedRead(start, length);
+      if (response == null) {
+        // The object is empty.
+        return new PrefetchedBlock(new byte[0], 0, false);
+      }
+      String contentEncoding = response.getContentEncoding();
+      boolean compressed = contentEncoding != null && contentEncoding.contains("gzip");
+      long objectSize = -1;
+      if (!compressed) {
+        String contentRange = response.getHeaders().getContentRange();
+        Long contentLength = response.getHeaders().getContentLength();
+        if (contentRange != null) {
+          try {
+            objectSize = Long.parseLong(SLASH.split(contentRange)[1]);
+          } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            response.disconnect();
+            throw new IOException(
+                "Could not determine size from response from Content-Range: " + contentRange, e);
+          }
+        } else if (start == 0 && contentLength != null) {
+          // The whole object was returned.
+          objectSize = contentLength;
+        } else {
+          response.disconnect();
+          throw new IOException("Could not determine size of response");
+        }
+      }
+
+      byte[] data = new byte[compressed ? length : (int) Math.min(length, objectSize - start)];
+      try (InputStream content = response.getContent()) {
+        int bytesRead = ByteStreams.read(content, data, 0, data.length);
+        checkIOPrecondition(compressed || bytesRead == data.length, String.format(
+            "Received end of stream after %s of %s bytes at position %s of '%s'",
+            bytesRead, data.length, start,
+            StorageResourceId.createReadableString(bucketName, objectName)));
+        long readNanos = System.nanoTime() - startNanos;
+        rangedReadCount.incrementAndGet();
+        rangedReadBytes.addAndGet(bytesRead);
+        rangedReadNanos.addAndGet(readNanos);
+        if (rangedReadBytesCounter != null) {
+          rangedReadBytesCounter.addValue((long) bytesRead);
+          rangedReadMsecsCounter.addValue(TimeUnit.NANOSECONDS.toMillis(readNanos));
+        }
+        return new PrefetchedBlock(
+            bytesRead == data.length ? data : Arrays.copyOf(data, bytesRead),
+            objectSize, compressed);
+      } catch (IOException ioe) {
+        if (retriesAttempted == maxRetries) {
+          LOG.warn("Already attempted max of {} retries while reading '{}'; throwing exception.",
+              maxRetries, StorageResourceId.createReadableString(bucketName, objectName));
+          throw ioe;
+        }
+        if (blockBackOff == null) {
+          blockBackOff = createBackOff();
+        }
+        ++retriesAttempted;
+        LOG.warn("Got exception while reading '{}' at position {}; retry # {}. Sleeping...",
+            StorageResourceId.createReadableString(bucketName, objectName), start,
+            retriesAttempted, ioe);
+        try {
+          if (!BackOffUtils.next(sleeper, blockBackOff)) {
+            LOG.warn("BackOff returned false; maximum total elapsed time exhausted. Giving up "
+                + "after {} retries for '{}'", retriesAttempted,
+                StorageResourceId.createReadableString(bucketName, objectName));
+            throw ioe;
+          }
+        } catch (InterruptedException ie) {
+          ioe.addSuppressed(ie);
+          throw ioe;
+        }
+      }
+    }
+  }
+
+  /**
+   * Requests up to {@code length} bytes of the object at the given position, and returns the
+   * response, or null if the object is empty.
+   */
+  private HttpResponse executeRangedRead(long start, int length) throws IOException {
+    Storage.Objects.Get getObject = gcs.objects().get(bucketName, objectName);
+    clientRequestHelper.getRequestHeaders(getObject)
+        .setRange(String.format("bytes=%d-%d", start, start + length - 1));
+    try {
+      return getObject.executeMedia();
+    } catch (IOException e) {
+      if (errorExtractor.itemNotFound(e)) {
+        throw GoogleCloudStorageExceptions
+            .getFileNotFoundException(bucketName, objectName);
+      } else if (errorExtractor.rangeNotSatisfiable(e) && start == 0) {
+        LOG.info("Got 'range not satisfiable' for reading {} at position 0; assuming empty.",
+            StorageResourceId.createReadableString(bucketName, objectName));
+        return null;
+      } else {
+        String msg = String.format("Error reading %s at position %d",
+            StorageResourceId.createReadableString(bucketName, objectName), start);
+        throw new IOException(msg, e);
+      }
+    }
+  }
+
   /**
    * Throws if this channel is not currently open.
    */
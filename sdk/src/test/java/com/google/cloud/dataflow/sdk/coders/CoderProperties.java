@@ -26,6 +26,9 @@ import static org.junit.Assert.fail;
 import com.google.cloud.dataflow.sdk.coders.Coder.NonDeterministicException;
 import com.google.cloud.dataflow.sdk.util.SerializableUtils;
 import com.google.cloud.dataflow.sdk.util.Serializer;
+import com.google.cloud.dataflow.sdk.util.common.Counter;
+import com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind;
+import com.google.cloud.dataflow.sdk.util.common.ElementByteSizeObserver;
 import com.google.common.collect.Iterables;
 
 import java.io.ByteArrayInputStream;
@@ -107,6 +110,24 @@ public class CoderProperties {
     assertThat(decodeEncode(coder, context, value), equalTo(value));
   }
 
+  /**
+   * Verifies that for the given {@link Coder Coder<T>}, and value of type
+   * {@code T}, the byte size registered with an {@link ElementByteSizeObserver}
+   * equals the size of the encoded value, in any {@link Coder.Context}.
+   */
+  public static <T> void coderByteSizeObserverMatchesEncoding(
+      Coder<T> coder, T value)
+      throws Exception {
+    for (Coder.Context context : ALL_CONTEXTS) {
+      Counter<Long> counter = Counter.longs("size", AggregationKind.SUM);
+      ElementByteSizeObserver observer = new ElementByteSizeObserver(counter);
+      coder.registerByteSizeObserver(value, observer, context);
+      observer.advance();
+      assertThat(counter.getAggregate(false),
+          equalTo((long) encode(coder, context, value).length));
+    }
+  }
+
   /**
    * Verifies that for the given {@link Coder Coder<Collection<T>>},
    * and value of type {@code Collection<T>}, encoding followed by decoding yields an
@@ -46,6 +46,15 @@ public class InstantCoderTest {
     }
   }
 
+  @Test
+  public void testEncodedSize() throws Exception {
+    for (long timestamp : timestamps) {
+      Assert.assertTrue(
+          coder.isRegisterByteSizeObserverCheap(new Instant(timestamp), Coder.Context.OUTER));
+      CoderProperties.coderByteSizeObserverMatchesEncoding(coder, new Instant(timestamp));
+    }
+  }
+
   @Test
   public void testOrderedEncoding() throws Exception {
     List<Long> sortedTimestamps = new ArrayList<>(timestamps);
@@ -17,7 +17,11 @@
 package com.google.cloud.dataflow.sdk.coders;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Iterables;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -47,6 +51,19 @@ public class IterableCoderTest {
     }
   }
 
+  @Test
+  public void testEncodedSize() throws Exception {
+    Coder<Iterable<Integer>> coder = IterableCoder.of(VarIntCoder.of());
+    for (Iterable<Integer> value : TEST_VALUES) {
+      CoderProperties.coderByteSizeObserverMatchesEncoding(coder, value);
+    }
+    // Collections of cheaply sized elements are cheap to size.
+    assertTrue(coder.isRegisterByteSizeObserverCheap(
+        Arrays.asList(1, -2, 3), Coder.Context.OUTER));
+    assertFalse(coder.isRegisterByteSizeObserverCheap(
+        Iterables.limit(Arrays.asList(1, -2, 3), 2), Coder.Context.OUTER));
+  }
+
   @Test
   public void testGetInstanceComponentsNonempty() {
     Iterable<Integer> iterable = Arrays.asList(2, 58, 99, 5);
@@ -16,10 +16,16 @@
 
 package com.google.cloud.dataflow.sdk.coders;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.dataflow.sdk.util.ExposedByteArrayInputStream;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -42,4 +48,29 @@ public class StringUtf8CoderTest {
       CoderProperties.coderDecodeEncodeEqual(coder, value);
     }
   }
+
+  @Test
+  public void testEncodedSize() throws Exception {
+    Coder<String> coder = StringUtf8Coder.of();
+    List<String> values = new ArrayList<>(TEST_VALUES);
+    // A supplementary character, and an unpaired surrogate.
+    values.add("\uD83D\uDE00");
+    values.add("a\uD800b");
+    for (String value : values) {
+      assertTrue(coder.isRegisterByteSizeObserverCheap(value, Coder.Context.OUTER));
+      CoderProperties.coderByteSizeObserverMatchesEncoding(coder, value);
+    }
+  }
+
+  @Test
+  public void testDecodeInPlace() throws Exception {
+    Coder<String> coder = StringUtf8Coder.of();
+    for (String value : TEST_VALUES) {
+      byte[] bytes = ("xx" + value + "yy").getBytes("UTF-8");
+      ExposedByteArrayInputStream stream =
+          new ExposedByteArrayInputStream(bytes, 2, bytes.length - 4);
+      assertEquals(value, coder.decode(stream, Coder.Context.OUTER));
+      assertEquals(0, stream.available());
+    }
+  }
 }
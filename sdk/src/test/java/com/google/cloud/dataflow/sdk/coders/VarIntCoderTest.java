@@ -41,5 +41,13 @@ public class VarIntCoderTest {
       CoderProperties.coderDecodeEncodeEqual(coder, value);
     }
   }
+
+  @Test
+  public void testEncodedSize() throws Exception {
+    Coder<Integer> coder = VarIntCoder.of();
+    for (Integer value : TEST_VALUES) {
+      CoderProperties.coderByteSizeObserverMatchesEncoding(coder, value);
+    }
+  }
 }
 
@@ -17,6 +17,7 @@ package com.google.cloud.dataflow.sdk.io;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 
 import com.google.cloud.dataflow.sdk.coders.Coder;
@@ -24,16 +25,20 @@ import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
 import com.google.cloud.dataflow.sdk.io.FileBasedSource.FileBasedReader;
 import com.google.cloud.dataflow.sdk.io.FileBasedSource.Mode;
 import com.google.cloud.dataflow.sdk.io.Source.Reader;
+import com.google.cloud.dataflow.sdk.options.DataflowPipelineDebugOptions;
 import com.google.cloud.dataflow.sdk.options.PipelineOptions;
 import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
 import com.google.cloud.dataflow.sdk.runners.DirectPipeline;
 import com.google.cloud.dataflow.sdk.runners.DirectPipelineRunner.EvaluationResults;
 import com.google.cloud.dataflow.sdk.testing.TestDataflowPipelineOptions;
+import com.google.cloud.dataflow.sdk.util.BatchModeExecutionContext;
 import com.google.cloud.dataflow.sdk.util.CoderUtils;
 import com.google.cloud.dataflow.sdk.util.ExecutionContext;
 import com.google.cloud.dataflow.sdk.util.IOChannelFactory;
 import com.google.cloud.dataflow.sdk.util.IOChannelUtils;
 import com.google.cloud.dataflow.sdk.util.TestCredential;
+import com.google.cloud.dataflow.sdk.util.common.Counter;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 import com.google.common.collect.ImmutableList;
 
@@ -686,4 +691,116 @@ public class FileBasedSourceTest {
 
     assertThat(expectedResults, containsInAnyOrder(results.toArray()));
   }
+
+  @Test
+  public void testSplitsOfFilePatternMatchSplitsOfFiles() throws Exception {
+    File file = null;
+    for (int i = 0; i < 50; i++) {
+      file = createFileWithData("file" + i, createStringDataset(3, 100 * i));
+    }
+    createFileWithData("otherfile", createStringDataset(3, 1000));
+    String pattern = file.getParent() + "/" + "file*";
+
+    List<String> expected = new ArrayList<>();
+    for (String fileName : IOChannelUtils.getFactory(pattern).match(pattern)) {
+      TestFileBasedSource fileSource = new TestFileBasedSource(false, fileName, 64, null);
+      for (FileBasedSource<String> split : fileSource.splitIntoShards(1024, null)) {
+        expected.add(split.getFileOrPatternSpec() + ":" + split.getStartOffset() + "-"
+            + split.getEndOffset());
+      }
+    }
+
+    TestFileBasedSource source = new TestFileBasedSource(true, pattern, 64, null);
+    List<String> actual = new ArrayList<>();
+    for (FileBasedSource<String> split : source.splitIntoShards(1024, null)) {
+      assertEquals(Mode.SUBRANGE_OF_SINGLE_FILE, split.getMode());
+      actual.add(
+          split.getFileOrPatternSpec() + ":" + split.getStartOffset() + "-" + split.getEndOffset());
+    }
+    assertEquals(expected, actual);
+  }
+
+  private List<String> readFilePatternWithReadAhead(String pattern, int readAheadCount,
+      long readAheadBudgetBytes) throws IOException {
+    DataflowPipelineDebugOptions options =
+        PipelineOptionsFactory.as(DataflowPipelineDebugOptions.class);
+    options.setFileReadAheadCount(readAheadCount);
+    options.setFileReadAheadBudgetBytes(readAheadBudgetBytes);
+    TestFileBasedSource source = new TestFileBasedSource(true, pattern, 64, null);
+    try (Reader<String> reader = source.createBasicReader(options, null, null)) {
+      return readEverythingFromReader(reader);
+    }
+  }
+
+  @Test
+  public void testReadAheadFilePattern() throws IOException {
+    File file = null;
+    for (int i = 0; i < 20; i++) {
+      // Every third file is empty.
+      file = createFileWithData("file" + i, createStringDataset(3, (i % 3) * 100));
+    }
+    createFileWithData("otherfile", createStringDataset(3, 100));
+    String pattern = file.getParent() + "/" + "file*";
+
+    TestFileBasedSource source = new TestFileBasedSource(true, pattern, 64, null);
+    List<String> expectedResults =
+        readEverythingFromReader(source.createBasicReader(null, null, null));
+    assertEquals(20 * 100, expectedResults.size());
+
+    assertEquals(expectedResults, readFilePatternWithReadAhead(pattern, 1, 1 << 20));
+    assertEquals(expectedResults, readFilePatternWithReadAhead(pattern, 4, 1 << 20));
+    assertEquals(expectedResults, readFilePatternWithReadAhead(pattern, 30, 1 << 20));
+    // A budget smaller than any file still reads every file.
+    assertEquals(expectedResults, readFilePatternWithReadAhead(pattern, 4, 1));
+  }
+
+  @Test
+  public void testReadAheadFilePatternAllEmpty() throws IOException {
+    File file = createFileWithData("file1", new ArrayList<String>());
+    createFileWithData("file2", new ArrayList<String>());
+
+    assertEquals(Collections.<String>emptyList(),
+        readFilePatternWithReadAhead(file.getParent() + "/" + "file*", 2, 1 << 20));
+  }
+
+  @Test
+  public void testReadAheadFilePatternReportsBlockedTime() throws IOException {
+    File file = null;
+    for (int i = 0; i < 10; i++) {
+      file = createFileWithData("file" + i, createStringDataset(3, 100));
+    }
+    DataflowPipelineDebugOptions options =
+        PipelineOptionsFactory.as(DataflowPipelineDebugOptions.class);
+    options.setFileReadAheadCount(4);
+    TestFileBasedSource source =
+        new TestFileBasedSource(true, file.getParent() + "/" + "file*", 64, null);
+    CounterSet counters = new CounterSet();
+    ExecutionContext context = new BatchModeExecutionContext();
+    context.setCounters("stage-", counters.getAddCounterMutator());
+
+    try (Reader<String> reader = source.createBasicReader(options, null, context)) {
+      assertEquals(10 * 100, readEverythingFromReader(reader).size());
+    }
+    Counter<?> blocked = counters.getExistingCounter(
+        "stage-" + FileBasedSource.READ_AHEAD_BLOCKED_MSECS_COUNTER);
+    assertTrue((Long) blocked.getAggregate(false) >= 0);
+  }
+
+  @Test
+  public void testCloseReadAheadFilePatternEarly() throws IOException {
+    File file = null;
+    for (int i = 0; i < 10; i++) {
+      file = createFileWithData("file" + i, createStringDataset(3, 100));
+    }
+    DataflowPipelineDebugOptions options =
+        PipelineOptionsFactory.as(DataflowPipelineDebugOptions.class);
+    options.setFileReadAheadCount(4);
+    TestFileBasedSource source =
+        new TestFileBasedSource(true, file.getParent() + "/" + "file*", 64, null);
+
+    Reader<String> reader = source.createBasicReader(options, null, null);
+    assertTrue(reader.start());
+    assertTrue(reader.advance());
+    reader.close();
+  }
 }
@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.runners;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.collection.IsIterableContainingInAnyOrder.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.BigEndianLongCoder;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.transforms.Aggregator;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.Flatten;
+import com.google.cloud.dataflow.sdk.transforms.GroupByKey;
+import com.google.cloud.dataflow.sdk.transforms.Mean;
+import com.google.cloud.dataflow.sdk.transforms.PTransform;
+import com.google.cloud.dataflow.sdk.transforms.ParDo;
+import com.google.cloud.dataflow.sdk.transforms.Sum;
+import com.google.cloud.dataflow.sdk.transforms.Values;
+import com.google.cloud.dataflow.sdk.transforms.windowing.FixedWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Window;
+import com.google.cloud.dataflow.sdk.util.common.Counter;
+import com.google.cloud.dataflow.sdk.values.CodedTupleTag;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.cloud.dataflow.sdk.values.PCollectionList;
+import com.google.cloud.dataflow.sdk.values.PValue;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link DirectPipelineRunner}.
+ */
+@RunWith(JUnit4.class)
+public class DirectPipelineRunnerTest {
+
+  private static DirectPipeline createParallelPipeline() {
+    DirectPipeline p = DirectPipeline.createForTest();
+    p.getRunner().getPipelineOptions().setDirectParallelism(4);
+    return p;
+  }
+
+  private static List<Integer> range(int size) {
+    List<Integer> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      values.add(i);
+    }
+    return values;
+  }
+
+  /**
+   * Doubles each element, summing the elements in an aggregator and
+   * outputting -1 once per bundle.
+   */
+  private static class DoubleFn extends DoFn<Integer, Integer> {
+    private static final long serialVersionUID = 0;
+
+    private transient Aggregator<Long> sum;
+    private transient boolean started;
+
+    @Override
+    public void startBundle(Context c) {
+      if (started) {
+        throw new IllegalStateException("DoFn instance reused across bundles");
+      }
+      started = true;
+      sum = c.createAggregator("sum", new Sum.SumLongFn());
+    }
+
+    @Override
+    public void processElement(ProcessContext c) {
+      sum.addValue((long) c.element());
+      c.output(2 * c.element());
+    }
+
+    @Override
+    public void finishBundle(Context c) {
+      c.output(-1);
+    }
+  }
+
+  @Test
+  public void testParallelParDo() {
+    DirectPipeline p = createParallelPipeline();
+    PCollection<Integer> output = p
+        .apply(Create.of(range(1000))).setCoder(VarIntCoder.of())
+        .apply(ParDo.of(new DoubleFn())).setCoder(VarIntCoder.of());
+
+    DirectPipelineRunner.EvaluationResults results = p.run();
+
+    List<Integer> expected = new ArrayList<>();
+    int bundles = 0;
+    for (int value : results.getPCollection(output)) {
+      if (value == -1) {
+        bundles++;
+      } else {
+        expected.add(value / 2);
+      }
+    }
+    assertThat(expected, containsInAnyOrder(range(1000).toArray()));
+    // A few bundles per thread.
+    assertEquals(16, bundles);
+
+    // The aggregator values of all bundles are merged.
+    long sum = -1;
+    for (Counter<?> counter : ((DirectPipelineRunner.Evaluator) results).getCounters()) {
+      if (counter.getName().endsWith("-sum")) {
+        sum = (Long) counter.getAggregate(false);
+      }
+    }
+    assertEquals(999 * 1000 / 2, sum);
+  }
+
+  @Test
+  public void testParallelParDoPreservesOrder() {
+    DirectPipeline p = createParallelPipeline();
+    PCollection<Integer> output = p
+        .apply(Create.of(range(100))).setCoder(VarIntCoder.of()).setOrdered(true)
+        .apply(ParDo.of(new DoubleFn())).setCoder(VarIntCoder.of()).setOrdered(true);
+
+    List<Integer> expected = new ArrayList<>();
+    for (int value : p.run().getPCollection(output)) {
+      if (value != -1) {
+        expected.add(value / 2);
+      }
+    }
+    assertEquals(range(100), expected);
+  }
+
+  /**
+   * Outputs the keys which have appeared at least three times.
+   */
+  private static class CountAtLeastThreeFn
+      extends DoFn<KV<String, Integer>, String> implements DoFn.RequiresKeyedState {
+    private static final long serialVersionUID = 0;
+
+    @Override
+    public void processElement(ProcessContext c) throws IOException {
+      String key = c.element().getKey();
+      CodedTupleTag<Long> tag = CodedTupleTag.of(key, BigEndianLongCoder.of());
+      Long result = c.keyedState().lookup(tag);
+      long count = result == null ? 0 : result;
+      c.keyedState().store(tag, ++count);
+      if (count == 3) {
+        c.output(key);
+      }
+    }
+  }
+
+  @Test
+  public void testParallelParDoWithKeyedState() {
+    List<KV<String, Integer>> inputs = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      for (int j = 0; j < i % 5; j++) {
+        inputs.add(KV.of("k" + i, j));
+      }
+      if (i % 5 >= 3) {
+        expected.add("k" + i);
+      }
+    }
+
+    DirectPipeline p = createParallelPipeline();
+    PCollection<String> output = p
+        .apply(Create.of(inputs))
+        .setCoder(KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()))
+        .apply(ParDo.of(new CountAtLeastThreeFn()));
+
+    assertThat(p.run().getPCollection(output), containsInAnyOrder(expected.toArray()));
+  }
+
+  private static class FailingFn extends DoFn<Integer, Integer> {
+    private static final long serialVersionUID = 0;
+
+    @Override
+    public void processElement(ProcessContext c) {
+      if (c.element() == 42) {
+        throw new RuntimeException("test error in process");
+      }
+    }
+  }
+
+  @Test
+  public void testParallelParDoWithError() {
+    DirectPipeline p = createParallelPipeline();
+    p.apply(Create.of(range(100))).setCoder(VarIntCoder.of())
+        .apply(ParDo.of(new FailingFn()));
+
+    try {
+      p.run();
+      fail("should have failed");
+    } catch (RuntimeException exn) {
+      assertThat(exn.toString(), containsString("test error in process"));
+    }
+  }
+
+  @Test
+  public void testNegativeParallelism() {
+    DirectPipeline p = DirectPipeline.createForTest();
+    p.getRunner().getPipelineOptions().setDirectParallelism(-1);
+    p.apply(Create.of(range(10))).setCoder(VarIntCoder.of());
+    try {
+      p.run();
+      fail("should have failed");
+    } catch (IllegalArgumentException exn) {
+      assertTrue(exn.getMessage().contains("directParallelism"));
+    }
+  }
+
+  private static DirectPipeline createFusedPipeline() {
+    DirectPipeline p = DirectPipeline.createForTest();
+    p.getRunner().getPipelineOptions().setDirectFusion(true);
+    return p;
+  }
+
+  private static class AddOneFn extends DoFn<Integer, Integer> {
+    private static final long serialVersionUID = 0;
+
+    @Override
+    public void processElement(ProcessContext c) {
+      c.output(c.element() + 1);
+    }
+  }
+
+  @Test
+  public void testFusedParDosAndFlatten() {
+    DirectPipeline p = createFusedPipeline();
+    PCollection<Integer> input = p.apply(Create.of(range(100))).setCoder(VarIntCoder.of());
+    PCollection<Integer> plusOne = input
+        .apply(ParDo.named("AddOne").of(new AddOneFn())).setCoder(VarIntCoder.of());
+    PCollection<Integer> plusTwo = plusOne
+        .apply(ParDo.named("AddTwo").of(new AddOneFn())).setCoder(VarIntCoder.of());
+    PCollection<Integer> output = PCollectionList.of(plusTwo).and(input)
+        .apply(Flatten.<Integer>pCollections())
+        .apply(ParDo.named("AddThree").of(new AddOneFn())).setCoder(VarIntCoder.of());
+
+    DirectPipelineRunner.EvaluationResults results = p.run();
+
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      expected.add(i + 1);
+      expected.add(i + 3);
+    }
+    assertThat(results.getPCollection(output), containsInAnyOrder(expected.toArray()));
+
+    // The PCollections within the fused chain are not materialized.
+    try {
+      results.getPCollection(plusOne);
+      fail("should have failed");
+    } catch (IllegalStateException exn) {
+      assertThat(exn.getMessage(), containsString("not materialized"));
+    }
+  }
+
+  @Test
+  public void testFusedMaterializedPCollection() {
+    DirectPipeline p = createFusedPipeline();
+    PCollection<Integer> plusOne = p
+        .apply(Create.of(range(10))).setCoder(VarIntCoder.of())
+        .apply(ParDo.named("AddOne").of(new AddOneFn())).setCoder(VarIntCoder.of());
+    plusOne.apply(ParDo.named("AddTwo").of(new AddOneFn())).setCoder(VarIntCoder.of());
+    p.getRunner().withMaterializedPCollection(plusOne);
+
+    assertThat(p.run().getPCollection(plusOne),
+        containsInAnyOrder(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+  }
+
+  private static class KeyByRemainderFn extends DoFn<Integer, KV<Integer, Integer>> {
+    private static final long serialVersionUID = 0;
+
+    @Override
+    public void processElement(ProcessContext c) {
+      c.output(KV.of(c.element() % 3, c.element()));
+    }
+  }
+
+  private static class SumValuesFn extends DoFn<KV<Integer, Iterable<Integer>>, Integer> {
+    private static final long serialVersionUID = 0;
+
+    @Override
+    public void processElement(ProcessContext c) {
+      int sum = 0;
+      for (int value : c.element().getValue()) {
+        sum += value;
+      }
+      c.output(sum);
+    }
+  }
+
+  @Test
+  public void testFusedGroupByKey() {
+    DirectPipeline p = createFusedPipeline();
+    PCollection<Integer> sums = p
+        .apply(Create.of(range(10))).setCoder(VarIntCoder.of())
+        .apply(ParDo.of(new KeyByRemainderFn()))
+        .setCoder(KvCoder.of(VarIntCoder.of(), VarIntCoder.of()))
+        .apply(GroupByKey.<Integer, Integer>create())
+        .apply(ParDo.of(new SumValuesFn())).setCoder(VarIntCoder.of());
+
+    assertThat(p.run().getPCollection(sums),
+        containsInAnyOrder(0 + 3 + 6 + 9, 1 + 4 + 7, 2 + 5 + 8));
+  }
+
+  @Test
+  public void testSpillingGroupByKey() {
+    DirectPipeline p = DirectPipeline.createForTest();
+    p.getRunner().getPipelineOptions().setDirectGroupByKeyMemoryBytes(1000);
+    PCollection<KV<Integer, Iterable<Integer>>> groups = p
+        .apply(Create.of(range(1000))).setCoder(VarIntCoder.of())
+        .apply(ParDo.of(new KeyByRemainderFn()))
+        .setCoder(KvCoder.of(VarIntCoder.of(), VarIntCoder.of()))
+        .apply(GroupByKey.<Integer, Integer>create());
+    PCollection<Integer> sums = groups
+        .apply(ParDo.of(new SumValuesFn())).setCoder(VarIntCoder.of());
+
+    DirectPipelineRunner.EvaluationResults results = p.run();
+
+    int[] expected = new int[3];
+    for (int i = 0; i < 1000; i++) {
+      expected[i % 3] += i;
+    }
+    assertThat(results.getPCollection(sums),
+        containsInAnyOrder(expected[0], expected[1], expected[2]));
+
+    long spilledRuns = 0;
+    for (Counter<?> counter : ((DirectPipelineRunner.Evaluator) results).getCounters()) {
+      if (counter.getName().endsWith("-GroupByKeySpilledRuns")) {
+        spilledRuns += (Long) counter.getAggregate(false);
+      }
+    }
+    assertTrue(spilledRuns > 1);
+
+    // The spilled values can still be read once the pipeline finished.
+    for (KV<Integer, Iterable<Integer>> group : results.getPCollection(groups)) {
+      int sum = 0;
+      for (int value : group.getValue()) {
+        sum += value;
+      }
+      assertEquals(expected[group.getKey()], sum);
+    }
+  }
+
+  private static DirectPipeline createLiftingPipeline() {
+    DirectPipeline p = createParallelPipeline();
+    p.getRunner().getPipelineOptions().setDirectCombinerLifting(true);
+    return p;
+  }
+
+  private static List<KV<Integer, Integer>> keyedRange(int size) {
+    List<KV<Integer, Integer>> elements = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      elements.add(KV.of(i % 3, i));
+    }
+    return elements;
+  }
+
+  private static boolean containsTransform(
+      Pipeline p, final Class<? extends PTransform> transformClass) {
+    final boolean[] found = new boolean[1];
+    p.traverseTopologically(new Pipeline.PipelineVisitor() {
+      @Override
+      public void enterCompositeTransform(TransformTreeNode node) {}
+
+      @Override
+      public void leaveCompositeTransform(TransformTreeNode node) {}
+
+      @Override
+      public void visitTransform(TransformTreeNode node) {
+        found[0] |= transformClass.isInstance(node.getTransform());
+      }
+
+      @Override
+      public void visitValue(PValue value, TransformTreeNode producer) {}
+    });
+    return found[0];
+  }
+
+  @Test
+  public void testLiftedCombinePerKey() {
+    DirectPipeline p = createLiftingPipeline();
+    PCollection<KV<Integer, Integer>> input = p
+        .apply(Create.of(keyedRange(1000)))
+        .setCoder(KvCoder.of(VarIntCoder.of(), VarIntCoder.of()));
+    PCollection<KV<Integer, Integer>> sums = input.apply(Sum.<Integer>integersPerKey());
+    PCollection<KV<Integer, Double>> means = input.apply(Mean.<Integer, Integer>perKey());
+
+    assertTrue(containsTransform(p, DirectPipelineRunner.LiftedCombinePerKey.class));
+    assertFalse(containsTransform(p, GroupByKey.GroupByKeyOnly.class));
+
+    DirectPipelineRunner.EvaluationResults results = p.run();
+
+    int[] expected = new int[3];
+    for (int i = 0; i < 1000; i++) {
+      expected[i % 3] += i;
+    }
+    assertThat(results.getPCollection(sums), containsInAnyOrder(
+        KV.of(0, expected[0]), KV.of(1, expected[1]), KV.of(2, expected[2])));
+    assertThat(results.getPCollection(means), containsInAnyOrder(
+        KV.of(0, expected[0] / 334.0), KV.of(1, expected[1] / 333.0),
+        KV.of(2, expected[2] / 333.0)));
+  }
+
+  @Test
+  public void testFusedLiftedCombinePerKey() {
+    DirectPipeline p = createLiftingPipeline();
+    p.getRunner().getPipelineOptions().setDirectFusion(true);
+    PCollection<Integer> sums = p
+        .apply(Create.of(range(10))).setCoder(VarIntCoder.of())
+        .apply(ParDo.of(new KeyByRemainderFn()))
+        .setCoder(KvCoder.of(VarIntCoder.of(), VarIntCoder.of()))
+        .apply(Sum.<Integer>integersPerKey())
+        .apply(Values.<Integer>create());
+
+    assertThat(p.run().getPCollection(sums),
+        containsInAnyOrder(0 + 3 + 6 + 9, 1 + 4 + 7, 2 + 5 + 8));
+  }
+
+  @Test
+  public void testLiftingSkipsWindowedCombine() {
+    DirectPipeline p = createLiftingPipeline();
+    PCollection<KV<Integer, Integer>> sums = p
+        .apply(Create.of(keyedRange(10)))
+        .setCoder(KvCoder.of(VarIntCoder.of(), VarIntCoder.of()))
+        .apply(Window.<KV<Integer, Integer>>into(FixedWindows.of(Duration.standardMinutes(1))))
+        .apply(Sum.<Integer>integersPerKey());
+
+    assertFalse(containsTransform(p, DirectPipelineRunner.LiftedCombinePerKey.class));
+    assertThat(p.run().getPCollection(sums), containsInAnyOrder(
+        KV.of(0, 0 + 3 + 6 + 9), KV.of(1, 1 + 4 + 7), KV.of(2, 2 + 5 + 8)));
+  }
+}
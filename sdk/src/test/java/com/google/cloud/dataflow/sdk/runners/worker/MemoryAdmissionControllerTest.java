@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.runners.worker;
+
+import static com.google.cloud.dataflow.sdk.runners.worker.MemoryAdmissionController.WORK_ITEM_EXPANSION;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** Unit tests for {@link MemoryAdmissionController}. */
+@RunWith(JUnit4.class)
+public class MemoryAdmissionControllerTest {
+
+  @Test
+  public void testAdmitsAllItemsWhenIdle() throws Exception {
+    MemoryAdmissionController controller = new MemoryAdmissionController(1000);
+    assertEquals(100, controller.awaitCapacity(100));
+    assertEquals(0, controller.getThrottledRequests());
+  }
+
+  @Test
+  public void testThrottlesItemsAsMemoryFills() throws Exception {
+    MemoryAdmissionController controller =
+        new MemoryAdmissionController(100 * WORK_ITEM_EXPANSION);
+    controller.workReceived(10);
+    assertEquals(9, controller.awaitCapacity(100));
+
+    controller.addPendingCommitBytes(40 * WORK_ITEM_EXPANSION);
+    controller.setCachedStateBytes(40 * WORK_ITEM_EXPANSION);
+    assertEquals(1, controller.awaitCapacity(100));
+    assertEquals(2, controller.getThrottledRequests());
+    assertEquals(90 * WORK_ITEM_EXPANSION, controller.getUsedBytes());
+
+    controller.workDone(10);
+    controller.addPendingCommitBytes(-40 * WORK_ITEM_EXPANSION);
+    controller.setCachedStateBytes(0);
+    assertEquals(0, controller.getUsedBytes());
+    assertEquals(5, controller.awaitCapacity(5));
+  }
+
+  @Test
+  public void testBlocksUntilMemoryIsReleased() throws Exception {
+    final MemoryAdmissionController controller = new MemoryAdmissionController(100);
+    controller.workReceived(100);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> admitted = executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            return controller.awaitCapacity(10);
+          }
+        });
+      try {
+        admitted.get(200, TimeUnit.MILLISECONDS);
+        fail("admitted work over budget");
+      } catch (TimeoutException expected) {
+      }
+      assertFalse(admitted.isDone());
+
+      controller.workDone(100);
+      // Only one item of the size seen so far fits into the budget.
+      assertEquals(1, (int) admitted.get(10, TimeUnit.SECONDS));
+      assertTrue(controller.getBlockedMillis() >= 200);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -361,13 +361,24 @@ public class StreamingDataflowWorkerTest {
 
 
   @Test public void testBasicHarness() throws Exception {
+    runBasicHarness(createTestingPipelineOptions());
+  }
+
+  @Test public void testBasicHarnessPipelined() throws Exception {
+    DataflowWorkerHarnessOptions options = createTestingPipelineOptions();
+    options.setWindmillPipelining(true);
+    options.setWindmillGetWorkMaxItems(10);
+    runBasicHarness(options);
+  }
+
+  private void runBasicHarness(DataflowWorkerHarnessOptions options) throws Exception {
     List<ParallelInstruction> instructions = Arrays.asList(
         makeSourceInstruction(StringUtf8Coder.of()),
         makeSinkInstruction(StringUtf8Coder.of(), 0));
 
     FakeWindmillServer server = new FakeWindmillServer();
     StreamingDataflowWorker worker = new StreamingDataflowWorker(
-        Arrays.asList(makeMapTask(instructions)), server, createTestingPipelineOptions());
+        Arrays.asList(makeMapTask(instructions)), server, options);
     worker.start();
 
     final int numIters = 2000;
@@ -385,6 +396,28 @@ public class StreamingDataflowWorkerTest {
     }
   }
 
+  @Test public void testLatencyHistogram() throws Exception {
+    StreamingDataflowWorker.LatencyHistogram histogram =
+        new StreamingDataflowWorker.LatencyHistogram("test");
+    for (int i = 0; i < 90; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(500));
+    }
+    for (int i = 0; i < 9; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+    }
+    histogram.record(TimeUnit.DAYS.toNanos(1));
+
+    Assert.assertEquals(100, histogram.getCount());
+    Assert.assertEquals(90, histogram.getBucketCount(0));
+    Assert.assertEquals(9, histogram.getBucketCount(2));
+    Assert.assertEquals(1, histogram.getBucketCount(
+        StreamingDataflowWorker.LatencyHistogram.NUM_BUCKETS - 1));
+    Assert.assertEquals(1, histogram.getQuantileLimitMillis(0.5));
+    Assert.assertEquals(1, histogram.getQuantileLimitMillis(0.9));
+    Assert.assertEquals(4, histogram.getQuantileLimitMillis(0.99));
+    Assert.assertEquals(Long.MAX_VALUE, histogram.getQuantileLimitMillis(1.0));
+  }
+
   static class ChangeKeysFn extends DoFn<KV<String, String>, KV<String, String>> {
     private static final long serialVersionUID = 0;
 
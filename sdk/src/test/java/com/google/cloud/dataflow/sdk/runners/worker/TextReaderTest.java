@@ -255,7 +255,99 @@ public class TextReaderTest {
     }
   }
 
+  @Test
+  public void testLineSlicing() throws Exception {
+    for (boolean stripNewlines : new boolean[] {true, false}) {
+      testNewlineHandling("\r", stripNewlines, true);
+      testNewlineHandling("\r\n", stripNewlines, true);
+      testNewlineHandling("\n", stripNewlines, true);
+    }
+  }
+
+  @Test
+  public void testLineSlicingAtEndOfReadBuffer() throws Exception {
+    StringBuilder payload = new StringBuilder();
+    for (int i = 0; i < TextReader.BUF_SIZE - 2; ++i) {
+      payload.append('a');
+    }
+    // Lines that end right before, at and after the end of the read buffer,
+    // and a line longer than the read buffer.
+    String[] lines = {payload.toString(), payload.toString(), "b", "",
+        payload.toString() + payload.toString() + payload.toString()};
+    for (boolean stripNewlines : new boolean[] {true, false}) {
+      testStringPayload(lines, "\r", stripNewlines, true);
+      testStringPayload(lines, "\r\n", stripNewlines, true);
+      testStringPayload(lines, "\n", stripNewlines, true);
+    }
+  }
+
+  @Test
+  public void testLineSlicingStartPosition() throws Exception {
+    File tmpFile = initTestFile();
+    TextReader<String> textReader = new TextReader<>(tmpFile.getPath(), true, 1L, 20L,
+        StringUtf8Coder.of(), TextIO.CompressionType.UNCOMPRESSED, true);
+    ExecutorTestUtils.TestReaderObserver observer =
+        new ExecutorTestUtils.TestReaderObserver(textReader);
+
+    try (Reader.ReaderIterator<String> iterator = textReader.iterator()) {
+      assertEquals("Second line", iterator.next());
+      assertFalse(iterator.hasNext());
+      assertEquals(Arrays.asList(11, 13), observer.getActualSizes());
+    }
+  }
+
+  @Test
+  public void testLineSlicingNonStringCoders() throws Exception {
+    File tmpFile = tmpFolder.newFile();
+    PrintStream writer = new PrintStream(new FileOutputStream(tmpFile));
+    List<Integer> expected = TestUtils.INTS;
+    for (Integer elem : expected) {
+      writer.print(elem);
+      writer.print("\n");
+    }
+    writer.close();
+
+    TextReader<Integer> textReader = new TextReader<>(tmpFile.getPath(), true, null, null,
+        TextualIntegerCoder.of(), TextIO.CompressionType.UNCOMPRESSED, true);
+    List<Integer> actual = new ArrayList<>();
+    try (Reader.ReaderIterator<Integer> iterator = textReader.iterator()) {
+      while (iterator.hasNext()) {
+        actual.add(iterator.next());
+      }
+    }
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testLineSlicingCloneIterator() throws Exception {
+    String line = "a\n";
+    File tmpFile = tmpFolder.newFile();
+    List<String> expected = new ArrayList<>();
+    PrintStream writer = new PrintStream(new FileOutputStream(tmpFile));
+    for (long bytesWritten = 0; bytesWritten < TextReader.BUF_SIZE * 3 + 10;) {
+      writer.print(line);
+      expected.add(line);
+      bytesWritten += line.length();
+    }
+    writer.close();
+
+    TextReader<String> textReader = new TextReader<>(tmpFile.getPath(), false, null,
+        tmpFile.length(), StringUtf8Coder.of(), false, TextIO.CompressionType.UNCOMPRESSED, true);
+    List<String> actual = new ArrayList<>();
+    Reader.ReaderIterator<String> iterator = textReader.iterator();
+    while (iterator.hasNext()) {
+      actual.add(iterator.next());
+      iterator = iterator.copy();
+    }
+    assertEquals(expected, actual);
+  }
+
   private void testNewlineHandling(String separator, boolean stripNewlines) throws Exception {
+    testNewlineHandling(separator, stripNewlines, false);
+  }
+
+  private void testNewlineHandling(String separator, boolean stripNewlines, boolean lineSlicing)
+      throws Exception {
     File tmpFile = tmpFolder.newFile();
     PrintStream writer = new PrintStream(new FileOutputStream(tmpFile));
     List<String> expected = Arrays.asList("", "  hi there  ", "bob", "", "  ", "--zowie!--", "");
@@ -268,7 +360,7 @@ public class TextReaderTest {
     writer.close();
 
     TextReader<String> textReader = new TextReader<>(tmpFile.getPath(), stripNewlines, null, null,
-        StringUtf8Coder.of(), TextIO.CompressionType.UNCOMPRESSED);
+        StringUtf8Coder.of(), TextIO.CompressionType.UNCOMPRESSED, lineSlicing);
     ExecutorTestUtils.TestReaderObserver observer =
         new ExecutorTestUtils.TestReaderObserver(textReader);
 
@@ -294,6 +386,12 @@ public class TextReaderTest {
 
   private void testStringPayload(String[] lines, String separator, boolean stripNewlines)
       throws Exception {
+    testStringPayload(lines, separator, stripNewlines, false);
+  }
+
+  private void testStringPayload(
+      String[] lines, String separator, boolean stripNewlines, boolean lineSlicing)
+      throws Exception {
     File tmpFile = tmpFolder.newFile();
     List<String> expected = new ArrayList<>();
     PrintStream writer = new PrintStream(new FileOutputStream(tmpFile));
@@ -304,8 +402,9 @@ public class TextReaderTest {
     }
     writer.close();
 
+    // Line slicing reads with small buffers, so that lines cross the end of the read buffer.
     TextReader<String> textReader = new TextReader<>(tmpFile.getPath(), stripNewlines, null, null,
-        StringUtf8Coder.of(), TextIO.CompressionType.UNCOMPRESSED);
+        StringUtf8Coder.of(), !lineSlicing, TextIO.CompressionType.UNCOMPRESSED, lineSlicing);
     List<String> actual = new ArrayList<>();
     try (Reader.ReaderIterator<String> iterator = textReader.iterator()) {
       while (iterator.hasNext()) {
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.transforms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.BigEndianIntegerCoder;
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.runners.DirectPipeline;
+import com.google.cloud.dataflow.sdk.runners.DirectPipelineRunner.EvaluationResults;
+import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
+import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateDistinct.HyperLogLogCombineFn;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateDistinct.HyperLogLogCombineFn.Sketch;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for the ApproximateDistinct transform.
+ */
+@RunWith(JUnit4.class)
+public class ApproximateDistinctTest {
+
+  @Test
+  public void testEstimationErrorToPrecision() {
+    assertEquals(14, ApproximateDistinct.precisionFromEstimationError(0.01));
+    assertEquals(12, ApproximateDistinct.precisionFromEstimationError(0.02));
+    assertEquals(10, ApproximateDistinct.precisionFromEstimationError(0.05));
+    assertEquals(7, ApproximateDistinct.precisionFromEstimationError(0.1));
+    assertEquals(4, ApproximateDistinct.precisionFromEstimationError(0.5));
+  }
+
+  @Test
+  public void testInvalidPrecision() {
+    for (int precision : Arrays.asList(3, 19)) {
+      try {
+        ApproximateDistinct.globally(precision);
+        fail("Expected an IllegalArgumentException for precision " + precision);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+
+  private static Sketch sketchOf(int precision, long seed, int count) {
+    Random random = new Random(seed);
+    Sketch sketch = new Sketch(precision);
+    for (int i = 0; i < count; i++) {
+      sketch.add(random.nextLong());
+    }
+    return sketch;
+  }
+
+  private static void verifyEstimate(long expected, int precision, long estimate) {
+    // Four standard errors.
+    double maxError = 4 * 1.04 / Math.sqrt(1 << precision);
+    double error = Math.abs(estimate - expected) / (double) expected;
+    assertTrue("Estimate=" + estimate + " Actual=" + expected + " Error=" + error
+        + " MaxError=" + maxError, error < maxError);
+  }
+
+  @Test
+  public void testSparseSketch() {
+    Sketch sketch = sketchOf(14, 0, 1000);
+    assertTrue(sketch.isSparse());
+    // Few distinct hashes are counted almost exactly.
+    assertEquals(1000, sketch.estimate());
+    assertEquals(0, new Sketch(14).estimate());
+  }
+
+  @Test
+  public void testDenseSketch() {
+    for (int count : Arrays.asList(5000, 50000, 1000000)) {
+      Sketch sketch = sketchOf(12, count, count);
+      assertFalse(sketch.isSparse());
+      verifyEstimate(count, 12, sketch.estimate());
+    }
+  }
+
+  @Test
+  public void testDuplicatesAreCountedOnce() {
+    Random random = new Random(0);
+    Sketch sketch = new Sketch(10);
+    long[] hashes = new long[20000];
+    for (int i = 0; i < hashes.length; i++) {
+      hashes[i] = random.nextLong();
+    }
+    for (int i = 0; i < 5; i++) {
+      for (long hash : hashes) {
+        sketch.add(hash);
+      }
+    }
+    verifyEstimate(hashes.length, 10, sketch.estimate());
+  }
+
+  @Test
+  public void testMerge() {
+    for (int count : Arrays.asList(100, 2000, 100000)) {
+      Sketch all = new Sketch(12);
+      Sketch merged = new Sketch(12);
+      for (int part = 0; part < 4; part++) {
+        Random random = new Random(part);
+        Sketch sketch = new Sketch(12);
+        for (int i = 0; i < count / 4; i++) {
+          long hash = random.nextLong();
+          sketch.add(hash);
+          all.add(hash);
+        }
+        merged.merge(sketch);
+      }
+      assertEquals(all.isSparse(), merged.isSparse());
+      assertEquals(all.estimate(), merged.estimate());
+    }
+  }
+
+  @Test
+  public void testMergeDifferentPrecisions() {
+    try {
+      new Sketch(10).merge(new Sketch(12));
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testSketchCoder() throws Exception {
+    Coder<Sketch> coder = new HyperLogLogCombineFn<>(12, BigEndianIntegerCoder.of())
+        .getAccumulatorCoder(null, BigEndianIntegerCoder.of());
+    for (int count : Arrays.asList(0, 1, 500, 100000)) {
+      Sketch sketch = sketchOf(12, 0, count);
+      byte[] encoded = CoderUtils.encodeToByteArray(coder, sketch);
+      Sketch decoded = CoderUtils.decodeFromByteArray(coder, encoded);
+      assertEquals(sketch.isSparse(), decoded.isSparse());
+      assertEquals(sketch.estimate(), decoded.estimate());
+      // Six bits per register at most.
+      assertTrue(encoded.length <= 1 + (1 << 12) * 6 / 8);
+
+      // The decoded sketch keeps counting.
+      Sketch expected = sketchOf(12, 0, count);
+      Random random = new Random(1);
+      for (int i = 0; i < 1000; i++) {
+        long hash = random.nextLong();
+        expected.add(hash);
+        decoded.add(hash);
+      }
+      assertEquals(expected.estimate(), decoded.estimate());
+    }
+  }
+
+  @Test
+  @Category(com.google.cloud.dataflow.sdk.testing.RunnableOnService.class)
+  public void testApproximateDistinctWithSmallInput() {
+    Pipeline p = TestPipeline.create();
+
+    PCollection<Integer> input = p.apply(Create.of(Arrays.asList(1, 2, 3, 3)))
+        .setCoder(BigEndianIntegerCoder.of());
+
+    PCollection<Long> estimate = input
+        .apply(ApproximateDistinct.<Integer>globally(12));
+
+    DataflowAssert.that(estimate).containsInAnyOrder(3L);
+
+    p.run();
+  }
+
+  @Test
+  public void testApproximateDistinctPerKey() {
+    List<KV<Integer, Integer>> elements = Lists.newArrayList();
+    List<Integer> keys = Arrays.asList(20, 5000, 30000);
+    for (int key : keys) {
+      for (int i = 0; i < 2 * key; i++) {
+        elements.add(KV.of(key, i % key));
+      }
+    }
+
+    DirectPipeline p = DirectPipeline.createForTest();
+    PCollection<KV<Integer, Long>> counts = p
+        .apply(Create.of(elements))
+        .setCoder(KvCoder.of(BigEndianIntegerCoder.of(), BigEndianIntegerCoder.of()))
+        .apply(ApproximateDistinct.<Integer, Integer>perKey(0.02));
+
+    EvaluationResults results = p.run();
+
+    for (KV<Integer, Long> result : results.getPCollection(counts)) {
+      verifyEstimate(result.getKey(), 12, result.getValue());
+    }
+    assertEquals(keys.size(), results.getPCollection(counts).size());
+  }
+}
@@ -28,15 +28,21 @@ import com.google.cloud.dataflow.sdk.coders.CoderRegistry;
 import com.google.cloud.dataflow.sdk.coders.DoubleCoder;
 import com.google.cloud.dataflow.sdk.coders.KvCoder;
 import com.google.cloud.dataflow.sdk.coders.SerializableCoder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
 import com.google.cloud.dataflow.sdk.runners.DirectPipeline;
 import com.google.cloud.dataflow.sdk.runners.DirectPipelineRunner.EvaluationResults;
 import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
 import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateUnique.ApproximateUniqueCombineFn;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateUnique.ApproximateUniqueCombineFn.LargestUnique;
 import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -47,6 +53,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
 
 /**
  * Tests for the ApproximateUnique aggregator transform.
@@ -67,6 +75,84 @@ public class ApproximateUniqueTest {
     assertEquals(16, ApproximateUnique.sampleSizeFromEstimationError(0.5));
   }
 
+  @Test
+  public void testLargestUniqueKeepsLargestDistinctValues() {
+    Random random = new Random(0);
+    LargestUnique heap = new LargestUnique(100);
+    TreeSet<Long> expected = new TreeSet<>();
+    for (int i = 0; i < 10000; i++) {
+      // Small values, so that many of them repeat.
+      long value = random.nextInt(1000) - 500;
+      expected.add(value);
+      while (expected.size() > 100) {
+        expected.pollFirst();
+      }
+      assertEquals(expected.contains(value), heap.add(value));
+    }
+    assertEquals(new ArrayList<>(expected.descendingSet()), heap.extractOrderedList());
+    // Extracting the values doesn't empty the heap.
+    assertEquals(100, heap.extractOrderedList().size());
+  }
+
+  @Test
+  public void testMergeLargestUnique() {
+    ApproximateUniqueCombineFn<Integer> fn =
+        new ApproximateUniqueCombineFn<>(16, BigEndianIntegerCoder.of());
+    List<LargestUnique> heaps = new ArrayList<>();
+    LargestUnique expected = fn.createAccumulator();
+    for (int i = 0; i < 3; i++) {
+      LargestUnique heap = fn.createAccumulator();
+      for (long value = i; value < 100; value += 2) {
+        heap.add(value);
+        expected.add(value);
+      }
+      heaps.add(heap);
+    }
+    assertEquals(expected.extractOrderedList(),
+        fn.mergeAccumulators(heaps).extractOrderedList());
+  }
+
+  @Test
+  public void testLargestUniqueCoder() throws Exception {
+    Coder<LargestUnique> coder =
+        new ApproximateUniqueCombineFn<>(1000, BigEndianIntegerCoder.of())
+            .getAccumulatorCoder(null, BigEndianIntegerCoder.of());
+    Random random = new Random(0);
+    LargestUnique heap = new LargestUnique(1000);
+    heap.add(Long.MIN_VALUE);
+    heap.add(Long.MAX_VALUE);
+    heap.add(0);
+    for (int i = 0; i < 1000000; i++) {
+      heap.add(random.nextLong());
+    }
+
+    byte[] encoded = CoderUtils.encodeToByteArray(coder, heap);
+    LargestUnique decoded = CoderUtils.decodeFromByteArray(coder, encoded);
+    assertEquals(heap.extractOrderedList(), decoded.extractOrderedList());
+    // The deltas between the largest hashes are smaller than the hashes.
+    assertTrue(encoded.length < 7 * 1000);
+
+    // The decoded heap still tracks the largest values.
+    assertTrue(decoded.add(Long.MAX_VALUE - 1));
+    assertEquals(Long.MAX_VALUE - 1, (long) decoded.extractOrderedList().get(1));
+    assertEquals(1000, decoded.extractOrderedList().size());
+
+    LargestUnique empty = CoderUtils.decodeFromByteArray(
+        coder, CoderUtils.encodeToByteArray(coder, new LargestUnique(1000)));
+    assertTrue(empty.add(1));
+    assertEquals(Arrays.asList(1L), empty.extractOrderedList());
+  }
+
+  @Test
+  public void testHashEncodesElement() throws Exception {
+    Coder<String> coder = StringUtf8Coder.of();
+    for (String element : Arrays.asList("", "a", Strings.repeat("large", 1 << 20), "b")) {
+      assertEquals(
+          Hashing.murmur3_128().hashBytes(CoderUtils.encodeToByteArray(coder, element)).asLong(),
+          ApproximateUniqueCombineFn.hash(element, coder));
+    }
+  }
+
   public <T> PCollection<T> createInput(Pipeline p, Iterable<T> input,
       Coder<T> coder) {
     return p.apply(Create.of(input)).setCoder(coder);
@@ -17,7 +17,9 @@
 package com.google.cloud.dataflow.sdk.transforms;
 
 import static com.google.cloud.dataflow.sdk.TestUtils.checkCombineFn;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import com.google.api.client.util.Preconditions;
 import com.google.cloud.dataflow.sdk.Pipeline;
@@ -45,6 +47,8 @@ import com.google.cloud.dataflow.sdk.util.PropertyNames;
 import com.google.cloud.dataflow.sdk.util.common.ElementByteSizeObserver;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.cloud.dataflow.sdk.values.TupleTag;
+import com.google.cloud.dataflow.sdk.values.TupleTagList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
@@ -344,6 +348,86 @@ public class CombineTest {
     p.run();
   }
 
+  @Test
+  public void testHotKeyDetectionCombining() {
+    Pipeline p = TestPipeline.create();
+    PCollection<KV<String, Integer>> input = copy(createInput(p, TABLE), 100);
+
+    KeyedCombineFn<String, Integer, ?, Double> mean =
+        new MeanInts().<String>asKeyedFn();
+    PCollection<KV<String, Double>> detectedMean = input.apply(
+        Combine.perKey(mean).withHotKeyDetection(0.1, 4));
+
+    DataflowAssert.that(detectedMean).containsInAnyOrder(KV.of("a", 2.0), KV.of("b", 7.0));
+
+    p.run();
+  }
+
+  @Test
+  public void testDetectHotKeys() {
+    TupleTag<KV<KV<String, Integer>, Integer>> hot = new TupleTag<>();
+    DoFnTester<KV<String, Integer>, KV<String, Integer>> tester = DoFnTester.of(
+        new Combine.DetectHotKeysFn<String, Integer>(
+            hot, StringUtf8Coder.of(), 0.1, hotKeySpread));
+    tester.setSideOutputTags(TupleTagList.of(hot));
+
+    // Every other element has key "a", the rest distinct cold keys.
+    tester.startBundle();
+    for (int i = 0; i < 10000; i++) {
+      tester.processElement(KV.of(i % 2 == 0 ? "a" : "cold" + i, i));
+    }
+    tester.finishBundle();
+
+    // Key "a" is hot from its 100th element on, and spread round-robin.
+    int[] nonceCounts = new int[3];
+    for (KV<KV<String, Integer>, Integer> output : tester.takeSideOutputElements(hot)) {
+      assertEquals("a", output.getKey().getKey());
+      nonceCounts[output.getKey().getValue()]++;
+    }
+    assertThat(nonceCounts, Matchers.equalTo(new int[] {1634, 1634, 1633}));
+    assertEquals(99 + 5000, tester.takeOutputElements().size());
+  }
+
+  @Test
+  public void testDetectHotKeysForgetsCooledKeys() {
+    TupleTag<KV<KV<String, Integer>, Integer>> hot = new TupleTag<>();
+    DoFnTester<KV<String, Integer>, KV<String, Integer>> tester = DoFnTester.of(
+        new Combine.DetectHotKeysFn<String, Integer>(
+            hot, StringUtf8Coder.of(), 0.1, hotKeySpread));
+    tester.setSideOutputTags(TupleTagList.of(hot));
+
+    // Key "a" becomes hot, and then makes up much less than a tenth of the
+    // input by the time key "c" becomes hot.  Keys "b" and "c" aren't spread.
+    tester.startBundle();
+    for (int i = 0; i < 1000; i++) {
+      tester.processElement(KV.of("a", i));
+    }
+    for (int i = 0; i < 20000; i++) {
+      tester.processElement(KV.of("b", i));
+    }
+    for (int i = 0; i < 3000; i++) {
+      tester.processElement(KV.of("c", i));
+    }
+    tester.processElement(KV.of("a", 0));
+    tester.finishBundle();
+
+    // The last element of key "a" is no longer spread.
+    assertEquals(1000 - 99, tester.takeSideOutputElements(hot).size());
+    List<KV<String, Integer>> cold = tester.takeOutputElements();
+    assertEquals(99 + 20000 + 3000 + 1, cold.size());
+    assertEquals(KV.of("a", 0), cold.get(cold.size() - 1));
+  }
+
+  @Test
+  public void testInvalidHotKeyDetection() {
+    try {
+      Combine.perKey(new MeanInts().<String>asKeyedFn()).withHotKeyDetection(1.5, 4);
+      fail("should have failed");
+    } catch (IllegalArgumentException exn) {
+      // Expected.
+    }
+  }
+
   @Test
   public void testBinaryCombineFn() {
     Pipeline p = TestPipeline.create();
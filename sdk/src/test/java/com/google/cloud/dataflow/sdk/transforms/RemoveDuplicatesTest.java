@@ -16,11 +16,20 @@
 
 package com.google.cloud.dataflow.sdk.transforms;
 
+import static org.junit.Assert.assertEquals;
+
 import com.google.cloud.dataflow.sdk.Pipeline;
 import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
 import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
 import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.windowing.FixedWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Window;
+import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.cloud.dataflow.sdk.values.TimestampedValue;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
 
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -79,4 +88,39 @@ public class RemoveDuplicatesTest {
         .containsInAnyOrder();
     p.run();
   }
+
+  @Test
+  @Category(com.google.cloud.dataflow.sdk.testing.RunnableOnService.class)
+  public void testRemoveDuplicatesInDifferentWindows() {
+    Pipeline p = TestPipeline.create();
+
+    PCollection<String> input =
+        p.apply(Create.timestamped(
+            TimestampedValue.of("k1", new Instant(1)),
+            TimestampedValue.of("k1", new Instant(2)),
+            TimestampedValue.of("k1", new Instant(11)),
+            TimestampedValue.of("k2", new Instant(12))))
+        .setCoder(StringUtf8Coder.of())
+        .apply(Window.<String>into(FixedWindows.of(Duration.millis(10))));
+
+    PCollection<String> output =
+        input.apply(RemoveDuplicates.<String>create());
+
+    DataflowAssert.that(output)
+        .containsInAnyOrder("k1", "k1", "k2");
+    p.run();
+  }
+
+  @Test
+  public void testRemoveDuplicatesWithinBundle() {
+    DoFnTester<String, KV<String, Void>> tester = DoFnTester.of(
+        new RemoveDuplicates.RemoveDuplicatesWithinBundleFn<>(StringUtf8Coder.of()));
+    List<KV<String, Void>> output = tester.processBatch("k1", "k2", "k1", "k1", "k3", "k2");
+    assertEquals(
+        Arrays.asList(KV.of("k1", (Void) null), KV.of("k2", (Void) null), KV.of("k3", (Void) null)),
+        output);
+
+    // Elements are only remembered within a bundle.
+    assertEquals(Arrays.asList(KV.of("k1", (Void) null)), tester.processBatch("k1", "k1"));
+  }
 }
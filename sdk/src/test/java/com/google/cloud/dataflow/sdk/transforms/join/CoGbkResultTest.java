@@ -21,6 +21,8 @@ import static org.hamcrest.Matchers.emptyIterable;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
 
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
 import com.google.cloud.dataflow.sdk.util.common.Reiterable;
 import com.google.cloud.dataflow.sdk.util.common.Reiterator;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
@@ -59,6 +61,50 @@ public class CoGbkResultTest {
     assertThat(result.getOnly(new TupleTag<Integer>("tag1")), equalTo(1));
   }
 
+  @Test
+  public void testSpilledResults() {
+    runSpilledResult(0);
+    runSpilledResult(1);
+    runSpilledResult(3);
+    runSpilledResult(10);
+  }
+
+  public void runSpilledResult(int cacheSize) {
+    int valueLen = 7;
+    TestUnionValues values = new TestUnionValues(0, 1, 0, 3, 0, 3, 3);
+    CoGbkResult result = new CoGbkResult(createSchema(5), values, cacheSize, createUnionCoder(5));
+    assertThat(values.maxPos(), equalTo(Math.min(cacheSize, valueLen)));
+    assertThat(result.getAll(new TupleTag<Integer>("tag0")), contains(0, 2, 4));
+    assertThat(values.maxPos(), equalTo(valueLen));
+    assertThat(result.getAll(new TupleTag<Integer>("tag3")), contains(3, 5, 6));
+    assertThat(result.getAll(new TupleTag<Integer>("tag3")), contains(3, 5, 6));
+    assertThat(result.getAll(new TupleTag<Integer>("tag2")), emptyIterable());
+    assertThat(result.getOnly(new TupleTag<Integer>("tag1")), equalTo(1));
+    // The tail is read once, rather than once per tag.
+    assertThat(values.copies(), equalTo(0));
+  }
+
+  @Test
+  public void testAbandonedSpilledIterators() {
+    TestUnionValues values = new TestUnionValues(0, 1, 0, 3, 0, 3, 3);
+    CoGbkResult result = new CoGbkResult(createSchema(5), values, 0, createUnionCoder(5));
+    Iterable<Integer> tag0 = result.getAll(new TupleTag<Integer>("tag0"));
+
+    // Iterators that stop early hold no open files.
+    for (int i = 0; i < 10000; i++) {
+      assertThat(tag0.iterator().next(), equalTo(0));
+    }
+    assertThat(tag0, contains(0, 2, 4));
+  }
+
+  private UnionCoder createUnionCoder(int size) {
+    List<Coder<?>> coders = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      coders.add(VarIntCoder.of());
+    }
+    return UnionCoder.of(coders);
+  }
+
   private CoGbkResultSchema createSchema(int size) {
     List<TupleTag<?>> tags = new ArrayList<>();
     for (int i = 0; i < size; i++) {
@@ -71,6 +117,7 @@ public class CoGbkResultTest {
 
     final int[] tags;
     int maxPos = 0;
+    int copies = 0;
 
     /**
      * This will create a list of RawUnionValues whose tags are as given and
@@ -88,6 +135,13 @@ public class CoGbkResultTest {
       return maxPos;
     }
 
+    /**
+     * Returns the number of times an iterator was copied.
+     */
+    public int copies() {
+      return copies;
+    }
+
     @Override
     public Reiterator<RawUnionValue> iterator() {
       return iterator(0);
@@ -102,7 +156,10 @@ public class CoGbkResultTest {
           return new RawUnionValue(tags[pos], pos++);
         }
         public void remove() { throw new UnsupportedOperationException(); }
-        public Reiterator<RawUnionValue> copy() { return iterator(pos); }
+        public Reiterator<RawUnionValue> copy() {
+          copies++;
+          return iterator(pos);
+        }
       };
     }
   }
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.runners.worker.StreamingDataflowWorker;
+import com.google.cloud.dataflow.sdk.runners.worker.windmill.Windmill;
+import com.google.cloud.dataflow.sdk.runners.worker.windmill.WindmillServerStub;
+import com.google.cloud.dataflow.sdk.values.CodedTupleTag;
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Unit tests for {@link BatchingStateFetcher}. */
+@RunWith(JUnit4.class)
+public class BatchingStateFetcherTest {
+  private static final CodedTupleTag<String> TAG = CodedTupleTag.of("tag", StringUtf8Coder.of());
+
+  /**
+   * Answers every read with data naming the key and tag read, and records
+   * the requests it received.
+   */
+  private static class FakeWindmillServer extends WindmillServerStub {
+    final List<Windmill.GetDataRequest> requests = new CopyOnWriteArrayList<>();
+    volatile String failedKey = null;
+    volatile RuntimeException nextFailure = null;
+
+    @Override
+    public Windmill.GetDataResponse getData(Windmill.GetDataRequest request) {
+      requests.add(request);
+      RuntimeException failure = nextFailure;
+      if (failure != null) {
+        nextFailure = null;
+        throw failure;
+      }
+      Windmill.GetDataResponse.Builder response = Windmill.GetDataResponse.newBuilder();
+      for (Windmill.ComputationGetDataRequest computationRequest : request.getRequestsList()) {
+        Windmill.ComputationGetDataResponse.Builder computationResponse =
+            response.addDataBuilder().setComputationId(computationRequest.getComputationId());
+        for (Windmill.KeyedGetDataRequest keyRequest : computationRequest.getRequestsList()) {
+          Windmill.KeyedGetDataResponse.Builder keyResponse =
+              computationResponse.addDataBuilder().setKey(keyRequest.getKey());
+          if (keyRequest.getKey().toStringUtf8().equals(failedKey)) {
+            keyResponse.setFailed(true);
+            continue;
+          }
+          for (Windmill.TagValue value : keyRequest.getValuesToFetchList()) {
+            keyResponse.addValuesBuilder()
+                .setTag(value.getTag())
+                .setValue(Windmill.Value.newBuilder()
+                    .setTimestamp(0)
+                    .setData(data(keyRequest.getKey(), value.getTag())));
+          }
+          for (Windmill.TagList list : keyRequest.getListsToFetchList()) {
+            keyResponse.addListsBuilder()
+                .setTag(list.getTag())
+                .addValues(Windmill.Value.newBuilder()
+                    .setTimestamp(0)
+                    .setData(data(keyRequest.getKey(), list.getTag())));
+          }
+        }
+      }
+      return response.build();
+    }
+
+    private static ByteString data(ByteString key, ByteString tag) {
+      return ByteString.copyFromUtf8(key.toStringUtf8() + "/" + tag.toStringUtf8());
+    }
+
+    @Override
+    public Windmill.GetWorkResponse getWork(Windmill.GetWorkRequest request) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Windmill.CommitWorkResponse commitWork(Windmill.CommitWorkRequest request) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Windmill.GetConfigResponse getConfig(Windmill.GetConfigRequest request) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Windmill.ReportStatsResponse reportStats(Windmill.ReportStatsRequest request) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private FakeWindmillServer server = new FakeWindmillServer();
+  private BatchingStateFetcher fetcher;
+
+  @After
+  public void tearDown() {
+    if (fetcher != null) {
+      fetcher.close();
+    }
+  }
+
+  @Test
+  public void testBatchesConcurrentReads() throws Exception {
+    // A long linger makes sure that all reads end up in one batch.
+    fetcher = new BatchingStateFetcher(server, 500000);
+    ExecutorService executor = Executors.newFixedThreadPool(10);
+    List<Future<Map<CodedTupleTag<?>, Object>>> results = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      final ByteString key = ByteString.copyFromUtf8("key" + i);
+      results.add(executor.submit(new Callable<Map<CodedTupleTag<?>, Object>>() {
+          @Override
+          public Map<CodedTupleTag<?>, Object> call() throws Exception {
+            return fetcher.fetch("computation", key, 1, "prefix:", Arrays.asList(TAG));
+          }
+        }));
+    }
+    for (int i = 0; i < 10; i++) {
+      assertEquals("key" + i + "/prefix:tag", results.get(i).get().get(TAG));
+    }
+    executor.shutdown();
+
+    assertEquals(1, server.requests.size());
+    assertEquals(10, server.requests.get(0).getRequests(0).getRequestsCount());
+  }
+
+  @Test
+  public void testPrefetch() throws Exception {
+    fetcher = new BatchingStateFetcher(server, 0);
+    fetcher.addPrefetchSpec("computation", "prefix:",
+        BatchingStateFetcher.PrefetchSpec.of(Arrays.asList("tag")).withTimerLists("buffer:"));
+    Windmill.WorkItem work = Windmill.WorkItem.newBuilder()
+        .setKey(ByteString.copyFromUtf8("key"))
+        .setWorkToken(1)
+        .setTimers(Windmill.TimerBundle.newBuilder()
+            .addTimers(Windmill.Timer.newBuilder().setTag(ByteString.copyFromUtf8("window"))))
+        .build();
+    fetcher.prefetch("computation", work);
+
+    CodedTupleTag<String> bufferTag = CodedTupleTag.of("buffer:window", StringUtf8Coder.of());
+    assertEquals("key/prefix:tag",
+        fetcher.fetch("computation", work.getKey(), 1, "prefix:", Arrays.asList(TAG)).get(TAG));
+    assertEquals(Arrays.asList("key/prefix:buffer:window"),
+        fetcher.fetchList("computation", work.getKey(), 1, "prefix:", bufferTag));
+    assertEquals(1, server.requests.size());
+
+    // Tags that were not prefetched are read separately.
+    CodedTupleTag<String> otherTag = CodedTupleTag.of("other", StringUtf8Coder.of());
+    assertEquals("key/prefix:other",
+        fetcher.fetch("computation", work.getKey(), 1, "prefix:", Arrays.asList(otherTag))
+        .get(otherTag));
+    assertEquals(2, server.requests.size());
+
+    // Once the work item is done, its prefetched state is no longer used.
+    fetcher.discardPrefetch("computation", work);
+    fetcher.fetch("computation", work.getKey(), 1, "prefix:", Arrays.asList(TAG));
+    assertEquals(3, server.requests.size());
+  }
+
+  @Test
+  public void testInvalidToken() throws Exception {
+    fetcher = new BatchingStateFetcher(server, 0);
+    server.failedKey = "key";
+    try {
+      fetcher.fetch(
+          "computation", ByteString.copyFromUtf8("key"), 1, "prefix:", Arrays.asList(TAG));
+      fail("expected KeyTokenInvalidException");
+    } catch (StreamingDataflowWorker.KeyTokenInvalidException expected) {
+    }
+  }
+
+  @Test
+  public void testFailedPrefetchIsReadAgain() throws Exception {
+    fetcher = new BatchingStateFetcher(server, 0);
+    fetcher.addPrefetchSpec("computation", "prefix:",
+        BatchingStateFetcher.PrefetchSpec.of(Arrays.asList("tag")));
+    Windmill.WorkItem work = Windmill.WorkItem.newBuilder()
+        .setKey(ByteString.copyFromUtf8("key"))
+        .setWorkToken(1)
+        .build();
+    server.nextFailure = new RuntimeException("unavailable");
+    fetcher.prefetch("computation", work);
+    try {
+      fetcher.fetch("computation", work.getKey(), 1, "prefix:", Arrays.asList(TAG));
+      fail("expected the prefetch to fail");
+    } catch (RuntimeException expected) {
+    }
+
+    // A retry of the work item doesn't see the same failure.
+    assertEquals("key/prefix:tag",
+        fetcher.fetch("computation", work.getKey(), 1, "prefix:", Arrays.asList(TAG)).get(TAG));
+    assertEquals(2, server.requests.size());
+  }
+
+  @Test
+  public void testReadsFailAfterClose() throws Exception {
+    fetcher = new BatchingStateFetcher(server, 0);
+    fetcher.close();
+    try {
+      fetcher.fetch(
+          "computation", ByteString.copyFromUtf8("key"), 1, "prefix:", Arrays.asList(TAG));
+      fail("expected the read to fail");
+    } catch (IOException expected) {
+    }
+    assertEquals(0, server.requests.size());
+  }
+}
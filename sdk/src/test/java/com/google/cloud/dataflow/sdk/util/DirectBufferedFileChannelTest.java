@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+
+/** Unit tests for {@link DirectBufferedFileChannel}. */
+@RunWith(JUnit4.class)
+public class DirectBufferedFileChannelTest {
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testWrites() throws Exception {
+    File file = tmpFolder.newFile();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    try (DirectBufferedFileChannel channel =
+        new DirectBufferedFileChannel(new FileOutputStream(file).getChannel(), 16)) {
+      for (int i = 0; i < 100; i++) {
+        byte[] bytes = new byte[i % 40];
+        for (int j = 0; j < bytes.length; j++) {
+          bytes[j] = (byte) (i + j);
+        }
+        expected.write(bytes);
+        if (i % 3 == 0) {
+          // Direct buffers larger than the buffer are written without copying.
+          ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+          direct.put(bytes).flip();
+          assertEquals(bytes.length, channel.write(direct));
+        } else {
+          assertEquals(bytes.length, channel.write(ByteBuffer.wrap(bytes)));
+        }
+      }
+    }
+    assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+  }
+
+  @Test
+  public void testFactoryCreate() throws Exception {
+    File file = tmpFolder.newFile();
+    try (OutputStream output = Channels.newOutputStream(
+        new FileIOChannelFactory().create(file.getPath(), MimeTypes.TEXT))) {
+      output.write("hello".getBytes());
+    }
+    assertArrayEquals("hello".getBytes(), Files.readAllBytes(file.toPath()));
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    DirectBufferedFileChannel channel = new DirectBufferedFileChannel(
+        new FileOutputStream(tmpFolder.newFile()).getChannel());
+    channel.close();
+    channel.close();
+    assertFalse(channel.isOpen());
+    try {
+      channel.write(ByteBuffer.allocate(1));
+      fail("Expected ClosedChannelException");
+    } catch (ClosedChannelException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Unit tests for {@link ExternalGrouper}. */
+@RunWith(JUnit4.class)
+public class ExternalGrouperTest {
+
+  private static List<KV<String, List<Integer>>> group(
+      ExternalGrouper<String, Integer> grouper, List<KV<String, Integer>> entries)
+      throws Exception {
+    for (KV<String, Integer> entry : entries) {
+      grouper.add(entry.getKey(), entry.getValue());
+    }
+    List<KV<String, List<Integer>>> groups = new ArrayList<>();
+    for (KV<String, Iterable<Integer>> group : grouper.group()) {
+      groups.add(KV.<String, List<Integer>>of(
+          group.getKey(), ImmutableList.copyOf(group.getValue())));
+    }
+    return groups;
+  }
+
+  private static List<KV<String, Integer>> manyEntries() {
+    List<KV<String, Integer>> entries = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      entries.add(KV.of("key" + (i * 7 % 100), i));
+    }
+    return entries;
+  }
+
+  @Test
+  public void testGroupInMemory() throws Exception {
+    ExternalGrouper<String, Integer> grouper =
+        new ExternalGrouper<>(StringUtf8Coder.of(), VarIntCoder.of(), 1 << 20);
+    List<KV<String, List<Integer>>> groups = group(grouper, Arrays.asList(
+        KV.of("b", 1), KV.of("a", 2), KV.of("b", 3), KV.of("c", 4)));
+
+    assertEquals(Arrays.asList(
+        KV.of("a", Arrays.asList(2)),
+        KV.of("b", Arrays.asList(1, 3)),
+        KV.of("c", Arrays.asList(4))),
+        groups);
+    assertEquals(0, grouper.getSpilledRuns());
+    assertEquals(0, grouper.getSpilledBytes());
+  }
+
+  @Test
+  public void testGroupWithSpilling() throws Exception {
+    List<KV<String, Integer>> entries = manyEntries();
+    ExternalGrouper<String, Integer> inMemory =
+        new ExternalGrouper<>(StringUtf8Coder.of(), VarIntCoder.of(), 1 << 30);
+    try (ExternalGrouper<String, Integer> spilling =
+        new ExternalGrouper<>(StringUtf8Coder.of(), VarIntCoder.of(), 10000)) {
+      // Spilling keeps the order of both the groups and their values.
+      assertEquals(group(inMemory, entries), group(spilling, entries));
+      assertEquals(0, inMemory.getSpilledRuns());
+      assertTrue(spilling.getSpilledRuns() > 10);
+      assertTrue(spilling.getSpilledBytes() > 10000 * 5);
+    }
+  }
+
+  @Test
+  public void testSpilledValuesAreIterable() throws Exception {
+    try (ExternalGrouper<String, Integer> grouper =
+        new ExternalGrouper<>(StringUtf8Coder.of(), VarIntCoder.of(), 1)) {
+      for (KV<String, Integer> entry : manyEntries()) {
+        grouper.add(entry.getKey(), entry.getValue());
+      }
+      List<KV<String, Iterable<Integer>>> groups = grouper.group();
+      assertEquals(100, groups.size());
+
+      Iterable<Integer> values = groups.get(0).getValue();
+      assertFalse(values instanceof List);
+      // Each iteration reads the values again, and may stop early.
+      assertEquals(0, (int) values.iterator().next());
+      List<Integer> all = ImmutableList.copyOf(values);
+      assertEquals(100, all.size());
+      assertEquals(all, ImmutableList.copyOf(values));
+    }
+  }
+
+  @Test
+  public void testAbandonedSpilledIterators() throws Exception {
+    try (ExternalGrouper<String, Integer> grouper =
+        new ExternalGrouper<>(StringUtf8Coder.of(), VarIntCoder.of(), 1000)) {
+      for (KV<String, Integer> entry : manyEntries()) {
+        grouper.add(entry.getKey(), entry.getValue());
+      }
+      List<KV<String, Iterable<Integer>>> groups = grouper.group();
+      List<Integer> firstValues = new ArrayList<>();
+      for (KV<String, Iterable<Integer>> group : groups) {
+        firstValues.add(ImmutableList.copyOf(group.getValue()).get(0));
+      }
+      // Iterators share the grouper's channel, so stopping them early
+      // leaks no file descriptors.
+      for (int i = 0; i < 10000; i++) {
+        assertEquals(firstValues.get(i % 100), groups.get(i % 100).getValue().iterator().next());
+      }
+    }
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    ExternalGrouper<String, Integer> grouper =
+        new ExternalGrouper<>(StringUtf8Coder.of(), VarIntCoder.of(), 1000);
+    for (KV<String, Integer> entry : manyEntries()) {
+      grouper.add(entry.getKey(), entry.getValue());
+    }
+    Iterable<Integer> values = grouper.group().get(0).getValue();
+    grouper.close();
+    try {
+      values.iterator();
+      fail("should have failed");
+    } catch (IllegalStateException exn) {
+      // Expected.
+    }
+    // Closing again does nothing.
+    grouper.close();
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    ExternalGrouper<String, Integer> grouper =
+        new ExternalGrouper<>(StringUtf8Coder.of(), VarIntCoder.of(), 1);
+    assertEquals(Collections.emptyList(), grouper.group());
+  }
+
+  @Test
+  public void testGroupTwice() throws Exception {
+    ExternalGrouper<String, Integer> grouper =
+        new ExternalGrouper<>(StringUtf8Coder.of(), VarIntCoder.of(), 1);
+    grouper.group();
+    try {
+      grouper.group();
+      fail("should have failed");
+    } catch (IllegalStateException exn) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testInvalidMemoryBytes() {
+    try {
+      new ExternalGrouper<>(StringUtf8Coder.of(), VarIntCoder.of(), 0);
+      fail("should have failed");
+    } catch (IllegalArgumentException exn) {
+      // Expected.
+    }
+  }
+}
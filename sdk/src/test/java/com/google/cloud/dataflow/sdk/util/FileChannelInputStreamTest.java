@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/** Unit tests for {@link FileChannelInputStream}. */
+@RunWith(JUnit4.class)
+public class FileChannelInputStreamTest {
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private FileChannel open(byte[] contents) throws Exception {
+    File file = tmpFolder.newFile();
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      output.write(contents);
+    }
+    return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+  }
+
+  @Test
+  public void testStreamsShareChannel() throws Exception {
+    try (FileChannel channel = open(new byte[] {1, 2, 3, 4, 5})) {
+      FileChannelInputStream first = new FileChannelInputStream(channel, 0);
+      FileChannelInputStream second = new FileChannelInputStream(channel, 3);
+
+      assertEquals(1, first.read());
+      assertEquals(4, second.read());
+      byte[] b = new byte[2];
+      assertEquals(2, first.read(b, 0, 2));
+      assertArrayEquals(new byte[] {2, 3}, b);
+      assertEquals(3, first.getPosition());
+      assertEquals(5, second.read());
+      assertEquals(-1, second.read());
+      second.close();
+
+      // Neither the streams nor closing them affect the channel.
+      assertEquals(0, channel.position());
+      assertEquals(4, first.read());
+    }
+  }
+
+  @Test
+  public void testSkip() throws Exception {
+    try (FileChannel channel = open(new byte[] {1, 2, 3})) {
+      FileChannelInputStream input = new FileChannelInputStream(channel, 0);
+
+      assertEquals(2, input.skip(2));
+      assertEquals(1, input.skip(5));
+      assertEquals(-1, input.read());
+    }
+  }
+}
@@ -19,6 +19,8 @@ package com.google.cloud.dataflow.sdk.util;
 import static org.hamcrest.Matchers.contains;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
@@ -42,6 +44,7 @@ import org.junit.runners.JUnit4;
 import org.mockito.Mockito;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -77,6 +80,22 @@ public class GcsUtilTest {
     assertSame(pipelineOptions.getExecutorService(), pipelineOptions.getGcsUtil().executorService);
   }
 
+  @Test
+  public void testCreationWithReadPrefetching() {
+    GcsOptions pipelineOptions = PipelineOptionsFactory.as(GcsOptions.class);
+    pipelineOptions.setGcpCredential(Mockito.mock(Credential.class));
+    pipelineOptions.setGcsReadPrefetchBlockCount(3);
+    pipelineOptions.setGcsReadPrefetchThreads(16);
+    GcsUtil gcsUtil = pipelineOptions.getGcsUtil();
+    // The pool is shared by all readers, so it is not sized by the blocks of one reader.
+    assertEquals(16, gcsUtil.readPrefetchExecutorService.getMaximumPoolSize());
+    assertNotSame(pipelineOptions.getExecutorService(), gcsUtil.readPrefetchExecutorService);
+
+    GcsOptions sequentialOptions = PipelineOptionsFactory.as(GcsOptions.class);
+    sequentialOptions.setGcpCredential(Mockito.mock(Credential.class));
+    assertNull(sequentialOptions.getGcsUtil().readPrefetchExecutorService);
+  }
+
   @Test
   public void testCreationWithGcsUtilProvided() {
     GcsOptions pipelineOptions = PipelineOptionsFactory.as(GcsOptions.class);
@@ -118,6 +137,42 @@ public class GcsUtilTest {
         executorService.awaitTermination(10, TimeUnit.SECONDS));
   }
 
+  @Test
+  public void testMatchWithMetadata() throws IOException {
+    GcsOptions pipelineOptions = PipelineOptionsFactory.as(GcsOptions.class);
+    pipelineOptions.setGcpCredential(Mockito.mock(Credential.class));
+    GcsUtil gcsUtil = pipelineOptions.getGcsUtil();
+
+    Storage mockStorage = Mockito.mock(Storage.class);
+    gcsUtil.setStorageClient(mockStorage);
+
+    Storage.Objects mockStorageObjects = Mockito.mock(Storage.Objects.class);
+    Storage.Objects.List mockStorageList = Mockito.mock(Storage.Objects.List.class);
+
+    Objects modelObjects = new Objects();
+    List<StorageObject> items = new ArrayList<>();
+    items.add(new StorageObject().setBucket("testbucket").setName("testdirectory/")
+        .setSize(BigInteger.valueOf(0)));
+    items.add(new StorageObject().setBucket("testbucket").setName("testdirectory/file1name")
+        .setSize(BigInteger.valueOf(100)));
+    items.add(new StorageObject().setBucket("testbucket").setName("testdirectory/file2name")
+        .setSize(BigInteger.valueOf(200)).setContentEncoding("gzip"));
+    items.add(new StorageObject().setBucket("testbucket").setName("testdirectory/otherfile")
+        .setSize(BigInteger.valueOf(300)));
+    modelObjects.setItems(items);
+
+    when(mockStorage.objects()).thenReturn(mockStorageObjects);
+    when(mockStorageObjects.list("testbucket")).thenReturn(mockStorageList);
+    when(mockStorageList.execute()).thenReturn(modelObjects);
+
+    GcsIOChannelFactory factory = new GcsIOChannelFactory(pipelineOptions);
+    assertEquals(
+        ImmutableList.of(
+            new FileMetadata("gs://testbucket/testdirectory/file1name", 100, true),
+            new FileMetadata("gs://testbucket/testdirectory/file2name", 200, false)),
+        factory.matchWithMetadata("gs://testbucket/testdirectory/file*"));
+  }
+
   @Test
   public void testGlobExpansion() throws IOException {
     GcsOptions pipelineOptions = PipelineOptionsFactory.as(GcsOptions.class);
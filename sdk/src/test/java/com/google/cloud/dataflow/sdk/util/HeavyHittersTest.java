@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/** Unit tests for {@link HeavyHitters}. */
+@RunWith(JUnit4.class)
+public class HeavyHittersTest {
+
+  @Test
+  public void testExactWithinCapacity() {
+    HeavyHitters<String> sketch = new HeavyHitters<>(10);
+    for (String item : Arrays.asList("a", "b", "a", "c", "a", "b")) {
+      sketch.add(item);
+    }
+
+    assertEquals(6, sketch.getTotal());
+    assertEquals(3, sketch.getCount("a"));
+    assertEquals(3, sketch.getGuaranteedCount("a"));
+    assertEquals(2, sketch.getCount("b"));
+    assertEquals(0, sketch.getCount("d"));
+    assertEquals(Arrays.asList("a", "b"), sketch.getHeavyHitters(0.2));
+    assertEquals(Arrays.asList("a"), sketch.getHeavyHitters(0.4));
+    assertEquals(Collections.emptyList(), sketch.getHeavyHitters(0.5));
+  }
+
+  @Test
+  public void testHeavyHittersAmongManyItems() {
+    // Two hot items, among 100000 occurrences of 10000 other items.
+    Random random = new Random(0);
+    HeavyHitters<Integer> sketch = HeavyHitters.forFraction(0.05);
+    int hot = 0;
+    for (int i = 0; i < 100000; i++) {
+      if (i % 10 == 0) {
+        sketch.add(-1);
+        hot++;
+      } else if (i % 10 == 1) {
+        sketch.add(-2);
+      } else {
+        sketch.add(random.nextInt(10000));
+      }
+    }
+
+    assertEquals(Arrays.asList(-1, -2), sketch.getHeavyHitters(0.05));
+    // The error is at most the total divided by the capacity.
+    long maxError = sketch.getTotal() / 200;
+    assertTrue(sketch.getCount(-1) >= hot);
+    assertTrue(sketch.getCount(-1) <= hot + maxError);
+    assertTrue(sketch.getGuaranteedCount(-1) <= hot);
+    assertTrue(sketch.getGuaranteedCount(-1) >= hot - maxError);
+  }
+
+  @Test
+  public void testInvalidArguments() {
+    try {
+      new HeavyHitters<String>(0);
+      fail("should have failed");
+    } catch (IllegalArgumentException exn) {
+      // Expected.
+    }
+    try {
+      HeavyHitters.forFraction(1.0);
+      fail("should have failed");
+    } catch (IllegalArgumentException exn) {
+      // Expected.
+    }
+  }
+}
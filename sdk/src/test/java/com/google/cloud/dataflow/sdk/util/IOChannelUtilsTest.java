@@ -16,15 +16,20 @@
 
 package com.google.cloud.dataflow.sdk.util;
 
+import static org.mockito.Mockito.when;
+
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
 
 import java.io.File;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
 
 /**
  * Tests for IOChannelUtils.
@@ -73,4 +78,27 @@ public class IOChannelUtilsTest {
         IOChannelUtils.constructName("out", "-SS-of-NN", ".txt",
             100, 5000));
   }
+
+  @Test
+  public void testMatchWithMetadataLooksUpEveryMatch() throws Exception {
+    IOChannelFactory factory = Mockito.mock(IOChannelFactory.class);
+    when(factory.match("pattern")).thenReturn(Arrays.asList("a", "b"));
+    when(factory.getSizeBytes("a")).thenReturn(1L);
+    when(factory.getSizeBytes("b")).thenReturn(2L);
+    when(factory.isReadSeekEfficient("a")).thenReturn(true);
+
+    Assert.assertEquals(
+        Arrays.asList(new FileMetadata("a", 1, true), new FileMetadata("b", 2, false)),
+        IOChannelUtils.matchWithMetadata(factory, "pattern"));
+  }
+
+  @Test
+  public void testMatchWithMetadataUsesListing() throws Exception {
+    File file = tmpFolder.newFile("file");
+    Files.write(file.toPath(), new byte[3]);
+
+    Assert.assertEquals(
+        Arrays.asList(new FileMetadata(file.getPath(), 3, true)),
+        IOChannelUtils.matchWithMetadata(new FileIOChannelFactory(), file.getPath()));
+  }
 }
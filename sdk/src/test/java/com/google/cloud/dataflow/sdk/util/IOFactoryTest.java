@@ -31,6 +31,7 @@ import org.junit.runners.JUnit4;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -59,6 +60,28 @@ public class IOFactoryTest {
     Assert.assertTrue(paths.contains(foo2.getCanonicalPath()));
   }
 
+  @Test
+  public void testLocalFileMatchWithMetadata() throws Exception {
+    File foo1 = tmpFolder.newFile("foo1");
+    try (FileOutputStream output = new FileOutputStream(foo1)) {
+      output.write("foo".getBytes());
+    }
+    tmpFolder.newFile("foo2").createNewFile();
+    tmpFolder.newFile("barf").createNewFile();
+
+    FileIOChannelFactory factory = new FileIOChannelFactory();
+    String pattern = tmpFolder.getRoot().getCanonicalPath() + "/f*";
+    List<FileMetadata> matches = factory.matchWithMetadata(pattern);
+
+    Assert.assertEquals(2, matches.size());
+    Collection<String> paths = factory.match(pattern);
+    for (FileMetadata match : matches) {
+      Assert.assertTrue(paths.contains(match.getSpec()));
+      Assert.assertEquals(factory.getSizeBytes(match.getSpec()), match.getSizeBytes());
+      Assert.assertTrue(match.isReadSeekEfficient());
+    }
+  }
+
   @Test
   public void testMultiFileRead() throws Exception {
     File file1 = tmpFolder.newFile("file1");
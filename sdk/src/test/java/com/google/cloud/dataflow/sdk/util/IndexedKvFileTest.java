@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Unit tests for {@link IndexedKvFile}. */
+@RunWith(JUnit4.class)
+public class IndexedKvFileTest {
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private static final List<KV<String, Integer>> ENTRIES = Arrays.asList(
+      KV.of("a", 1), KV.of("b", 2), KV.of("a", 3), KV.of("c", 4));
+
+  private IndexedKvFile<String, Integer> write(List<KV<String, Integer>> entries)
+      throws Exception {
+    return write(tmpFolder.newFile(), entries);
+  }
+
+  private IndexedKvFile<String, Integer> write(File file, List<KV<String, Integer>> entries)
+      throws Exception {
+    return IndexedKvFile.write(file, entries, StringUtf8Coder.of(), VarIntCoder.of());
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    IndexedKvFile<String, Integer> file = write(ENTRIES);
+
+    assertEquals(Arrays.asList(1, 3), file.get("a"));
+    assertEquals(Arrays.asList(2), file.get("b"));
+    assertEquals(Collections.emptyList(), file.get("d"));
+    assertEquals(4, file.size());
+    assertEquals(3, file.getKeyCount());
+    assertEquals(4 * 16, file.getIndexBytes());
+  }
+
+  @Test
+  public void testHeader() throws Exception {
+    File path = tmpFolder.newFile();
+    write(path, ENTRIES);
+
+    try (DataInputStream input = new DataInputStream(new FileInputStream(path))) {
+      assertEquals(4, input.readLong());
+      assertEquals(3, input.readLong());
+    }
+  }
+
+  @Test
+  public void testConcurrentLookups() throws Exception {
+    List<KV<String, Integer>> entries = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      entries.add(KV.of("key" + i, i));
+    }
+    final IndexedKvFile<String, Integer> file = write(entries);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int thread = 0; thread < 4; thread++) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            for (int i = 0; i < 1000; i++) {
+              if (!Arrays.asList(i).equals(file.get("key" + i))) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testDeleteKeepsFileReadable() throws Exception {
+    File path = tmpFolder.newFile();
+    IndexedKvFile<String, Integer> file = write(path, ENTRIES);
+
+    file.delete();
+    assertFalse(path.exists());
+    assertEquals(Arrays.asList(1, 3), file.get("a"));
+    assertEquals(ENTRIES, ImmutableList.copyOf(file.entries()));
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    File path = tmpFolder.newFile();
+    IndexedKvFile<String, Integer> file = write(path, ENTRIES);
+
+    file.close();
+    assertFalse(path.exists());
+    try {
+      file.get("a");
+      fail("Expected reading a closed file to fail");
+    } catch (ClosedChannelException expected) {
+    }
+  }
+
+  @Test
+  public void testManyKeys() throws Exception {
+    List<KV<String, Integer>> entries = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      entries.add(KV.of("key" + i, i));
+    }
+    IndexedKvFile<String, Integer> file = write(entries);
+
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(Arrays.asList(i), file.get("key" + i));
+    }
+    assertEquals(entries, ImmutableList.copyOf(file.entries()));
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    IndexedKvFile<String, Integer> file = write(Collections.<KV<String, Integer>>emptyList());
+
+    assertEquals(Collections.emptyList(), file.get("a"));
+    assertEquals(0, file.size());
+    assertEquals(0, file.getKeyCount());
+    assertTrue(file.asMultimap().isEmpty());
+  }
+
+  @Test
+  public void testEntries() throws Exception {
+    IndexedKvFile<String, Integer> file = write(ENTRIES);
+
+    assertEquals(ENTRIES, ImmutableList.copyOf(file.entries()));
+    // Iterations may stop early.
+    assertEquals(ENTRIES.get(0), file.entries().iterator().next());
+  }
+
+  @Test
+  public void testAsMultimap() throws Exception {
+    Map<String, Iterable<Integer>> map = write(ENTRIES).asMultimap();
+
+    assertEquals(Arrays.asList(1, 3), map.get("a"));
+    assertNull(map.get("d"));
+    assertNull(map.get(1));
+    assertTrue(map.containsKey("c"));
+    assertFalse(map.containsKey("d"));
+    assertEquals(3, map.size());
+    assertEquals(Arrays.asList("a", "b", "c"), ImmutableList.copyOf(map.keySet()));
+  }
+
+  @Test
+  public void testAsMap() throws Exception {
+    Map<String, Integer> map = write(
+        Arrays.asList(KV.of("a", 1), KV.of("b", 2))).asMap();
+
+    assertEquals(Integer.valueOf(1), map.get("a"));
+    assertNull(map.get("c"));
+    assertEquals(ImmutableMap.of("a", 1, "b", 2), map);
+    assertEquals(2 * 16, ((SideInputCache.Sized) map).getSizeBytes());
+  }
+
+  @Test
+  public void testAsMapDuplicateValues() throws Exception {
+    Map<String, Integer> map = write(ENTRIES).asMap();
+
+    assertEquals(Integer.valueOf(2), map.get("b"));
+    try {
+      map.get("a");
+      fail("Expected duplicate values to fail");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("Duplicate values"));
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/** Unit tests for {@link MappedFileChannel}. */
+@RunWith(JUnit4.class)
+public class MappedFileChannelTest {
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private byte[] contents(int size) {
+    byte[] contents = new byte[size];
+    for (int i = 0; i < size; i++) {
+      contents[i] = (byte) i;
+    }
+    return contents;
+  }
+
+  private File writeFile(byte[] contents) throws Exception {
+    File file = tmpFolder.newFile();
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      output.write(contents);
+    }
+    return file;
+  }
+
+  private MappedFileChannel open(File file, long windowBytes) throws Exception {
+    return new MappedFileChannel(new FileInputStream(file).getChannel(), windowBytes);
+  }
+
+  @Test
+  public void testReadAcrossWindows() throws Exception {
+    byte[] contents = contents(1000);
+    try (MappedFileChannel channel = open(writeFile(contents), 64)) {
+      assertEquals(1000, channel.size());
+      ByteBuffer read = ByteBuffer.allocate(1000);
+      while (channel.read(read) > 0) {
+        // Reads stop at the end of each window.
+      }
+      assertFalse(read.hasRemaining());
+      assertArrayEquals(contents, read.array());
+      assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+      assertEquals(1000, channel.position());
+    }
+  }
+
+  @Test
+  public void testReadStopsAtWindowEnd() throws Exception {
+    try (MappedFileChannel channel = open(writeFile(contents(1000)), 64)) {
+      assertEquals(64, channel.read(ByteBuffer.allocate(100)));
+      assertEquals(64, channel.read(ByteBuffer.allocate(100)));
+      assertEquals(128, channel.position());
+    }
+  }
+
+  @Test
+  public void testSeek() throws Exception {
+    byte[] contents = contents(1000);
+    try (MappedFileChannel channel = open(writeFile(contents), 64)) {
+      ByteBuffer read = ByteBuffer.allocate(10);
+      channel.position(500);
+      assertEquals(10, channel.read(read));
+      assertArrayEquals(Arrays.copyOfRange(contents, 500, 510), read.array());
+
+      read.clear();
+      channel.position(5);
+      assertEquals(10, channel.read(read));
+      assertArrayEquals(Arrays.copyOfRange(contents, 5, 15), read.array());
+
+      channel.position(2000);
+      assertEquals(-1, channel.read(read));
+    }
+  }
+
+  @Test
+  public void testEmptyFile() throws Exception {
+    try (MappedFileChannel channel = open(writeFile(new byte[0]), 64)) {
+      assertEquals(0, channel.size());
+      assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+    }
+  }
+
+  @Test
+  public void testReadOnly() throws Exception {
+    try (MappedFileChannel channel = open(writeFile(contents(10)), 64)) {
+      channel.write(ByteBuffer.allocate(1));
+      fail("Expected NonWritableChannelException");
+    } catch (NonWritableChannelException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    MappedFileChannel channel = open(writeFile(contents(10)), 64);
+    assertTrue(channel.isOpen());
+    channel.close();
+    assertFalse(channel.isOpen());
+    try {
+      channel.read(ByteBuffer.allocate(1));
+      fail("Expected ClosedChannelException");
+    } catch (ClosedChannelException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testFactoryMapsLargeFiles() throws Exception {
+    FileIOChannelFactory factory = new FileIOChannelFactory();
+    File small = writeFile(contents(10));
+    File large = writeFile(contents((int) FileIOChannelFactory.MIN_MAPPED_FILE_BYTES));
+
+    try (ReadableByteChannel channel = factory.open(small.getPath())) {
+      assertFalse(channel instanceof MappedFileChannel);
+    }
+    try (ReadableByteChannel channel = factory.open(large.getPath())) {
+      assertTrue(channel instanceof MappedFileChannel);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.View;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.cloud.dataflow.sdk.values.PCollectionView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link SideInputCache}. */
+@RunWith(JUnit4.class)
+public class SideInputCacheTest {
+  private static final String PREFIX = "stage-";
+
+  private PCollection<KV<String, Integer>> input;
+  private CounterSet counters;
+
+  /** An iterable that counts how often it was iterated. */
+  private static class CountingIterable implements Iterable<Object> {
+    private final List<Object> elements = new ArrayList<>();
+    private int iterations = 0;
+
+    CountingIterable(Object... values) {
+      for (Object value : values) {
+        elements.add(WindowedValue.valueInGlobalWindow(value));
+      }
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+      iterations++;
+      return elements.iterator();
+    }
+  }
+
+  @Before
+  public void setUp() {
+    Pipeline p = TestPipeline.create();
+    input = p.apply(Create.of(KV.of("a", 1)))
+        .setCoder(KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()));
+    counters = new CounterSet();
+  }
+
+  private long counter(String name) {
+    return (Long) counters.getExistingCounter(PREFIX + name).getAggregate(false);
+  }
+
+  @Test
+  public void testSharesMaterializedValues() {
+    PCollectionView<Map<String, Iterable<Integer>>, ?> view =
+        input.apply(View.<String, Integer>asMap());
+    SideInputCache cache = new SideInputCache(1 << 20);
+    CountingIterable firstElements = new CountingIterable(KV.of("a", 1), KV.of("b", 2));
+    CountingIterable secondElements = new CountingIterable(KV.of("a", 1), KV.of("b", 2));
+
+    Map<String, Iterable<Integer>> first =
+        cache.contents(Arrays.asList("source"), 0, firstElements, PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+    Map<String, Iterable<Integer>> second =
+        cache.contents(Arrays.asList("source"), 0, secondElements, PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+
+    assertSame(first, second);
+    assertEquals(2, first.size());
+    assertEquals(1, firstElements.iterations);
+    assertEquals(0, secondElements.iterations);
+    assertEquals(1, counter(SideInputCache.HITS_COUNTER));
+    assertEquals(1, counter(SideInputCache.MISSES_COUNTER));
+    assertEquals(1, cache.size());
+    assertEquals(2 * SideInputCache.ELEMENT_BYTES, cache.getWeight());
+
+    // The shared value can't be modified by its users.
+    try {
+      first.remove("a");
+      fail("modified a shared side input");
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      ((Collection<Integer>) first.get("a")).clear();
+      fail("modified a shared side input");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  @Test
+  public void testDistinguishesSourcesAndViews() {
+    PCollectionView<Map<String, Iterable<Integer>>, ?> view =
+        input.apply(View.<String, Integer>asMap());
+    PCollectionView<Map<String, Iterable<Integer>>, ?> otherView =
+        input.apply(View.<String, Integer>asMap());
+    SideInputCache cache = new SideInputCache(1 << 20);
+
+    Map<String, Iterable<Integer>> first =
+        cache.contents("source", 0, new CountingIterable(KV.of("a", 1)), PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+    Map<String, Iterable<Integer>> otherSource =
+        cache.contents("otherSource", 0, new CountingIterable(KV.of("b", 1)), PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+    Map<String, Iterable<Integer>> otherViewValue =
+        cache.contents("source", 0, new CountingIterable(KV.of("a", 1)), PREFIX)
+        .materialize(otherView, counters.getAddCounterMutator());
+
+    assertNotSame(first, otherSource);
+    assertNotSame(first, otherViewValue);
+    assertEquals(3, counter(SideInputCache.MISSES_COUNTER));
+    assertNull(counters.getExistingCounter(PREFIX + SideInputCache.HITS_COUNTER));
+  }
+
+  @Test
+  public void testDoesNotKeepLazyValues() {
+    PCollectionView<Iterable<Integer>, ?> view =
+        TestPipeline.create().apply(Create.of(1)).apply(View.<Integer>asIterable());
+    SideInputCache cache = new SideInputCache(1 << 20);
+
+    cache.contents("source", 0, new CountingIterable(1, 2), PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+    cache.contents("source", 0, new CountingIterable(1, 2), PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+
+    assertEquals(2, counter(SideInputCache.MISSES_COUNTER));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getWeight());
+  }
+
+  @Test
+  public void testEvictedIndexedValuesStayReadable() {
+    PCollectionView<Map<String, Iterable<Integer>>, ?> view =
+        input.apply(View.<String, Integer>asMap().indexed());
+    // Holds a single indexed value, weighed by its index.
+    SideInputCache cache = new SideInputCache(1);
+
+    Map<String, Iterable<Integer>> first =
+        cache.contents("source", 0, new CountingIterable(KV.of("a", 1)), PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+    cache.contents("otherSource", 0, new CountingIterable(KV.of("a", 2)), PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+
+    assertEquals(1, cache.getEvictions());
+    // The evicted value's file is deleted, but it can still be read.
+    assertEquals(Arrays.asList(1), first.get("a"));
+    assertEquals(1, first.size());
+  }
+
+  @Test
+  public void testEvictsWhenFull() {
+    PCollectionView<Map<String, Iterable<Integer>>, ?> view =
+        input.apply(View.<String, Integer>asMap());
+    // Holds a single value read from sources of the given estimated size.
+    SideInputCache cache = new SideInputCache(1000 * SideInputCache.EXPANSION);
+
+    cache.contents("source", 1000, new CountingIterable(KV.of("a", 1)), PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+    cache.contents("otherSource", 1000, new CountingIterable(KV.of("a", 1)), PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertEquals(1, counter(SideInputCache.EVICTIONS_COUNTER));
+    assertEquals(1000 * SideInputCache.EXPANSION, cache.getWeight());
+  }
+
+  @Test
+  public void testKeepsLargeValues() {
+    PCollectionView<Map<String, Iterable<Integer>>, ?> view =
+        input.apply(View.<String, Integer>asMap());
+    SideInputCache cache = new SideInputCache(8L << 30);
+
+    cache.contents("source", 1L << 30, new CountingIterable(KV.of("a", 1)), PREFIX)
+        .materialize(view, counters.getAddCounterMutator());
+
+    assertEquals(1, cache.size());
+    assertEquals(0, cache.getEvictions());
+    assertEquals((1L << 30) * SideInputCache.EXPANSION, cache.getWeight());
+  }
+}
@@ -72,4 +72,27 @@ public class CounterSetTest {
 
     assertEquals(2, set.size());
   }
+
+  @Test
+  public void testMerge() {
+    CounterSet set = new CounterSet();
+    set.addCounter(Counter.longs("c1", SUM).addValue(2L));
+    CounterSet other = new CounterSet();
+    other.addCounter(Counter.longs("c1", SUM).addValue(3L));
+    other.addCounter(Counter.longs("c2", MAX).addValue(4L));
+
+    set.merge(other);
+    assertEquals(2, set.size());
+    assertEquals(5L, set.getExistingCounter("c1").getAggregate(false));
+    assertEquals(4L, set.getExistingCounter("c2").getAggregate(false));
+
+    CounterSet incompatible = new CounterSet();
+    incompatible.addCounter(Counter.longs("c1", SET));
+    try {
+      set.merge(incompatible);
+      fail("should have failed");
+    } catch (IllegalArgumentException exn) {
+      // Expected.
+    }
+  }
 }
@@ -719,6 +719,36 @@ public class CounterTest {
     Counter.strings("counter", OR);
   }
 
+  @Test
+  public void testMerge() {
+    Counter<Long> sum = Counter.longs("sum", SUM).addValue(3L).addValue(4L);
+    assertEquals(12L, (long) sum.merge(Counter.longs("sum", SUM).addValue(5L)).getAggregate(false));
+
+    Counter<Double> max = Counter.doubles("max", MAX).addValue(7.0);
+    assertEquals(7.0, max.merge(Counter.doubles("max", MAX)).getAggregate(false), EPSILON);
+    assertEquals(9.0,
+        max.merge(Counter.doubles("max", MAX).addValue(9.0)).getAggregate(false), EPSILON);
+
+    Counter<Long> mean = Counter.longs("mean", MEAN).addValue(1L).addValue(2L);
+    mean.merge(Counter.longs("mean", MEAN).addValue(3L).addValue(4L).addValue(5L));
+    mean.merge(Counter.longs("mean", MEAN));
+    assertEquals(15L, (long) mean.getAggregate(false));
+    assertEquals(5, mean.getCount(false));
+    assertEquals(5, mean.getCount(true));
+
+    Counter<Boolean> and = Counter.booleans("and", AND).addValue(true);
+    assertFalse(and.merge(Counter.booleans("and", AND).addValue(false)).getAggregate(false));
+
+    Counter<String> set = Counter.strings("set", SET).addValue("a");
+    set.merge(Counter.strings("set", SET).addValue("a").addValue("b"));
+    assertEquals(Sets.newHashSet("a", "b"), set.getSet(false));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeIncompatible() {
+    Counter.longs("c", SUM).merge(Counter.longs("c", MAX));
+  }
+
   @Test
   public void testExtraction() {
     Counter<?>[] counters = {Counter.longs("c1", SUM),
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util.common.worker;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.dataflow.sdk.coders.IterableCoder;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.util.common.Counter;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
+import com.google.cloud.dataflow.sdk.util.common.worker.ExecutorTestUtils.TestReceiver;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.BufferingGroupingTable;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.SizeEstimator;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperationTest.IdentityGroupingKeyCreator;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperationTest.KvPairInfo;
+import com.google.cloud.dataflow.sdk.values.KV;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+/**
+ * Tests for AdaptiveGroupingTable.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class AdaptiveGroupingTableTest {
+
+  private static class ConstantSizeEstimator implements SizeEstimator<Object> {
+    @Override
+    public long estimateSize(Object element) {
+      return 8;
+    }
+  }
+
+  private CounterSet counterSet = new CounterSet();
+
+  private AdaptiveGroupingTable createTable(
+      long initialSize, long minSize, long maxSize, long bypassElements) {
+    BufferingGroupingTable<String, String> table = new BufferingGroupingTable<>(
+        initialSize, new IdentityGroupingKeyCreator(), new KvPairInfo(),
+        new ConstantSizeEstimator(), new ConstantSizeEstimator());
+    return new AdaptiveGroupingTable(table, initialSize, minSize, maxSize, bypassElements,
+        "stage-", "pgbk", counterSet.getAddCounterMutator());
+  }
+
+  private long getCounter(String name) {
+    return ((Counter<Long>) counterSet.getExistingCounter(name)).getAggregate(false);
+  }
+
+  @Test
+  public void testGrowsWhenKeysRepeat() throws Exception {
+    long initialSize = 100 * PartialGroupByKeyOperation.PER_KEY_OVERHEAD;
+    AdaptiveGroupingTable table = createTable(initialSize, initialSize, 4 * initialSize, 100);
+    TestReceiver receiver = new TestReceiver(
+        KvCoder.of(StringUtf8Coder.of(), IterableCoder.of(StringUtf8Coder.of())));
+
+    for (int i = 0; i < 100000; i++) {
+      table.put(KV.of("k" + (i % 10), "v"), receiver);
+    }
+    assertEquals(4 * initialSize, table.getCurrentMaxSize());
+    assertFalse(table.isBypassed());
+
+    table.flush(receiver);
+    assertEquals(100000L, getCounter("stage-pgbk-GroupingTableInputElements"));
+    assertEquals(receiver.outputElems.size(), getCounter("stage-pgbk-GroupingTableOutputPairs"));
+    assertEquals(0L, getCounter("stage-pgbk-GroupingTableBypassedElements"));
+    assertEquals(4 * initialSize, getCounter("stage-pgbk-GroupingTableMaxBytes"));
+  }
+
+  @Test
+  public void testShrinksAndBypassesWhenKeysAreUnique() throws Exception {
+    long minSize = 10 * PartialGroupByKeyOperation.PER_KEY_OVERHEAD;
+    AdaptiveGroupingTable table = createTable(4 * minSize, minSize, 4 * minSize, 100);
+    TestReceiver receiver = new TestReceiver(
+        KvCoder.of(StringUtf8Coder.of(), IterableCoder.of(StringUtf8Coder.of())));
+
+    int i = 0;
+    while (!table.isBypassed()) {
+      table.put(KV.of("k" + i++, "v"), receiver);
+      assertTrue("never bypassed", i < 1000);
+    }
+    assertEquals(minSize, table.getCurrentMaxSize());
+    // Everything buffered was output when bypassing started.
+    assertEquals(i, receiver.outputElems.size());
+    assertEquals(0, table.getSize());
+
+    receiver.outputElems.clear();
+    table.put(KV.of("bypassed", "v"), receiver);
+    assertEquals(Arrays.asList(KV.of("bypassed", Arrays.asList("v"))), receiver.outputElems);
+    assertEquals(1L, getCounter("stage-pgbk-GroupingTableBypassedElements"));
+
+    // Grouping resumes after the bypass.
+    for (int j = 1; j < 100; j++) {
+      table.put(KV.of("k" + i++, "v"), receiver);
+    }
+    assertFalse(table.isBypassed());
+    table.put(KV.of("k" + i++, "v"), receiver);
+    assertThat(table.getSize(), greaterThan(0L));
+  }
+
+  @Test
+  public void testRegrowsByteArrayTableAfterShrinking() throws Exception {
+    long minSize = 64 * 1024;
+    long maxSize = 1024 * 1024;
+    AdaptiveGroupingTable table = new AdaptiveGroupingTable(
+        ByteArrayGroupingTableTest.createBufferingTable(maxSize, 4096),
+        maxSize, minSize, maxSize, 1000, "stage-", "pgbk", counterSet.getAddCounterMutator());
+    TestReceiver receiver = new TestReceiver(
+        KvCoder.of(StringUtf8Coder.of(), IterableCoder.of(StringUtf8Coder.of())));
+
+    // Unique keys grow the index of the underlying table, then shrink it.
+    int i = 0;
+    while (table.getCurrentMaxSize() > minSize) {
+      table.put(KV.of("k" + i++, "v"), receiver);
+      assertTrue("never shrunk", i < 1000000);
+    }
+
+    // Once keys repeat, the shrunk table groups them again, since flushing
+    // released the capacity it had grown to.
+    for (int j = 0; j < 1000000; j++) {
+      table.put(KV.of("r" + (j % 10), "v"), receiver);
+    }
+    assertEquals(maxSize, table.getCurrentMaxSize());
+    assertFalse(table.isBypassed());
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util.common.worker;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import com.google.cloud.dataflow.sdk.coders.BigEndianIntegerCoder;
+import com.google.cloud.dataflow.sdk.coders.BigEndianLongCoder;
+import com.google.cloud.dataflow.sdk.coders.IterableCoder;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.runners.worker.MapTaskExecutorFactory.CoderElementCodec;
+import com.google.cloud.dataflow.sdk.runners.worker.MapTaskExecutorFactory.EncodingGroupingKeyCreator;
+import com.google.cloud.dataflow.sdk.runners.worker.MapTaskExecutorFactory.PairInfo;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
+import com.google.cloud.dataflow.sdk.util.WindowedValue;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
+import com.google.cloud.dataflow.sdk.util.common.worker.ExecutorTestUtils.TestReceiver;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.Combiner;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.GroupingKeyCreator;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.StructuralByteArray;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperationTest.KvPairInfo;
+import com.google.cloud.dataflow.sdk.values.KV;
+
+import org.hamcrest.collection.IsIterableContainingInAnyOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for ByteArrayGroupingTable.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class ByteArrayGroupingTableTest {
+
+  /**
+   * Uses the UTF-8 encoding of the key as its grouping key.
+   */
+  static class StringGroupingKeyCreator implements GroupingKeyCreator<String> {
+    @Override
+    public Object createGroupingKey(String key) throws Exception {
+      return new StructuralByteArray(CoderUtils.encodeToByteArray(StringUtf8Coder.of(), key));
+    }
+  }
+
+  static ByteArrayGroupingTable.Buffering<String, String> createBufferingTable(
+      long maxSize, int pageSize) {
+    return new ByteArrayGroupingTable.Buffering<String, String>(
+        maxSize, new StringGroupingKeyCreator(), new KvPairInfo(),
+        new CoderElementCodec(StringUtf8Coder.of()), new CoderElementCodec(StringUtf8Coder.of()),
+        pageSize);
+  }
+
+  @Test
+  public void testBufferingTable() throws Exception {
+    ByteArrayGroupingTable.Buffering<String, String> table =
+        createBufferingTable(Long.MAX_VALUE, 64);
+    TestReceiver receiver = new TestReceiver(
+        KvCoder.of(StringUtf8Coder.of(), IterableCoder.of(StringUtf8Coder.of())));
+
+    table.put("A", "a", receiver);
+    table.put("B", "b1", receiver);
+    table.put("B", "b2", receiver);
+    table.put("C", "c", receiver);
+    // A value larger than a page gets a page of its own.
+    char[] big = new char[100];
+    Arrays.fill(big, 'x');
+    table.put("C", new String(big), receiver);
+    assertThat(receiver.outputElems, empty());
+    assertEquals(3, table.getNumEntries());
+
+    table.flush(receiver);
+    assertThat(receiver.outputElems,
+               IsIterableContainingInAnyOrder.<Object>containsInAnyOrder(
+                   KV.of("A", Arrays.asList("a")),
+                   KV.of("B", Arrays.asList("b1", "b2")),
+                   KV.of("C", Arrays.asList("c", new String(big)))));
+    assertEquals(0, table.getNumEntries());
+
+    // The table is reusable after a flush.
+    receiver.outputElems.clear();
+    table.put("A", "a2", receiver);
+    table.flush(receiver);
+    assertThat(receiver.outputElems,
+               IsIterableContainingInAnyOrder.<Object>containsInAnyOrder(
+                   KV.of("A", Arrays.asList("a2"))));
+  }
+
+  @Test
+  public void testBufferingTableManyKeys() throws Exception {
+    ByteArrayGroupingTable.Buffering<String, String> table =
+        createBufferingTable(Long.MAX_VALUE, ByteArrayGroupingTable.DEFAULT_PAGE_SIZE);
+    TestReceiver receiver = new TestReceiver(
+        KvCoder.of(StringUtf8Coder.of(), IterableCoder.of(StringUtf8Coder.of())));
+    long emptySize = table.getSize();
+
+    // Enough keys to grow the index several times.
+    Map<String, List<String>> expected = new HashMap<>();
+    for (int i = 0; i < 10000; i++) {
+      String key = "k" + (i % 3000);
+      String value = "v" + i;
+      table.put(key, value, receiver);
+      if (!expected.containsKey(key)) {
+        expected.put(key, new ArrayList<String>());
+      }
+      expected.get(key).add(value);
+    }
+    assertEquals(3000, table.getNumEntries());
+
+    table.flush(receiver);
+    // Flushing releases the grown index.
+    assertEquals(emptySize, table.getSize());
+    assertEquals(3000, receiver.outputElems.size());
+    for (Object elem : receiver.outputElems) {
+      KV<String, List<String>> kv = (KV<String, List<String>>) elem;
+      assertEquals(expected.get(kv.getKey()), kv.getValue());
+    }
+  }
+
+  @Test
+  public void testBufferingTableFlushesWhenFull() throws Exception {
+    ByteArrayGroupingTable.Buffering<String, String> table = createBufferingTable(0, 64);
+    table.setMaxSize(table.getSize() + 60);
+    TestReceiver receiver = new TestReceiver(
+        KvCoder.of(StringUtf8Coder.of(), IterableCoder.of(StringUtf8Coder.of())));
+
+    table.put("A", "a", receiver);
+    table.put("B", "b", receiver);
+    assertThat(receiver.outputElems, empty());
+
+    table.put("C", "cccccccccccccccccccc", receiver);
+    assertThat(receiver.outputElems,
+               IsIterableContainingInAnyOrder.<Object>containsInAnyOrder(
+                   KV.of("A", Arrays.asList("a")),
+                   KV.of("B", Arrays.asList("b")),
+                   KV.of("C", Arrays.asList("cccccccccccccccccccc"))));
+    assertEquals(0, table.getNumEntries());
+  }
+
+  @Test
+  public void testCombiningTable() throws Exception {
+    Combiner<Object, Integer, Long, Long> summingCombineFn =
+        new Combiner<Object, Integer, Long, Long>() {
+          public Long createAccumulator(Object key) {
+            return 0L;
+          }
+          public Long add(Object key, Long accumulator, Integer value) {
+            return accumulator + value;
+          }
+          public Long merge(Object key, Iterable<Long> accumulators) {
+            long sum = 0;
+            for (Long part : accumulators) { sum += part; }
+            return sum;
+          }
+          public Long extract(Object key, Long accumulator) {
+            return accumulator;
+          }
+        };
+
+    ByteArrayGroupingTable.Combining<String, Integer, Long> table =
+        new ByteArrayGroupingTable.Combining<String, Integer, Long>(
+            Long.MAX_VALUE, new StringGroupingKeyCreator(), new KvPairInfo(),
+            summingCombineFn, new CoderElementCodec(StringUtf8Coder.of()),
+            new CoderElementCodec(BigEndianLongCoder.of()));
+    TestReceiver receiver = new TestReceiver(
+        KvCoder.of(StringUtf8Coder.of(), BigEndianLongCoder.of()));
+
+    table.put("A", 1, receiver);
+    table.put("B", 2, receiver);
+    table.put("B", 3, receiver);
+    table.put("C", 4, receiver);
+    table.put("C", 5000, receiver);
+    long sizeBefore = table.getSize();
+    // Fixed-size accumulators are updated in place.
+    table.put("C", 6, receiver);
+    assertEquals(sizeBefore, table.getSize());
+    assertThat(receiver.outputElems, empty());
+
+    table.flush(receiver);
+    assertThat(receiver.outputElems,
+               IsIterableContainingInAnyOrder.<Object>containsInAnyOrder(
+                   KV.of("A", 1L),
+                   KV.of("B", 2L + 3),
+                   KV.of("C", 5000L + 4 + 6)));
+  }
+
+  @Test
+  public void testPartialGroupByKeyOperation() throws Exception {
+    CounterSet counterSet = new CounterSet();
+    String counterPrefix = "test-";
+    StateSampler stateSampler = new StateSampler(
+        counterPrefix, counterSet.getAddCounterMutator());
+    TestReceiver receiver = new TestReceiver(
+        WindowedValue.getValueOnlyCoder(
+            KvCoder.of(StringUtf8Coder.of(), IterableCoder.of(BigEndianIntegerCoder.of()))),
+        counterSet);
+
+    ByteArrayGroupingTable.Buffering table = new ByteArrayGroupingTable.Buffering(
+        Long.MAX_VALUE,
+        new EncodingGroupingKeyCreator(WindowedValue.getValueOnlyCoder(StringUtf8Coder.of())),
+        PairInfo.create(),
+        new CoderElementCodec(WindowedValue.getValueOnlyCoder(StringUtf8Coder.of())),
+        new CoderElementCodec(BigEndianIntegerCoder.of()));
+    PartialGroupByKeyOperation pgbkOperation = new PartialGroupByKeyOperation(
+        "PartialGroupByKeyOperation", table, new OutputReceiver[]{ receiver },
+        counterPrefix, counterSet.getAddCounterMutator(), stateSampler);
+
+    pgbkOperation.start();
+
+    pgbkOperation.process(WindowedValue.valueInEmptyWindows(KV.of("hi", 4)));
+    pgbkOperation.process(WindowedValue.valueInEmptyWindows(KV.of("there", 5)));
+    pgbkOperation.process(WindowedValue.valueInEmptyWindows(KV.of("hi", 6)));
+    pgbkOperation.process(WindowedValue.valueInEmptyWindows(KV.of("joe", 7)));
+    pgbkOperation.process(WindowedValue.valueInEmptyWindows(KV.of("there", 8)));
+    pgbkOperation.process(WindowedValue.valueInEmptyWindows(KV.of("hi", 9)));
+    assertThat(pgbkOperation.getGroupingTableBytes(), greaterThan(0L));
+
+    pgbkOperation.finish();
+
+    assertThat(receiver.outputElems,
+               IsIterableContainingInAnyOrder.<Object>containsInAnyOrder(
+                   WindowedValue.valueInEmptyWindows(KV.of("hi", Arrays.asList(4, 6, 9))),
+                   WindowedValue.valueInEmptyWindows(KV.of("there", Arrays.asList(5, 8))),
+                   WindowedValue.valueInEmptyWindows(KV.of("joe", Arrays.asList(7)))));
+  }
+}
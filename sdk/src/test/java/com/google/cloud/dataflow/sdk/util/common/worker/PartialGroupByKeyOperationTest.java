@@ -20,6 +20,7 @@ import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.
 import static com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind.SUM;
 import static org.hamcrest.Matchers.anyOf;
 import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.isIn;
 import static org.junit.Assert.assertEquals;
@@ -42,12 +43,14 @@ import com.google.cloud.dataflow.sdk.util.common.worker.ExecutorTestUtils.TestRe
 import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.BufferingGroupingTable;
 import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.Combiner;
 import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.CombiningGroupingTable;
+import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.EvictionPolicy;
 import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.GroupingKeyCreator;
 import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.SamplingSizeEstimator;
 import com.google.cloud.dataflow.sdk.util.common.worker.PartialGroupByKeyOperation.SizeEstimator;
 import com.google.cloud.dataflow.sdk.values.KV;
 
 import org.hamcrest.Description;
+import org.hamcrest.Matcher;
 import org.hamcrest.TypeSafeDiagnosingMatcher;
 import org.hamcrest.collection.IsIterableContainingInAnyOrder;
 import org.junit.Test;
@@ -165,7 +168,10 @@ public class PartialGroupByKeyOperationTest {
     }
   }
 
-  private static class KvPairInfo implements PartialGroupByKeyOperation.PairInfo {
+  /**
+   * Return the key and value of a KV, and make a KV of them.
+   */
+  public static class KvPairInfo implements PartialGroupByKeyOperation.PairInfo {
     @Override
     public Object getKeyFromInputPair(Object pair) {
       return ((KV<?, ?>) pair).getKey();
@@ -212,6 +218,69 @@ public class PartialGroupByKeyOperationTest {
                    KV.of("DDDD", Arrays.asList("d"))));
   }
 
+  @Test
+  public void testLeastRecentlyUpdatedEviction() throws Exception {
+    long valueSize = PartialGroupByKeyOperation.BYTES_PER_JVM_WORD + 10;
+    long keySize = PartialGroupByKeyOperation.PER_KEY_OVERHEAD
+        + 2 * PartialGroupByKeyOperation.BYTES_PER_JVM_WORD + 10 + valueSize;
+    BufferingGroupingTable<String, String> table =
+        new BufferingGroupingTable<>(
+            5 * keySize + valueSize, new IdentityGroupingKeyCreator(), new KvPairInfo(),
+            new StringPowerSizeEstimator(), new StringPowerSizeEstimator(),
+            EvictionPolicy.LEAST_RECENTLY_UPDATED);
+    CounterSet counterSet = new CounterSet();
+    table.addEvictionCounters("stage-", "pgbk", counterSet.getAddCounterMutator());
+    TestReceiver receiver = new TestReceiver(
+        KvCoder.of(StringUtf8Coder.of(), IterableCoder.of(StringUtf8Coder.of())));
+
+    table.put("A", "a", receiver);
+    table.put("B", "b", receiver);
+    table.put("C", "c", receiver);
+    table.put("D", "d", receiver);
+    table.put("A", "a", receiver);
+    assertThat(receiver.outputElems, empty());
+
+    // B is the least recently updated key, even though A was added first.
+    table.put("E", "e", receiver);
+    assertEquals(Arrays.asList(KV.of("B", Arrays.asList("b"))), receiver.outputElems);
+    assertEquals(1L, ((Counter<Long>) counterSet.getExistingCounter(
+        "stage-pgbk-GroupingTableEvictedEntries")).getAggregate(false).longValue());
+  }
+
+  @Test
+  public void testLeastFrequentlyUpdatedEviction() throws Exception {
+    long valueSize = PartialGroupByKeyOperation.BYTES_PER_JVM_WORD + 10;
+    long keySize = PartialGroupByKeyOperation.PER_KEY_OVERHEAD + 10 + valueSize;
+    BufferingGroupingTable<String, String> table =
+        new BufferingGroupingTable<>(
+            5 * keySize + 3 * valueSize, new IdentityGroupingKeyCreator(), new KvPairInfo(),
+            new StringPowerSizeEstimator(), new StringPowerSizeEstimator(),
+            EvictionPolicy.LEAST_FREQUENTLY_UPDATED);
+    CounterSet counterSet = new CounterSet();
+    table.addEvictionCounters("stage-", "pgbk", counterSet.getAddCounterMutator());
+    TestReceiver receiver = new TestReceiver(
+        KvCoder.of(StringUtf8Coder.of(), IterableCoder.of(StringUtf8Coder.of())));
+
+    table.put("A", "a", receiver);
+    table.put("A", "x", receiver);
+    table.put("A", "y", receiver);
+    table.put("B", "b", receiver);
+    table.put("C", "c", receiver);
+    table.put("C", "z", receiver);
+    table.put("D", "d", receiver);
+    assertThat(receiver.outputElems, empty());
+
+    // One of the older keys with a single value is evicted, rather than A,
+    // or E that was just added.
+    table.put("E", "e", receiver);
+    assertEquals(1, receiver.outputElems.size());
+    assertThat(receiver.outputElems.get(0), anyOf(
+        (Matcher) equalTo(KV.of("B", Arrays.asList("b"))),
+        (Matcher) equalTo(KV.of("D", Arrays.asList("d")))));
+    assertEquals(1L, ((Counter<Long>) counterSet.getExistingCounter(
+        "stage-pgbk-GroupingTableValuesPerEvictedEntry")).getAggregate(false).longValue());
+  }
+
   @Test
   public void testCombiningGroupingTable() throws Exception {
     Combiner<Object, Integer, Long, Long> summingCombineFn =
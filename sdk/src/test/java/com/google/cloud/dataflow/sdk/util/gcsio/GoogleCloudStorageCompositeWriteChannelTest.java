@@ -0,0 +1,213 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util.gcsio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link GoogleCloudStorageCompositeWriteChannel}. */
+@RunWith(JUnit4.class)
+public class GoogleCloudStorageCompositeWriteChannelTest {
+  private static final int PART_SIZE = 100;
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * A {@link GoogleCloudStorageCompositeWriteChannel} that stores objects in memory.
+   */
+  private class FakeCompositeWriteChannel extends GoogleCloudStorageCompositeWriteChannel {
+    final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    final AtomicInteger composeCount = new AtomicInteger();
+    final AtomicInteger concurrentInserts = new AtomicInteger();
+    final AtomicInteger maxConcurrentInserts = new AtomicInteger();
+    // The number of the insert that fails, or -1.
+    final int failingInsert;
+    final AtomicInteger insertCount = new AtomicInteger();
+
+    FakeCompositeWriteChannel(long bufferBytes, int failingInsert) {
+      super(executor, null, "bucket", "object", "text/plain", PART_SIZE, bufferBytes);
+      this.failingInsert = failingInsert;
+    }
+
+    @Override
+    protected void insertObject(String name, byte[] data, int length) throws IOException {
+      int concurrent = concurrentInserts.incrementAndGet();
+      try {
+        int max = maxConcurrentInserts.get();
+        while (concurrent > max && !maxConcurrentInserts.compareAndSet(max, concurrent)) {
+          max = maxConcurrentInserts.get();
+        }
+        if (insertCount.getAndIncrement() == failingInsert) {
+          throw new IOException("Failed to insert " + name);
+        }
+        // Let the uploads overlap.
+        Thread.sleep(5);
+        objects.put(name, Arrays.copyOf(data, length));
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } finally {
+        concurrentInserts.decrementAndGet();
+      }
+    }
+
+    @Override
+    protected void composeObjects(List<String> sources, String destination) throws IOException {
+      assertTrue(sources.size() <= MAX_COMPOSE_SOURCES);
+      composeCount.incrementAndGet();
+      ByteArrayOutputStream composed = new ByteArrayOutputStream();
+      for (String source : sources) {
+        composed.write(objects.get(source));
+      }
+      objects.put(destination, composed.toByteArray());
+    }
+
+    @Override
+    protected void deleteObject(String name) throws IOException {
+      objects.remove(name);
+    }
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(0).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static void writeInChunks(GoogleCloudStorageCompositeWriteChannel channel, byte[] data)
+      throws IOException {
+    for (int i = 0; i < data.length; i += 37) {
+      assertEquals(Math.min(37, data.length - i),
+          channel.write(ByteBuffer.wrap(data, i, Math.min(37, data.length - i))));
+    }
+  }
+
+  @Test
+  public void testSmallObjectIsInsertedDirectly() throws IOException {
+    byte[] data = randomBytes(PART_SIZE - 1);
+    FakeCompositeWriteChannel channel = new FakeCompositeWriteChannel(10 * PART_SIZE, -1);
+    writeInChunks(channel, data);
+    channel.close();
+
+    assertFalse(channel.isOpen());
+    assertEquals(1, channel.objects.size());
+    assertArrayEquals(data, channel.objects.get("object"));
+    assertEquals(0, channel.composeCount.get());
+    assertTrue(channel.getTemporaryObjects().isEmpty());
+  }
+
+  @Test
+  public void testEmptyObject() throws IOException {
+    FakeCompositeWriteChannel channel = new FakeCompositeWriteChannel(10 * PART_SIZE, -1);
+    channel.close();
+    assertArrayEquals(new byte[0], channel.objects.get("object"));
+  }
+
+  @Test
+  public void testCompositeUpload() throws IOException {
+    byte[] data = randomBytes(10 * PART_SIZE + 50);
+    FakeCompositeWriteChannel channel = new FakeCompositeWriteChannel(10 * PART_SIZE, -1);
+    writeInChunks(channel, data);
+    channel.close();
+
+    // Only the object is left.
+    assertEquals(1, channel.objects.size());
+    assertArrayEquals(data, channel.objects.get("object"));
+    assertEquals(1, channel.composeCount.get());
+    assertEquals(11, channel.getTemporaryObjects().size());
+    for (String name : channel.getTemporaryObjects()) {
+      assertTrue(name.startsWith(
+          GoogleCloudStorageCompositeWriteChannel.TEMPORARY_OBJECT_PREFIX));
+    }
+  }
+
+  @Test
+  public void testManyPartsAreComposedInRounds() throws IOException {
+    byte[] data = randomBytes(2000 * PART_SIZE);
+    FakeCompositeWriteChannel channel = new FakeCompositeWriteChannel(64 * PART_SIZE, -1);
+    channel.write(ByteBuffer.wrap(data));
+    channel.close();
+
+    assertEquals(1, channel.objects.size());
+    assertArrayEquals(data, channel.objects.get("object"));
+    // 2000 parts are composed into 63 objects, then 2, then the object.
+    assertEquals(63 + 2 + 1, channel.composeCount.get());
+  }
+
+  @Test
+  public void testMemoryBudgetBoundsConcurrentUploads() throws IOException {
+    byte[] data = randomBytes(50 * PART_SIZE);
+    FakeCompositeWriteChannel channel = new FakeCompositeWriteChannel(4 * PART_SIZE, -1);
+    writeInChunks(channel, data);
+    channel.close();
+
+    assertArrayEquals(data, channel.objects.get("object"));
+    assertTrue(channel.maxConcurrentInserts.get() <= 4);
+  }
+
+  @Test
+  public void testUploadFailure() throws IOException {
+    FakeCompositeWriteChannel channel = new FakeCompositeWriteChannel(4 * PART_SIZE, 2);
+    try {
+      writeInChunks(channel, randomBytes(50 * PART_SIZE));
+      channel.close();
+      fail("Expected the upload to fail");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("gs://bucket/object"));
+    }
+    if (channel.isOpen()) {
+      try {
+        channel.close();
+        fail("Expected the upload to fail");
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+    // The uploaded parts are deleted.
+    assertTrue(channel.objects.isEmpty());
+  }
+}
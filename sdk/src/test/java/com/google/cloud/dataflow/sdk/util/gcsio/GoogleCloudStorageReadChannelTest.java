@@ -0,0 +1,276 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util.gcsio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.storage.Storage;
+import com.google.cloud.dataflow.sdk.util.ApiErrorExtractor;
+import com.google.cloud.dataflow.sdk.util.Transport;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/** Unit tests for {@link GoogleCloudStorageReadChannel}. */
+@RunWith(JUnit4.class)
+public class GoogleCloudStorageReadChannelTest {
+  private static final int BLOCK_SIZE = 1000;
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * An {@link MockHttpTransport} serving a single object from memory, which honors the range of
+   * media requests like GCS.
+   */
+  private static class FakeStorageTransport extends MockHttpTransport {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    final byte[] content;
+    final boolean gzipEncoded;
+    final AtomicInteger requestCount = new AtomicInteger();
+
+    FakeStorageTransport(byte[] content, boolean gzipEncoded) {
+      this.content = content;
+      this.gzipEncoded = gzipEncoded;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          requestCount.incrementAndGet();
+          MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+          if (gzipEncoded) {
+            // GCS ignores the range of objects it decompresses.
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+              out.write(content);
+            }
+            response.setContentEncoding("gzip");
+            response.addHeader("Content-Length", Integer.toString(compressed.size()));
+            return response.setContent(new ByteArrayInputStream(compressed.toByteArray()));
+          }
+
+          Matcher range = RANGE.matcher(getFirstHeaderValue("Range"));
+          if (!range.matches()) {
+            throw new IOException("Unexpected range " + getFirstHeaderValue("Range"));
+          }
+          int start = Integer.parseInt(range.group(1));
+          int end = range.group(2).isEmpty()
+              ? content.length : Math.min(content.length, Integer.parseInt(range.group(2)) + 1);
+          if (start >= content.length) {
+            return response.setStatusCode(416);
+          }
+          response.setStatusCode(206);
+          response.addHeader("Content-Range",
+              "bytes " + start + "-" + (end - 1) + "/" + content.length);
+          return response.setContent(
+              new ByteArrayInputStream(Arrays.copyOfRange(content, start, end)));
+        }
+      };
+    }
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(0).nextBytes(bytes);
+    return bytes;
+  }
+
+  private GoogleCloudStorageReadChannel open(FakeStorageTransport transport, boolean prefetching)
+      throws IOException {
+    Storage storage = new Storage(transport, Transport.getJsonFactory(), null);
+    GoogleCloudStorageReadChannel channel =
+        new GoogleCloudStorageReadChannel(storage, "bucket", "object", new ApiErrorExtractor());
+    if (prefetching) {
+      channel.enablePrefetching(executor, BLOCK_SIZE, 4);
+    }
+    return channel;
+  }
+
+  private static byte[] read(GoogleCloudStorageReadChannel channel, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {}
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  }
+
+  @Test
+  public void testPrefetchedSequentialRead() throws IOException {
+    byte[] content = randomBytes(10 * BLOCK_SIZE + 123);
+    FakeStorageTransport transport = new FakeStorageTransport(content, false);
+    GoogleCloudStorageReadChannel channel = open(transport, true);
+
+    ByteArrayOutputStream read = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocate(777);
+    while (channel.read(buffer) >= 0) {
+      read.write(buffer.array(), 0, buffer.position());
+      buffer.clear();
+    }
+    assertArrayEquals(content, read.toByteArray());
+    assertEquals(content.length, channel.size());
+    assertEquals(content.length, channel.position());
+    // Every block was fetched once, and ahead of the reads.
+    assertEquals(11, transport.requestCount.get());
+    assertEquals(content.length, channel.getRangedReadBytes());
+    assertEquals(0, channel.getReopenCount());
+    channel.close();
+  }
+
+  @Test
+  public void testPrefetchedShortSeeks() throws IOException {
+    byte[] content = randomBytes(10 * BLOCK_SIZE);
+    GoogleCloudStorageReadChannel channel =
+        open(new FakeStorageTransport(content, false), true);
+
+    assertArrayEquals(Arrays.copyOfRange(content, 0, 2500), read(channel, 2500));
+    // Backwards into the previous block, and forwards within the fetched blocks.
+    channel.position(1999);
+    assertArrayEquals(Arrays.copyOfRange(content, 1999, 2000), read(channel, 1));
+    channel.position(4500);
+    assertArrayEquals(Arrays.copyOfRange(content, 4500, 5000), read(channel, 500));
+    assertEquals(0, channel.getReopenCount());
+    channel.close();
+  }
+
+  @Test
+  public void testPrefetchedLongSeeks() throws IOException {
+    byte[] content = randomBytes(20 * BLOCK_SIZE);
+    GoogleCloudStorageReadChannel channel =
+        open(new FakeStorageTransport(content, false), true);
+
+    channel.position(15500);
+    assertArrayEquals(Arrays.copyOfRange(content, 15500, 16000), read(channel, 500));
+    channel.position(100);
+    assertArrayEquals(Arrays.copyOfRange(content, 100, 3100), read(channel, 3000));
+    assertArrayEquals(Arrays.copyOfRange(content, 3100, 20000), read(channel, 20000));
+    assertEquals(1, channel.getReopenCount());
+    channel.close();
+  }
+
+  @Test
+  public void testReportCounters() throws IOException {
+    byte[] content = randomBytes(20 * BLOCK_SIZE);
+    GoogleCloudStorageReadChannel channel =
+        open(new FakeStorageTransport(content, false), true);
+    CounterSet counters = new CounterSet();
+    channel.reportCountersTo("stage-", counters.getAddCounterMutator());
+
+    channel.position(15500);
+    read(channel, 500);
+    channel.position(100);
+    read(channel, 20000);
+    assertEquals(channel.getRangedReadBytes(), counters.getExistingCounter(
+        "stage-" + GoogleCloudStorageReadChannel.RANGED_READ_BYTES_COUNTER).getAggregate(false));
+    assertEquals(1L, counters.getExistingCounter(
+        "stage-" + GoogleCloudStorageReadChannel.REOPENS_COUNTER).getAggregate(false));
+    assertTrue((Long) counters.getExistingCounter(
+        "stage-" + GoogleCloudStorageReadChannel.RANGED_READ_MSECS_COUNTER).getAggregate(false)
+        >= 0);
+
+    try {
+      channel.reportCountersTo("other-", counters.getAddCounterMutator());
+      fail("should have failed");
+    } catch (IllegalStateException exn) {
+      // Expected.
+    }
+    channel.close();
+  }
+
+  @Test
+  public void testPrefetchedSize() throws IOException {
+    byte[] content = randomBytes(2 * BLOCK_SIZE + 1);
+    GoogleCloudStorageReadChannel channel =
+        open(new FakeStorageTransport(content, false), true);
+    assertEquals(content.length, channel.size());
+    channel.position(content.length - 1);
+    assertArrayEquals(Arrays.copyOfRange(content, content.length - 1, content.length),
+        read(channel, 10));
+    assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+    channel.close();
+  }
+
+  @Test
+  public void testPrefetchedEmptyObject() throws IOException {
+    GoogleCloudStorageReadChannel channel =
+        open(new FakeStorageTransport(new byte[0], false), true);
+    assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+    assertEquals(0, channel.size());
+    channel.close();
+  }
+
+  @Test
+  public void testPrefetchedCompressedObjectIsReadSequentially() throws IOException {
+    byte[] content = randomBytes(5 * BLOCK_SIZE);
+    GoogleCloudStorageReadChannel channel =
+        open(new FakeStorageTransport(content, true), true);
+    assertArrayEquals(content, read(channel, 10 * BLOCK_SIZE));
+    assertEquals(0, channel.getReopenCount());
+    channel.close();
+  }
+
+  @Test
+  public void testSequentialReadCountsReopens() throws IOException {
+    byte[] content = randomBytes(10 * BLOCK_SIZE);
+    FakeStorageTransport transport = new FakeStorageTransport(content, false);
+    GoogleCloudStorageReadChannel channel = open(transport, false);
+
+    assertArrayEquals(Arrays.copyOfRange(content, 0, 2500), read(channel, 2500));
+    channel.position(1999);
+    assertArrayEquals(Arrays.copyOfRange(content, 1999, 2000), read(channel, 1));
+    assertEquals(1, channel.getReopenCount());
+    assertEquals(2, transport.requestCount.get());
+    assertEquals(0, channel.getRangedReadBytes());
+    channel.close();
+  }
+}